@@ -0,0 +1,20 @@
+package no.tiger.gtfs.filter.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Run the benchmarks with the JMH command line. The allocation rate is reported by the
+ * JMH gc profiler, which is added unless other profilers are given with {@code -prof}.
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if(!jmhArgs.contains("-prof")) {
+            jmhArgs.add("-prof");
+            jmhArgs.add("gc");
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
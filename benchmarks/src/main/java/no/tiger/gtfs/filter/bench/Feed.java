@@ -0,0 +1,64 @@
+package no.tiger.gtfs.filter.bench;
+
+import no.tiger.gtfs.filter.impl.Box;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The generated feed used by the benchmarks. The feed is generated in the temp directory
+ * the first time, and reused by later runs since the feed generated is always the same.
+ */
+@State(Scope.Benchmark)
+public class Feed {
+    /** The center of the area covered by the feed, about a quarter of the stops. */
+    static final Box CENTER = new Box(
+            "center",
+            (3 * FeedGenerator.MIN_LAT + FeedGenerator.MAX_LAT) / 4,
+            (3 * FeedGenerator.MIN_LON + FeedGenerator.MAX_LON) / 4,
+            (FeedGenerator.MIN_LAT + 3 * FeedGenerator.MAX_LAT) / 4,
+            (FeedGenerator.MIN_LON + 3 * FeedGenerator.MAX_LON) / 4
+    );
+
+    @Param({ "10000", "1000000" })
+    public long stopTimes;
+
+    FeedGenerator generator;
+    File zipFile;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        generator = FeedGenerator.forStopTimes(stopTimes);
+        zipFile = new File(System.getProperty("java.io.tmpdir"), "gtfs-bench-" + stopTimes + ".zip");
+        if(!zipFile.exists()) {
+            File tmp = new File(zipFile.getPath() + ".tmp");
+            generator.write(tmp);
+            Files.move(tmp.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** The first half of the agencies. */
+    String[] agencyNames() {
+        String[] names = new String[Math.max(1, generator.agencies() / 2)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "Agency" + (i + 1);
+        }
+        return names;
+    }
+
+    /** The first half of the routes. */
+    String[] routeShortNames() {
+        String[] names = new String[Math.max(1, generator.routes() / 2)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = Integer.toString(i + 1);
+        }
+        return names;
+    }
+}
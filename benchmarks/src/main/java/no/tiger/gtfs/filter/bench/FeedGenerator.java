@@ -0,0 +1,267 @@
+package no.tiger.gtfs.filter.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generate a synthetic GTFS feed. The same parameters always generate the same feed.
+ * <p>
+ * The stations are laid out on a grid covering the Oslo area, each station has a number
+ * of quays. Each route follows a random walk over the grid, and the trips of a route
+ * run every day in both directions. The agencies are named {@code Agency1, Agency2, ...}
+ * and the routes have the short names {@code 1, 2, ...}.
+ * <p>
+ * The rows are written as they are generated, so feeds with 50M stop times can be
+ * generated without keeping the feed in memory.
+ */
+public class FeedGenerator {
+    static final double MIN_LAT = 59.80;
+    static final double MAX_LAT = 60.05;
+    static final double MIN_LON = 10.55;
+    static final double MAX_LON = 11.00;
+
+    private static final int STOPS_PER_TRIP = 20;
+    private static final int TRIPS_PER_ROUTE = 50;
+    private static final String[] SERVICES = { "WEEKDAY", "SATURDAY", "SUNDAY" };
+
+    private final int agencies;
+    private final int routesPerAgency;
+    private final int tripsPerRoute;
+    private final int stopsPerTrip;
+    private final int quaysPerStation;
+    private final int transfers;
+    private final int gridSize;
+    private final long seed;
+
+    public FeedGenerator(
+            int agencies, int routesPerAgency, int tripsPerRoute, int stopsPerTrip,
+            int stations, int quaysPerStation, int transfers, long seed
+    ) {
+        this.agencies = agencies;
+        this.routesPerAgency = routesPerAgency;
+        this.tripsPerRoute = tripsPerRoute;
+        this.stopsPerTrip = stopsPerTrip;
+        this.quaysPerStation = quaysPerStation;
+        this.transfers = transfers;
+        this.gridSize = (int) Math.ceil(Math.sqrt(stations));
+        this.seed = seed;
+    }
+
+    /**
+     * Create a generator for a feed with about the given number of stop times, with
+     * 20 stops per trip, 50 trips per route and 10 stations per route.
+     */
+    public static FeedGenerator forStopTimes(long stopTimes) {
+        int routes = (int) Math.max(1, stopTimes / (STOPS_PER_TRIP * TRIPS_PER_ROUTE));
+        int agencies = Math.max(2, Math.min(20, routes / 10));
+        int routesPerAgency = (routes + agencies - 1) / agencies;
+        int stations = Math.max(50, 10 * routes);
+        return new FeedGenerator(
+                agencies, routesPerAgency, TRIPS_PER_ROUTE, STOPS_PER_TRIP, stations, 2, stations, 42
+        );
+    }
+
+    public int agencies() {
+        return agencies;
+    }
+
+    public int routes() {
+        return agencies * routesPerAgency;
+    }
+
+    public long stopTimes() {
+        return (long) routes() * tripsPerRoute * stopsPerTrip;
+    }
+
+    public void write(File zipFile) throws IOException {
+        Random random = new Random(seed);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8), 1 << 16);
+            writeFeedInfo(zip, out);
+            writeAgencies(zip, out);
+            writeCalendars(zip, out);
+            writeStops(zip, out, random);
+            writeTransfers(zip, out, random);
+            writeRoutes(zip, out);
+            writeTrips(zip, out);
+            writeStopTimes(zip, out, random);
+            out.flush();
+        }
+    }
+
+    private void writeFeedInfo(ZipOutputStream zip, Writer out) throws IOException {
+        next(zip, out, "feed_info.txt", "feed_publisher_name,feed_publisher_url,feed_lang");
+        out.write("Synthetic,http://example.com,no\n");
+    }
+
+    private void writeAgencies(ZipOutputStream zip, Writer out) throws IOException {
+        next(zip, out, "agency.txt", "agency_id,agency_name,agency_url,agency_timezone");
+        for (int a = 1; a <= agencies; a++) {
+            out.write("A" + a + ",Agency" + a + ",http://example.com/" + a + ",Europe/Oslo\n");
+        }
+    }
+
+    private void writeCalendars(ZipOutputStream zip, Writer out) throws IOException {
+        next(zip, out, "calendar.txt",
+                "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date");
+        out.write("WEEKDAY,1,1,1,1,1,0,0,20200101,20201231\n");
+        out.write("SATURDAY,0,0,0,0,0,1,0,20200101,20201231\n");
+        out.write("SUNDAY,0,0,0,0,0,0,1,20200101,20201231\n");
+        next(zip, out, "calendar_dates.txt", "service_id,date,exception_type");
+        out.write("WEEKDAY,20200101,2\nSUNDAY,20200101,1\nWEEKDAY,20201225,2\nSUNDAY,20201225,1\n");
+    }
+
+    private void writeStops(ZipOutputStream zip, Writer out, Random random) throws IOException {
+        next(zip, out, "stops.txt", "stop_id,stop_name,stop_lat,stop_lon,location_type,parent_station");
+        double latStep = (MAX_LAT - MIN_LAT) / gridSize;
+        double lonStep = (MAX_LON - MIN_LON) / gridSize;
+        for (int s = 0; s < gridSize * gridSize; s++) {
+            double lat = MIN_LAT + (s / gridSize + 0.2 + 0.6 * random.nextDouble()) * latStep;
+            double lon = MIN_LON + (s % gridSize + 0.2 + 0.6 * random.nextDouble()) * lonStep;
+            out.write(format("S%d,Station %d,%.6f,%.6f,1,\n", s, s, lat, lon));
+            for (int q = 0; q < quaysPerStation; q++) {
+                out.write(format("Q%d_%d,Station %d,%.6f,%.6f,0,S%d\n",
+                        s, q, s, lat + 0.0002 * (q - 0.5), lon + 0.0002 * (q - 0.5), s));
+            }
+        }
+    }
+
+    private void writeTransfers(ZipOutputStream zip, Writer out, Random random) throws IOException {
+        if(quaysPerStation < 2 || transfers == 0) return;
+        next(zip, out, "transfers.txt", "from_stop_id,to_stop_id,transfer_type,min_transfer_time");
+        for (int t = 0; t < transfers; t++) {
+            int s = random.nextInt(gridSize * gridSize);
+            int from = random.nextInt(quaysPerStation);
+            int to = (from + 1 + random.nextInt(quaysPerStation - 1)) % quaysPerStation;
+            out.write("Q" + s + "_" + from + ",Q" + s + "_" + to + ",2,120\n");
+        }
+    }
+
+    private void writeRoutes(ZipOutputStream zip, Writer out) throws IOException {
+        next(zip, out, "routes.txt", "route_id,agency_id,route_short_name,route_long_name,route_type");
+        for (int r = 1; r <= routes(); r++) {
+            out.write("R" + r + ",A" + agency(r) + "," + r + ",Route " + r + "," + (r % 4 == 0 ? 0 : 3) + "\n");
+        }
+    }
+
+    private void writeTrips(ZipOutputStream zip, Writer out) throws IOException {
+        next(zip, out, "trips.txt", "route_id,service_id,trip_id,trip_headsign,direction_id");
+        for (int r = 1; r <= routes(); r++) {
+            for (int t = 0; t < tripsPerRoute; t++) {
+                out.write("R" + r + "," + SERVICES[t % SERVICES.length] + "," + tripId(r, t)
+                        + ",Route " + r + (t % 2 == 0 ? " A" : " B") + "," + (t % 2) + "\n");
+            }
+        }
+    }
+
+    private void writeStopTimes(ZipOutputStream zip, Writer out, Random random) throws IOException {
+        next(zip, out, "stop_times.txt",
+                "trip_id,arrival_time,departure_time,stop_id,stop_sequence,pickup_type,drop_off_type");
+        int headway = 18 * 3600 / tripsPerRoute;
+        for (int r = 1; r <= routes(); r++) {
+            List<String> stops = pattern(random);
+            int[] runTimes = new int[stopsPerTrip];
+            for (int i = 1; i < stopsPerTrip; i++) {
+                runTimes[i] = runTimes[i - 1] + 60 + 30 * random.nextInt(5);
+            }
+            List<String> reversed = new ArrayList<>(stops);
+            Collections.reverse(reversed);
+            for (int t = 0; t < tripsPerRoute; t++) {
+                List<String> tripStops = t % 2 == 0 ? stops : reversed;
+                String tripId = tripId(r, t);
+                int start = 5 * 3600 + t * headway;
+                for (int i = 0; i < stopsPerTrip; i++) {
+                    String time = time(start + runTimes[i]);
+                    int pickup = i == stopsPerTrip - 1 ? 1 : 0;
+                    int dropOff = i == 0 ? 1 : 0;
+                    out.write(tripId + "," + time + "," + time + "," + tripStops.get(i) + "," + (i + 1)
+                            + "," + pickup + "," + dropOff + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * A random walk over the station grid, visiting each station at most once if possible.
+     */
+    private List<String> pattern(Random random) {
+        BitSet visited = new BitSet();
+        List<String> stops = new ArrayList<>(stopsPerTrip);
+        int row = random.nextInt(gridSize);
+        int col = random.nextInt(gridSize);
+        int dr = random.nextInt(3) - 1;
+        int dc = random.nextInt(3) - 1;
+        for (int i = 0; i < stopsPerTrip; i++) {
+            int station = row * gridSize + col;
+            visited.set(station);
+            stops.add("Q" + station + "_" + random.nextInt(quaysPerStation));
+            for (int attempt = 0; attempt < 8; attempt++) {
+                if(attempt > 0 || (dr == 0 && dc == 0) || random.nextInt(4) == 0) {
+                    dr = random.nextInt(3) - 1;
+                    dc = random.nextInt(3) - 1;
+                }
+                int r = Math.max(0, Math.min(gridSize - 1, row + dr));
+                int c = Math.max(0, Math.min(gridSize - 1, col + dc));
+                if(!visited.get(r * gridSize + c) || attempt == 7) {
+                    row = r;
+                    col = c;
+                    break;
+                }
+            }
+        }
+        return stops;
+    }
+
+    private int agency(int route) {
+        return (route - 1) / routesPerAgency + 1;
+    }
+
+    private static String tripId(int route, int trip) {
+        return "T" + route + "_" + trip;
+    }
+
+    private static String time(int seconds) {
+        return twoDigits(seconds / 3600) + ":" + twoDigits(seconds / 60 % 60) + ":" + twoDigits(seconds % 60);
+    }
+
+    private static String twoDigits(int value) {
+        return value < 10 ? "0" + value : Integer.toString(value);
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
+
+    private static void next(ZipOutputStream zip, Writer out, String name, String header) throws IOException {
+        out.flush();
+        zip.putNextEntry(new ZipEntry(name));
+        out.write(header);
+        out.write('\n');
+    }
+
+    /**
+     * Generate a feed: {@code FeedGenerator <stop times> <zip file>}
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: FeedGenerator <stop times> <zip file>");
+            System.exit(1);
+        }
+        FeedGenerator generator = forStopTimes(Long.parseLong(args[0]));
+        generator.write(new File(args[1]));
+        System.out.println("Generated " + args[1] + " with " + generator.stopTimes() + " stop times");
+    }
+}
@@ -0,0 +1,98 @@
+package no.tiger.gtfs.filter.bench;
+
+import no.tiger.gtfs.filter.impl.GtfsDb;
+import no.tiger.gtfs.filter.impl.GtfsModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The filters and the cleanup. Each invocation filters a new {@link GtfsModel#view()}
+ * of the loaded feed, creating the view is not measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3G")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class FilterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Loaded {
+        GtfsModel gtfs;
+
+        @Setup(Level.Trial)
+        public void load(Feed feed) throws IOException {
+            gtfs = GtfsDb.loadModel(feed.zipFile);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class View {
+        GtfsModel gtfs;
+
+        @Setup(Level.Invocation)
+        public void view(Loaded loaded) {
+            gtfs = loaded.gtfs.view();
+        }
+    }
+
+    /** A view with the stops outside the center removed, so the cleanup has work to do. */
+    @State(Scope.Thread)
+    public static class StopsRemoved {
+        GtfsModel gtfs;
+
+        @Setup(Level.Invocation)
+        public void view(Loaded loaded) {
+            gtfs = loaded.gtfs.view();
+            gtfs.retainStops(Feed.CENTER);
+        }
+    }
+
+    @Benchmark
+    public GtfsModel retainAgencies(Feed feed, View view) {
+        view.gtfs.retainAgencies(feed.agencyNames());
+        return view.gtfs;
+    }
+
+    @Benchmark
+    public GtfsModel retainRoutes(Feed feed, View view) {
+        view.gtfs.retainRoutes(feed.routeShortNames());
+        return view.gtfs;
+    }
+
+    @Benchmark
+    public GtfsModel retainStops(View view) {
+        view.gtfs.retainStops(Feed.CENTER);
+        return view.gtfs;
+    }
+
+    @Benchmark
+    public GtfsModel cleanupAll(StopsRemoved view) {
+        view.gtfs.cleanupAll();
+        return view.gtfs;
+    }
+
+    /** All filters and the cleanup, the same as the tool does for each area. */
+    @Benchmark
+    public GtfsModel filter(Feed feed, View view) {
+        GtfsModel gtfs = view.gtfs;
+        gtfs.retainAgencies(feed.agencyNames());
+        gtfs.retainRoutes(feed.routeShortNames());
+        gtfs.retainStops(Feed.CENTER);
+        gtfs.cleanupAll();
+        gtfs.setServiceEndDate(2049, 12, 31);
+        return gtfs;
+    }
+}
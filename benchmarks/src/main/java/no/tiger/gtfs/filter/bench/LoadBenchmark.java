@@ -0,0 +1,57 @@
+package no.tiger.gtfs.filter.bench;
+
+import no.tiger.gtfs.filter.impl.GtfsDb;
+import no.tiger.gtfs.filter.impl.GtfsModel;
+import org.onebusaway.gtfs.services.GtfsDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse the feed, and create the model from the parsed feed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3G")
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class LoadBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Parsed {
+        GtfsDao dao;
+
+        @Setup(Level.Trial)
+        public void load(Feed feed) throws IOException {
+            dao = GtfsDb.loadGtfs(feed.zipFile);
+        }
+    }
+
+    /** Parse all tables with the One Bus Away reader. */
+    @Benchmark
+    public GtfsDao loadGtfs(Feed feed) throws IOException {
+        return GtfsDb.loadGtfs(feed.zipFile);
+    }
+
+    /** Parse the feed with stop_times.txt parsed in parallel. */
+    @Benchmark
+    public GtfsModel loadModel(Feed feed) throws IOException {
+        return GtfsDb.loadModel(feed.zipFile);
+    }
+
+    @Benchmark
+    public GtfsModel createModel(Parsed parsed) {
+        return new GtfsModel(parsed.dao);
+    }
+}
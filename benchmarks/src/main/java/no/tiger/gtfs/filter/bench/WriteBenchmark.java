@@ -0,0 +1,70 @@
+package no.tiger.gtfs.filter.bench;
+
+import no.tiger.gtfs.filter.impl.GtfsDb;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Write the whole loaded feed, to a directory and straight into a zip file, on one or
+ * more threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3G")
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class WriteBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Output {
+        @Param({ "1", "4" })
+        int threads;
+
+        File dir;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            dir = Files.createTempDirectory("gtfs-bench").toFile();
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            try (Stream<Path> files = Files.walk(dir.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Benchmark
+    public File save(FilterBenchmark.Loaded loaded, Output output) throws IOException {
+        File dir = new File(output.dir, "out");
+        GtfsDb.save(loaded.gtfs, dir, output.threads);
+        return dir;
+    }
+
+    @Benchmark
+    public File saveZip(FilterBenchmark.Loaded loaded, Output output) throws IOException {
+        File zipFile = new File(output.dir, "gtfs.zip");
+        GtfsDb.saveZip(loaded.gtfs, zipFile, output.threads);
+        return zipFile;
+    }
+}
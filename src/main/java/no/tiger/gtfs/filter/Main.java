@@ -1,71 +1,282 @@
 package no.tiger.gtfs.filter;
 
-import no.tiger.gtfs.filter.impl.Box;
-import no.tiger.gtfs.filter.impl.FileUtils;
+import no.tiger.gtfs.filter.impl.BatchFilter;
+import no.tiger.gtfs.filter.impl.FilterConfig;
+import no.tiger.gtfs.filter.impl.FilterPlan;
+import no.tiger.gtfs.filter.impl.FilterServer;
 import no.tiger.gtfs.filter.impl.GtfsDb;
 import no.tiger.gtfs.filter.impl.GtfsModel;
+import no.tiger.gtfs.filter.impl.IncrementalFilter;
+import no.tiger.gtfs.filter.impl.Instrumentation;
+import no.tiger.gtfs.filter.impl.Region;
+import no.tiger.gtfs.filter.impl.Regions;
+import no.tiger.gtfs.filter.impl.StreamingGtfs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-
-import static no.tiger.gtfs.filter.impl.GtfsDb.loadGtfs;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Main {
     private static final Logger LOG = LoggerFactory.getLogger(Main.class);
     private static final String INPUT_FILE = "gtfs.zip";
-    private static final String OUTPUT_DIR = "out";
-    private static final Box OSLO_RING2 = new Box("oslo-ring2", 59.90, 10.70, 59.94, 10.79);
+    private static final String SNAPSHOT_FILE = "gtfs.snapshot";
+    private static final String REPORT_FILE = "gtfs-report.json";
+    private static final String INCREMENTAL_FILE = "gtfs.incremental";
+    private static final String STREAMING_OPTION = "--streaming";
+    private static final String PARALLELISM_OPTION = "--parallelism=";
+    private static final String NO_CACHE_OPTION = "--no-cache";
+    private static final String AREAS_OPTION = "--areas=";
+    private static final String JOBS_OPTION = "--jobs=";
+    private static final String REPORT_OPTION = "--report";
+    private static final String FILTER_OPTION = "--filter=";
+    private static final String SERVE_OPTION = "--serve=";
+    private static final String EXTERNAL_OPTION = "--external=";
+    private static final String INCREMENTAL_OPTION = "--incremental";
+    private static final String FILTERED_NAME = "filtered";
 
     private final String rootDir;
     private final GtfsModel gtfs;
-    private final Box mainArea;
-    private final File outputDir;
+    private final FilterPlan plan;
+    private final File inputFile;
+    private final boolean streaming;
 
     static public void main(String... args) throws Exception {
-        assertOneArg(args);
-        Main main = new Main(args[0], OSLO_RING2);
-        main.filter();
-        main.save();
+        assertArgs(args);
+        List<String> options = Arrays.asList(args).subList(1, args.length);
+        String port = option(options, SERVE_OPTION);
+        if(port != null) {
+            serve(args[0], options, Integer.parseInt(port));
+            return;
+        }
+        if(options.contains(REPORT_OPTION)) {
+            Instrumentation.enable();
+        }
+        String filterFile = option(options, FILTER_OPTION);
+        FilterConfig config = filterFile == null ? FilterConfig.defaults() : FilterConfig.read(new File(filterFile));
+        String areasFile = option(options, AREAS_OPTION);
+        List<Region> areas = areasFile == null ? config.areas() : readAreas(new File(areasFile));
+        LOG.info("Filter {} with {} area(s)", config, areas.size());
+
+        FilterPlan plan = new FilterPlan(config, areas);
+        long memoryBudget = intOption(options, EXTERNAL_OPTION, 0) * (1L << 20);
+        if((memoryBudget > 0 || options.contains(STREAMING_OPTION)) && plan.needsStopTimesInMemory()) {
+            throw new IllegalArgumentException(
+                    "The departure time, trip pattern and reachable filters can not be used with "
+                    + STREAMING_OPTION + " or " + EXTERNAL_OPTION
+            );
+        }
+        if((memoryBudget > 0 || options.contains(STREAMING_OPTION)) && plan.changesShapes()) {
+            throw new IllegalArgumentException(
+                    "The shapes can not be clipped or simplified with " + STREAMING_OPTION + " or " + EXTERNAL_OPTION
+            );
+        }
+        if(options.contains(INCREMENTAL_OPTION)) {
+            if(memoryBudget > 0 || options.contains(STREAMING_OPTION)) {
+                throw new IllegalArgumentException(
+                        INCREMENTAL_OPTION + " can not be used with " + STREAMING_OPTION + " or " + EXTERNAL_OPTION
+                );
+            }
+            incremental(args[0], options, config, areas);
+        }
+        else {
+            Main main = new Main(
+                    args[0], plan, options.contains(STREAMING_OPTION), !options.contains(NO_CACHE_OPTION), memoryBudget
+            );
+            main.gtfs.setParallelism(intOption(options, PARALLELISM_OPTION, 1));
+
+            if(areas.size() <= 1) {
+                Region area = areas.isEmpty() ? null : areas.get(0);
+                main.filter(main.gtfs, area);
+                main.save(main.gtfs, area == null ? FILTERED_NAME : area.getName());
+            }
+            else {
+                int jobs = intOption(options, JOBS_OPTION, Runtime.getRuntime().availableProcessors());
+                main.filterAreas(areas, jobs);
+            }
+        }
+        if(Instrumentation.isEnabled()) {
+            Instrumentation.writeReport(new File(args[0], REPORT_FILE));
+        }
     }
 
-    private Main(String rootDir, Box mainArea) throws IOException {
+    /**
+     * @param memoryBudget the memory used to sort the stop times spilled to disk, or 0 to
+     *                     keep the stop times in memory.
+     */
+    private Main(String rootDir, FilterPlan plan, boolean streaming, boolean cache, long memoryBudget) throws IOException {
         this.rootDir = rootDir;
-        this.mainArea = mainArea;
-        this.outputDir = new File(rootDir, OUTPUT_DIR);
+        this.plan = plan;
+        this.streaming = streaming || memoryBudget > 0;
+        this.inputFile = new File(rootDir, INPUT_FILE);
+
+        this.gtfs = Instrumentation.time("load", () -> load(rootDir, plan, streaming, cache, memoryBudget));
+    }
+
+    private static GtfsModel load(String rootDir, FilterPlan plan, boolean streaming, boolean cache, long memoryBudget)
+            throws IOException {
         File inputFile = new File(rootDir, INPUT_FILE);
+        if(memoryBudget > 0) {
+            return StreamingGtfs.readKeyColumns(inputFile, memoryBudget);
+        }
+        if(streaming) {
+            return StreamingGtfs.readKeyColumns(inputFile);
+        }
+        if(cache) {
+            return GtfsDb.loadModel(inputFile, new File(rootDir, SNAPSHOT_FILE), plan);
+        }
+        return GtfsDb.loadModel(inputFile, plan);
+    }
 
-        this.gtfs = new GtfsModel(loadGtfs(inputFile));
-        FileUtils.createOutputDirectory(outputDir);
+    /**
+     * Load the whole feed once and serve filtered feeds until the JVM is stopped, see
+     * {@link FilterServer}.
+     */
+    private static void serve(String rootDir, List<String> options, int port) throws IOException {
+        File inputFile = new File(rootDir, INPUT_FILE);
+        GtfsModel gtfs = options.contains(NO_CACHE_OPTION)
+                ? GtfsDb.loadModel(inputFile)
+                : GtfsDb.loadModel(inputFile, new File(rootDir, SNAPSHOT_FILE));
+        gtfs.setParallelism(intOption(options, PARALLELISM_OPTION, 1));
+        FilterServer server = new FilterServer(
+                gtfs, new File(rootDir), intOption(options, JOBS_OPTION, Runtime.getRuntime().availableProcessors())
+        );
+        server.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
     }
 
     /**
-     * Change this method to filter the GTFS file set.
+     * Filter the new input against the state of the previous run, and only write the
+     * outputs the changes affect, see {@link IncrementalFilter}.
      */
-    private void filter() {
+    private static void incremental(String rootDir, List<String> options, FilterConfig config, List<Region> areas)
+            throws IOException, InterruptedException {
+        Map<String, Region> outputs = new LinkedHashMap<>();
+        if(areas.isEmpty()) {
+            outputs.put(FILTERED_NAME, null);
+        }
+        for (Region area : areas) {
+            if(outputs.put(area.getName(), area) != null) {
+                throw new IllegalArgumentException("Duplicate area name: " + area.getName());
+            }
+        }
+        new IncrementalFilter(config, outputs, new File(rootDir, INCREMENTAL_FILE)).run(
+                new File(rootDir, INPUT_FILE),
+                name -> new File(rootDir, "gtfs-" + name + ".zip"),
+                intOption(options, PARALLELISM_OPTION, 1),
+                intOption(options, JOBS_OPTION, Runtime.getRuntime().availableProcessors())
+        );
+    }
+
+    /**
+     * Apply the filters in the config, change the config file to filter the GTFS file set.
+     */
+    private void filter(GtfsModel gtfs, Region area) {
         LOG.info("FILTER [start]");
-        gtfs.retainAgencies("RuterBuss", "RuterTrikk", "RuterTBane", "Tog");
-        gtfs.retainRoutes("11", "12", "13", "17", "4", "5");
-        gtfs.retainStops(mainArea);
-        gtfs.cleanupAll();
-        gtfs.setServiceEndDate(2049, 12,31);
+        String name = area == null ? FILTERED_NAME : area.getName();
+        Instrumentation.time("filter " + name, gtfs, () -> plan.apply(gtfs, area));
         LOG.info("FILTER [end]");
     }
 
-    private void save() throws IOException {
-        // Save gtfs files to output directory
-        GtfsDb.save(gtfs, outputDir);
+    /**
+     * Load the feed once, and create one filtered feed for each area.
+     */
+    private void filterAreas(List<Region> areas, int jobs) throws IOException, InterruptedException {
+        BatchFilter batch = new BatchFilter(gtfs, jobs);
+        for (Region area : areas) {
+            batch.add(area.getName(), gtfs -> filter(gtfs, area));
+        }
+        batch.run(this::save);
+    }
+
+    private void save(GtfsModel gtfs, String name) throws IOException {
+        Instrumentation.time("save " + name, () -> saveZip(gtfs, name));
+    }
+
+    private void saveZip(GtfsModel gtfs, String name) throws IOException {
+        String targetZipFilename = new File(rootDir, "gtfs-" + name + ".zip" ).getAbsolutePath();
+
+        if(streaming) {
+            // Copy the retained rows straight from the input zip
+            StreamingGtfs.writeRetainedRows(gtfs, inputFile, new File(targetZipFilename));
+            return;
+        }
+
+        // Write the tables straight into the GTFS Zip file
+        GtfsDb.saveZip(gtfs, new File(targetZipFilename));
+    }
+
+    /**
+     * Read areas from a text file, one area per line: {@code name minLat minLon maxLat maxLon},
+     * or a name and a polygon, see {@link Regions}. Empty lines and lines starting with '#'
+     * are ignored.
+     */
+    private static List<Region> readAreas(File file) throws IOException {
+        List<Region> areas = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            String[] v = line.split("\\s+", 2);
+            if(v.length != 2) {
+                throw new IllegalArgumentException("Expected 'name minLat minLon maxLat maxLon', not: " + line);
+            }
+            areas.add(Regions.parse(v[0], v[1], file.getAbsoluteFile().getParentFile()));
+        }
+        return areas;
+    }
+
+    private static String option(List<String> options, String name) {
+        for (String option : options) {
+            if(option.startsWith(name)) {
+                return option.substring(name.length());
+            }
+        }
+        return null;
+    }
+
+    private static int intOption(List<String> options, String name, int defaultValue) {
+        String value = option(options, name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
 
-        // Create GTFS Zip file
-        String targetZipFilename = new File(rootDir, "gtfs-" + mainArea.getName() + ".zip" ).getAbsolutePath();
-        FileUtils.compress(outputDir.getAbsolutePath(), targetZipFilename);
+    private static boolean isOption(String arg) {
+        return STREAMING_OPTION.equals(arg)
+                || NO_CACHE_OPTION.equals(arg)
+                || REPORT_OPTION.equals(arg)
+                || INCREMENTAL_OPTION.equals(arg)
+                || arg.matches(PARALLELISM_OPTION + "[1-9][0-9]*")
+                || arg.matches(JOBS_OPTION + "[1-9][0-9]*")
+                || arg.matches(SERVE_OPTION + "[0-9]+")
+                || arg.matches(EXTERNAL_OPTION + "[1-9][0-9]*")
+                || (arg.startsWith(AREAS_OPTION) && arg.length() > AREAS_OPTION.length())
+                || (arg.startsWith(FILTER_OPTION) && arg.length() > FILTER_OPTION.length());
     }
 
-    private static void assertOneArg(String[] args) {
-        if(args.length != 1) {
-            System.err.println("Use the input data folder as argument to this program.");
-            System.exit(-1);
+    private static void assertArgs(String[] args) {
+        if(args.length >= 1 && Arrays.stream(args).skip(1).allMatch(Main::isOption)) {
+            return;
         }
+        System.err.println("Use the input data folder as argument to this program.");
+        System.err.println("Add " + STREAMING_OPTION + " to filter the zip file without loading all entities.");
+        System.err.println("Add " + EXTERNAL_OPTION + "<MB> to spill the stop times to disk, sorted using at most <MB> of memory,");
+        System.err.println("    for feeds larger than the heap. The rows are copied like with " + STREAMING_OPTION + ".");
+        System.err.println("Add " + NO_CACHE_OPTION + " to parse the zip file even if a snapshot of it exist.");
+        System.err.println("Add " + PARALLELISM_OPTION + "<threads> to run the filters on several cores.");
+        System.err.println("Add " + FILTER_OPTION + "<file> to read the filters from a properties file, see filter.properties.");
+        System.err.println("Add " + AREAS_OPTION + "<file> to create one feed for each area in the file, and");
+        System.err.println("    " + JOBS_OPTION + "<n> to set the number of areas filtered at the same time.");
+        System.err.println("Add " + SERVE_OPTION + "<port> to load the feed once and serve filtered feeds on");
+        System.err.println("    http://localhost:<port>/filter, " + JOBS_OPTION + "<n> sets the number of requests filtered at the same time.");
+        System.err.println("Add " + INCREMENTAL_OPTION + " to only write the feeds affected by the changes in the input since");
+        System.err.println("    the previous run with " + INCREMENTAL_OPTION + ", the state is kept in " + INCREMENTAL_FILE + ".");
+        System.err.println("Add " + REPORT_OPTION + " to record the time and memory used, and write " + REPORT_FILE + ".");
+        System.exit(-1);
     }
 }
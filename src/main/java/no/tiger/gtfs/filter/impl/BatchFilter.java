@@ -0,0 +1,101 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Create several filtered feeds from one loaded feed.
+ * <p>
+ * Each job filters its own {@link GtfsModel#view()} of the base model, so the feed is
+ * parsed once and no entities are copied. The jobs run concurrently, up to the given
+ * number of jobs at the time.
+ */
+public class BatchFilter {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchFilter.class);
+
+    private final GtfsModel base;
+    private final int concurrency;
+    private final Map<String, Consumer<GtfsModel>> jobs = new LinkedHashMap<>();
+
+    public BatchFilter(GtfsModel base, int concurrency) {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be 1 or more: " + concurrency);
+        }
+        this.base = base;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Add a job, the name is passed to the {@link Writer} and must be unique.
+     */
+    public void add(String name, Consumer<GtfsModel> filter) {
+        if(jobs.putIfAbsent(name, filter) != null) {
+            throw new IllegalArgumentException("Duplicate job name: " + name);
+        }
+    }
+
+    /**
+     * Run all jobs and wait for them to complete. All jobs are run even if one of
+     * them fails, the first failure is then thrown.
+     */
+    public void run(Writer writer) throws IOException, InterruptedException {
+        // Create all views before the jobs start, the base is not thread safe while the views are created
+        Map<String, GtfsModel> views = new LinkedHashMap<>();
+        jobs.keySet().forEach(name -> views.put(name, base.view()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, Math.max(1, jobs.size())));
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (Map.Entry<String, Consumer<GtfsModel>> job : jobs.entrySet()) {
+                String name = job.getKey();
+                GtfsModel gtfs = views.remove(name);
+                results.add(executor.submit(() -> {
+                    LOG.info("JOB {} [start]", name);
+                    job.getValue().accept(gtfs);
+                    writer.write(gtfs, name);
+                    LOG.info("JOB {} [end]", name);
+                    return null;
+                }));
+            }
+            waitFor(results);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitFor(List<Future<Void>> results) throws IOException, InterruptedException {
+        Throwable failure = null;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            }
+            catch (ExecutionException e) {
+                if(failure == null) failure = e.getCause();
+                else failure.addSuppressed(e.getCause());
+            }
+        }
+        if(failure instanceof IOException) throw (IOException) failure;
+        if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if(failure instanceof Error) throw (Error) failure;
+        if(failure != null) throw new IllegalStateException(failure);
+    }
+
+    /**
+     * Write the filtered model of a job.
+     */
+    public interface Writer {
+        void write(GtfsModel gtfs, String name) throws IOException;
+    }
+}
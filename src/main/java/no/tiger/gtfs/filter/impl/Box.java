@@ -1,8 +1,6 @@
 package no.tiger.gtfs.filter.impl;
 
-import org.onebusaway.gtfs.model.Stop;
-
-public class Box {
+public class Box implements Region {
     private final String name;
 
     /** min latitude (Oslo: 60) */
@@ -25,14 +23,36 @@ public class Box {
         this.maxLon = maxLon;
     }
 
-    boolean outside(Stop stop) {
-        return !inside(stop);
+    @Override
+    public boolean inside(double lat, double lon) {
+        return between(lat, minLat, maxLat) && between(lon, minLon, maxLon);
     }
 
-    boolean inside(Stop stop) {
-        double lat = stop.getLat();
-        double lon = stop.getLon();
-        return between(lat, minLat, maxLat) && between(lon, minLon, maxLon);
+    @Override
+    public Box bounds() {
+        return this;
+    }
+
+    /** The bounds with full precision, unlike {@link #toString()}. */
+    @Override
+    public String definition() {
+        return minLat + " " + minLon + " " + maxLat + " " + maxLon;
+    }
+
+    double minLat() {
+        return minLat;
+    }
+
+    double minLon() {
+        return minLon;
+    }
+
+    double maxLat() {
+        return maxLat;
+    }
+
+    double maxLon() {
+        return maxLon;
     }
 
     @Override
@@ -40,6 +60,7 @@ public class Box {
         return String.format("%s [(%5.2f, %5.2f), (%5.2f, %5.2f)]", name, minLat, minLon, maxLat, maxLon);
     }
 
+    @Override
     public String getName() {
         return name;
     }
@@ -0,0 +1,48 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+/**
+ * A collection of entities in the {@link GtfsModel} logging how much it has changed.
+ */
+interface ChangeTracked {
+    Logger LOG = LoggerFactory.getLogger(ChangeTracked.class);
+
+    String name();
+
+    int size();
+
+    /**
+     * Log the number of removed entities since last time.
+     * @return {@code true} if the size changed.
+     */
+    boolean logChanged();
+
+    void resetChangeTracking();
+
+    static void logChange(String name, int lastChangeSize, int size) {
+        LOG.info(
+                "  - {}: {} of {} => {}",
+                String.format("%-14s", name),
+                format(lastChangeSize-size),
+                format(lastChangeSize),
+                format(size)
+        );
+    }
+
+    static String format(int number) {
+        NumberFormat df = DecimalFormat.getIntegerInstance();
+
+        if(number >= 100_000_000) {
+            return df.format(number/1_000_000) + "\"";
+        }
+        if(number >= 100_000) {
+            return df.format(number/1_000) + "\'";
+        }
+        return df.format(number);
+    }
+}
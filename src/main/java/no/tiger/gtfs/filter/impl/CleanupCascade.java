@@ -0,0 +1,300 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Transfer;
+import org.onebusaway.gtfs.model.Trip;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Reference graph used to cascade removals in {@link GtfsModel#cleanupAll()}.
+ * <p>
+ * The index and the live reference counts are built once. After that every removed
+ * entity is put on a worklist, and only the entities referring to it are visited. A
+ * removal can only cause other removals, so the result is the same as repeating
+ * full scans of all sets until nothing changes.
+ */
+class CleanupCascade {
+    static final int QUAY_TYPE = 0;
+    static final int STATION_TYPE = 1;
+
+    private final CountSet<ServiceCalendar> calendars;
+    private final CountSet<ServiceCalendarDate> calendarDates;
+    private final CountSet<Route> routes;
+    private final CountSet<Trip> trips;
+    private final StopTimeStore stopTimes;
+    private final CountSet<Stop> stops;
+    private final CountSet<Transfer> transfers;
+    private final Parallel parallel;
+    private final List<ChangeTracked> sets;
+
+    private StopTimeStore.RowIndex stopTimesByTrip;
+    private StopTimeStore.RowIndex stopTimesByStop;
+    private int[] liveStopTimesByTrip;
+    private int[] liveStopTimesByStop;
+    private final Refs<Route, Trip> tripsByRoute = new Refs<>();
+    private final Refs<AgencyAndId, Trip> tripsByService = new Refs<>();
+    private final Refs<AgencyAndId, ServiceCalendar> calendarsByService = new Refs<>();
+    private final Refs<AgencyAndId, ServiceCalendarDate> calendarDatesByService = new Refs<>();
+    private final Refs<String, Stop> childrenByParentStation = new Refs<>();
+    private final Refs<String, Stop> stationsById = new Refs<>();
+    private final Refs<Object, Transfer> transfersByRef = new Refs<>();
+
+    private final Deque<Object> worklist = new ArrayDeque<>();
+
+    CleanupCascade(
+            CountSet<ServiceCalendar> calendars,
+            CountSet<ServiceCalendarDate> calendarDates,
+            CountSet<Route> routes,
+            CountSet<Trip> trips,
+            StopTimeStore stopTimes,
+            CountSet<Stop> stops,
+            CountSet<Transfer> transfers,
+            Parallel parallel
+    ) {
+        this.calendars = calendars;
+        this.calendarDates = calendarDates;
+        this.routes = routes;
+        this.trips = trips;
+        this.stopTimes = stopTimes;
+        this.stops = stops;
+        this.transfers = transfers;
+        this.parallel = parallel;
+        this.sets = Arrays.asList(calendars, calendarDates, routes, trips, stopTimes, stops, transfers);
+        buildIndex();
+    }
+
+    /**
+     * Remove all entities with a missing reference, and cascade the removals until
+     * nothing more changes.
+     */
+    void run() {
+        Instrumentation.time("removeStopTimes", sets, () -> removeStopTimes());
+        removeAll("removeTrips", trips, t -> liveStopTimes(t) < 2);
+        removeAll("removeRoutes", routes, r -> tripsByRoute.count(r) == 0);
+        removeAll("removeCalendars", calendars, c -> tripsByService.count(c.getServiceId()) == 0);
+        removeAll("removeCalendarDates", calendarDates, c -> tripsByService.count(c.getServiceId()) == 0);
+        removeAll("removeQuaysWithoutStation", stops, this::quayParentRefIsMissing);
+        removeAll("removeQuaysWithoutStopTimes", stops, s -> isStopQuay(s) && liveStopTimes(s) == 0);
+        removeAll("removeStationsWithoutQuays", stops, s -> isStation(s) && childrenByParentStation.count(s.getId().getId()) == 0);
+        removeAll("removeTransfers", transfers, this::transferRefMissing);
+
+        try (Instrumentation.Phase phase = Instrumentation.phase("cascade", sets)) {
+            int visited = 0;
+            while (!worklist.isEmpty()) {
+                Object e = worklist.poll();
+                if (e instanceof Trip) tripRemoved((Trip) e);
+                else if (e instanceof Stop) stopRemoved((Stop) e);
+                else if (e instanceof Route) refRemoved(e);
+                ++visited;
+            }
+            phase.set("entitiesVisited", visited);
+        }
+    }
+
+    private void buildIndex() {
+        stopTimesByTrip = stopTimes.indexByTrip(parallel);
+        stopTimesByStop = stopTimes.indexByStop(parallel);
+        liveStopTimesByTrip = new int[stopTimes.numberOfTrips()];
+        liveStopTimesByStop = new int[stopTimes.numberOfStops()];
+        for (int i = 0; i < liveStopTimesByTrip.length; i++) {
+            liveStopTimesByTrip[i] = stopTimesByTrip.size(i);
+        }
+        for (int i = 0; i < liveStopTimesByStop.length; i++) {
+            liveStopTimesByStop[i] = stopTimesByStop.size(i);
+        }
+        for (Trip t : trips) {
+            tripsByRoute.add(t.getRoute(), t);
+            tripsByService.add(t.getServiceId(), t);
+        }
+        calendars.forEach(c -> calendarsByService.add(c.getServiceId(), c));
+        calendarDates.forEach(c -> calendarDatesByService.add(c.getServiceId(), c));
+        for (Stop s : stops) {
+            childrenByParentStation.add(s.getParentStation(), s);
+            if(isStation(s)) {
+                stationsById.add(s.getId().getId(), s);
+            }
+        }
+        for (Transfer t : transfers) {
+            transfersByRef.add(t.getFromStop(), t);
+            transfersByRef.add(t.getToStop(), t);
+            transfersByRef.add(t.getFromRoute(), t);
+            transfersByRef.add(t.getToRoute(), t);
+            transfersByRef.add(t.getFromTrip(), t);
+            transfersByRef.add(t.getToTrip(), t);
+        }
+    }
+
+    /**
+     * Remove all StopTimes where the Stop or the Trip is missing.
+     */
+    private void removeStopTimes() {
+        BitSet tripMissing = parallel.mark(stopTimes.numberOfTrips(), i -> i > 0 && !trips.contains(stopTimes.trip(i)));
+        BitSet stopMissing = parallel.mark(stopTimes.numberOfStops(), i -> i > 0 && !stops.contains(stopTimes.stop(i)));
+        BitSet marked = parallel.mark(stopTimes.rows(), row ->
+                tripMissing.get(stopTimes.tripIndex(row)) || stopMissing.get(stopTimes.stopIndex(row))
+        );
+        for (int row = marked.nextSetBit(0); row >= 0; row = marked.nextSetBit(row + 1)) {
+            removeStopTime(row);
+        }
+    }
+
+    /**
+     * Remove the StopTime row and update the reference counts. The Trip and the Stop
+     * are removed when they are no longer in use, the StopTimes have no dependants
+     * so there is no need to put them on the worklist.
+     */
+    private void removeStopTime(int row) {
+        if(!stopTimes.remove(row)) return;
+
+        int tripIndex = stopTimes.tripIndex(row);
+        if(--liveStopTimesByTrip[tripIndex] < 2) {
+            remove(trips, stopTimes.trip(tripIndex));
+        }
+        int stopIndex = stopTimes.stopIndex(row);
+        Stop stop = stopTimes.stop(stopIndex);
+        if(--liveStopTimesByStop[stopIndex] == 0 && isStopQuay(stop)) {
+            remove(stops, stop);
+        }
+    }
+
+    private void removeStopTimes(StopTimeStore.RowIndex index, int value) {
+        if(value < 0) return;
+        for (int i = 0; i < index.size(value); i++) {
+            removeStopTime(index.row(value, i));
+        }
+    }
+
+    private int liveStopTimes(Trip t) {
+        int i = stopTimes.indexOf(t);
+        return i < 0 ? 0 : liveStopTimesByTrip[i];
+    }
+
+    private int liveStopTimes(Stop s) {
+        int i = stopTimes.indexOf(s);
+        return i < 0 ? 0 : liveStopTimesByStop[i];
+    }
+
+    private void tripRemoved(Trip t) {
+        removeStopTimes(stopTimesByTrip, stopTimes.indexOf(t));
+
+        if(tripsByRoute.decrement(t.getRoute()) == 0) {
+            remove(routes, t.getRoute());
+        }
+        if(tripsByService.decrement(t.getServiceId()) == 0) {
+            calendars.removeAll(calendarsByService.get(t.getServiceId()));
+            calendarDates.removeAll(calendarDatesByService.get(t.getServiceId()));
+        }
+        refRemoved(t);
+    }
+
+    private void stopRemoved(Stop s) {
+        removeStopTimes(stopTimesByStop, stopTimes.indexOf(s));
+
+        String parentStation = s.getParentStation();
+        if(parentStation != null && childrenByParentStation.decrement(parentStation) == 0) {
+            stationsById.get(parentStation).forEach(station -> remove(stops, station));
+        }
+        if(isStation(s) && stationsById.decrement(s.getId().getId()) == 0) {
+            childrenByParentStation.get(s.getId().getId()).stream()
+                    .filter(c -> isStopQuay(c) && !isEmpty(c.getParentStation()))
+                    .forEach(c -> remove(stops, c));
+        }
+        refRemoved(s);
+    }
+
+    private void refRemoved(Object e) {
+        transfers.removeAll(transfersByRef.get(e));
+    }
+
+    private <T> void remove(CountSet<T> set, T e) {
+        if(set.remove(e)) {
+            worklist.add(e);
+        }
+    }
+
+    /**
+     * Evaluate the filter for all elements first, then remove the matches and put them on the worklist.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void removeAll(String step, CountSet<T> set, Predicate<T> filter) {
+        Instrumentation.time(step, sets, () -> {
+            T[] elements = (T[]) set.toArray();
+            BitSet marked = parallel.mark(elements.length, i -> filter.test(elements[i]));
+            for (int i = marked.nextSetBit(0); i >= 0; i = marked.nextSetBit(i + 1)) {
+                remove(set, elements[i]);
+            }
+        });
+    }
+
+    private boolean quayParentRefIsMissing(Stop s) {
+        // Skip if not Quay or optional parent station not set.
+        if(!isStopQuay(s) || isEmpty(s.getParentStation())) {
+            return false;
+        }
+        return stationsById.count(s.getParentStation()) == 0;
+    }
+
+    private boolean transferRefMissing(Transfer t) {
+        return optRefMissing(t.getFromStop(), stops)
+                || optRefMissing(t.getToStop(), stops)
+                || optRefMissing(t.getFromRoute(), routes)
+                || optRefMissing(t.getToRoute(), routes)
+                || optRefMissing(t.getFromTrip(), trips)
+                || optRefMissing(t.getToTrip(), trips)
+                ;
+    }
+
+    private static <T> boolean optRefMissing(T e, Collection<T> c) {
+        return e != null && !c.contains(e);
+    }
+
+    static boolean isStopQuay(Stop stop) { return stop.getLocationType() == QUAY_TYPE; }
+
+    static boolean isStation(Stop stop) { return stop.getLocationType() == STATION_TYPE; }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    /**
+     * All entities referring to a key, and the number of them still alive.
+     */
+    private static class Refs<K, V> {
+        private final Map<K, List<V>> refs = new HashMap<>();
+        private final Map<K, int[]> live = new HashMap<>();
+
+        void add(K key, V value) {
+            if(key == null) return;
+            refs.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+            live.computeIfAbsent(key, k -> new int[1])[0]++;
+        }
+
+        List<V> get(K key) {
+            return refs.getOrDefault(key, Collections.emptyList());
+        }
+
+        int count(K key) {
+            int[] c = live.get(key);
+            return c == null ? 0 : c[0];
+        }
+
+        int decrement(K key) {
+            return --live.get(key)[0];
+        }
+    }
+}
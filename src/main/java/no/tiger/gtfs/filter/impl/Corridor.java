@@ -0,0 +1,173 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The area within a distance of one or more lines, like a buffer along a railway line.
+ * Each line is a list of vertices {@code lat0, lon0, lat1, lon1, ...}.
+ * <p>
+ * The distance is computed in a local flat projection, scaled by the latitude in the
+ * middle of the bounds, which is accurate enough for the corridors of a city or region.
+ * The segments are kept in a grid over the bounds, each cell has the segments within the
+ * distance of the cell, so only the segments near a point are tested.
+ */
+public class Corridor implements Region {
+    private static final double METERS_PER_DEGREE = 111_320.0;
+
+    private final String name;
+    private final List<double[]> lines;
+    private final double meters;
+    private final Box bounds;
+    private final double lonScale;
+    private final double maxDistance2;
+
+    /** Segments: {@code lat1, lon1, lat2, lon2} at {@code 4 * segment}. */
+    private final double[] segments;
+    private final int gridSize;
+    /** The segments in cell {@code c} are {@code cellSegments[cellStart[c]]} until {@code cellSegments[cellStart[c+1]]}. */
+    private final int[] cellStart;
+    private final int[] cellSegments;
+
+    public Corridor(String name, List<double[]> lines, double meters) {
+        this.name = name;
+        this.lines = lines;
+        this.meters = meters;
+
+        double minLat = Double.MAX_VALUE, minLon = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        int n = 0;
+        for (double[] line : lines) {
+            if(line.length < 2 || line.length % 2 != 0) {
+                throw new IllegalArgumentException("Expected lat/lon pairs in corridor: " + name);
+            }
+            n += Math.max(1, line.length / 2 - 1);
+            for (int i = 0; i < line.length; i += 2) {
+                minLat = Math.min(minLat, line[i]);
+                maxLat = Math.max(maxLat, line[i]);
+                minLon = Math.min(minLon, line[i + 1]);
+                maxLon = Math.max(maxLon, line[i + 1]);
+            }
+        }
+        if(n == 0) {
+            throw new IllegalArgumentException("A corridor needs at least one line: " + name);
+        }
+        this.lonScale = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        double dLat = meters / METERS_PER_DEGREE;
+        double dLon = dLat / Math.max(lonScale, 0.01);
+        this.maxDistance2 = dLat * dLat;
+        this.bounds = new Box(name, minLat - dLat, minLon - dLon, Math.nextUp(maxLat + dLat), Math.nextUp(maxLon + dLon));
+
+        this.segments = new double[4 * n];
+        int s = 0;
+        for (double[] line : lines) {
+            if(line.length == 2) {
+                // A single point, the corridor is a circle
+                segments[s++] = line[0];
+                segments[s++] = line[1];
+                segments[s++] = line[0];
+                segments[s++] = line[1];
+            }
+            for (int i = 2; i < line.length; i += 2) {
+                segments[s++] = line[i - 2];
+                segments[s++] = line[i - 1];
+                segments[s++] = line[i];
+                segments[s++] = line[i + 1];
+            }
+        }
+
+        this.gridSize = (int) Math.max(1, Math.min(256, Math.sqrt(n / 2.0)));
+        int cells = gridSize * gridSize;
+        this.cellStart = new int[cells + 1];
+        forEachCell(dLat, dLon, (segment, cell) -> cellStart[cell + 1]++);
+        for (int c = 0; c < cells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        this.cellSegments = new int[cellStart[cells]];
+        int[] next = Arrays.copyOf(cellStart, cells);
+        forEachCell(dLat, dLon, (segment, cell) -> cellSegments[next[cell]++] = segment);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Box bounds() {
+        return bounds;
+    }
+
+    @Override
+    public boolean inside(double lat, double lon) {
+        if(!bounds.inside(lat, lon)) return false;
+        int cell = row(lat) * gridSize + column(lon);
+        for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+            int i = 4 * cellSegments[k];
+            if(distance2(lat, lon, segments[i], segments[i + 1], segments[i + 2], segments[i + 3]) <= maxDistance2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The corridor with the coordinates as {@code lon lat}, like WKT. */
+    @Override
+    public String definition() {
+        StringBuilder buf = new StringBuilder("CORRIDOR ").append(meters).append(" (");
+        for (int l = 0; l < lines.size(); l++) {
+            double[] line = lines.get(l);
+            buf.append(l == 0 ? "(" : ", (");
+            for (int i = 0; i < line.length; i += 2) {
+                buf.append(i == 0 ? "" : ", ").append(line[i + 1]).append(' ').append(line[i]);
+            }
+            buf.append(')');
+        }
+        return buf.append(')').toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s corridor of %.0f m along %d segments, bounds %s", name, meters, segments.length / 4, bounds);
+    }
+
+    /** Call the action for each cell within the distance of the bounds of each segment. */
+    private void forEachCell(double dLat, double dLon, CellAction action) {
+        for (int segment = 0; segment < segments.length / 4; segment++) {
+            int i = 4 * segment;
+            int r0 = row(Math.min(segments[i], segments[i + 2]) - dLat);
+            int r1 = row(Math.max(segments[i], segments[i + 2]) + dLat);
+            int c0 = column(Math.min(segments[i + 1], segments[i + 3]) - dLon);
+            int c1 = column(Math.max(segments[i + 1], segments[i + 3]) + dLon);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    action.accept(segment, r * gridSize + c);
+                }
+            }
+        }
+    }
+
+    private int row(double lat) {
+        double height = bounds.maxLat() - bounds.minLat();
+        return Math.max(0, Math.min(gridSize - 1, (int) ((lat - bounds.minLat()) / height * gridSize)));
+    }
+
+    private int column(double lon) {
+        double width = bounds.maxLon() - bounds.minLon();
+        return Math.max(0, Math.min(gridSize - 1, (int) ((lon - bounds.minLon()) / width * gridSize)));
+    }
+
+    private interface CellAction {
+        void accept(int segment, int cell);
+    }
+
+    /** The squared distance from the point to the segment, in degrees latitude. */
+    private double distance2(double lat, double lon, double lat1, double lon1, double lat2, double lon2) {
+        double x = (lon - lon1) * lonScale, y = lat - lat1;
+        double dx = (lon2 - lon1) * lonScale, dy = lat2 - lat1;
+        double length2 = dx * dx + dy * dy;
+        double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, (x * dx + y * dy) / length2));
+        double ex = x - t * dx, ey = y - t * dy;
+        return ex * ex + ey * ey;
+    }
+}
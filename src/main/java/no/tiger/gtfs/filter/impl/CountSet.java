@@ -1,51 +1,209 @@
 package no.tiger.gtfs.filter.impl;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.util.HashSet;
-
-class CountSet<T> extends HashSet<T> {
-    private static final Logger LOG = LoggerFactory.getLogger(HashSet.class);
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+/**
+ * Set of entities kept as a bitmap over a list of all entities loaded.
+ * <p>
+ * The list and the index is shared with all views created with {@link #view()}, each
+ * view has its own bitmap. Elements can not be added after the first view is created,
+ * use {@link #replace(Object)} to change an element in one view only.
+ */
+class CountSet<T> extends AbstractSet<T> implements ChangeTracked {
     private final String name;
+    private final Base<T> base;
+    private final BitSet present;
+    private Object[] replaced;
+    private int size;
 
     private int lastChangeSize = 0;
 
 
     CountSet(String name) {
+        this(name, new Base<>(), new BitSet(), null, 0);
+    }
+
+    private CountSet(String name, Base<T> base, BitSet present, Object[] replaced, int size) {
         this.name = name;
+        this.base = base;
+        this.present = present;
+        this.replaced = replaced;
+        this.size = size;
+        this.lastChangeSize = size;
+    }
+
+    /**
+     * Create a new set with the same elements, sharing the entities with this set.
+     */
+    CountSet<T> view() {
+        base.frozen = true;
+        Object[] r = replaced == null ? null : replaced.clone();
+        return new CountSet<>(name, base, (BitSet) present.clone(), r, size);
+    }
+
+    /**
+     * Replace the element equal to the given element, the other views are not changed.
+     * @return {@code true} if an equal element was in this set.
+     */
+    boolean replace(T element) {
+        int i = base.indexOf(element);
+        if(i < 0 || !present.get(i)) return false;
+        if(replaced == null) {
+            replaced = new Object[base.elements.size()];
+        }
+        replaced[i] = element;
+        return true;
+    }
+
+    @Override
+    public boolean add(T element) {
+        int i = base.indexOf(element);
+        if(i < 0) {
+            i = base.add(element);
+        }
+        if(present.get(i)) return false;
+        present.set(i);
+        ++size;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        int i = base.indexOf(element);
+        if(i < 0 || !present.get(i)) return false;
+        present.clear(i);
+        --size;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        int i = base.indexOf(element);
+        return i >= 0 && present.get(i);
+    }
+
+    /**
+     * All elements ever added, also the removed ones, shared by all views. The index of an
+     * element in the list is the index used in {@link #retainIndexes(BitSet)}.
+     */
+    List<T> all() {
+        return Collections.unmodifiableList(base.elements);
     }
 
-    boolean logChanged() {
+    /**
+     * @return the index of the element in {@link #all()}, or -1 if never added.
+     */
+    int indexOf(T element) {
+        return base.indexOf(element);
+    }
+
+    /**
+     * @return the indexes of the elements in this set, a copy.
+     */
+    BitSet indexes() {
+        return (BitSet) present.clone();
+    }
+
+    /**
+     * Keep only the elements with an index in the given set.
+     */
+    void retainIndexes(BitSet indexes) {
+        present.and(indexes);
+        size = present.cardinality();
+    }
+
+    /**
+     * @return the number of elements in this set with an index in the given set.
+     */
+    int countIndexes(BitSet indexes) {
+        BitSet both = (BitSet) present.clone();
+        both.and(indexes);
+        return both.cardinality();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int current = -1;
+            private int next = present.nextSetBit(0);
+
+            @Override public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override public T next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                current = next;
+                next = present.nextSetBit(next + 1);
+                return get(current);
+            }
+
+            @Override public void remove() {
+                if(current < 0 || !present.get(current)) throw new IllegalStateException();
+                present.clear(current);
+                --size;
+            }
+        };
+    }
+
+    @Override
+    public boolean logChanged() {
         int size = size();
         if(lastChangeSize == size) return false;
-        LOG.info(
-                "  - {}: {} of {} => {}",
-                String.format("%-14s", name),
-                format(lastChangeSize-size),
-                format(lastChangeSize),
-                format(size)
-        );
+        ChangeTracked.logChange(name, lastChangeSize, size);
         lastChangeSize = size;
         return true;
     }
 
-    private String format(int number) {
-        NumberFormat df = DecimalFormat.getIntegerInstance();
+    @Override
+    public void resetChangeTracking() {
+        lastChangeSize = size();
+    }
 
-        if(number >= 100_000_000) {
-            return df.format(number/1_000_000) + "\"";
-        }
-        if(number >= 100_000) {
-            return df.format(number/1_000) + "\'";
-        }
-        return df.format(number);
+    @SuppressWarnings("unchecked")
+    private T get(int i) {
+        if(replaced != null && replaced[i] != null) return (T) replaced[i];
+        return base.elements.get(i);
     }
 
-    void resetChangeTracking() {
-        lastChangeSize = size();
+    /**
+     * All elements ever added, shared by all views.
+     */
+    private static class Base<T> {
+        private final List<T> elements = new ArrayList<>();
+        private final Map<Object, Integer> index = new HashMap<>();
+        private boolean frozen = false;
+
+        int indexOf(Object element) {
+            return index.getOrDefault(element, -1);
+        }
+
+        int add(T element) {
+            if(frozen) {
+                throw new IllegalStateException("Can not add elements after a view is created: " + element);
+            }
+            int i = elements.size();
+            elements.add(element);
+            index.put(element, i);
+            return i;
+        }
     }
 }
@@ -0,0 +1,467 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Split a CSV file into chunks of whole lines, so the chunks can be parsed in parallel.
+ * <p>
+ * The file is read from a GTFS zip file, or memory-mapped if the GTFS feed is an
+ * extracted directory. The header is parsed when the file is opened, the first chunk
+ * start after the header.
+ */
+class CsvChunks implements Closeable {
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    private final String name;
+    private final Source source;
+    private final List<String> header;
+    private ByteBuffer first;
+
+    private CsvChunks(String name, Source source) throws IOException {
+        this.name = name;
+        this.source = source;
+        this.first = source.next();
+        if(first == null) {
+            this.header = new ArrayList<>();
+            return;
+        }
+        if(first.remaining() >= 3 && first.get(0) == (byte) 0xEF && first.get(1) == (byte) 0xBB && first.get(2) == (byte) 0xBF) {
+            first.position(3);
+        }
+        Line line = new Line();
+        this.header = line.next(first) ? line.strings() : new ArrayList<>();
+    }
+
+    /**
+     * @return the file in the zip file or in the directory, or {@code null} if the file does not exist.
+     */
+    static CsvChunks open(File input, String name) throws IOException {
+        if(input.isDirectory()) {
+            File file = new File(input, name);
+            return file.exists() ? new CsvChunks(name, new MappedSource(file)) : null;
+        }
+        ZipFile zip = new ZipFile(input);
+        ZipEntry entry = zip.getEntry(name);
+        if(entry == null) {
+            zip.close();
+            return null;
+        }
+        return new CsvChunks(name, new StreamSource(zip, zip.getInputStream(entry)));
+    }
+
+    String name() {
+        return name;
+    }
+
+    List<String> header() {
+        return header;
+    }
+
+    /** @return the column index, or -1 if the column does not exist. */
+    int column(String name) {
+        return header.indexOf(name);
+    }
+
+    /**
+     * @return the next chunk of whole lines, or {@code null} at the end of the file.
+     */
+    ByteBuffer next() throws IOException {
+        if(first != null) {
+            ByteBuffer b = first;
+            first = null;
+            return b;
+        }
+        return source.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private static int lastNewline(ByteBuffer b, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if(b.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private interface Source extends Closeable {
+        ByteBuffer next() throws IOException;
+    }
+
+    /**
+     * Read the stream into a new array for each chunk, the part of the last line not
+     * complete is moved to the next chunk.
+     */
+    private static class StreamSource implements Source {
+        private final Closeable owner;
+        private final InputStream in;
+        private byte[] rest = new byte[0];
+        private boolean eof = false;
+
+        StreamSource(Closeable owner, InputStream in) {
+            this.owner = owner;
+            this.in = in;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if(eof && rest.length == 0) return null;
+            byte[] buffer = new byte[Math.max(CHUNK_SIZE, 2 * rest.length)];
+            System.arraycopy(rest, 0, buffer, 0, rest.length);
+            int length = rest.length;
+            int searchFrom = length;
+            while (true) {
+                while (!eof && length < buffer.length) {
+                    int n = in.read(buffer, length, buffer.length - length);
+                    if(n < 0) eof = true;
+                    else length += n;
+                }
+                if(eof) {
+                    rest = new byte[0];
+                    return length == 0 ? null : ByteBuffer.wrap(buffer, 0, length);
+                }
+                int newline = lastNewline(ByteBuffer.wrap(buffer), searchFrom, length);
+                if(newline >= 0) {
+                    rest = Arrays.copyOfRange(buffer, newline + 1, length);
+                    return ByteBuffer.wrap(buffer, 0, newline + 1);
+                }
+                // A line longer than the buffer
+                searchFrom = length;
+                buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            owner.close();
+        }
+    }
+
+    /**
+     * Map each chunk of the file, ending the chunk after the last newline in the mapped range.
+     */
+    private static class MappedSource implements Source {
+        private final FileChannel channel;
+        private final long size;
+        private long position = 0;
+
+        MappedSource(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if(position >= size) return null;
+            long length = CHUNK_SIZE;
+            while (true) {
+                length = Math.min(length, size - position);
+                ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if(position + length == size) {
+                    position = size;
+                    return b;
+                }
+                int newline = lastNewline(b, 0, (int) length);
+                if(newline >= 0) {
+                    position += newline + 1;
+                    b.limit(newline + 1);
+                    return b;
+                }
+                // A line longer than the chunk
+                length = 2 * length;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * One line split in fields, parsed the same way as the One Bus Away GtfsReader does:
+     * fields may be quoted, leading spaces are skipped, and the values are trimmed.
+     * The field values are kept as bytes, and only decoded when needed.
+     */
+    static class Line {
+        private byte[] bytes = new byte[256];
+        private int[] start = new int[16];
+        private int[] end = new int[16];
+        private int fields;
+        private int lineStart;
+        private int lineEnd;
+        private ByteBuffer buffer;
+
+        /**
+         * Read the next line, empty lines are skipped.
+         * @return {@code false} if there are no more lines in the buffer.
+         */
+        boolean next(ByteBuffer b) {
+            while (b.hasRemaining()) {
+                int from = b.position();
+                int to = from;
+                int limit = b.limit();
+                while (to < limit && b.get(to) != '\n') {
+                    ++to;
+                }
+                b.position(Math.min(limit, to + 1));
+                if(to > from && b.get(to - 1) == '\r') {
+                    --to;
+                }
+                if(to > from) {
+                    split(b, from, to);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int size() {
+            return fields;
+        }
+
+        boolean isEmpty(int field) {
+            return field < 0 || field >= fields || start[field] == end[field];
+        }
+
+        /** @return the value, or {@code null} if empty. */
+        String string(int field) {
+            if(isEmpty(field)) return null;
+            return new String(bytes, start[field], end[field] - start[field], StandardCharsets.UTF_8);
+        }
+
+        List<String> strings() {
+            List<String> values = new ArrayList<>(fields);
+            for (int i = 0; i < fields; i++) {
+                values.add(isEmpty(i) ? "" : string(i));
+            }
+            return values;
+        }
+
+        /** Parse an integer, the same as {@link Integer#parseInt(String)}. */
+        int integer(int field) {
+            int i = start[field];
+            int e = end[field];
+            boolean negative = bytes[i] == '-';
+            if(negative || bytes[i] == '+') ++i;
+            if(i == e || e - i > 10) throw new NumberFormatException("For input string: \"" + string(field) + "\"");
+            long value = 0;
+            for (; i < e; i++) {
+                int d = bytes[i] - '0';
+                if(d < 0 || d > 9) throw new NumberFormatException("For input string: \"" + string(field) + "\"");
+                value = 10 * value + d;
+            }
+            value = negative ? -value : value;
+            if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("For input string: \"" + string(field) + "\"");
+            }
+            return (int) value;
+        }
+
+        double decimal(int field) {
+            return Double.parseDouble(string(field));
+        }
+
+        /**
+         * Parse a time {@code H:MM:SS} to seconds after midnight, the hours may be more than
+         * 24 and negative.
+         */
+        int time(int field) {
+            int s = start[field];
+            int e = end[field];
+            int colon = e - 6;
+            if(colon <= s || bytes[colon] != ':' || bytes[e - 3] != ':') {
+                throw new IllegalArgumentException("Invalid time: " + string(field));
+            }
+            boolean negative = bytes[s] == '-';
+            int hourStart = negative ? s + 1 : s;
+            if(hourStart == colon || colon - hourStart > 9) {
+                throw new IllegalArgumentException("Invalid time: " + string(field));
+            }
+            int hours = digits(field, hourStart, colon);
+            int minutes = digits(field, colon + 1, e - 3);
+            int seconds = digits(field, e - 2, e);
+            return seconds + 60 * (minutes + 60 * (negative ? -hours : hours));
+        }
+
+        /** @return the value, or {@code null} if the value is empty or not in the index. */
+        <T> T lookup(int field, IdIndex<T> index) {
+            if(isEmpty(field)) return null;
+            return index.get(bytes, start[field], end[field]);
+        }
+
+        /** A 64-bit hash of the raw line, see {@link #hash(byte[], int, int)}. */
+        long hash() {
+            long h = FNV_OFFSET;
+            for (int i = lineStart; i < lineEnd; i++) {
+                h = (h ^ (buffer.get(i) & 0xFF)) * FNV_PRIME;
+            }
+            return h;
+        }
+
+        /** A 64-bit hash of the field value, the same as the hash of the value encoded in UTF-8. */
+        long hash(int field) {
+            return isEmpty(field) ? hash(bytes, 0, 0) : hash(bytes, start[field], end[field]);
+        }
+
+        /** The 64-bit FNV-1a hash of the bytes. */
+        static long hash(byte[] b, int from, int to) {
+            long h = FNV_OFFSET;
+            for (int i = from; i < to; i++) {
+                h = (h ^ (b[i] & 0xFF)) * FNV_PRIME;
+            }
+            return h;
+        }
+
+        /** The raw line, used in error messages. */
+        String text() {
+            byte[] b = new byte[lineEnd - lineStart];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = buffer.get(lineStart + i);
+            }
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        private int digits(int field, int from, int to) {
+            int value = 0;
+            for (int i = from; i < to; i++) {
+                int d = bytes[i] - '0';
+                if(d < 0 || d > 9) throw new IllegalArgumentException("Invalid time: " + string(field));
+                value = 10 * value + d;
+            }
+            return value;
+        }
+
+        private void split(ByteBuffer b, int from, int to) {
+            this.buffer = b;
+            this.lineStart = from;
+            this.lineEnd = to;
+            if(bytes.length < to - from) {
+                bytes = new byte[2 * (to - from)];
+            }
+            fields = 0;
+            int n = 0;
+            int state = TRIM;
+            startField(n);
+            for (int i = from; i < to; i++) {
+                byte c = b.get(i);
+                switch (state) {
+                    case TRIM:
+                        if(c == ',') { endField(n); startField(n); continue; }
+                        if(c == ' ') continue;
+                        if(c == '"') { state = IN_QUOTES; continue; }
+                        state = DATA;
+                        bytes[n++] = c;
+                        continue;
+                    case DATA:
+                        if(c == ',') { endField(n); startField(n); state = TRIM; continue; }
+                        if(c == '"' && n == start[fields]) { state = IN_QUOTES; continue; }
+                        bytes[n++] = c;
+                        continue;
+                    case IN_QUOTES:
+                        if(c == '"') { state = END_QUOTE; continue; }
+                        bytes[n++] = c;
+                        continue;
+                    default:
+                        if(c == ',') { endField(n); startField(n); state = TRIM; continue; }
+                        if(c == '"') { bytes[n++] = c; state = IN_QUOTES; continue; }
+                        bytes[n++] = c;
+                        state = DATA;
+                }
+            }
+            endField(n);
+        }
+
+        private void startField(int n) {
+            if(fields == start.length) {
+                start = Arrays.copyOf(start, 2 * fields);
+                end = Arrays.copyOf(end, 2 * fields);
+            }
+            start[fields] = n;
+        }
+
+        /** End the field and trim it, the same as {@link String#trim()}. */
+        private void endField(int n) {
+            int s = start[fields];
+            int e = n;
+            while (s < e && (bytes[s] & 0xFF) <= ' ') ++s;
+            while (e > s && (bytes[e - 1] & 0xFF) <= ' ') --e;
+            start[fields] = s;
+            end[fields] = e;
+            ++fields;
+        }
+
+        private static final int TRIM = 0;
+        private static final int DATA = 1;
+        private static final int IN_QUOTES = 2;
+        private static final int END_QUOTE = 3;
+        private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+    }
+
+    /**
+     * Look up entities by id without creating a String for each value. The index is
+     * read only, and can be shared by several threads.
+     */
+    static class IdIndex<T> {
+        private final byte[][] keys;
+        private final Object[] values;
+        private final int mask;
+
+        IdIndex(Map<String, T> entities) {
+            int capacity = Integer.highestOneBit(Math.max(4, entities.size() * 2 - 1)) << 1;
+            this.keys = new byte[capacity][];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            entities.forEach((id, e) -> {
+                byte[] key = id.getBytes(StandardCharsets.UTF_8);
+                int i = hash(key, 0, key.length) & mask;
+                while (keys[i] != null && !Arrays.equals(keys[i], key)) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = e;
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(byte[] b, int from, int to) {
+            for (int i = hash(b, from, to) & mask; keys[i] != null; i = (i + 1) & mask) {
+                if(equals(keys[i], b, from, to)) return (T) values[i];
+            }
+            return null;
+        }
+
+        private static int hash(byte[] b, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + b[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean equals(byte[] key, byte[] b, int from, int to) {
+            if(key.length != to - from) return false;
+            for (int i = 0; i < key.length; i++) {
+                if(key[i] != b[from + i]) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A growable buffer of CSV lines, encoded as UTF-8 while the fields are added.
+ * <p>
+ * The fields are formatted as the One Bus Away writer does: a value with a comma or a
+ * quote is quoted, times are {@code H:MM:SS} with at least two digits for the hours,
+ * dates are {@code yyyyMMdd}, coordinates have six decimals and other decimal numbers
+ * are formatted as {@link Double#toString(double)}. A char that can not be encoded, a
+ * lone surrogate, is replaced by {@code ?} as by an {@link java.io.OutputStreamWriter}.
+ * <p>
+ * Not thread safe, each thread formats into its own buffer.
+ */
+class CsvOutput {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final long SCALE = 1_000_000L;
+    private static final double TIE_MARGIN = 1e-6;
+
+    private byte[] bytes;
+    private int length = 0;
+    private boolean firstField = true;
+    private final char[] digits = new char[20];
+    private DecimalFormat latLonFormat = null;
+
+    CsvOutput(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    void clear() {
+        length = 0;
+        firstField = true;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    void endLine() {
+        ensureCapacity(LINE_SEPARATOR.length);
+        for (byte b : LINE_SEPARATOR) {
+            bytes[length++] = b;
+        }
+        firstField = true;
+    }
+
+    void empty() {
+        separator();
+    }
+
+    /** A text value, {@code null} is written as an empty field. */
+    void field(String value) {
+        separator();
+        if(value == null) return;
+        if(value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            append(value);
+            return;
+        }
+        appendAscii('"');
+        int start = 0;
+        for (int i = value.indexOf('"'); i >= 0; i = value.indexOf('"', i + 1)) {
+            append(value, start, i + 1);
+            start = i;
+        }
+        append(value, start, value.length());
+        appendAscii('"');
+    }
+
+    void field(int value) {
+        separator();
+        appendInt(value);
+    }
+
+    void field(double value) {
+        separator();
+        append(Double.toString(value));
+    }
+
+    void field(float value) {
+        separator();
+        append(Float.toString(value));
+    }
+
+    /** A time as seconds after midnight, a negative time is written as an empty field. */
+    void time(int t) {
+        separator();
+        if(t < 0) return;
+        int seconds = t % 60;
+        int minutes = t / 60 % 60;
+        int hours = t / 3600;
+        if(hours < 10) appendAscii('0');
+        appendInt(hours);
+        appendAscii(':');
+        appendTwoDigits(minutes);
+        appendAscii(':');
+        appendTwoDigits(seconds);
+    }
+
+    void date(ServiceDate date) {
+        separator();
+        if(date == null) return;
+        int year = date.getYear();
+        if(year < 0) {
+            append(date.getAsString());
+            return;
+        }
+        for (int d = 1000; d > 1 && year < d; d /= 10) {
+            appendAscii('0');
+        }
+        appendInt(year);
+        appendTwoDigits(date.getMonth());
+        appendTwoDigits(date.getDay());
+    }
+
+    /**
+     * A latitude or longitude rounded half even to six decimals. The value is rounded
+     * here if it is not too close to a tie, the rare other values and the values
+     * rounded to zero are formatted with a {@link DecimalFormat}.
+     */
+    void latLon(double value) {
+        separator();
+        if(value == 0 && 1 / value > 0) {
+            append("0.000000");
+            return;
+        }
+        double scaled = Math.abs(value) * SCALE;
+        if(scaled >= 1 && scaled < Integer.MAX_VALUE) {
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            if(Math.abs(fraction - 0.5) > TIE_MARGIN) {
+                long n = (long) floor + (fraction > 0.5 ? 1 : 0);
+                if(value < 0) appendAscii('-');
+                appendInt((int) (n / SCALE));
+                appendAscii('.');
+                int decimals = (int) (n % SCALE);
+                for (long d = SCALE / 10; d > 1 && decimals < d; d /= 10) {
+                    appendAscii('0');
+                }
+                appendInt(decimals);
+                return;
+            }
+        }
+        if(latLonFormat == null) {
+            latLonFormat = new DecimalFormat("0.000000", new DecimalFormatSymbols(Locale.US));
+        }
+        append(latLonFormat.format(value));
+    }
+
+    private void separator() {
+        if(firstField) {
+            firstField = false;
+        }
+        else {
+            appendAscii(',');
+        }
+    }
+
+    private void appendTwoDigits(int value) {
+        if(value < 10) appendAscii('0');
+        appendInt(value);
+    }
+
+    private void appendInt(int value) {
+        if(value == Integer.MIN_VALUE) {
+            append(Integer.toString(value));
+            return;
+        }
+        if(value < 0) {
+            appendAscii('-');
+            value = -value;
+        }
+        int n = digits.length;
+        do {
+            digits[--n] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        ensureCapacity(digits.length - n);
+        while (n < digits.length) {
+            bytes[length++] = (byte) digits[n++];
+        }
+    }
+
+    private void appendAscii(char c) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) c;
+    }
+
+    private void append(String s) {
+        append(s, 0, s.length());
+    }
+
+    private void append(String s, int from, int to) {
+        ensureCapacity(3 * (to - from));
+        byte[] b = bytes;
+        int n = length;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                b[n++] = (byte) c;
+            }
+            else if(c < 0x800) {
+                b[n++] = (byte) (0xC0 | c >> 6);
+                b[n++] = (byte) (0x80 | c & 0x3F);
+            }
+            else if(Character.isSurrogate(c)) {
+                char low = i + 1 < to ? s.charAt(i + 1) : 0;
+                if(Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                    int cp = Character.toCodePoint(c, low);
+                    b[n++] = (byte) (0xF0 | cp >> 18);
+                    b[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    b[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    b[n++] = (byte) (0x80 | cp & 0x3F);
+                    ++i;
+                }
+                else {
+                    b[n++] = '?';
+                }
+            }
+            else {
+                b[n++] = (byte) (0xE0 | c >> 12);
+                b[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                b[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        length = n;
+    }
+
+    private void ensureCapacity(int n) {
+        if(length + n > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + n, bytes.length * 2));
+        }
+    }
+}
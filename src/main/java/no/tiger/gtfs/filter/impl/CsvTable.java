@@ -0,0 +1,153 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.csv_entities.CSVLibrary;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Read one GTFS CSV table from a zip file, row by row, without mapping it to entities.
+ * A quoted value may contain line breaks, the row then continues on the next lines.
+ */
+class CsvTable implements Closeable {
+    private static final char BOM = '\uFEFF';
+    private static final int DATA = 0;
+    private static final int IN_QUOTES = 1;
+    private static final int END_QUOTE = 2;
+
+    private final String name;
+    private final BufferedReader reader;
+    private final CSVLibrary csv = new CSVLibrary();
+    private final String header;
+    private final Map<String, Integer> columns = new HashMap<>();
+
+    private String line;
+    private List<String> values;
+    private int row = -1;
+
+    private CsvTable(String name, BufferedReader reader) throws IOException {
+        this.name = name;
+        this.reader = reader;
+        String h = reader.readLine();
+        this.header = h == null ? "" : stripBom(h);
+        List<String> names = csv.parse(header);
+        for (int i = 0; i < names.size(); i++) {
+            columns.put(names.get(i).trim(), i);
+        }
+    }
+
+    /**
+     * @return the table or {@code null} if the file does not exist in the zip.
+     */
+    static CsvTable open(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if(entry == null) {
+            return null;
+        }
+        return new CsvTable(name, new BufferedReader(
+                new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8)
+        ));
+    }
+
+    boolean next() throws IOException {
+        do {
+            line = reader.readLine();
+            if(line == null) {
+                values = null;
+                return false;
+            }
+        }
+        while (line.isEmpty());
+        if(endsInQuotes(line)) {
+            StringBuilder record = new StringBuilder(line);
+            String next;
+            while (endsInQuotes(record) && (next = reader.readLine()) != null) {
+                record.append('\n').append(next);
+            }
+            line = record.toString();
+        }
+        values = csv.parse(line);
+        ++row;
+        return true;
+    }
+
+    /** The data row index, starting at 0 for the first line after the header. */
+    int row() {
+        return row;
+    }
+
+    String name() {
+        return name;
+    }
+
+    String header() {
+        return header;
+    }
+
+    String line() {
+        return line;
+    }
+
+    List<String> values() {
+        return values;
+    }
+
+    int column(String column) {
+        return columns.getOrDefault(column, -1);
+    }
+
+    /**
+     * @return the value or an empty string if the column is missing.
+     */
+    String get(String column) {
+        Integer i = columns.get(column);
+        if(i == null || i >= values.size()) {
+            return "";
+        }
+        return values.get(i).trim();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * @return true if the record ends inside a quoted value, the states are the same as
+     * in the {@link CSVLibrary} parser.
+     */
+    private static boolean endsInQuotes(CharSequence record) {
+        int state = DATA;
+        boolean emptyValue = true;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if(state == IN_QUOTES) {
+                if(c == '"') state = END_QUOTE;
+            }
+            else if(c == ',') {
+                state = DATA;
+                emptyValue = true;
+            }
+            else if(c == '"' && (state == END_QUOTE || emptyValue)) {
+                state = IN_QUOTES;
+            }
+            else {
+                state = DATA;
+                emptyValue = false;
+            }
+        }
+        return state == IN_QUOTES;
+    }
+
+    private static String stripBom(String value) {
+        return value.length() > 0 && value.charAt(0) == BOM ? value.substring(1) : value;
+    }
+}
@@ -0,0 +1,170 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.csv_entities.EntityHandler;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.ShapePoint;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Replace the ids, strings and service dates of the entities loaded with canonical
+ * instances, so equal values repeated across entities share one object. Like the service
+ * id of each Trip, the shape id of each ShapePoint and the parent station of each Stop.
+ * <p>
+ * Add the interner as an entity handler to the reader, or call {@link #handleEntity(Object)}
+ * for each entity created, then {@link #report()} when the load is done. The pools are
+ * released with the interner. The first instance of a value seen is kept, so an entity id
+ * stays the instance used as key by the {@code GtfsDao}.
+ * <p>
+ * The memory saved is estimated from the size of the instances replaced, assuming they
+ * are not referred to elsewhere.
+ */
+class EntityInterner implements EntityHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(EntityInterner.class);
+    /** The size of an AgencyAndId or a ServiceDate: header, 2 references or 3 ints, padded. */
+    private static final int VALUE_SIZE = 24;
+    /** The size of a String without the characters: the String and the header of the array. */
+    private static final int STRING_SIZE = 24 + 16;
+
+    private final InternPool<String> strings = new InternPool<>();
+    private final InternPool<AgencyAndId> ids = new InternPool<>();
+    private final InternPool<ServiceDate> dates = new InternPool<>(256);
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private Stats current;
+
+    @Override
+    public void handleEntity(Object entity) {
+        long start = System.nanoTime();
+        if(entity instanceof Trip) {
+            current = stats("Trip");
+            Trip t = (Trip) entity;
+            t.setId(id(t.getId()));
+            t.setServiceId(id(t.getServiceId()));
+            t.setShapeId(id(t.getShapeId()));
+            t.setTripHeadsign(string(t.getTripHeadsign()));
+            t.setRouteShortName(string(t.getRouteShortName()));
+            t.setDirectionId(string(t.getDirectionId()));
+            t.setBlockId(string(t.getBlockId()));
+        }
+        else if(entity instanceof ShapePoint) {
+            current = stats("ShapePoint");
+            ShapePoint p = (ShapePoint) entity;
+            p.setShapeId(id(p.getShapeId()));
+        }
+        else if(entity instanceof Stop) {
+            current = stats("Stop");
+            Stop s = (Stop) entity;
+            s.setId(id(s.getId()));
+            s.setParentStation(string(s.getParentStation()));
+            s.setZoneId(string(s.getZoneId()));
+            s.setTimezone(string(s.getTimezone()));
+        }
+        else if(entity instanceof ServiceCalendarDate) {
+            current = stats("ServiceCalendarDate");
+            ServiceCalendarDate c = (ServiceCalendarDate) entity;
+            c.setServiceId(id(c.getServiceId()));
+            c.setDate(date(c.getDate()));
+        }
+        else if(entity instanceof ServiceCalendar) {
+            current = stats("ServiceCalendar");
+            ServiceCalendar c = (ServiceCalendar) entity;
+            c.setServiceId(id(c.getServiceId()));
+            c.setStartDate(date(c.getStartDate()));
+            c.setEndDate(date(c.getEndDate()));
+        }
+        else if(entity instanceof Route) {
+            current = stats("Route");
+            Route r = (Route) entity;
+            r.setId(id(r.getId()));
+            r.setColor(string(r.getColor()));
+            r.setTextColor(string(r.getTextColor()));
+        }
+        else if(entity instanceof Agency) {
+            current = stats("Agency");
+            Agency a = (Agency) entity;
+            a.setId(string(a.getId()));
+            a.setTimezone(string(a.getTimezone()));
+            a.setLang(string(a.getLang()));
+        }
+        else {
+            return;
+        }
+        current.entities++;
+        current.nanos += System.nanoTime() - start;
+    }
+
+    /** Log the memory saved and the time used for each entity type. */
+    void report() {
+        try (Instrumentation.Phase phase = Instrumentation.phase("intern")) {
+            for (Map.Entry<String, Stats> e : stats.entrySet()) {
+                Stats s = e.getValue();
+                LOG.info(
+                        "Interned {} {}: {} values replaced, ~{} KB saved in {} ms",
+                        s.entities, e.getKey(), s.replaced, s.savedBytes / 1024, s.nanos / 1_000_000
+                );
+                phase.set(e.getKey() + ".replaced", s.replaced);
+                phase.set(e.getKey() + ".savedBytes", s.savedBytes);
+                phase.set(e.getKey() + ".nanos", s.nanos);
+            }
+            LOG.info("Intern pools: {} ids, {} strings, {} dates", ids.size(), strings.size(), dates.size());
+        }
+    }
+
+    private AgencyAndId id(AgencyAndId value) {
+        if(value == null) return null;
+        AgencyAndId id = ids.intern(value);
+        if(id != value) {
+            current.saved(VALUE_SIZE
+                    + (id.getAgencyId() != value.getAgencyId() ? stringSize(value.getAgencyId()) : 0)
+                    + (id.getId() != value.getId() ? stringSize(value.getId()) : 0)
+            );
+            return id;
+        }
+        // A new canonical id, the strings are shared with equal strings, like the parent station
+        value.setAgencyId(string(value.getAgencyId()));
+        value.setId(string(value.getId()));
+        return value;
+    }
+
+    private String string(String value) {
+        String s = strings.intern(value);
+        if(s != value) current.saved(stringSize(value));
+        return s;
+    }
+
+    private ServiceDate date(ServiceDate value) {
+        ServiceDate d = dates.intern(value);
+        if(d != value) current.saved(VALUE_SIZE);
+        return d;
+    }
+
+    private Stats stats(String type) {
+        return stats.computeIfAbsent(type, t -> new Stats());
+    }
+
+    private static int stringSize(String value) {
+        return value == null ? 0 : STRING_SIZE + (value.length() + 7 & ~7);
+    }
+
+    private static class Stats {
+        long entities = 0;
+        long replaced = 0;
+        long savedBytes = 0;
+        long nanos = 0;
+
+        void saved(int bytes) {
+            ++replaced;
+            savedBytes += bytes;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Transfer;
+import org.onebusaway.gtfs.model.Trip;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static no.tiger.gtfs.filter.impl.CleanupCascade.isStation;
+import static no.tiger.gtfs.filter.impl.CleanupCascade.isStopQuay;
+
+/**
+ * The rules of {@link CleanupCascade} for a model with the stop times spilled to disk, see
+ * {@link SpilledStopTimes}.
+ * <p>
+ * A pass over the stop times, sorted by trip id, is merge-joined with the trips kept sorted
+ * by id. A trip is kept if it has 2 or more StopTimes with a Stop kept, and the stops of
+ * the trips kept are in use. The rules not depending on the stop times are then applied
+ * in memory until nothing changes. Another pass is only needed if a stop in use is removed,
+ * which happens when a station is removed.
+ */
+class ExternalCleanup {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalCleanup.class);
+
+    private final CountSet<ServiceCalendar> calendars;
+    private final CountSet<ServiceCalendarDate> calendarDates;
+    private final CountSet<Route> routes;
+    private final CountSet<Trip> trips;
+    private final CountSet<Stop> stops;
+    private final CountSet<Transfer> transfers;
+    private final SpilledStopTimes stopTimes;
+    private final Parallel parallel;
+    private final List<ChangeTracked> sets;
+    private final Map<String, Integer> stopIndexById = new HashMap<>();
+
+    ExternalCleanup(
+            CountSet<ServiceCalendar> calendars,
+            CountSet<ServiceCalendarDate> calendarDates,
+            CountSet<Route> routes,
+            CountSet<Trip> trips,
+            CountSet<Stop> stops,
+            CountSet<Transfer> transfers,
+            SpilledStopTimes stopTimes,
+            Parallel parallel
+    ) {
+        this.calendars = calendars;
+        this.calendarDates = calendarDates;
+        this.routes = routes;
+        this.trips = trips;
+        this.stops = stops;
+        this.transfers = transfers;
+        this.stopTimes = stopTimes;
+        this.parallel = parallel;
+        this.sets = Arrays.asList(calendars, calendarDates, routes, trips, stops, transfers);
+        List<Stop> all = stops.all();
+        for (int i = 0; i < all.size(); i++) {
+            stopIndexById.put(all.get(i).getId().getId(), i);
+        }
+    }
+
+    void run() {
+        int passes = 0;
+        boolean again = true;
+        while (again) {
+            BitSet inUse;
+            try (Instrumentation.Phase phase = Instrumentation.phase("mergeJoinStopTimes", sets)) {
+                inUse = removeTripsWithoutStopTimes();
+                phase.set("rows", stopTimes.rows());
+            }
+            ++passes;
+            again = Instrumentation.time("removeUnreferenced", sets, () -> removeUnreferenced(inUse));
+        }
+        LOG.info("Cleanup done in {} passes over the stop times", passes);
+    }
+
+    /**
+     * Remove the trips with less than 2 StopTimes with a Stop kept.
+     * @return the indexes of the stops in use by the trips kept.
+     */
+    private BitSet removeTripsWithoutStopTimes() {
+        Trip[] sorted = trips.toArray(new Trip[0]);
+        Arrays.sort(sorted, Comparator.comparing((Trip t) -> t.getId().getId()));
+        BitSet stopKept = stops.indexes();
+        BitSet inUse = new BitSet();
+        BitSet tripKept = new BitSet(sorted.length);
+        TripGroup group = new TripGroup();
+        try {
+            stopTimes.forEach(row -> {
+                if(!row.tripId.equals(group.tripId)) {
+                    group.complete(tripKept, inUse);
+                    group.start(row.tripId, sorted);
+                }
+                if(group.trip < 0) return;
+                Integer stop = stopIndexById.get(row.stopId);
+                if(stop != null && stopKept.get(stop)) group.add(stop);
+            });
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        group.complete(tripKept, inUse);
+        for (int i = tripKept.nextClearBit(0); i < sorted.length; i = tripKept.nextClearBit(i + 1)) {
+            trips.remove(sorted[i]);
+        }
+        return inUse;
+    }
+
+    /**
+     * Apply the rules not depending on the stop times until nothing changes.
+     * @return true if a stop in use was removed, the trips must then be checked again.
+     */
+    private boolean removeUnreferenced(BitSet inUse) {
+        boolean stopInUseRemoved = false;
+        boolean changed = true;
+        while (changed) {
+            Set<Route> routesInUse = parallel.setOf(trips, Trip::getRoute);
+            Set<AgencyAndId> servicesInUse = parallel.setOf(trips, Trip::getServiceId);
+            int size = routes.size() + calendars.size() + calendarDates.size();
+            parallel.removeIf(routes, r -> !routesInUse.contains(r));
+            parallel.removeIf(calendars, c -> !servicesInUse.contains(c.getServiceId()));
+            parallel.removeIf(calendarDates, c -> !servicesInUse.contains(c.getServiceId()));
+            changed = size != routes.size() + calendars.size() + calendarDates.size();
+
+            Set<String> stations = new HashSet<>();
+            Set<String> parents = new HashSet<>();
+            for (Stop s : stops) {
+                if(isStation(s)) stations.add(s.getId().getId());
+                if(!isEmpty(s.getParentStation())) parents.add(s.getParentStation());
+            }
+            BitSet removed = new BitSet();
+            for (Stop s : stops) {
+                int i = stops.indexOf(s);
+                boolean remove = isStopQuay(s)
+                        ? !inUse.get(i) || (!isEmpty(s.getParentStation()) && !stations.contains(s.getParentStation()))
+                        : isStation(s) && !parents.contains(s.getId().getId());
+                if(remove) removed.set(i);
+            }
+            if(!removed.isEmpty()) {
+                stopInUseRemoved |= removed.intersects(inUse);
+                BitSet kept = stops.indexes();
+                kept.andNot(removed);
+                stops.retainIndexes(kept);
+                changed = true;
+            }
+        }
+        parallel.removeIf(transfers, this::transferRefMissing);
+        return stopInUseRemoved;
+    }
+
+    private boolean transferRefMissing(Transfer t) {
+        return optRefMissing(t.getFromStop(), stops)
+                || optRefMissing(t.getToStop(), stops)
+                || optRefMissing(t.getFromRoute(), routes)
+                || optRefMissing(t.getToRoute(), routes)
+                || optRefMissing(t.getFromTrip(), trips)
+                || optRefMissing(t.getToTrip(), trips);
+    }
+
+    private static <T> boolean optRefMissing(T e, Collection<T> c) {
+        return e != null && !c.contains(e);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    /**
+     * The StopTimes of one trip in a pass. The trips are sorted like the stop times, so the
+     * trip is found by moving forward in the sorted trips.
+     */
+    private static class TripGroup {
+        String tripId = null;
+        int trip = -1;
+        private int next = 0;
+        private int[] stops = new int[64];
+        private int size = 0;
+
+        void start(String tripId, Trip[] sorted) {
+            this.tripId = tripId;
+            this.size = 0;
+            while (next < sorted.length && sorted[next].getId().getId().compareTo(tripId) < 0) ++next;
+            trip = next < sorted.length && sorted[next].getId().getId().equals(tripId) ? next : -1;
+        }
+
+        void add(int stop) {
+            if(size == stops.length) stops = Arrays.copyOf(stops, 2 * size);
+            stops[size++] = stop;
+        }
+
+        void complete(BitSet tripKept, BitSet inUse) {
+            if(trip < 0 || size < 2) return;
+            tripKept.set(trip);
+            for (int i = 0; i < size; i++) inUse.set(stops[i]);
+        }
+    }
+}
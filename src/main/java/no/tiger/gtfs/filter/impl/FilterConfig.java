@@ -0,0 +1,307 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * The filters to apply, read from a properties file:
+ * <pre>
+ * # Agencies to keep, by name
+ * agencies = RuterBuss, RuterTrikk
+ * # Routes to keep, by short name
+ * routes = 11, 12, 13
+ * # Stops and trips to keep, by id, the patterns are read from a file
+ * stops = @stops.txt
+ * trips = RUT:*, !RUT:ServiceJourney:*
+ * # Areas to keep stops in: name = minLat minLon maxLat maxLon, or a polygon, see Regions
+ * area.oslo-ring2 = 59.90 10.70 59.94 10.79
+ * area.oslo = &#64;oslo.wkt
+ * # Keep the stops 2 hops, or 15 minutes, from the area, not only the stops inside it
+ * reachableHops = 2
+ * reachableWithin = 00:15
+ * # Keep only the service days in the window, and cut the calendars to it
+ * serviceDays = 2017-01-02 2017-01-08
+ * # Keep trips departing from the first stop in the interval, both times included
+ * departingBetween = 06:00 09:30
+ * # Keep at most 3 trips per trip pattern, or the trips departing at least 30 minutes apart
+ * tripsPerPattern = 3
+ * patternHeadway = 00:30
+ * # Set the end date of all services
+ * serviceEndDate = 2049-12-31
+ * # Clip the shapes to the areas, and simplify them with a tolerance of 5 meters
+ * clipShapes = true
+ * simplifyShapes = 5
+ * </pre>
+ * All filters are optional, a filter not set keeps all entities. The agencies, routes, stops and
+ * trips are lists of {@link IdMatcher} patterns. An entry {@code @<file>} adds the patterns in the
+ * file, one per line, the file is relative to the config file. The filters of a server request may
+ * only refer to files in the data dir, see {@link #request(Properties, File)}.
+ */
+public class FilterConfig {
+    private static final String DEFAULT_CONFIG = "/filter.properties";
+    private static final String AREA_PREFIX = "area.";
+
+    private final String source;
+    private final IdMatcher agencies;
+    private final IdMatcher routes;
+    private final IdMatcher stops;
+    private final IdMatcher trips;
+    private final List<Region> areas;
+    private final ServiceDate serviceDaysFrom;
+    private final ServiceDate serviceDaysTo;
+    private final int reachableHops;
+    private final int reachableWithin;
+    private final int departingFrom;
+    private final int departingTo;
+    private final int tripsPerPattern;
+    private final int patternHeadway;
+    private final ServiceDate serviceEndDate;
+    private final boolean clipShapes;
+    private final double simplifyShapes;
+
+    /**
+     * @param confined true to only read files in the dir.
+     */
+    private FilterConfig(String source, File dir, boolean confined, Properties p) throws IOException {
+        this.source = source;
+        this.agencies = matcher(p.getProperty("agencies"), dir, confined);
+        this.routes = matcher(p.getProperty("routes"), dir, confined);
+        this.stops = matcher(p.getProperty("stops"), dir, confined);
+        this.trips = matcher(p.getProperty("trips"), dir, confined);
+        this.areas = areas(p, dir, confined);
+        String[] hops = values(p.getProperty("reachableHops"), 1, "reachableHops");
+        this.reachableHops = hops == null ? -1 : Integer.parseInt(hops[0]);
+        String[] within = values(p.getProperty("reachableWithin"), 1, "reachableWithin");
+        this.reachableWithin = within == null ? -1 : time(within[0]);
+        if(p.getProperty("period") != null) {
+            throw new IllegalArgumentException("The period filter is removed, use serviceDays = <from> <to>");
+        }
+        String[] serviceDays = values(p.getProperty("serviceDays"), 2, "serviceDays");
+        this.serviceDaysFrom = serviceDays == null ? null : date(serviceDays[0]);
+        this.serviceDaysTo = serviceDays == null ? null : date(serviceDays[1]);
+        String[] departing = values(p.getProperty("departingBetween"), 2, "departingBetween");
+        this.departingFrom = departing == null ? -1 : time(departing[0]);
+        this.departingTo = departing == null ? -1 : time(departing[1]);
+        String[] perPattern = values(p.getProperty("tripsPerPattern"), 1, "tripsPerPattern");
+        this.tripsPerPattern = perPattern == null ? -1 : Integer.parseInt(perPattern[0]);
+        String[] headway = values(p.getProperty("patternHeadway"), 1, "patternHeadway");
+        this.patternHeadway = headway == null ? -1 : time(headway[0]);
+        String[] endDate = values(p.getProperty("serviceEndDate"), 1, "serviceEndDate");
+        this.serviceEndDate = endDate == null ? null : date(endDate[0]);
+        String[] clip = values(p.getProperty("clipShapes"), 1, "clipShapes");
+        this.clipShapes = clip != null && Boolean.parseBoolean(clip[0]);
+        String[] simplify = values(p.getProperty("simplifyShapes"), 1, "simplifyShapes");
+        this.simplifyShapes = simplify == null ? -1 : Double.parseDouble(simplify[0]);
+        if(reachableHops >= 0 && reachableWithin >= 0) {
+            throw new IllegalArgumentException("Set reachableHops or reachableWithin, not both");
+        }
+        if(serviceDaysFrom != null && serviceDaysFrom.compareTo(serviceDaysTo) > 0) {
+            throw new IllegalArgumentException("The service days end before they start: " + p.getProperty("serviceDays"));
+        }
+    }
+
+    public static FilterConfig read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(in, file.getPath(), file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /**
+     * The filters used if no config file is given.
+     */
+    public static FilterConfig defaults() throws IOException {
+        try (InputStream in = FilterConfig.class.getResourceAsStream(DEFAULT_CONFIG)) {
+            if(in == null) throw new IOException("Resource not found: " + DEFAULT_CONFIG);
+            return read(in, DEFAULT_CONFIG, new File("."));
+        }
+    }
+
+    /**
+     * The filters in the properties, like in a config file.
+     * @param dir the directory of the files referred to with {@code @<file>}.
+     */
+    public static FilterConfig of(Properties properties, String source, File dir) throws IOException {
+        return new FilterConfig(source, dir, false, properties);
+    }
+
+    /**
+     * The filters of a request from a client, the files referred to with {@code @<file>}
+     * must be relative paths to files in the dir.
+     * @throws IllegalArgumentException if a file is outside the dir.
+     */
+    public static FilterConfig request(Properties properties, File dir) throws IOException {
+        return new FilterConfig("request", dir, true, properties);
+    }
+
+    private static FilterConfig read(InputStream in, String source, File dir) throws IOException {
+        Properties p = new Properties();
+        p.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        return new FilterConfig(source, dir, false, p);
+    }
+
+    /** The agency names to keep, empty if all agencies are kept. */
+    public IdMatcher agencies() {
+        return agencies;
+    }
+
+    /** The route short names to keep, empty if all routes are kept. */
+    public IdMatcher routes() {
+        return routes;
+    }
+
+    /** The stop ids to keep, empty if all stops are kept. */
+    public IdMatcher stops() {
+        return stops;
+    }
+
+    /** The trip ids to keep, empty if all trips are kept. */
+    public IdMatcher trips() {
+        return trips;
+    }
+
+    /** The areas in the config file, sorted by name. */
+    public List<Region> areas() {
+        return areas;
+    }
+
+    /** The hops from an area to keep stops within, or -1 if only the stops inside are kept. */
+    public int reachableHops() {
+        return reachableHops;
+    }
+
+    /** The travel time in seconds from an area to keep stops within, or -1 if only the stops inside are kept. */
+    public int reachableWithin() {
+        return reachableWithin;
+    }
+
+    /** @return true if the stops reachable from an area are kept, not only the stops inside it. */
+    public boolean isReachable() {
+        return reachableHops >= 0 || reachableWithin >= 0;
+    }
+
+    /** The first service day to keep, or {@code null} if all days are kept. */
+    public ServiceDate serviceDaysFrom() {
+        return serviceDaysFrom;
+    }
+
+    /** The last service day to keep, or {@code null} if all days are kept. */
+    public ServiceDate serviceDaysTo() {
+        return serviceDaysTo;
+    }
+
+    /** The first departure time to keep in seconds after midnight, or -1 if all trips are kept. */
+    public int departingFrom() {
+        return departingFrom;
+    }
+
+    /** The last departure time to keep in seconds after midnight, or -1 if all trips are kept. */
+    public int departingTo() {
+        return departingTo;
+    }
+
+    /** The number of trips to keep per trip pattern, or -1 if all trips are kept. */
+    public int tripsPerPattern() {
+        return tripsPerPattern;
+    }
+
+    /** The headway in seconds between the trips kept in a trip pattern, or -1 if all trips are kept. */
+    public int patternHeadway() {
+        return patternHeadway;
+    }
+
+    /** The new end date of all services, or {@code null} if not changed. */
+    public ServiceDate serviceEndDate() {
+        return serviceEndDate;
+    }
+
+    /** @return true if the shapes are clipped to the areas. */
+    public boolean clipShapes() {
+        return clipShapes;
+    }
+
+    /** The tolerance in meters to simplify the shapes with, or -1 if not simplified. */
+    public double simplifyShapes() {
+        return simplifyShapes;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * The file referred to with {@code @<file>}, relative to the dir.
+     * @param confined true to reject absolute paths and paths outside the dir.
+     */
+    static File file(String path, File dir, boolean confined) throws IOException {
+        File file = new File(path);
+        if(!confined) return file.isAbsolute() ? file : new File(dir, path);
+        File canonicalDir = dir.getCanonicalFile();
+        if(file.isAbsolute() || !new File(canonicalDir, path).getCanonicalFile().toPath().startsWith(canonicalDir.toPath())) {
+            throw new IllegalArgumentException("Only files in the data dir can be read: " + path);
+        }
+        return new File(canonicalDir, path);
+    }
+
+    private static IdMatcher matcher(String value, File dir, boolean confined) throws IOException {
+        if(value == null || value.trim().isEmpty()) return IdMatcher.all();
+        List<String> patterns = new ArrayList<>();
+        for (String it : value.split(",")) {
+            String pattern = it.trim();
+            if(pattern.startsWith("@")) {
+                patterns.addAll(IdMatcher.lines(file(pattern.substring(1), dir, confined)));
+            }
+            else if(!pattern.isEmpty()) {
+                patterns.add(pattern);
+            }
+        }
+        return IdMatcher.of(patterns);
+    }
+
+    private static List<Region> areas(Properties p, File dir, boolean confined) throws IOException {
+        List<Region> areas = new ArrayList<>();
+        for (String key : new TreeSet<>(p.stringPropertyNames())) {
+            if(!key.startsWith(AREA_PREFIX)) continue;
+            areas.add(Regions.parse(key.substring(AREA_PREFIX.length()), p.getProperty(key), dir, confined));
+        }
+        return Collections.unmodifiableList(areas);
+    }
+
+    private static String[] values(String value, int size, String key) {
+        if(value == null || value.trim().isEmpty()) return null;
+        String[] v = value.trim().split("\\s+");
+        if(v.length != size) {
+            throw new IllegalArgumentException("Expected " + size + " values for " + key + ", not: " + value);
+        }
+        return v;
+    }
+
+    /** Parse a time: HH:mm or HH:mm:ss, the hours may be 24 or more. */
+    private static int time(String value) {
+        String[] v = value.split(":");
+        if(v.length != 2 && v.length != 3) {
+            throw new IllegalArgumentException("Expected a time HH:mm or HH:mm:ss, not: " + value);
+        }
+        return 3600 * Integer.parseInt(v[0]) + 60 * Integer.parseInt(v[1]) + (v.length == 3 ? Integer.parseInt(v[2]) : 0);
+    }
+
+    /** Parse a date: yyyy-MM-dd */
+    private static ServiceDate date(String value) {
+        String[] v = value.split("-");
+        if(v.length != 3) {
+            throw new IllegalArgumentException("Expected a date yyyy-MM-dd, not: " + value);
+        }
+        return new ServiceDate(Integer.parseInt(v[0]), Integer.parseInt(v[1]), Integer.parseInt(v[2]));
+    }
+}
@@ -0,0 +1,238 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.csv_entities.CsvInputSource;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The filters in a {@link FilterConfig} compiled for a run over one or more areas.
+ * <p>
+ * The filters are applied twice. While the feed is loaded the entities removed by the
+ * agency, route, stop, trip, area and service day filters are skipped: when the feed is
+ * parsed by a {@link PushdownSource}, and when it is loaded from a snapshot by a
+ * {@link PushdownFilter}. The first run on a new feed parses the whole feed to save it in
+ * the snapshot, and nothing is skipped. A stop is only skipped if it is outside all areas,
+ * and no stops are skipped if the trips are filtered by the departure from the first stop,
+ * which must be loaded. Then {@link #apply(GtfsModel, Region)} runs the retain steps on
+ * the loaded model, ordered by the estimated fraction of entities kept, so the
+ * most selective step runs first. The removals only cascade, so the order and the
+ * pushdown does not change the result. The stops reachable from an area and the trip
+ * pattern sampling do depend on the trips left, so they run last, after the cleanup, and
+ * the area is not pushed down if the reachable stops are kept. The shapes of the trips
+ * left are clipped and simplified at the end.
+ */
+public class FilterPlan {
+    private static final Logger LOG = LoggerFactory.getLogger(FilterPlan.class);
+
+    private final FilterConfig config;
+    private final List<Region> areas;
+
+    /**
+     * @param areas all areas filtered in the run, each model is filtered with one of them.
+     */
+    public FilterPlan(FilterConfig config, List<Region> areas) {
+        this.config = config;
+        this.areas = areas;
+    }
+
+    /**
+     * Wrap the input source of the reader, skipping the rows removed by the plan.
+     */
+    PushdownSource pushdown(CsvInputSource source) {
+        return new PushdownSource(source, config, pushdownStops(), pushdownAreas());
+    }
+
+    /**
+     * Skip the entities removed by the plan when the snapshot is loaded, the same as
+     * {@link #pushdown(CsvInputSource)} skips while parsing.
+     */
+    PushdownFilter pushdownFilter() {
+        return new PushdownFilter(config, pushdownStops(), pushdownAreas());
+    }
+
+    /**
+     * @return true if a filter uses the times or the order of the stop times, which are not
+     * available in streaming mode or when the stop times are spilled to disk.
+     */
+    public boolean needsStopTimesInMemory() {
+        return config.departingFrom() >= 0
+                || config.tripsPerPattern() >= 1
+                || config.patternHeadway() >= 0
+                || (config.isReachable() && !areas.isEmpty());
+    }
+
+    /**
+     * @return true if the shapes are clipped or simplified, which needs the shapes loaded
+     * into the model.
+     */
+    public boolean changesShapes() {
+        return config.clipShapes() || config.simplifyShapes() >= 0;
+    }
+
+    /**
+     * Identify all filters applied to the output of one area, an output filtered with
+     * another plan is not the same. The other areas in the run are left out.
+     * @param area the area of the output, {@code null} if all stops are kept.
+     */
+    String fingerprint(Region area) {
+        return "agencies=" + config.agencies().fingerprint()
+                + ";routes=" + config.routes().fingerprint()
+                + ";stops=" + config.stops().fingerprint()
+                + ";trips=" + config.trips().fingerprint()
+                + ";area=" + (area == null ? "" : area.definition())
+                + ";reachable=" + config.reachableHops() + "/" + config.reachableWithin()
+                + ";serviceDays=" + config.serviceDaysFrom() + "/" + config.serviceDaysTo()
+                + ";departing=" + config.departingFrom() + "/" + config.departingTo()
+                + ";patterns=" + config.tripsPerPattern() + "/" + config.patternHeadway()
+                + ";shapes=" + config.clipShapes() + "/" + config.simplifyShapes()
+                + ";serviceEndDate=" + config.serviceEndDate();
+    }
+
+    /**
+     * Apply the retain steps ordered by selectivity, remove dangling entities and set the
+     * service end date.
+     * @param area the area to keep stops in, {@code null} to keep all stops.
+     */
+    public void apply(GtfsModel gtfs, Region area) {
+        List<Step> steps = new ArrayList<>();
+        IdMatcher agencies = config.agencies();
+        IdMatcher routes = config.routes();
+        IdMatcher stops = config.stops();
+        IdMatcher trips = config.trips();
+        if(!agencies.isEmpty()) {
+            steps.add(new Step(
+                    "retainAgencies",
+                    g -> fraction(g.getAllRoutes(), r -> r.getAgency() != null && agencies.matches(r.getAgency().getName())),
+                    g -> g.retainAgencies(agencies)
+            ));
+        }
+        if(!routes.isEmpty()) {
+            steps.add(new Step(
+                    "retainRoutes",
+                    g -> fraction(g.getAllRoutes(), r -> routes.matches(r.getShortName())),
+                    g -> g.retainRoutes(routes)
+            ));
+        }
+        if(!stops.isEmpty()) {
+            steps.add(new Step(
+                    "retainStopIds",
+                    g -> fraction(g.getAllStops(), s -> stops.matches(s.getId().getId())),
+                    g -> g.retainStops(stops)
+            ));
+        }
+        if(!trips.isEmpty()) {
+            steps.add(new Step(
+                    "retainTripIds",
+                    g -> fraction(g.getAllTrips(), t -> trips.matches(t.getId().getId())),
+                    g -> g.retainTrips(trips)
+            ));
+        }
+        if(area != null && !config.isReachable()) {
+            steps.add(new Step(
+                    "retainStops",
+                    g -> g.getAllStops().isEmpty() ? 1.0 : (double) g.countStops(area) / g.getAllStops().size(),
+                    g -> g.retainStops(area)
+            ));
+        }
+        ServiceDate daysFrom = config.serviceDaysFrom();
+        ServiceDate daysTo = config.serviceDaysTo();
+        if(daysFrom != null) {
+            steps.add(new Step(
+                    "retainServiceDays",
+                    g -> {
+                        ServiceDays days = new ServiceDays(g.getAllCalendars(), g.getAllCalendarDates());
+                        Set<AgencyAndId> active = days.activeServices(days.window(daysFrom, daysTo));
+                        return fraction(g.getAllTrips(), t -> active.contains(t.getServiceId()));
+                    },
+                    g -> g.retainServiceDays(daysFrom, daysTo)
+            ));
+        }
+        if(config.departingFrom() >= 0) {
+            steps.add(new Step(
+                    "retainTripsDepartingBetween",
+                    // Most trips depart in the 20 hours from 04:00 to 24:00
+                    g -> Math.min(1.0, (config.departingTo() - config.departingFrom()) / (20 * 3600.0)),
+                    g -> g.retainTripsDepartingBetween(config.departingFrom(), config.departingTo())
+            ));
+        }
+
+        steps.forEach(s -> s.kept = s.estimate.applyAsDouble(gtfs));
+        steps.sort(Comparator.comparingDouble(s -> s.kept));
+        LOG.info("Filter steps ordered by the estimated fraction kept: " + steps);
+        steps.forEach(s -> s.apply.accept(gtfs));
+
+        gtfs.cleanupAll();
+        // The graph of stops is built from the trips left by the other filters
+        if(area != null && config.isReachable()) {
+            if(config.reachableHops() >= 0) gtfs.retainReachable(area, config.reachableHops());
+            else gtfs.retainReachableWithin(area, config.reachableWithin());
+            gtfs.cleanupAll();
+        }
+        // Sample the trips left, the patterns are not known before the cleanup has cut the trips
+        if(config.patternHeadway() >= 0 || config.tripsPerPattern() >= 1) {
+            if(config.patternHeadway() >= 0) gtfs.retainTripsWithHeadway(config.patternHeadway());
+            if(config.tripsPerPattern() >= 1) gtfs.retainTripsPerPattern(config.tripsPerPattern());
+            gtfs.cleanupAll();
+        }
+        // Only the shapes of the trips kept are left to clip and simplify
+        if(area != null && config.clipShapes()) {
+            gtfs.clipShapes(area);
+        }
+        if(config.simplifyShapes() >= 0) {
+            gtfs.simplifyShapes(config.simplifyShapes());
+        }
+        ServiceDate endDate = config.serviceEndDate();
+        if(endDate != null) {
+            gtfs.setServiceEndDate(endDate.getYear(), endDate.getMonth(), endDate.getDay());
+        }
+    }
+
+    /** The stops outside the areas may be reachable from them, they can not be skipped. */
+    private List<Region> pushdownAreas() {
+        return config.isReachable() || !pushdownStops() ? Collections.emptyList() : areas;
+    }
+
+    /**
+     * The departure of a trip is the time at the first stop, skipping the stop would change
+     * which stop is first.
+     */
+    private boolean pushdownStops() {
+        return config.departingFrom() < 0;
+    }
+
+    private static <T> double fraction(Collection<T> entities, Predicate<T> kept) {
+        if(entities.isEmpty()) return 1.0;
+        return (double) entities.stream().filter(kept).count() / entities.size();
+    }
+
+    private static class Step {
+        final String name;
+        final ToDoubleFunction<GtfsModel> estimate;
+        final Consumer<GtfsModel> apply;
+        double kept;
+
+        Step(String name, ToDoubleFunction<GtfsModel> estimate, Consumer<GtfsModel> apply) {
+            this.name = name;
+            this.estimate = estimate;
+            this.apply = apply;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %.3f", name, kept);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package no.tiger.gtfs.filter.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serve filtered feeds over HTTP on the local host, from a feed loaded once.
+ * <p>
+ * {@code GET /filter?routes=11,12&area.ring2=59.90 10.70 59.94 10.79} or {@code POST /filter}
+ * with a {@link FilterConfig} properties file as the body returns the filtered feed as a zip.
+ * The query parameters are added to the properties in the body. A request may have one area,
+ * and only refer to files in the data dir with {@code @<file>}.
+ * <p>
+ * Each request filters its own {@link GtfsModel#view()} of the loaded feed. The requests are
+ * filtered on a fixed number of threads, with a bounded queue, a request is rejected with 503
+ * when the queue is full. The last zip files created are kept in a small LRU cache by the
+ * request properties, and a request equal to one running waits for it.
+ */
+public class FilterServer {
+    private static final Logger LOG = LoggerFactory.getLogger(FilterServer.class);
+    private static final String PATH = "/filter";
+    private static final int CACHE_SIZE = 8;
+    private static final int QUEUE_SIZE_PER_JOB = 4;
+
+    private final GtfsModel base;
+    private final File dir;
+    private final int zipThreads;
+    private final ThreadPoolExecutor executor;
+    private final ExecutorService handlers;
+    private final Map<String, CompletableFuture<byte[]>> cache = new LinkedHashMap<String, CompletableFuture<byte[]>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<byte[]>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private HttpServer server;
+
+    /**
+     * @param dir the directory of the files referred to with {@code @<file>} in the requests.
+     * @param jobs the number of requests filtered at the same time.
+     */
+    public FilterServer(GtfsModel base, File dir, int jobs) {
+        if(jobs < 1) {
+            throw new IllegalArgumentException("Jobs must be 1 or more: " + jobs);
+        }
+        this.base = base;
+        this.dir = dir;
+        this.zipThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / jobs);
+        int queueSize = QUEUE_SIZE_PER_JOB * jobs;
+        this.executor = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize));
+        // A handler waits for its job, the requests over the limit are rejected and return at once
+        this.handlers = Executors.newFixedThreadPool(jobs + queueSize);
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(handlers);
+        server.start();
+        LOG.info("Serving filtered feeds at http://{}:{}{}", server.getAddress().getHostString(), server.getAddress().getPort(), PATH);
+    }
+
+    /** The port the server listens on, useful if started on port 0. */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if(server != null) {
+            server.stop(0);
+        }
+        executor.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if(!"GET".equals(method) && !"POST".equals(method)) {
+                send(exchange, 405, "Use GET or POST");
+                return;
+            }
+            Properties spec = spec(exchange);
+            FilterConfig config = config(spec);
+            if(config.areas().size() > 1) {
+                send(exchange, 400, "Use one area per request");
+                return;
+            }
+            String name = config.areas().isEmpty() ? "filtered" : config.areas().get(0).getName();
+            byte[] zip = result(new TreeMap<>(spec).toString(), config).get();
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"gtfs-" + name + ".zip\"");
+            exchange.sendResponseHeaders(200, zip.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(zip);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            send(exchange, 400, e.getMessage());
+        }
+        catch (RejectedExecutionException e) {
+            send(exchange, 503, "Too many requests, try again later");
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof IllegalArgumentException) {
+                send(exchange, 400, e.getCause().getMessage());
+                return;
+            }
+            LOG.error("Filter failed", e.getCause());
+            send(exchange, 500, String.valueOf(e.getCause()));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "Server stopped");
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /** The cached or running result, or start filtering a new one. */
+    private CompletableFuture<byte[]> result(String key, FilterConfig config) {
+        synchronized (cache) {
+            CompletableFuture<byte[]> result = cache.get(key);
+            if(result != null) {
+                LOG.info("Cached result for {}", key);
+                return result;
+            }
+            CompletableFuture<byte[]> created = CompletableFuture.supplyAsync(() -> filter(config), executor);
+            cache.put(key, created);
+            // Do not keep failures, the next request tries again
+            created.whenComplete((zip, e) -> {
+                if(e != null) {
+                    synchronized (cache) {
+                        cache.remove(key, created);
+                    }
+                }
+            });
+            return created;
+        }
+    }
+
+    private byte[] filter(FilterConfig config) {
+        GtfsModel gtfs;
+        // The base is not thread safe while a view is created
+        synchronized (base) {
+            gtfs = base.view();
+        }
+        long start = System.currentTimeMillis();
+        new FilterPlan(config, config.areas()).apply(gtfs, config.areas().isEmpty() ? null : config.areas().get(0));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+        try {
+            GtfsZipWriter.write(gtfs, out, zipThreads);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOG.info("Filtered {} trips into {} bytes in {} ms", gtfs.getAllTrips().size(), out.size(), System.currentTimeMillis() - start);
+        return out.toByteArray();
+    }
+
+    private FilterConfig config(Properties spec) {
+        try {
+            return FilterConfig.request(spec, dir);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Can not read the filters: " + e.getMessage(), e);
+        }
+    }
+
+    /** The request properties: the body, then the query parameters. */
+    private static Properties spec(HttpExchange exchange) throws IOException {
+        Properties spec = new Properties();
+        spec.load(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query != null) {
+            for (String param : query.split("&")) {
+                if(param.isEmpty()) continue;
+                int eq = param.indexOf('=');
+                String key = eq < 0 ? param : param.substring(0, eq);
+                String value = eq < 0 ? "" : param.substring(eq + 1);
+                spec.setProperty(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return spec;
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
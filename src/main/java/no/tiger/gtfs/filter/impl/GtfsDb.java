@@ -2,27 +2,104 @@ package no.tiger.gtfs.filter.impl;
 
 import org.onebusaway.gtfs.impl.GtfsDaoImpl;
 import org.onebusaway.gtfs.serialization.GtfsReader;
-import org.onebusaway.gtfs.serialization.GtfsWriter;
 import org.onebusaway.gtfs.services.GtfsDao;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 
 public class GtfsDb {
     public static GtfsDao loadGtfs(File inputFile) throws IOException {
-        GtfsReader reader = new GtfsReader();
-        reader.setInputLocation(inputFile);
+        return Instrumentation.time("parse", () -> {
+            GtfsReader reader = new GtfsReader();
+            reader.setInputLocation(inputFile);
 
-        GtfsDaoImpl dao = new GtfsDaoImpl();
-        reader.setEntityStore(dao);
-        reader.run();
-        return dao;
+            GtfsDaoImpl dao = new GtfsDaoImpl();
+            reader.setEntityStore(dao);
+            EntityInterner interner = new EntityInterner();
+            reader.addEntityHandler(interner);
+            reader.run();
+            interner.report();
+            return dao;
+        });
     }
 
+    /**
+     * Load the model from the snapshot file if it is created from the same input file,
+     * if not parse the input file and save a new snapshot.
+     */
+    public static GtfsModel loadModel(File inputFile, File snapshotFile) throws IOException {
+        return loadModel(inputFile, snapshotFile, null);
+    }
+
+    /**
+     * Load the model from the snapshot file, skipping the entities removed by the filter
+     * plan. The snapshot holds the whole feed, so it is reused when the plan changes. If
+     * there is no snapshot of the input file, the whole feed is parsed and saved in a new
+     * snapshot, and the plan is only applied after loading.
+     * @param plan the plan, or {@code null} to load all entities.
+     */
+    public static GtfsModel loadModel(File inputFile, File snapshotFile, FilterPlan plan) throws IOException {
+        byte[] key = GtfsSnapshot.key(inputFile);
+        PushdownFilter filter = plan == null ? null : plan.pushdownFilter();
+        GtfsModel gtfs = Instrumentation.time("loadSnapshot", () -> GtfsSnapshot.load(snapshotFile, key, filter));
+        if(gtfs == null) {
+            GtfsModel parsed = loadModel(inputFile);
+            Instrumentation.time("saveSnapshot", () -> GtfsSnapshot.save(parsed, snapshotFile, key));
+            gtfs = parsed;
+        }
+        return gtfs;
+    }
+
+    /**
+     * Parse the input file, the stop_times.txt file is parsed on all cores.
+     */
+    public static GtfsModel loadModel(File inputFile) throws IOException {
+        return loadModel(inputFile, (FilterPlan) null);
+    }
+
+    /**
+     * Parse the input file, skipping the rows removed by the filter plan.
+     * @param plan the plan, or {@code null} to load all rows.
+     */
+    public static GtfsModel loadModel(File inputFile, FilterPlan plan) throws IOException {
+        return Instrumentation.time("parse", () -> ParallelGtfsReader.read(inputFile, Runtime.getRuntime().availableProcessors(), plan));
+    }
+
+    /**
+     * Write the feed straight into the zip file, the tables are formatted and compressed on all cores.
+     */
+    public static void saveZip(GtfsDao dao, File zipFile) throws IOException {
+        saveZip(dao, zipFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void saveZip(GtfsDao dao, File zipFile, int threads) throws IOException {
+        Instrumentation.time("saveZip", () -> GtfsZipWriter.write(dao, zipFile, threads));
+    }
+
+    /**
+     * Write the feed to a directory, or to a zip file if the name ends with ".zip". The
+     * tables are formatted on all cores, see {@link GtfsTableWriter}.
+     */
     public static void save(GtfsDao dao, File outputFile) throws IOException {
-        GtfsWriter writer = new GtfsWriter();
-        writer.setOutputLocation(outputFile);
-        writer.run(dao);
-        writer.close();
+        save(dao, outputFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void save(GtfsDao dao, File outputFile, int threads) throws IOException {
+        if(outputFile.getName().endsWith(".zip")) {
+            saveZip(dao, outputFile, threads);
+            return;
+        }
+        Instrumentation.time("save", () -> {
+            try (GtfsTableWriter writer = new GtfsTableWriter(threads)) {
+                Files.createDirectories(outputFile.toPath());
+                writer.write(
+                        writer.sort(dao),
+                        name -> new BufferedOutputStream(new FileOutputStream(new File(outputFile, name)), 1 << 16)
+                );
+            }
+        });
     }
 }
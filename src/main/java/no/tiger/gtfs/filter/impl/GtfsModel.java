@@ -22,22 +22,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
-import static no.tiger.gtfs.filter.impl.Functions.mapCount;
 import static no.tiger.gtfs.filter.impl.Functions.noMatch;
-import static no.tiger.gtfs.filter.impl.Functions.setOf;
 
 public class GtfsModel implements GtfsDao {
     private static final Logger LOG = LoggerFactory.getLogger(GtfsModel.class);
-    private static final int QUAY_TYPE = 0;
-    private static final int STATION_TYPE = 1;
 
     private CountSet<FeedInfo> feedInfos = new CountSet<>("feedInfos");
     private CountSet<Agency> agencies = new CountSet<>("agencies");
@@ -45,14 +43,43 @@ public class GtfsModel implements GtfsDao {
     private CountSet<ServiceCalendarDate> calendarDates = new CountSet<>("calendarDates");
     private CountSet<Route> routes = new CountSet<>("routes");
     private CountSet<Trip> trips = new CountSet<>("trips");
-    private CountSet<StopTime> stopTimes = new CountSet<>("stopTimes");
+    private StopTimeStore stopTimes = new StopTimeStore("stopTimes");
     private CountSet<Stop> stops = new CountSet<>("stops");
     private CountSet<Transfer> transfers = new CountSet<>("transfers");
-    private List<CountSet<?>> sets = Arrays.asList(
-            feedInfos, agencies, calendars, calendarDates, routes, trips, stopTimes, stops, transfers
+    private CountSet<Frequency> frequencies = new CountSet<>("frequencies");
+    private CountSet<Pathway> pathways = new CountSet<>("pathways");
+    private ShapeStore shapePoints = new ShapeStore("shapePoints");
+    private List<ChangeTracked> sets = Arrays.asList(
+            feedInfos, agencies, calendars, calendarDates, routes, trips, stopTimes, stops, transfers,
+            frequencies, pathways, shapePoints
     );
 
-    private boolean cleanupChanges;
+    /** The index over all stops loaded, shared by all views and built on first use. */
+    private AtomicReference<StopIndex> stopIndex = new AtomicReference<>();
+
+    /** The stop times on disk, if not in the StopTimeStore, shared by all views. */
+    private SpilledStopTimes spilledStopTimes;
+
+    private Parallel parallel = Parallel.SEQUENTIAL;
+
+    /**
+     * Create an empty model, add entities with {@link #add(Object)}.
+     */
+    GtfsModel() { }
+
+    /**
+     * Create an empty model keeping only the Trip and Stop of the StopTimes added, see
+     * {@link StopTimeStore#keyColumns(String)}.
+     */
+    static GtfsModel withStopTimeKeys() {
+        GtfsModel gtfs = new GtfsModel();
+        gtfs.stopTimes = StopTimeStore.keyColumns("stopTimes");
+        gtfs.sets = Arrays.asList(
+                gtfs.feedInfos, gtfs.agencies, gtfs.calendars, gtfs.calendarDates, gtfs.routes, gtfs.trips,
+                gtfs.stopTimes, gtfs.stops, gtfs.transfers, gtfs.frequencies, gtfs.pathways, gtfs.shapePoints
+        );
+        return gtfs;
+    }
 
     public GtfsModel(GtfsDao dao) {
         this.feedInfos.addAll(dao.getAllFeedInfos());
@@ -64,7 +91,113 @@ public class GtfsModel implements GtfsDao {
         this.stopTimes.addAll(dao.getAllStopTimes());
         this.stops.addAll(dao.getAllStops());
         this.transfers.addAll(dao.getAllTransfers());
-        sets.forEach(CountSet::resetChangeTracking);
+        this.frequencies.addAll(dao.getAllFrequencies());
+        this.pathways.addAll(dao.getAllPathways());
+        this.shapePoints.addAll(dao.getAllShapePoints());
+        resetChangeTracking();
+    }
+
+    private GtfsModel(GtfsModel base) {
+        this.feedInfos = base.feedInfos.view();
+        this.agencies = base.agencies.view();
+        this.calendars = base.calendars.view();
+        this.calendarDates = base.calendarDates.view();
+        this.routes = base.routes.view();
+        this.trips = base.trips.view();
+        this.stopTimes = base.stopTimes.view();
+        this.stops = base.stops.view();
+        this.transfers = base.transfers.view();
+        this.frequencies = base.frequencies.view();
+        this.pathways = base.pathways.view();
+        this.shapePoints = base.shapePoints.view();
+        this.sets = Arrays.asList(
+                feedInfos, agencies, calendars, calendarDates, routes, trips, stopTimes, stops, transfers,
+                frequencies, pathways, shapePoints
+        );
+        this.parallel = base.parallel;
+        this.stopIndex = base.stopIndex;
+        this.spilledStopTimes = base.spilledStopTimes;
+    }
+
+    /**
+     * Create a model with the same entities, which can be filtered without changing this
+     * model. The entities are shared, a view only keep a bitmap of the retained entities.
+     * Entities can not be added to this model after a view is created.
+     */
+    public GtfsModel view() {
+        return new GtfsModel(this);
+    }
+
+    /**
+     * Add an entity to an empty model. Call {@link #resetChangeTracking()} when all entities are added.
+     */
+    @SuppressWarnings("unchecked")
+    <T> void add(T entity) {
+        ((Collection<T>) getAllEntitiesForType(entity.getClass())).add(entity);
+    }
+
+    Parallel parallel() {
+        return parallel;
+    }
+
+    StopIndex stopIndex() {
+        synchronized (stopIndex) {
+            if(stopIndex.get() == null) {
+                stopIndex.set(Instrumentation.time("buildStopIndex", () -> new StopIndex(stops.all())));
+            }
+            return stopIndex.get();
+        }
+    }
+
+    /** The number of stops in the model inside the region. */
+    int countStops(Region region) {
+        return stops.countIndexes(stopIndex().inside(region));
+    }
+
+    /** The stops in the model inside the region, the stops {@link #retainStops(Region)} keeps. */
+    List<Stop> stopsInside(Region region) {
+        BitSet inside = stopIndex().inside(region);
+        inside.and(stops.indexes());
+        List<Stop> all = stops.all();
+        return inside.stream().mapToObj(all::get).collect(Collectors.toList());
+    }
+
+    StopTimeStore stopTimeStore() {
+        return stopTimes;
+    }
+
+    ShapeStore shapeStore() {
+        return shapePoints;
+    }
+
+    /**
+     * Keep the stop times on disk instead of in the StopTimeStore, the store must be empty.
+     * The filters needing the times of the stop times are then not supported.
+     */
+    void spillStopTimes(SpilledStopTimes spilled) {
+        this.spilledStopTimes = spilled;
+    }
+
+    /** The stop times on disk, or {@code null} if they are in memory. */
+    SpilledStopTimes spilledStopTimes() {
+        return spilledStopTimes;
+    }
+
+    List<ChangeTracked> changeTracked() {
+        return sets;
+    }
+
+    void resetChangeTracking() {
+        sets.forEach(ChangeTracked::resetChangeTracking);
+    }
+
+    /**
+     * Evaluate the filters in {@code retain*} and {@link #cleanupAll()} using the given
+     * number of threads. The result is the same as with 1 thread, which is the default.
+     */
+    public void setParallelism(int parallelism) {
+        LOG.info("Set parallelism to {}", parallelism);
+        this.parallel = Parallel.of(parallelism);
     }
 
     /**
@@ -72,8 +205,15 @@ public class GtfsModel implements GtfsDao {
      */
     public void setServiceEndDate(int year, int mnd, int day) {
         LOG.info("Set service end date to {}-{}-{}", year, mnd, day);
-        ServiceDate endDate = new ServiceDate(year, mnd, day);
-        calendars.forEach(c -> c.setEndDate(endDate));
+        Instrumentation.time("setServiceEndDate", () -> {
+            ServiceDate endDate = new ServiceDate(year, mnd, day);
+            // The calendars are copied, they may be shared with other views
+            for (ServiceCalendar c : calendars.toArray(new ServiceCalendar[0])) {
+                ServiceCalendar copy = new ServiceCalendar(c);
+                copy.setEndDate(endDate);
+                calendars.replace(copy);
+            }
+        });
     }
 
     /**
@@ -81,9 +221,19 @@ public class GtfsModel implements GtfsDao {
      * cascade removal: Agency > Route > Trip > StopTimes
      */
     public void retainAgencies(String ... includeNames) {
-        LOG.info("Remove all agencies except: " + Arrays.toString(includeNames));
-        agencies.removeIf(noMatch(Agency::getName, includeNames));
-        cascadeAgenciesDeleted();
+        retainAgencies(IdMatcher.exact(includeNames));
+    }
+
+    /**
+     * Keep the only the agencies with a name matching,
+     * cascade removal: Agency > Route > Trip > StopTimes
+     */
+    public void retainAgencies(IdMatcher names) {
+        LOG.info("Remove all agencies except: " + names);
+        Instrumentation.time("retainAgencies", sets, () -> {
+            parallel.removeIf(agencies, noMatch(Agency::getName, names));
+            cascadeAgenciesDeleted();
+        });
         summary();
     }
 
@@ -92,129 +242,309 @@ public class GtfsModel implements GtfsDao {
      * cascade removal to Route > Trip > StopTimes
      */
     public void retainRoutes(String ... includeShortNames) {
-        LOG.info("Remove all routes except: " + Arrays.toString(includeShortNames));
-        routes.removeIf(noMatch(Route::getShortName, includeShortNames));
-        cascadeRoutesDeleted();
+        retainRoutes(IdMatcher.exact(includeShortNames));
+    }
+
+    /**
+     * Keep the only the routes with a short name matching,
+     * cascade removal to Route > Trip > StopTimes
+     */
+    public void retainRoutes(IdMatcher shortNames) {
+        LOG.info("Remove all routes except: " + shortNames);
+        Instrumentation.time("retainRoutes", sets, () -> {
+            parallel.removeIf(routes, noMatch(Route::getShortName, shortNames));
+            cascadeRoutesDeleted();
+        });
+        summary();
+    }
+
+    /**
+     * Keep the only stops within the region, the stops are found with the stop index.
+     */
+    public void retainStops(Region region) {
+        LOG.info("Remove stops outside region: " + region);
+        Instrumentation.time("retainStops", sets, () -> stops.retainIndexes(stopIndex().inside(region)));
+        summary();
+    }
+
+    /**
+     * Remove the shape points outside the region, except the points next to a point inside,
+     * so a shape leaving the region still ends outside it. See {@link ShapeStore#clip(Region, Parallel)}.
+     */
+    public void clipShapes(Region region) {
+        LOG.info("Clip shapes to region: " + region);
+        Instrumentation.time("clipShapes", sets, () -> shapePoints.clip(region, parallel));
+        summary();
+    }
+
+    /**
+     * Remove the shape points closer than the tolerance to the simplified shape, using the
+     * Douglas-Peucker algorithm. See {@link ShapeStore#simplify(double, Parallel)}.
+     */
+    public void simplifyShapes(double toleranceMeters) {
+        LOG.info("Simplify shapes with tolerance {} m", toleranceMeters);
+        Instrumentation.time("simplifyShapes", sets, () -> shapePoints.simplify(toleranceMeters, parallel));
         summary();
     }
 
     /**
-     * Keep the only stops within the bounding box,
+     * Keep the stops at most {@code maxHops} stops away from a stop in the region, riding a
+     * trip to the next stop or taking a transfer is one hop. Unlike {@link #retainStops(Region)}
+     * the lines crossing the border of the region are kept to the next stops outside it,
+     * and the transfers between the stops kept are not cut. See {@link StopGraph}.
      */
-    public void retainStops(Box box) {
-        LOG.info("Remove stops outside box: " + box);
-        stops.removeIf(box::outside);
+    public void retainReachable(Region seeds, int maxHops) {
+        LOG.info("Remove stops more than {} hops from region: {}", maxHops, seeds);
+        try (Instrumentation.Phase phase = Instrumentation.phase("retainReachable", sets)) {
+            stops.retainIndexes(stopGraph(phase).withinHops(seedStops(seeds), maxHops));
+        }
+        summary();
+    }
+
+    /**
+     * Keep the stops reachable in at most the given travel time from a stop in the region,
+     * using the shortest time between two stops over all trips, and the minimum transfer
+     * time of the transfers. See {@link #retainReachable(Region, int)}.
+     */
+    public void retainReachableWithin(Region seeds, int maxTravelSeconds) {
+        LOG.info("Remove stops more than {} seconds from region: {}", maxTravelSeconds, seeds);
+        try (Instrumentation.Phase phase = Instrumentation.phase("retainReachableWithin", sets)) {
+            stops.retainIndexes(stopGraph(phase).withinTime(seedStops(seeds), maxTravelSeconds));
+        }
+        summary();
+    }
+
+    private BitSet seedStops(Region region) {
+        BitSet seeds = stopIndex().inside(region);
+        seeds.and(stops.indexes());
+        return seeds;
+    }
+
+    private StopGraph stopGraph(Instrumentation.Phase phase) {
+        assertStopTimesInMemory("retainReachable");
+        StopGraph graph = new StopGraph(
+                stops.all().size(),
+                s -> stops.contains(s) ? stops.indexOf(s) : -1,
+                stopTimes,
+                stopTimes.indexByTrip(parallel),
+                trips::contains,
+                transfers
+        );
+        LOG.info("Stop graph: {} stops, {} edges", graph.numberOfNodes(), graph.numberOfEdges());
+        phase.set("edges", graph.numberOfEdges());
+        return graph;
+    }
+
+    /**
+     * Keep the only stops with an id matching, the id without the agency.
+     */
+    public void retainStops(IdMatcher stopIds) {
+        LOG.info("Remove all stops except: " + stopIds);
+        Instrumentation.time("retainStops", sets, () -> parallel.removeIf(stops, noMatch(s -> s.getId().getId(), stopIds)));
+        summary();
+    }
+
+    /**
+     * Keep the only trips with an id matching, the id without the agency.
+     * cascade removal: Trip > StopTimes
+     */
+    public void retainTrips(IdMatcher tripIds) {
+        LOG.info("Remove all trips except: " + tripIds);
+        Instrumentation.time("retainTrips", sets, () -> {
+            parallel.removeIf(trips, noMatch(t -> t.getId().getId(), tripIds));
+            cascadeTripsDeleted();
+        });
+        summary();
+    }
+
+    /**
+     * Keep only the service days from and to the given dates, both included. The days of
+     * each service are looked up in a {@link ServiceDays} index, and the trips of services
+     * with no days left are removed. The calendars are rewritten to the retained days: the
+     * start and end dates are moved to the first and last day in the window, and the
+     * calendar dates outside the window, or not changing the calendar, are removed.
+     * cascade removal: Trip > StopTimes
+     */
+    public void retainServiceDays(ServiceDate from, ServiceDate to) {
+        LOG.info("Remove service days outside {} to {}", from, to);
+        try (Instrumentation.Phase phase = Instrumentation.phase("retainServiceDays", sets)) {
+            ServiceDays serviceDays = new ServiceDays(calendars, calendarDates);
+            phase.set("services", serviceDays.numberOfServices());
+            phase.set("distinctDayPatterns", serviceDays.distinctPatterns());
+            Set<AgencyAndId> active = serviceDays.activeServices(serviceDays.window(from, to));
+            parallel.removeIf(trips, t -> !active.contains(t.getServiceId()));
+            cascadeTripsDeleted();
+            rewriteCalendars(serviceDays, serviceDays.day(from), serviceDays.day(to), active);
+        }
         summary();
     }
 
+    /**
+     * Keep only the trips departing from the first stop between the given times, both
+     * included. The times are seconds after midnight, and may be after 24:00.
+     * cascade removal: Trip > StopTimes
+     */
+    public void retainTripsDepartingBetween(int fromTime, int toTime) {
+        LOG.info("Remove trips not departing between {} and {}", fromTime, toTime);
+        Instrumentation.time("retainTripsDepartingBetween", sets, () -> {
+            assertStopTimesInMemory("retainTripsDepartingBetween");
+            StopTimeStore.RowIndex byTrip = stopTimes.indexByTrip(parallel);
+            BitSet departing = parallel.mark(stopTimes.numberOfTrips(), i -> {
+                int time = stopTimes.firstDeparture(byTrip, i);
+                return time != StopTime.MISSING_VALUE && fromTime <= time && time <= toTime;
+            });
+            retainTrips(departing);
+        });
+        summary();
+    }
+
+    /**
+     * Keep at most {@code k} trips in each trip pattern, spread evenly by the departure
+     * time from the first stop. The trips are grouped by route and stop sequence with a
+     * {@link TripPatterns} index.
+     * cascade removal: Trip > StopTimes
+     */
+    public void retainTripsPerPattern(int k) {
+        if(k < 1) {
+            throw new IllegalArgumentException("Keep 1 or more trips per pattern: " + k);
+        }
+        LOG.info("Remove all trips except {} per trip pattern", k);
+        try (Instrumentation.Phase phase = Instrumentation.phase("retainTripsPerPattern", sets)) {
+            retainTrips(tripPatterns(phase).sample(k));
+        }
+        summary();
+    }
+
+    /**
+     * Keep the trips in each trip pattern departing at least the headway after the
+     * previous trip kept, the first trip is kept.
+     * cascade removal: Trip > StopTimes
+     */
+    public void retainTripsWithHeadway(int headwaySeconds) {
+        LOG.info("Remove trips departing less than {} seconds after the previous trip in the pattern", headwaySeconds);
+        try (Instrumentation.Phase phase = Instrumentation.phase("retainTripsWithHeadway", sets)) {
+            retainTrips(tripPatterns(phase).sampleByHeadway(headwaySeconds));
+        }
+        summary();
+    }
+
+    private TripPatterns tripPatterns(Instrumentation.Phase phase) {
+        assertStopTimesInMemory("retainTripsPerPattern");
+        TripPatterns patterns = new TripPatterns(stopTimes, stopTimes.indexByTrip(parallel), trips::contains);
+        LOG.info("Trip patterns: {}", patterns.numberOfPatterns());
+        phase.set("patterns", patterns.numberOfPatterns());
+        return patterns;
+    }
+
+    /** Keep the trips with a Trip index in the set, cascade to StopTimes. */
+    private void retainTrips(BitSet tripIndexes) {
+        parallel.removeIf(trips, t -> {
+            int i = stopTimes.indexOf(t);
+            return i < 0 || !tripIndexes.get(i);
+        });
+        cascadeTripsDeleted();
+    }
+
     /**
      * - Remove all StopTimes where there is no Stops
      * - Remove all Trips with 0 or 1 StopTime (cascade to StopTimes)
      * - Remove Routes without Trips
      * - Remove Services (Calendar and Dates) without Trips
-     * - Remove all Stops without StopTimes
+     * - Remove all Stops with missing ParentStation
+     * - Remove all Stops without StopTimes, and Stations without Stops
+     * - Remove Transfers without Stop, Route or Trip
+     * - Remove Frequencies without Trip, Pathways without Stops, and Shapes without Trips
+     * <p>
+     * Removals are cascaded through a {@link CleanupCascade} until nothing more changes, or
+     * with the stop times spilled to disk, applied by an {@link ExternalCleanup}. Nothing
+     * refers to the frequencies, pathways and shapes, so they are removed last.
      */
     public void cleanupAll() {
-        boolean changes = true;
-        while (changes) {
-            LOG.info("Remove all StopTimes where there is no Stops");
-            stopTimes.removeIf(st -> !stops.contains(st.getStop()));
-            changes = summary();
-
-            LOG.info("Remove all Trips with 0 or 1 StopTime (cascade to StopTimes)");
-            Map<Trip, Integer> tripCount = mapCount(stopTimes, StopTime::getTrip);
-            trips.removeIf(t -> tripCount.getOrDefault(t, 0) < 2);
-            cascadeTripsDeleted();
-            changes |= summary();
-
-            LOG.info("Remove all Routes without Trips");
-            Set<Route> routesInTrips = setOf(trips, Trip::getRoute);
-            routes.removeIf(r -> !routesInTrips.contains(r));
-            changes |= summary();
-
-            LOG.info("Remove all Services without Trips");
-            Set<AgencyAndId> serviceIdsInTrips = setOf(trips, Trip::getServiceId);
-            calendars.removeIf(c -> !serviceIdsInTrips.contains(c.getServiceId()));
-            calendarDates.removeIf(c -> !serviceIdsInTrips.contains(c.getServiceId()));
-            changes |= summary();
-
-            LOG.info("Remove all Stops with missing ParentStation");
-            Set<Stop> parentStations = stops.stream().filter(this::isStation).collect(Collectors.toSet());
-            Set<String> parentStationIds = setOf(parentStations, s -> s.getId().getId());
-            stops.removeIf(quayParentRefIsMissing(parentStationIds));
-            changes |= summary();
-
-            LOG.info("Remove all Stops without StopTimes");
-            Set<Stop> stopInTrips = setOf(stopTimes, StopTime::getStop);
-            stops.removeIf(s -> isStopQuay(s) && !stopInTrips.contains(s));
-            Set<String> parentStationRefs = setOf(stops, Stop::getParentStation);
-            stops.removeIf(s -> isStation(s) && !parentStationRefs.contains(s.getId().getId()));
-            changes |= summary();
-
-            LOG.info("Remove StopTimes without Trip");
-            stopTimes.removeIf(st -> !trips.contains(st.getTrip()));
-            changes |= summary();
-
-            LOG.info("Remove Transfers without Stop, Route or Trip");
-            transfers.removeIf(this::transferRefMissing);
-            changes |= summary();
+        Instrumentation.time("cleanupAll", sets, () -> {
+            if(spilledStopTimes != null) {
+                LOG.info("Cascade removal of all dangling entities, joined with the stop times on disk");
+                new ExternalCleanup(
+                        calendars, calendarDates, routes, trips, stops, transfers, spilledStopTimes, parallel
+                ).run();
+            }
+            else {
+                LOG.info("Build reference index");
+                CleanupCascade cascade = Instrumentation.time("buildIndex", () -> new CleanupCascade(
+                        calendars, calendarDates, routes, trips, stopTimes, stops, transfers, parallel
+                ));
+                LOG.info("Cascade removal of all dangling entities");
+                cascade.run();
+            }
+            parallel.removeIf(frequencies, f -> !trips.contains(f.getTrip()));
+            parallel.removeIf(pathways, p -> !stops.contains(p.getFromStop()) || !stops.contains(p.getToStop()));
+            shapePoints.retainShapes(parallel.setOf(trips, Trip::getShapeId), parallel);
+        });
+        summary();
+    }
+
+    private void assertStopTimesInMemory(String operation) {
+        if(spilledStopTimes != null) {
+            throw new IllegalStateException(operation + " needs the stop times in memory, they are spilled to disk");
         }
     }
 
+    /**
+     * Rewrite the calendars of the active services to the days {@code [first, last]}. The
+     * days of the week are kept, so no calendar dates are added.
+     */
+    private void rewriteCalendars(ServiceDays serviceDays, int first, int last, Set<AgencyAndId> active) {
+        Map<AgencyAndId, int[]> ranges = new HashMap<>();
+        Map<AgencyAndId, ServiceCalendar> kept = new HashMap<>();
+        for (ServiceCalendar c : calendars.toArray(new ServiceCalendar[0])) {
+            int start = Math.max(first, serviceDays.day(c.getStartDate()));
+            int end = Math.min(last, serviceDays.day(c.getEndDate()));
+            while (start <= end && !serviceDays.isActiveWeekday(c, start)) ++start;
+            while (end >= start && !serviceDays.isActiveWeekday(c, end)) --end;
+            if(!active.contains(c.getServiceId()) || start > end) {
+                calendars.remove(c);
+                continue;
+            }
+            // The calendars are copied, they may be shared with other views
+            ServiceCalendar copy = new ServiceCalendar(c);
+            copy.setStartDate(serviceDays.date(start));
+            copy.setEndDate(serviceDays.date(end));
+            calendars.replace(copy);
+            ranges.put(c.getServiceId(), new int[] { start, end });
+            kept.put(c.getServiceId(), copy);
+        }
+        parallel.removeIf(calendarDates, d -> {
+            int day = serviceDays.day(d.getDate());
+            if(!active.contains(d.getServiceId()) || day < first || day > last) return true;
+            int[] range = ranges.get(d.getServiceId());
+            boolean inCalendar = range != null && range[0] <= day && day <= range[1]
+                    && serviceDays.isActiveWeekday(kept.get(d.getServiceId()), day);
+            // Adding a day in the calendar, or removing a day not in it, changes nothing
+            return (d.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD) == inCalendar;
+        });
+    }
+
     private void cascadeAgenciesDeleted() {
-        routes.removeIf(t -> !agencies.contains(t.getAgency()));
+        parallel.removeIf(routes, t -> !agencies.contains(t.getAgency()));
         cascadeRoutesDeleted();
     }
 
     private void cascadeRoutesDeleted() {
-        trips.removeIf(t -> !routes.contains(t.getRoute()));
+        parallel.removeIf(trips, t -> !routes.contains(t.getRoute()));
         cascadeTripsDeleted();
     }
 
     private void cascadeTripsDeleted() {
-        stopTimes.removeIf(s -> !trips.contains(s.getTrip()));
+        stopTimes.removeIfTrip(t -> !trips.contains(t), parallel);
     }
 
     private boolean summary() {
         boolean changed = false;
-        for (CountSet<?> set : sets) {
+        for (ChangeTracked set : sets) {
             changed |= set.logChanged();
         }
         return changed;
     }
 
-    private Predicate<Stop> quayParentRefIsMissing(Set<String> parentStationIds) {
-        return s -> {
-            // Skip if not Quay or optional parent station not set.
-            if(!isStopQuay(s) || isEmpty(s.getParentStation())) {
-                return false;
-            }
-            return !parentStationIds.contains(s.getParentStation());
-        };
-    }
-
-    private boolean transferRefMissing(Transfer t) {
-        return optRefMissing(t.getFromStop(), stops)
-                || optRefMissing(t.getToStop(), stops)
-                || optRefMissing(t.getFromRoute(), routes)
-                || optRefMissing(t.getToRoute(), routes)
-                || optRefMissing(t.getFromTrip(), trips)
-                || optRefMissing(t.getToTrip(), trips)
-                ;
-    }
-
-    private static <T> boolean optRefMissing(T e, Collection<T> c) {
-        return e != null && !c.contains(e);
-    }
-
-    private boolean isStopQuay(Stop stop) { return stop.getLocationType() == QUAY_TYPE; }
-
-    private boolean isStation(Stop stop) { return stop.getLocationType() == STATION_TYPE; }
-
-    private boolean isEmpty(String value) {
-        return value == null || value.length() == 0;
-    }
-
     @SuppressWarnings("unchecked")
     @Override public <T> Collection<T> getAllEntitiesForType(Class<T> type) {
         if(type == Agency.class) return (Collection<T>) agencies;
@@ -226,6 +556,9 @@ public class GtfsModel implements GtfsDao {
         if(type == StopTime.class) return (Collection<T>) stopTimes;
         if(type == Transfer.class) return (Collection<T>) transfers;
         if(type == Trip.class) return (Collection<T>) trips;
+        if(type == Frequency.class) return (Collection<T>) frequencies;
+        if(type == Pathway.class) return (Collection<T>) pathways;
+        if(type == ShapePoint.class) return (Collection<T>) shapePoints;
         return Collections.emptyList();
     }
 
@@ -239,9 +572,9 @@ public class GtfsModel implements GtfsDao {
     @Override public Collection<Trip> getAllTrips() { return trips; }
     @Override public Collection<FareAttribute> getAllFareAttributes() { return Collections.emptyList(); }
     @Override public Collection<FareRule> getAllFareRules() { return Collections.emptyList(); }
-    @Override public Collection<Frequency> getAllFrequencies() { return Collections.emptyList(); }
-    @Override public Collection<Pathway> getAllPathways() { return Collections.emptyList(); }
-    @Override public Collection<ShapePoint> getAllShapePoints() { return Collections.emptyList(); }
+    @Override public Collection<Frequency> getAllFrequencies() { return frequencies; }
+    @Override public Collection<Pathway> getAllPathways() { return pathways; }
+    @Override public Collection<ShapePoint> getAllShapePoints() { return shapePoints; }
     @Override public Collection<Transfer> getAllTransfers() { return Collections.emptyList(); }
     @Override public Agency getAgencyForId(String id)  { throw new IllegalStateException(); }
     @Override public ServiceCalendar getCalendarForId(int id) { throw new IllegalStateException(); }
@@ -0,0 +1,725 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.FeedInfo;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.Pathway;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Transfer;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of a {@link GtfsModel} just after it is loaded, so later runs on the
+ * same GTFS zip file can skip parsing the CSV files.
+ * <p>
+ * The snapshot starts with the size and SHA-256 hash of the zip file and ends with a CRC
+ * of the content, a stale or corrupt snapshot is ignored and rebuilt. Strings are interned
+ * in a table at the end of the file, entities refer to each other by index, and the
+ * StopTime and ShapePoint columns are stored as plain arrays, read from a memory-mapped file.
+ * <p>
+ * The snapshot always holds the whole feed. It can be loaded with a {@link PushdownFilter},
+ * the routes, stops and trips skipped, and the entities referring to them, are then not
+ * added to the model. The StopTimes of the skipped trips and stops are marked as removed.
+ */
+class GtfsSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(GtfsSnapshot.class);
+    private static final long MAGIC = 0x4754_4653_534e_4150L; // "GTFSSNAP"
+    private static final int VERSION = 2;
+    private static final int KEY_SIZE = 8 + 32;
+    private static final int HEADER_SIZE = 8 + 4 + KEY_SIZE;
+    private static final int FOOTER_SIZE = 8 + 8;
+
+    /**
+     * @return the size and SHA-256 hash of the file.
+     */
+    static byte[] key(File inputFile) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(inputFile)) {
+            for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return ByteBuffer.allocate(KEY_SIZE).putLong(inputFile.length()).put(digest.digest()).array();
+    }
+
+    /**
+     * @return the model, or {@code null} if the snapshot does not exist, is created from
+     * another input file or is corrupt.
+     */
+    static GtfsModel load(File snapshotFile, byte[] key) throws IOException {
+        return load(snapshotFile, key, null);
+    }
+
+    /**
+     * @param filter the filter to skip entities with, or {@code null} to load all entities.
+     * @return the model, or {@code null} if the snapshot does not exist, is created from
+     * another input file or is corrupt.
+     */
+    static GtfsModel load(File snapshotFile, byte[] key, PushdownFilter filter) throws IOException {
+        if(!snapshotFile.exists()) {
+            LOG.info("No snapshot found: " + snapshotFile);
+            return null;
+        }
+        if(snapshotFile.length() > Integer.MAX_VALUE) {
+            LOG.warn("Snapshot too large to map, ignored: " + snapshotFile);
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            String error = validate(buffer, key);
+            if(error != null) {
+                LOG.warn("Snapshot ignored, " + error + ": " + snapshotFile);
+                return null;
+            }
+            LOG.info("Load snapshot: " + snapshotFile);
+            return read(buffer, filter);
+        }
+        catch (RuntimeException e) {
+            LOG.warn("Snapshot ignored, failed to read it: " + snapshotFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the model, the snapshot is written to a temporary file and then moved in place.
+     */
+    static void save(GtfsModel gtfs, File snapshotFile, byte[] key) throws IOException {
+        LOG.info("Save snapshot: " + snapshotFile);
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16), crc
+        ))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.write(key);
+            Output output = new Output(out);
+            write(gtfs, output);
+            long stringTableOffset = out.size();
+            output.writeStringTable();
+            out.writeLong(stringTableOffset);
+            if(out.size() == Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large");
+            }
+            out.writeLong(crc.getValue());
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String validate(ByteBuffer buffer, byte[] key) {
+        int size = buffer.limit();
+        if(size < HEADER_SIZE + FOOTER_SIZE || buffer.getLong(0) != MAGIC) {
+            return "not a snapshot";
+        }
+        if(buffer.getInt(8) != VERSION) {
+            return "unknown version";
+        }
+        byte[] snapshotKey = new byte[KEY_SIZE];
+        ((ByteBuffer) buffer.duplicate().position(12)).get(snapshotKey);
+        if(!Arrays.equals(key, snapshotKey)) {
+            return "created from another input file";
+        }
+        CRC32 crc = new CRC32();
+        crc.update((ByteBuffer) buffer.duplicate().position(0).limit(size - 8));
+        if(crc.getValue() != buffer.getLong(size - 8)) {
+            return "checksum failed";
+        }
+        return null;
+    }
+
+    private static void write(GtfsModel gtfs, Output out) throws IOException {
+        writeTable(out, gtfs.getAllAgencies(), a -> {
+            out.writeString(a.getId());
+            out.writeString(a.getName());
+            out.writeString(a.getUrl());
+            out.writeString(a.getTimezone());
+            out.writeString(a.getLang());
+            out.writeString(a.getPhone());
+            out.writeString(a.getFareUrl());
+        });
+        writeTable(out, gtfs.getAllRoutes(), r -> {
+            out.writeId(r.getId());
+            out.writeRef(r.getAgency());
+            out.writeString(r.getShortName());
+            out.writeString(r.getLongName());
+            out.writeInt(r.getType());
+            out.writeString(r.getDesc());
+            out.writeString(r.getUrl());
+            out.writeString(r.getColor());
+            out.writeString(r.getTextColor());
+            out.writeInt(routeBikesAllowed(r));
+            out.writeInt(r.getBikesAllowed());
+            out.writeInt(r.getSortOrder());
+        });
+        writeTable(out, gtfs.getAllTrips(), t -> {
+            out.writeId(t.getId());
+            out.writeRef(t.getRoute());
+            out.writeId(t.getServiceId());
+            out.writeString(t.getTripShortName());
+            out.writeString(t.getTripHeadsign());
+            out.writeString(t.getRouteShortName());
+            out.writeString(t.getDirectionId());
+            out.writeString(t.getBlockId());
+            out.writeId(t.getShapeId());
+            out.writeInt(t.getWheelchairAccessible());
+            out.writeInt(tripBikesAllowed(t));
+            out.writeInt(t.getBikesAllowed());
+        });
+        writeTable(out, gtfs.getAllStops(), s -> {
+            out.writeId(s.getId());
+            out.writeString(s.getName());
+            out.writeDouble(s.getLat());
+            out.writeDouble(s.getLon());
+            out.writeString(s.getCode());
+            out.writeString(s.getDesc());
+            out.writeString(s.getZoneId());
+            out.writeString(s.getUrl());
+            out.writeInt(s.getLocationType());
+            out.writeString(s.getParentStation());
+            out.writeInt(s.getWheelchairBoarding());
+            out.writeString(s.getDirection());
+            out.writeString(s.getTimezone());
+            out.writeInt(s.getVehicleType());
+            out.writeString(s.getPlatformCode());
+        });
+        writeTable(out, gtfs.getAllCalendars(), c -> {
+            out.writeInt(c.getId());
+            out.writeId(c.getServiceId());
+            out.writeInt(c.getMonday());
+            out.writeInt(c.getTuesday());
+            out.writeInt(c.getWednesday());
+            out.writeInt(c.getThursday());
+            out.writeInt(c.getFriday());
+            out.writeInt(c.getSaturday());
+            out.writeInt(c.getSunday());
+            out.writeDate(c.getStartDate());
+            out.writeDate(c.getEndDate());
+        });
+        writeTable(out, gtfs.getAllCalendarDates(), c -> {
+            out.writeInt(c.getId());
+            out.writeId(c.getServiceId());
+            out.writeDate(c.getDate());
+            out.writeInt(c.getExceptionType());
+        });
+        writeTable(out, gtfs.getAllFeedInfos(), f -> {
+            out.writeInt(f.getId());
+            out.writeString(f.getPublisherName());
+            out.writeString(f.getPublisherUrl());
+            out.writeString(f.getLang());
+            out.writeDate(f.getStartDate());
+            out.writeDate(f.getEndDate());
+            out.writeString(f.getVersion());
+        });
+        writeTable(out, gtfs.getAllEntitiesForType(Transfer.class), t -> {
+            out.writeInt(t.getId());
+            out.writeRef(t.getFromStop());
+            out.writeRef(t.getFromRoute());
+            out.writeRef(t.getFromTrip());
+            out.writeRef(t.getToStop());
+            out.writeRef(t.getToRoute());
+            out.writeRef(t.getToTrip());
+            out.writeInt(t.getTransferType());
+            out.writeInt(t.getMinTransferTime());
+        });
+        writeTable(out, gtfs.getAllFrequencies(), f -> {
+            out.writeInt(f.getId());
+            out.writeRef(f.getTrip());
+            out.writeInt(f.getStartTime());
+            out.writeInt(f.getEndTime());
+            out.writeInt(f.getHeadwaySecs());
+            out.writeInt(f.getExactTimes());
+            out.writeInt(f.getLabelOnly());
+        });
+        writeTable(out, gtfs.getAllPathways(), p -> {
+            out.writeId(p.getId());
+            out.writeInt(p.getPathwayType());
+            out.writeRef(p.getFromStop());
+            out.writeRef(p.getToStop());
+            out.writeInt(p.getTraversalTime());
+            out.writeInt(p.getWheelchairTraversalTime());
+        });
+        gtfs.stopTimeStore().writeSnapshot(out);
+        gtfs.shapeStore().writeSnapshot(out);
+    }
+
+    private static GtfsModel read(ByteBuffer buffer, PushdownFilter filter) {
+        Input in = new Input(buffer);
+        GtfsModel gtfs = new GtfsModel();
+        EntityInterner interner = new EntityInterner();
+        Set<Object> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        List<Agency> agencies = readTable(in, gtfs, interner, () -> {
+            Agency a = new Agency();
+            a.setId(in.readString());
+            a.setName(in.readString());
+            a.setUrl(in.readString());
+            a.setTimezone(in.readString());
+            a.setLang(in.readString());
+            a.setPhone(in.readString());
+            a.setFareUrl(in.readString());
+            return a;
+        });
+        List<Route> routes = readTable(in, gtfs, interner, skipped, filter == null ? null : filter::keepRoute, () -> {
+            Route r = new Route();
+            r.setId(in.readId());
+            r.setAgency(in.readRef(agencies));
+            r.setShortName(in.readString());
+            r.setLongName(in.readString());
+            r.setType(in.readInt());
+            r.setDesc(in.readString());
+            r.setUrl(in.readString());
+            r.setColor(in.readString());
+            r.setTextColor(in.readString());
+            setRouteBikesAllowed(r, in.readInt());
+            r.setBikesAllowed(in.readInt());
+            r.setSortOrder(in.readInt());
+            return r;
+        });
+        // The trips are added when the calendars are read
+        List<Trip> trips = readTable(in, null, interner, null, null, () -> {
+            Trip t = new Trip();
+            t.setId(in.readId());
+            t.setRoute(in.readRef(routes));
+            t.setServiceId(in.readId());
+            t.setTripShortName(in.readString());
+            t.setTripHeadsign(in.readString());
+            t.setRouteShortName(in.readString());
+            t.setDirectionId(in.readString());
+            t.setBlockId(in.readString());
+            t.setShapeId(in.readId());
+            t.setWheelchairAccessible(in.readInt());
+            setTripBikesAllowed(t, in.readInt());
+            t.setBikesAllowed(in.readInt());
+            return t;
+        });
+        List<Stop> stops = readTable(in, gtfs, interner, skipped, filter == null ? null : filter::keepStop, () -> {
+            Stop s = new Stop();
+            s.setId(in.readId());
+            s.setName(in.readString());
+            s.setLat(in.readDouble());
+            s.setLon(in.readDouble());
+            s.setCode(in.readString());
+            s.setDesc(in.readString());
+            s.setZoneId(in.readString());
+            s.setUrl(in.readString());
+            s.setLocationType(in.readInt());
+            s.setParentStation(in.readString());
+            s.setWheelchairBoarding(in.readInt());
+            s.setDirection(in.readString());
+            s.setTimezone(in.readString());
+            s.setVehicleType(in.readInt());
+            s.setPlatformCode(in.readString());
+            return s;
+        });
+        List<ServiceCalendar> calendars = readTable(in, gtfs, interner, () -> {
+            ServiceCalendar c = new ServiceCalendar();
+            c.setId(in.readInt());
+            c.setServiceId(in.readId());
+            c.setMonday(in.readInt());
+            c.setTuesday(in.readInt());
+            c.setWednesday(in.readInt());
+            c.setThursday(in.readInt());
+            c.setFriday(in.readInt());
+            c.setSaturday(in.readInt());
+            c.setSunday(in.readInt());
+            c.setStartDate(in.readDate());
+            c.setEndDate(in.readDate());
+            return c;
+        });
+        List<ServiceCalendarDate> calendarDates = readTable(in, gtfs, interner, () -> {
+            ServiceCalendarDate c = new ServiceCalendarDate();
+            c.setId(in.readInt());
+            c.setServiceId(in.readId());
+            c.setDate(in.readDate());
+            c.setExceptionType(in.readInt());
+            return c;
+        });
+        Predicate<Trip> keepTrip = filter == null ? null : filter.trips(calendars, calendarDates);
+        for (Trip t : trips) {
+            if(keepTrip == null || keepTrip.test(t)) gtfs.add(t);
+            else skipped.add(t);
+        }
+        readTable(in, gtfs, interner, () -> {
+            FeedInfo f = new FeedInfo();
+            f.setId(in.readInt());
+            f.setPublisherName(in.readString());
+            f.setPublisherUrl(in.readString());
+            f.setLang(in.readString());
+            f.setStartDate(in.readDate());
+            f.setEndDate(in.readDate());
+            f.setVersion(in.readString());
+            return f;
+        });
+        Predicate<Transfer> keepTransfer = notReferringTo(
+                skipped, Transfer::getFromStop, Transfer::getToStop, Transfer::getFromRoute, Transfer::getToRoute,
+                Transfer::getFromTrip, Transfer::getToTrip
+        );
+        readTable(in, gtfs, interner, skipped, keepTransfer, () -> {
+            Transfer t = new Transfer();
+            t.setId(in.readInt());
+            t.setFromStop(in.readRef(stops));
+            t.setFromRoute(in.readRef(routes));
+            t.setFromTrip(in.readRef(trips));
+            t.setToStop(in.readRef(stops));
+            t.setToRoute(in.readRef(routes));
+            t.setToTrip(in.readRef(trips));
+            t.setTransferType(in.readInt());
+            t.setMinTransferTime(in.readInt());
+            return t;
+        });
+        readTable(in, gtfs, interner, skipped, notReferringTo(skipped, Frequency::getTrip), () -> {
+            Frequency f = new Frequency();
+            f.setId(in.readInt());
+            f.setTrip(in.readRef(trips));
+            f.setStartTime(in.readInt());
+            f.setEndTime(in.readInt());
+            f.setHeadwaySecs(in.readInt());
+            f.setExactTimes(in.readInt());
+            f.setLabelOnly(in.readInt());
+            return f;
+        });
+        readTable(in, gtfs, interner, skipped, notReferringTo(skipped, Pathway::getFromStop, Pathway::getToStop), () -> {
+            Pathway p = new Pathway();
+            p.setId(in.readId());
+            p.setPathwayType(in.readInt());
+            p.setFromStop(in.readRef(stops));
+            p.setToStop(in.readRef(stops));
+            p.setTraversalTime(in.readInt());
+            p.setWheelchairTraversalTime(in.readInt());
+            return p;
+        });
+        interner.report();
+        gtfs.stopTimeStore().readSnapshot(in, trips, stops);
+        if(!skipped.isEmpty()) {
+            LOG.info("Skipped {} entities removed by the filter plan", skipped.size());
+            removeStopTimes(gtfs.stopTimeStore(), skipped);
+        }
+        gtfs.shapeStore().readSnapshot(in);
+        gtfs.resetChangeTracking();
+        return gtfs;
+    }
+
+    /* The deprecated bikes allowed columns are still read by One Bus Away, keep them as read. */
+
+    @SuppressWarnings("deprecation")
+    private static int routeBikesAllowed(Route r) {
+        return r.getRouteBikesAllowed();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setRouteBikesAllowed(Route r, int value) {
+        r.setRouteBikesAllowed(value);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int tripBikesAllowed(Trip t) {
+        return t.getTripBikesAllowed();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setTripBikesAllowed(Trip t, int value) {
+        t.setTripBikesAllowed(value);
+    }
+
+    private static <T> void writeTable(Output out, Collection<T> entities, EntityWriter<T> writer) throws IOException {
+        out.writeInt(entities.size());
+        int index = 0;
+        for (T e : entities) {
+            out.register(e, index++);
+            writer.write(e);
+        }
+    }
+
+    private static <T> List<T> readTable(Input in, GtfsModel gtfs, EntityInterner interner, EntityReader<T> reader) {
+        return readTable(in, gtfs, interner, null, null, reader);
+    }
+
+    /**
+     * Read all entities, the entities not kept are returned, but added to the skipped
+     * entities instead of the model.
+     * @param gtfs the model to add the entities to, or {@code null} to only return them.
+     * @param keep the entities to add, or {@code null} to add all.
+     */
+    private static <T> List<T> readTable(
+            Input in, GtfsModel gtfs, EntityInterner interner, Set<Object> skipped, Predicate<T> keep,
+            EntityReader<T> reader
+    ) {
+        int size = in.readInt();
+        List<T> entities = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            T e = reader.read();
+            interner.handleEntity(e);
+            entities.add(e);
+            if(gtfs == null) continue;
+            if(keep == null || keep.test(e)) gtfs.add(e);
+            else skipped.add(e);
+        }
+        return entities;
+    }
+
+    /** Keep the entities not referring to a skipped entity, {@code null} to keep all if none are skipped. */
+    @SafeVarargs
+    private static <T> Predicate<T> notReferringTo(Set<Object> skipped, Function<T, Object> ... refs) {
+        return skipped.isEmpty() ? null : e -> {
+            for (Function<T, Object> ref : refs) {
+                if(skipped.contains(ref.apply(e))) return false;
+            }
+            return true;
+        };
+    }
+
+    /** Mark the StopTimes of the skipped Trips and Stops as removed. */
+    private static void removeStopTimes(StopTimeStore store, Set<Object> skipped) {
+        BitSet trips = Parallel.SEQUENTIAL.mark(store.numberOfTrips(), i -> i > 0 && skipped.contains(store.trip(i)));
+        BitSet stops = Parallel.SEQUENTIAL.mark(store.numberOfStops(), i -> i > 0 && skipped.contains(store.stop(i)));
+        store.removeAll(Parallel.SEQUENTIAL.mark(
+                store.rows(), row -> trips.get(store.tripIndex(row)) || stops.get(store.stopIndex(row))
+        ));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface EntityWriter<T> {
+        void write(T entity) throws IOException;
+    }
+
+    private interface EntityReader<T> {
+        T read();
+    }
+
+    /**
+     * Write values to the snapshot, strings are written as an index into the string table
+     * and entities as an index into the table they are written to.
+     */
+    static class Output {
+        private final DataOutputStream out;
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Map<Object, Integer> refs = new HashMap<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        private Output(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        void writeBoolean(boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        /** Write the string as an index into the string table, -1 is {@code null}. */
+        void writeString(String value) throws IOException {
+            if(value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer i = stringIndex.get(value);
+            if(i == null) {
+                i = strings.size();
+                strings.add(value);
+                stringIndex.put(value, i);
+            }
+            out.writeInt(i);
+        }
+
+        void writeId(AgencyAndId id) throws IOException {
+            if(id == null) {
+                out.writeBoolean(false);
+                return;
+            }
+            out.writeBoolean(true);
+            writeString(id.getAgencyId());
+            writeString(id.getId());
+        }
+
+        void writeDate(ServiceDate date) throws IOException {
+            out.writeInt(date == null ? 0 : date.getYear() * 10_000 + date.getMonth() * 100 + date.getDay());
+        }
+
+        /** Write the index of an entity in the table it is written to, -1 is {@code null}. */
+        void writeRef(Object entity) throws IOException {
+            if(entity == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer i = refs.get(entity);
+            if(i == null) {
+                throw new IllegalStateException("Entity not in snapshot: " + entity);
+            }
+            out.writeInt(i);
+        }
+
+        void writeInts(int[] values, int n) throws IOException {
+            for (int i = 0; i < n; i += buffer.capacity() / 4) {
+                int len = Math.min(n - i, buffer.capacity() / 4);
+                buffer.clear();
+                buffer.asIntBuffer().put(values, i, len);
+                out.write(buffer.array(), 0, len * 4);
+            }
+        }
+
+        void writeDoubles(double[] values, int n) throws IOException {
+            for (int i = 0; i < n; i += buffer.capacity() / 8) {
+                int len = Math.min(n - i, buffer.capacity() / 8);
+                buffer.clear();
+                buffer.asDoubleBuffer().put(values, i, len);
+                out.write(buffer.array(), 0, len * 8);
+            }
+        }
+
+        void writeBytes(byte[] values, int n) throws IOException {
+            out.write(values, 0, n);
+        }
+
+        void writeLongs(long[] values) throws IOException {
+            out.writeInt(values.length);
+            for (long v : values) {
+                out.writeLong(v);
+            }
+        }
+
+        private void register(Object entity, int index) {
+            refs.put(entity, index);
+        }
+
+        private void writeStringTable() throws IOException {
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Read values written with {@link Output} from a memory-mapped snapshot.
+     */
+    static class Input {
+        private final ByteBuffer buffer;
+        private final String[] strings;
+
+        private Input(ByteBuffer buffer) {
+            int stringTableOffset = (int) buffer.getLong(buffer.limit() - FOOTER_SIZE);
+            ByteBuffer stringTable = (ByteBuffer) buffer.duplicate().position(stringTableOffset);
+            this.strings = new String[stringTable.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[stringTable.getInt()];
+                stringTable.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            this.buffer = (ByteBuffer) buffer.duplicate().limit(stringTableOffset).position(HEADER_SIZE);
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        double readDouble() {
+            return buffer.getDouble();
+        }
+
+        boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        String readString() {
+            int i = buffer.getInt();
+            return i < 0 ? null : strings[i];
+        }
+
+        AgencyAndId readId() {
+            if(!readBoolean()) return null;
+            return new AgencyAndId(readString(), readString());
+        }
+
+        ServiceDate readDate() {
+            int d = buffer.getInt();
+            return d == 0 ? null : new ServiceDate(d / 10_000, d / 100 % 100, d % 100);
+        }
+
+        <T> T readRef(List<T> table) {
+            int i = buffer.getInt();
+            return i < 0 ? null : table.get(i);
+        }
+
+        void readInts(int[] values, int n) {
+            buffer.asIntBuffer().get(values, 0, n);
+            buffer.position(buffer.position() + n * 4);
+        }
+
+        void readDoubles(double[] values, int n) {
+            buffer.asDoubleBuffer().get(values, 0, n);
+            buffer.position(buffer.position() + n * 8);
+        }
+
+        void readBytes(byte[] values, int n) {
+            buffer.get(values, 0, n);
+        }
+
+        long[] readLongs() {
+            long[] values = new long[buffer.getInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buffer.getLong();
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package no.tiger.gtfs.filter.impl;
+
+import no.tiger.gtfs.filter.impl.GtfsTables.Column;
+import no.tiger.gtfs.filter.impl.GtfsTables.Table;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.services.GtfsDao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Write the tables of a feed as CSV, with the encoders of {@link GtfsTables}.
+ * <p>
+ * The tables are sorted each on its own thread, then the rows are formatted in slices
+ * on all threads and written in order: while a table is written, the next slices, also
+ * of the next tables, are formatted. At most a fixed number of slices are waiting to be
+ * written, and their buffers are reused. The output does not depend on the number of
+ * threads, and the rows are sorted as described in {@link GtfsTables}.
+ */
+class GtfsTableWriter implements Closeable {
+    private static final int SLICE_ROWS = 8192;
+    private static final int SLICE_CAPACITY = 1 << 20;
+
+    private final ExecutorService executor;
+    private final int maxPendingSlices;
+    private final ConcurrentLinkedQueue<CsvOutput> buffers = new ConcurrentLinkedQueue<>();
+
+    /** Where the tables are written. */
+    interface Output {
+        /** Open the stream for the next table, the stream is closed when the table is written. */
+        OutputStream open(String filename) throws IOException;
+    }
+
+    /**
+     * @param threads the number of threads used to sort and format, with 1 all tables are
+     *                formatted in the calling thread.
+     */
+    GtfsTableWriter(int threads) {
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        this.maxPendingSlices = 2 * threads;
+    }
+
+    /**
+     * Sort the tables with rows and find the columns to write.
+     * @return the tables with rows, in the order they are written.
+     */
+    List<SortedTable<?>> sort(GtfsDao dao) throws IOException {
+        List<Future<SortedTable<?>>> sorted = new ArrayList<>();
+        for (Table<?> table : GtfsTables.ALL) {
+            sorted.add(submit(() -> sort(table, dao)));
+        }
+        List<SortedTable<?>> tables = new ArrayList<>();
+        List<List<Future<Long>>> columns = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            SortedTable<?> t = get(sorted.get(i), GtfsTables.ALL.get(i).filename);
+            if(t.rows.isEmpty()) continue;
+            List<Future<Long>> slices = new ArrayList<>();
+            for (int from = 0; from < t.rows.size(); from += SLICE_ROWS) {
+                int start = from;
+                slices.add(submit(() -> t.columnsUsed(start, Math.min(start + SLICE_ROWS, t.rows.size()))));
+            }
+            tables.add(t);
+            columns.add(slices);
+        }
+        for (int i = 0; i < tables.size(); i++) {
+            for (Future<Long> slice : columns.get(i)) {
+                tables.get(i).columns |= get(slice, tables.get(i).filename());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Format the tables and write them to the output, one after the other.
+     */
+    void write(List<SortedTable<?>> tables, Output output) throws IOException {
+        List<Slice> slices = new ArrayList<>();
+        for (SortedTable<?> t : tables) {
+            for (int from = 0; from < t.rows.size(); from += SLICE_ROWS) {
+                slices.add(new Slice(t, from, Math.min(from + SLICE_ROWS, t.rows.size())));
+            }
+        }
+        Deque<Future<CsvOutput>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        OutputStream out = null;
+        try {
+            for (Slice slice : slices) {
+                while (submitted < slices.size() && pending.size() < maxPendingSlices) {
+                    Slice s = slices.get(submitted++);
+                    pending.add(submit(() -> format(s)));
+                }
+                CsvOutput formatted = get(pending.poll(), slice.table.filename());
+                if(slice.from == 0) {
+                    if(out != null) out.close();
+                    out = output.open(slice.table.filename());
+                    CsvOutput header = buffer();
+                    slice.table.writeHeader(header);
+                    header.writeTo(out);
+                    release(header);
+                }
+                formatted.writeTo(out);
+                release(formatted);
+            }
+        }
+        finally {
+            if(out != null) out.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if(executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private CsvOutput format(Slice slice) {
+        CsvOutput out = buffer();
+        slice.table.writeRows(slice.from, slice.to, out);
+        return out;
+    }
+
+    private CsvOutput buffer() {
+        CsvOutput out = buffers.poll();
+        return out != null ? out : new CsvOutput(SLICE_CAPACITY);
+    }
+
+    private void release(CsvOutput out) {
+        out.clear();
+        buffers.add(out);
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        if(executor != null) {
+            return executor.submit(task);
+        }
+        CompletableFuture<T> f = new CompletableFuture<>();
+        try {
+            f.complete(task.call());
+        }
+        catch (Exception e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    private static <T> T get(Future<T> future, String filename) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing " + filename);
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException("Failed to write " + filename, e.getCause());
+        }
+    }
+
+    private static <T> SortedTable<T> sort(Table<T> table, GtfsDao dao) {
+        Collection<T> entities = dao.getAllEntitiesForType(table.type);
+        if(entities instanceof StopTimeStore) {
+            @SuppressWarnings("unchecked")
+            SortedTable<T> t = (SortedTable<T>) new SortedTable<>(GtfsTables.STOP_TIMES, inOrder((StopTimeStore) entities));
+            return t;
+        }
+        List<T> rows = new ArrayList<>(entities);
+        if(table.order != null) {
+            rows.sort(table.order);
+        }
+        return new SortedTable<>(table, rows);
+    }
+
+    /**
+     * The stop times sorted by trip id and stop sequence, without sorting all rows: the
+     * trips are sorted, and the rows of each trip are sorted by stop sequence. A StopTime
+     * is created for a row when it is formatted.
+     */
+    private static List<StopTime> inOrder(StopTimeStore store) {
+        StopTimeStore.RowIndex byTrip = store.indexByTrip(Parallel.SEQUENTIAL);
+        Integer[] trips = new Integer[store.numberOfTrips()];
+        int n = 0;
+        for (int t = 1; t < store.numberOfTrips(); t++) {
+            if(byTrip.size(t) > 0) trips[n++] = t;
+        }
+        Arrays.sort(trips, 0, n, Comparator.comparing(t -> store.trip(t).getId()));
+
+        int[] order = new int[store.size()];
+        int[] tripRows = new int[16];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            int trip = trips[i];
+            int m = byTrip.size(trip);
+            if(tripRows.length < m) tripRows = new int[m];
+            for (int j = 0; j < m; j++) {
+                tripRows[j] = byTrip.row(trip, j);
+            }
+            store.sortByStopSequence(tripRows, m);
+            System.arraycopy(tripRows, 0, order, size, m);
+            size += m;
+        }
+        int rows = size;
+        return new AbstractList<StopTime>() {
+            @Override public StopTime get(int i) {
+                return store.get(order[i]);
+            }
+
+            @Override public int size() {
+                return rows;
+            }
+        };
+    }
+
+    /** A table with the rows in the order they are written. */
+    static class SortedTable<T> {
+        private final Table<T> table;
+        private final List<T> rows;
+        /** A bit for each column of the table that is written. */
+        private long columns = 0L;
+
+        private SortedTable(Table<T> table, List<T> rows) {
+            this.table = table;
+            this.rows = rows;
+        }
+
+        String filename() {
+            return table.filename;
+        }
+
+        int size() {
+            return rows.size();
+        }
+
+        private long columnsUsed(int from, int to) {
+            return table.columnsUsed(rows, from, to);
+        }
+
+        private void writeHeader(CsvOutput out) {
+            for (int i = 0; i < table.columns.size(); i++) {
+                if((columns & 1L << i) != 0) out.field(table.columns.get(i).name);
+            }
+            out.endLine();
+        }
+
+        private void writeRows(int from, int to, CsvOutput out) {
+            List<Column<T>> used = new ArrayList<>();
+            for (int i = 0; i < table.columns.size(); i++) {
+                if((columns & 1L << i) != 0) used.add(table.columns.get(i));
+            }
+            for (int r = from; r < to; r++) {
+                T entity = rows.get(r);
+                for (Column<T> column : used) {
+                    column.write(entity, out);
+                }
+                out.endLine();
+            }
+        }
+    }
+
+    private static class Slice {
+        private final SortedTable<?> table;
+        private final int from;
+        private final int to;
+
+        private Slice(SortedTable<?> table, int from, int to) {
+            this.table = table;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.FareAttribute;
+import org.onebusaway.gtfs.model.FareRule;
+import org.onebusaway.gtfs.model.FeedInfo;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.IdentityBean;
+import org.onebusaway.gtfs.model.Pathway;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.ShapePoint;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Transfer;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.serialization.comparators.ServiceCalendarComparator;
+import org.onebusaway.gtfs.serialization.comparators.ServiceCalendarDateComparator;
+import org.onebusaway.gtfs.serialization.comparators.ShapePointComparator;
+import org.onebusaway.gtfs.serialization.comparators.StopTimeComparator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * The GTFS tables with a hand-written encoder for each column, used by
+ * {@link GtfsTableWriter} instead of the reflective One Bus Away field mappings.
+ * <p>
+ * The tables, columns, sort orders and formats are the same as in the One Bus Away
+ * {@link org.onebusaway.gtfs.serialization.GtfsWriter}, except that pathways and fare
+ * attributes are sorted by id, not written in the order of a hash map. The other tables
+ * without a sort order are written in the order they are read.
+ * <p>
+ * An optional column is left out if no row has a value for it. A missing value is
+ * written as an empty field: a {@code null} or empty text, an unset number, or a zero
+ * if zero is the default.
+ */
+class GtfsTables {
+
+    static final Table<FeedInfo> FEED_INFO = new Table<>(FeedInfo.class, "feed_info.txt", null)
+            .text("feed_publisher_name", FeedInfo::getPublisherName)
+            .text("feed_publisher_url", FeedInfo::getPublisherUrl)
+            .text("feed_lang", FeedInfo::getLang)
+            .optionalDate("feed_start_date", FeedInfo::getStartDate)
+            .optionalDate("feed_end_date", FeedInfo::getEndDate)
+            .optionalText("feed_version", FeedInfo::getVersion);
+
+    static final Table<Agency> AGENCY = new Table<>(Agency.class, "agency.txt", Comparator.comparing(Agency::getId))
+            .optionalText("agency_id", Agency::getId)
+            .text("agency_name", Agency::getName)
+            .text("agency_url", Agency::getUrl)
+            .text("agency_timezone", Agency::getTimezone)
+            .optionalText("agency_lang", Agency::getLang)
+            .optionalText("agency_phone", Agency::getPhone)
+            .optionalText("agency_fare_url", Agency::getFareUrl);
+
+    static final Table<ShapePoint> SHAPES = new Table<>(ShapePoint.class, "shapes.txt", new ShapePointComparator())
+            .id("shape_id", ShapePoint::getShapeId)
+            .number("shape_pt_sequence", ShapePoint::getSequence)
+            .latLon("shape_pt_lat", ShapePoint::getLat)
+            .latLon("shape_pt_lon", ShapePoint::getLon)
+            .optional("shape_dist_traveled", p -> !p.isDistTraveledSet(), (p, out) -> out.field(p.getDistTraveled()));
+
+    static final Table<Route> ROUTES = new Table<>(Route.class, "routes.txt", byId())
+            .optional("agency_id", r -> r.getAgency() == null, (r, out) -> out.field(r.getAgency().getId()))
+            .id("route_id", Route::getId)
+            .alwaysIncludedText("route_short_name", Route::getShortName)
+            .alwaysIncludedText("route_long_name", Route::getLongName)
+            .number("route_type", Route::getType)
+            .optionalText("route_desc", Route::getDesc)
+            .optionalText("route_url", Route::getUrl)
+            .optionalText("route_color", Route::getColor)
+            .optionalText("route_text_color", Route::getTextColor)
+            .optionalNumber("route_bikes_allowed", GtfsTables::routeBikesAllowed)
+            .optionalNumber("bikes_allowed", Route::getBikesAllowed)
+            .numberIfSet("route_sort_order", Route::getSortOrder, Route::isSortOrderSet);
+
+    static final Table<Stop> STOPS = new Table<>(Stop.class, "stops.txt", byId())
+            .id("stop_id", Stop::getId)
+            .text("stop_name", Stop::getName)
+            .latLon("stop_lat", Stop::getLat)
+            .latLon("stop_lon", Stop::getLon)
+            .optionalText("stop_code", Stop::getCode)
+            .optionalText("stop_desc", Stop::getDesc)
+            .optionalText("zone_id", Stop::getZoneId)
+            .optionalText("stop_url", Stop::getUrl)
+            .optionalNumber("location_type", Stop::getLocationType)
+            .optionalText("parent_station", Stop::getParentStation)
+            .optionalNumber("wheelchair_boarding", Stop::getWheelchairBoarding)
+            .optionalText("stop_direction", Stop::getDirection)
+            .optionalText("stop_timezone", Stop::getTimezone)
+            .numberIfSet("vehicle_type", Stop::getVehicleType, Stop::isVehicleTypeSet)
+            .optionalText("platform_code", Stop::getPlatformCode);
+
+    static final Table<Trip> TRIPS = new Table<>(Trip.class, "trips.txt", byId())
+            .ref("route_id", Trip::getRoute)
+            .id("trip_id", Trip::getId)
+            .id("service_id", Trip::getServiceId)
+            .optionalText("trip_short_name", Trip::getTripShortName)
+            .optionalText("trip_headsign", Trip::getTripHeadsign)
+            .optionalText("route_short_name", Trip::getRouteShortName)
+            .optionalText("direction_id", Trip::getDirectionId)
+            .optionalText("block_id", Trip::getBlockId)
+            .optionalId("shape_id", Trip::getShapeId)
+            .optionalNumber("wheelchair_accessible", Trip::getWheelchairAccessible)
+            .optionalNumber("trip_bikes_allowed", GtfsTables::tripBikesAllowed)
+            .optionalNumber("bikes_allowed", Trip::getBikesAllowed);
+
+    static final Table<StopTime> STOP_TIMES = new Table<>(StopTime.class, "stop_times.txt", new StopTimeComparator())
+            .ref("trip_id", StopTime::getTrip)
+            .ref("stop_id", StopTime::getStop)
+            .time("arrival_time", StopTime::getArrivalTime)
+            .time("departure_time", StopTime::getDepartureTime)
+            .numberIfSet("timepoint", StopTime::getTimepoint, StopTime::isTimepointSet)
+            .number("stop_sequence", StopTime::getStopSequence)
+            .optionalText("stop_headsign", StopTime::getStopHeadsign)
+            .optionalText("route_short_name", StopTime::getRouteShortName)
+            .optionalNumber("pickup_type", StopTime::getPickupType)
+            .optionalNumber("drop_off_type", StopTime::getDropOffType)
+            .optional("shape_dist_traveled", st -> !st.isShapeDistTraveledSet(), (st, out) -> out.field(st.getShapeDistTraveled()));
+
+    static final Table<ServiceCalendar> CALENDAR = new Table<>(ServiceCalendar.class, "calendar.txt", new ServiceCalendarComparator())
+            .id("service_id", ServiceCalendar::getServiceId)
+            .number("monday", ServiceCalendar::getMonday)
+            .number("tuesday", ServiceCalendar::getTuesday)
+            .number("wednesday", ServiceCalendar::getWednesday)
+            .number("thursday", ServiceCalendar::getThursday)
+            .number("friday", ServiceCalendar::getFriday)
+            .number("saturday", ServiceCalendar::getSaturday)
+            .number("sunday", ServiceCalendar::getSunday)
+            .date("start_date", ServiceCalendar::getStartDate)
+            .date("end_date", ServiceCalendar::getEndDate);
+
+    static final Table<ServiceCalendarDate> CALENDAR_DATES = new Table<>(ServiceCalendarDate.class, "calendar_dates.txt", new ServiceCalendarDateComparator())
+            .id("service_id", ServiceCalendarDate::getServiceId)
+            .date("date", ServiceCalendarDate::getDate)
+            .number("exception_type", ServiceCalendarDate::getExceptionType);
+
+    static final Table<FareAttribute> FARE_ATTRIBUTES = new Table<>(FareAttribute.class, "fare_attributes.txt", byId())
+            .id("fare_id", FareAttribute::getId)
+            .column("price", false, false, f -> false, (f, out) -> out.field(f.getPrice()))
+            .text("currency_type", FareAttribute::getCurrencyType)
+            .number("payment_method", FareAttribute::getPaymentMethod)
+            .column("transfers", true, true, f -> !f.isTransfersSet(), (f, out) -> out.field(f.getTransfers()))
+            .numberIfSet("transfer_duration", FareAttribute::getTransferDuration, FareAttribute::isTransferDurationSet)
+            .numberIfSet("journey_duration", FareAttribute::getJourneyDuration, FareAttribute::isJourneyDurationSet);
+
+    static final Table<FareRule> FARE_RULES = new Table<>(FareRule.class, "fare_rules.txt", null)
+            .ref("fare_id", FareRule::getFare)
+            .optionalRef("route_id", FareRule::getRoute)
+            .optionalText("origin_id", FareRule::getOriginId)
+            .optionalText("destination_id", FareRule::getDestinationId)
+            .optionalText("contains_id", FareRule::getContainsId);
+
+    static final Table<Frequency> FREQUENCIES = new Table<>(Frequency.class, "frequencies.txt", null)
+            .ref("trip_id", Frequency::getTrip)
+            .time("start_time", Frequency::getStartTime)
+            .time("end_time", Frequency::getEndTime)
+            .number("headway_secs", Frequency::getHeadwaySecs)
+            .optionalNumber("exact_times", Frequency::getExactTimes)
+            .optionalNumber("label_only", Frequency::getLabelOnly);
+
+    static final Table<Pathway> PATHWAYS = new Table<>(Pathway.class, "pathways.txt", byId())
+            .id("pathway_id", Pathway::getId)
+            .number("pathway_type", Pathway::getPathwayType)
+            .ref("from_stop_id", Pathway::getFromStop)
+            .ref("to_stop_id", Pathway::getToStop)
+            .number("traversal_time", Pathway::getTraversalTime)
+            .numberIfSet("wheelchair_traversal_time", Pathway::getWheelchairTraversalTime, Pathway::isWheelchairTraversalTimeSet);
+
+    static final Table<Transfer> TRANSFERS = new Table<>(Transfer.class, "transfers.txt", null)
+            .ref("from_stop_id", Transfer::getFromStop)
+            .optionalRef("from_route_id", Transfer::getFromRoute)
+            .optionalRef("from_trip_id", Transfer::getFromTrip)
+            .ref("to_stop_id", Transfer::getToStop)
+            .optionalRef("to_route_id", Transfer::getToRoute)
+            .optionalRef("to_trip_id", Transfer::getToTrip)
+            .number("transfer_type", Transfer::getTransferType)
+            .numberIfSet("min_transfer_time", Transfer::getMinTransferTime, Transfer::isMinTransferTimeSet);
+
+    /** All tables, in the order they are written. */
+    static final List<Table<?>> ALL = Collections.unmodifiableList(Arrays.asList(
+            FEED_INFO, AGENCY, SHAPES, ROUTES, STOPS, TRIPS, STOP_TIMES, CALENDAR, CALENDAR_DATES,
+            FARE_ATTRIBUTES, FARE_RULES, FREQUENCIES, PATHWAYS, TRANSFERS
+    ));
+
+    private GtfsTables() { }
+
+    private static <T extends IdentityBean<AgencyAndId>> Comparator<T> byId() {
+        return Comparator.comparing(IdentityBean::getId);
+    }
+
+    /* The deprecated bikes allowed columns are still written by One Bus Away, keep them as written. */
+
+    @SuppressWarnings("deprecation")
+    private static int routeBikesAllowed(Route route) {
+        return route.getRouteBikesAllowed();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int tripBikesAllowed(Trip trip) {
+        return trip.getTripBikesAllowed();
+    }
+
+    /** Format the value of a column, the value is not missing. */
+    interface Encoder<T> {
+        void write(T entity, CsvOutput out);
+    }
+
+    static class Column<T> {
+        final String name;
+        private final boolean optional;
+        private final boolean alwaysIncluded;
+        private final Predicate<T> missing;
+        private final Encoder<T> encoder;
+
+        private Column(String name, boolean optional, boolean alwaysIncluded, Predicate<T> missing, Encoder<T> encoder) {
+            this.name = name;
+            this.optional = optional;
+            this.alwaysIncluded = alwaysIncluded;
+            this.missing = missing;
+            this.encoder = encoder;
+        }
+
+        /** @return {@code true} if the column is written even if no row has a value for it. */
+        boolean isRequired() {
+            return !optional || alwaysIncluded;
+        }
+
+        boolean hasValue(T entity) {
+            return !missing.test(entity);
+        }
+
+        void write(T entity, CsvOutput out) {
+            if(optional && missing.test(entity)) {
+                out.empty();
+            }
+            else {
+                encoder.write(entity, out);
+            }
+        }
+    }
+
+    static class Table<T> {
+        final Class<T> type;
+        final String filename;
+        /** The order of the rows, or {@code null} to keep the order of the model. */
+        final Comparator<? super T> order;
+        final List<Column<T>> columns = new ArrayList<>();
+
+        private Table(Class<T> type, String filename, Comparator<? super T> order) {
+            this.type = type;
+            this.filename = filename;
+            this.order = order;
+        }
+
+        /**
+         * @return a bit for each column that is written with these rows: the required
+         *         columns and the optional columns with a value in one of the rows.
+         */
+        long columnsUsed(List<? extends T> rows, int from, int to) {
+            long all = (1L << columns.size()) - 1;
+            long used = 0L;
+            for (int i = 0; i < columns.size(); i++) {
+                if(columns.get(i).isRequired()) used |= 1L << i;
+            }
+            for (int r = from; r < to && used != all; r++) {
+                T entity = rows.get(r);
+                for (int i = 0; i < columns.size(); i++) {
+                    if((used & 1L << i) == 0 && columns.get(i).hasValue(entity)) used |= 1L << i;
+                }
+            }
+            return used;
+        }
+
+        private Table<T> column(String name, boolean optional, boolean alwaysIncluded, Predicate<T> missing, Encoder<T> encoder) {
+            columns.add(new Column<>(name, optional, alwaysIncluded, missing, encoder));
+            return this;
+        }
+
+        private Table<T> optional(String name, Predicate<T> missing, Encoder<T> encoder) {
+            return column(name, true, false, missing, encoder);
+        }
+
+        private Table<T> text(String name, Function<T, String> value) {
+            return column(name, false, false, e -> false, (e, out) -> out.field(value.apply(e)));
+        }
+
+        private Table<T> optionalText(String name, Function<T, String> value) {
+            return optional(name, e -> isEmpty(value.apply(e)), (e, out) -> out.field(value.apply(e)));
+        }
+
+        private Table<T> alwaysIncludedText(String name, Function<T, String> value) {
+            return column(name, true, true, e -> isEmpty(value.apply(e)), (e, out) -> out.field(value.apply(e)));
+        }
+
+        private Table<T> number(String name, ToIntFunction<T> value) {
+            return column(name, false, false, e -> false, (e, out) -> out.field(value.applyAsInt(e)));
+        }
+
+        /** An optional number with zero as default, zero is written as an empty field. */
+        private Table<T> optionalNumber(String name, ToIntFunction<T> value) {
+            return optional(name, e -> value.applyAsInt(e) == 0, (e, out) -> out.field(value.applyAsInt(e)));
+        }
+
+        private Table<T> numberIfSet(String name, ToIntFunction<T> value, Predicate<T> isSet) {
+            return optional(name, isSet.negate(), (e, out) -> out.field(value.applyAsInt(e)));
+        }
+
+        /** A time in seconds, always written, a negative time is written as an empty field. */
+        private Table<T> time(String name, ToIntFunction<T> value) {
+            return column(name, false, false, e -> false, (e, out) -> out.time(value.applyAsInt(e)));
+        }
+
+        private Table<T> date(String name, Function<T, ServiceDate> value) {
+            return column(name, false, false, e -> false, (e, out) -> out.date(value.apply(e)));
+        }
+
+        private Table<T> optionalDate(String name, Function<T, ServiceDate> value) {
+            return optional(name, e -> value.apply(e) == null, (e, out) -> out.date(value.apply(e)));
+        }
+
+        private Table<T> latLon(String name, ToDoubleFunction<T> value) {
+            return column(name, false, false, e -> false, (e, out) -> out.latLon(value.applyAsDouble(e)));
+        }
+
+        /** The id without the agency. */
+        private Table<T> id(String name, Function<T, AgencyAndId> value) {
+            return column(name, false, false, e -> false, (e, out) -> out.field(idOf(value.apply(e))));
+        }
+
+        private Table<T> optionalId(String name, Function<T, AgencyAndId> value) {
+            return optional(name, e -> value.apply(e) == null, (e, out) -> out.field(idOf(value.apply(e))));
+        }
+
+        /** The id of the referenced entity, without the agency. */
+        private Table<T> ref(String name, Function<T, ? extends IdentityBean<AgencyAndId>> value) {
+            return column(name, false, false, e -> false, (e, out) -> out.field(idOf(value.apply(e))));
+        }
+
+        private Table<T> optionalRef(String name, Function<T, ? extends IdentityBean<AgencyAndId>> value) {
+            return optional(name, e -> value.apply(e) == null, (e, out) -> out.field(idOf(value.apply(e))));
+        }
+
+        private static boolean isEmpty(String s) {
+            return s == null || s.isEmpty();
+        }
+
+        private static String idOf(AgencyAndId id) {
+            return id == null ? null : id.getId();
+        }
+
+        private static String idOf(IdentityBean<AgencyAndId> entity) {
+            return entity == null ? null : idOf(entity.getId());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package no.tiger.gtfs.filter.impl;
+
+import no.tiger.gtfs.filter.impl.GtfsTableWriter.SortedTable;
+import org.onebusaway.gtfs.services.GtfsDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write a feed straight into a zip file, without writing the tables to a directory first.
+ * <p>
+ * The tables, the sort order and the columns are the same as with the One Bus Away
+ * {@link org.onebusaway.gtfs.serialization.GtfsWriter}: optional columns with no values
+ * are left out, and tables with no entities are not written. The rows are formatted by
+ * a {@link GtfsTableWriter} and compressed by a {@link ParallelZipOutput}, both on all
+ * threads.
+ */
+class GtfsZipWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(GtfsZipWriter.class);
+
+    static void write(GtfsDao dao, File zipFile, int threads) throws IOException {
+        LOG.info("Write " + zipFile + " using " + threads + " threads");
+        run(dao, new ParallelZipOutput(zipFile, threads), threads, null);
+    }
+
+    /**
+     * Write the zip to the stream, the stream is closed when done.
+     */
+    static void write(GtfsDao dao, OutputStream out, int threads) throws IOException {
+        run(dao, new ParallelZipOutput(out, threads), threads, null);
+    }
+
+    /**
+     * Write a new version of the zip file. The tables with the same content as in the
+     * existing file are copied compressed from it, the other tables are written and
+     * compressed again. The new file is written next to the old one, then moved in place.
+     */
+    static void update(GtfsDao dao, File zipFile, int threads) throws IOException {
+        if(!zipFile.exists()) {
+            write(dao, zipFile, threads);
+            return;
+        }
+        File tmpFile = new File(zipFile.getPath() + ".tmp");
+        LOG.info("Update " + zipFile + " using " + threads + " threads");
+        try (ZipDirectory previous = ZipDirectory.read(zipFile)) {
+            run(dao, new ParallelZipOutput(tmpFile, threads), threads, previous);
+        }
+        Files.move(tmpFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param previous the zip file to copy the unchanged tables from, or {@code null}.
+     */
+    private static void run(GtfsDao dao, ParallelZipOutput output, int threads, ZipDirectory previous) throws IOException {
+        try (
+                ParallelZipOutput zip = output;
+                GtfsTableWriter writer = new GtfsTableWriter(threads)
+        ) {
+            List<SortedTable<?>> tables = Instrumentation.time("sortTables", () -> writer.sort(dao));
+            if(previous == null) {
+                writer.write(tables, name -> entry(zip, name, tables));
+                return;
+            }
+            Map<String, ZipDirectory.Entry> unchanged = unchanged(writer, tables, previous);
+            // Write the changed tables in runs, to keep the order of the tables in the zip
+            List<SortedTable<?>> run = new ArrayList<>();
+            for (SortedTable<?> table : tables) {
+                ZipDirectory.Entry entry = unchanged.get(table.filename());
+                if(entry == null) {
+                    run.add(table);
+                    continue;
+                }
+                writer.write(run, name -> entry(zip, name, tables));
+                run.clear();
+                zip.copyEntry(previous, entry);
+            }
+            writer.write(run, name -> entry(zip, name, tables));
+            LOG.info("Copied {} unchanged table(s) from the previous zip file", unchanged.size());
+        }
+    }
+
+    /**
+     * Format the tables without writing them, to compare the size and CRC with the entries
+     * in the previous zip file.
+     * @return the entries in the previous zip file with the same content, by name.
+     */
+    private static Map<String, ZipDirectory.Entry> unchanged(
+            GtfsTableWriter writer, List<SortedTable<?>> tables, ZipDirectory previous
+    ) throws IOException {
+        List<SortedTable<?>> candidates = new ArrayList<>();
+        for (SortedTable<?> table : tables) {
+            ZipDirectory.Entry entry = previous.get(table.filename());
+            if(entry != null && entry.method == ZipDirectory.METHOD_DEFLATED) {
+                candidates.add(table);
+            }
+        }
+        Map<String, ZipDirectory.Entry> unchanged = new HashMap<>();
+        writer.write(candidates, name -> new CrcOutputStream() {
+            @Override
+            public void close() {
+                ZipDirectory.Entry entry = previous.get(name);
+                if(size == entry.size && crc.getValue() == entry.crc) {
+                    unchanged.put(name, entry);
+                }
+            }
+        });
+        return unchanged;
+    }
+
+    /** The stream of a new entry, the time spent writing the table is a phase in the report. */
+    private static OutputStream entry(ParallelZipOutput zip, String name, List<SortedTable<?>> tables) throws IOException {
+        Instrumentation.Phase phase = Instrumentation.phase(name);
+        for (SortedTable<?> table : tables) {
+            if(table.filename().equals(name)) phase.set("rows", table.size());
+        }
+        LOG.info("writing entities: " + name);
+        return new FilterOutputStream(zip.nextEntry(name)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    phase.close();
+                }
+            }
+        };
+    }
+
+    /** Count the bytes and compute the CRC of the content, the content is not kept. */
+    private static class CrcOutputStream extends OutputStream {
+        final CRC32 crc = new CRC32();
+        long size = 0;
+
+        @Override
+        public void write(int b) {
+            crc.update(b);
+            ++size;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            crc.update(b, off, len);
+            size += len;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Match ids or names against include and exclude lists, compiled so the cost of a match
+ * does not depend on the length of the lists:
+ * <ul>
+ *     <li>{@code 1234} - the exact id, kept in a hash set.</li>
+ *     <li>{@code RUT:Line:*} - all ids with the prefix, kept in a trie.</li>
+ *     <li>{@code /NSB:.*:R1[0-9]/} - all ids matching the whole regular expression, all
+ *     expressions are joined in one pattern.</li>
+ * </ul>
+ * A pattern starting with {@code !} excludes the ids matching it. An id matches if it
+ * matches an include, or there are no include patterns, and it does not match an exclude.
+ * An empty matcher matches all ids. An {@link #exact(String...)} list is always an
+ * include list, with no ids it matches no ids.
+ */
+public class IdMatcher {
+    private static final IdMatcher ALL = new IdMatcher(new PatternSet(), new PatternSet(), true);
+
+    private final PatternSet includes;
+    private final PatternSet excludes;
+    /** Match the ids not excluded if there are no includes. */
+    private final boolean includeAll;
+
+    private IdMatcher(PatternSet includes, PatternSet excludes, boolean includeAll) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.includeAll = includeAll && includes.isEmpty();
+    }
+
+    /** Match all ids. */
+    public static IdMatcher all() {
+        return ALL;
+    }
+
+    /** Match the ids exactly, no patterns. With no ids nothing matches. */
+    public static IdMatcher exact(String ... ids) {
+        PatternSet includes = new PatternSet();
+        for (String id : ids) {
+            includes.exact.add(id);
+        }
+        return new IdMatcher(includes, new PatternSet(), false);
+    }
+
+    /** Compile the patterns, see the class doc. */
+    public static IdMatcher of(Collection<String> patterns) {
+        PatternSet includes = new PatternSet();
+        PatternSet excludes = new PatternSet();
+        for (String it : patterns) {
+            String pattern = it.trim();
+            if(pattern.isEmpty()) continue;
+            if(pattern.startsWith("!")) excludes.add(pattern.substring(1));
+            else includes.add(pattern);
+        }
+        includes.compile();
+        excludes.compile();
+        return new IdMatcher(includes, excludes, true);
+    }
+
+    public static IdMatcher of(String ... patterns) {
+        return of(Arrays.asList(patterns));
+    }
+
+    /**
+     * Read the patterns from a text file, one pattern per line. Empty lines and lines
+     * starting with '#' are ignored.
+     */
+    public static IdMatcher read(File file) throws IOException {
+        return of(lines(file));
+    }
+
+    static List<String> lines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).stream()
+                .map(String::trim)
+                .filter(it -> !it.isEmpty() && !it.startsWith("#"))
+                .collect(Collectors.toList());
+    }
+
+    public boolean matches(String id) {
+        return (includeAll || includes.matches(id)) && !excludes.matches(id);
+    }
+
+    /** @return true if all ids match. */
+    public boolean isEmpty() {
+        return includeAll && excludes.isEmpty();
+    }
+
+    /** All patterns sorted, to identify the matcher. */
+    String fingerprint() {
+        if(isNone()) return "none";
+        TreeSet<String> patterns = new TreeSet<>(includes.patterns());
+        excludes.patterns().forEach(it -> patterns.add("!" + it));
+        return patterns.toString();
+    }
+
+    /** A summary, the lists may be long. */
+    @Override
+    public String toString() {
+        if(isEmpty()) return "all";
+        if(isNone()) return "none";
+        return excludes.isEmpty() ? includes.toString() : includes + " except " + excludes;
+    }
+
+    private boolean isNone() {
+        return !includeAll && includes.isEmpty();
+    }
+
+    private static class PatternSet {
+        private final Set<String> exact = new HashSet<>();
+        private final PrefixTrie prefixes = new PrefixTrie();
+        private final List<String> regexes = new ArrayList<>();
+        private Pattern regex;
+
+        void add(String pattern) {
+            if(pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+                regexes.add(pattern.substring(1, pattern.length() - 1));
+            }
+            else if(pattern.endsWith("*")) {
+                prefixes.add(pattern.substring(0, pattern.length() - 1));
+            }
+            else {
+                exact.add(pattern);
+            }
+        }
+
+        void compile() {
+            if(regexes.isEmpty()) return;
+            // Check each expression alone, to report the one in error
+            regexes.forEach(Pattern::compile);
+            regex = Pattern.compile(regexes.stream().map(it -> "(?:" + it + ")").collect(Collectors.joining("|")));
+        }
+
+        boolean matches(String id) {
+            if(id == null) return false;
+            return exact.contains(id)
+                    || prefixes.matches(id)
+                    || (regex != null && regex.matcher(id).matches());
+        }
+
+        boolean isEmpty() {
+            return exact.isEmpty() && prefixes.size == 0 && regexes.isEmpty();
+        }
+
+        List<String> patterns() {
+            List<String> patterns = new ArrayList<>(exact);
+            prefixes.forEach("", it -> patterns.add(it + "*"));
+            regexes.forEach(it -> patterns.add("/" + it + "/"));
+            return patterns;
+        }
+
+        @Override
+        public String toString() {
+            if(exact.size() + prefixes.size + regexes.size() <= 10) {
+                return patterns().stream().sorted().collect(Collectors.toList()).toString();
+            }
+            return String.format("[%d ids, %d prefixes, %d regexes]", exact.size(), prefixes.size, regexes.size());
+        }
+    }
+
+    /**
+     * The prefixes in a trie, a match walks the characters of the id once.
+     */
+    private static class PrefixTrie {
+        private char[] keys = new char[0];
+        private PrefixTrie[] children = new PrefixTrie[0];
+        private boolean terminal = false;
+        private int size = 0;
+
+        void add(String prefix) {
+            PrefixTrie node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.child(prefix.charAt(i));
+            }
+            if(!node.terminal) {
+                node.terminal = true;
+                ++size;
+            }
+        }
+
+        boolean matches(String id) {
+            PrefixTrie node = this;
+            for (int i = 0; node != null; i++) {
+                if(node.terminal) return true;
+                if(i == id.length()) return false;
+                int k = Arrays.binarySearch(node.keys, id.charAt(i));
+                node = k < 0 ? null : node.children[k];
+            }
+            return false;
+        }
+
+        void forEach(String prefix, Consumer<String> action) {
+            if(terminal) action.accept(prefix);
+            for (int i = 0; i < keys.length; i++) {
+                children[i].forEach(prefix + keys[i], action);
+            }
+        }
+
+        private PrefixTrie child(char c) {
+            int k = Arrays.binarySearch(keys, c);
+            if(k >= 0) return children[k];
+            int at = -k - 1;
+            PrefixTrie child = new PrefixTrie();
+            keys = insert(keys, at, c);
+            PrefixTrie[] a = Arrays.copyOf(children, children.length + 1);
+            System.arraycopy(children, at, a, at + 1, children.length - at);
+            a[at] = child;
+            children = a;
+            return child;
+        }
+
+        private static char[] insert(char[] a, int at, char c) {
+            char[] b = Arrays.copyOf(a, a.length + 1);
+            System.arraycopy(a, at, b, at + 1, a.length - at);
+            b[at] = c;
+            return b;
+        }
+    }
+}
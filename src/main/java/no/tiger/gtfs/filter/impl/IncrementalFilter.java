@@ -0,0 +1,643 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Filter a new version of the feed, and only write the outputs the changes since the
+ * previous run can affect.
+ * <p>
+ * The state of the previous run is kept in a file. For each input table a hash of the
+ * rows of each id, like the stop times of a trip, and for each output the fingerprint of
+ * the filters and the footprint of the output: the stops passing the stop id and area
+ * filters, the trips with two or more stop times at those stops, and the routes, services
+ * and shapes of those trips. Only entities in the footprint can be kept, and the removals
+ * only cascade, so an output is the same if no rows of an id in the footprint changed, and
+ * no changed stop passes its filters. A changed row referring to a stop in the footprint,
+ * like a new stop time, is found by reading the changed rows again.
+ * <p>
+ * The affected outputs are filtered from a model loaded with only their areas pushed down,
+ * the other filters remove trips the footprint needs. The tables with the same content are
+ * copied compressed from the previous output, see {@link GtfsZipWriter#update}, and the
+ * output files not affected are not touched. With the reachable stops kept any change
+ * affects all outputs.
+ */
+public class IncrementalFilter {
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementalFilter.class);
+    private static final long MAGIC = 0x4754_4653_494e_4352L; // "GTFSINCR"
+    private static final int VERSION = 1;
+
+    /** The key of the rows not referring to an id, a change affects all outputs. */
+    private static final long GLOBAL = 0;
+
+    private static final char STOP = 'S';
+    private static final char TRIP = 'T';
+    private static final char ROUTE = 'R';
+    private static final char SERVICE = 'C';
+    private static final char SHAPE = 'H';
+
+    /**
+     * The tables written to the outputs, and the ids each row refers to. The first id is
+     * the key of the row, a changed row with a key in the footprint affects the output.
+     */
+    private static final List<TableKeys> TABLES = Arrays.asList(
+            new TableKeys("agency.txt", false),
+            new TableKeys("feed_info.txt", false),
+            new TableKeys("routes.txt", false, ROUTE, "route_id"),
+            new TableKeys("stops.txt", false, STOP, "stop_id"),
+            new TableKeys("trips.txt", false, TRIP, "trip_id"),
+            new TableKeys("stop_times.txt", false, TRIP, "trip_id", STOP, "stop_id"),
+            new TableKeys("calendar.txt", false, SERVICE, "service_id"),
+            new TableKeys("calendar_dates.txt", false, SERVICE, "service_id"),
+            new TableKeys("shapes.txt", false, SHAPE, "shape_id"),
+            // The rows of these tables are written in the input order, not sorted
+            new TableKeys("frequencies.txt", true, TRIP, "trip_id"),
+            new TableKeys("pathways.txt", true, STOP, "from_stop_id", STOP, "to_stop_id"),
+            new TableKeys(
+                    "transfers.txt", true,
+                    STOP, "from_stop_id", STOP, "to_stop_id",
+                    ROUTE, "from_route_id", ROUTE, "to_route_id",
+                    TRIP, "from_trip_id", TRIP, "to_trip_id"
+            )
+    );
+
+    private final FilterConfig config;
+    private final FilterPlan plan;
+    private final Map<String, Region> outputs;
+    private final File stateFile;
+
+    /**
+     * @param outputs the area of each output by name, the area is {@code null} if all stops are kept.
+     */
+    public IncrementalFilter(FilterConfig config, Map<String, Region> outputs, File stateFile) {
+        this.config = config;
+        this.outputs = outputs;
+        this.stateFile = stateFile;
+        List<Region> areas = new ArrayList<>();
+        outputs.values().stream().filter(Objects::nonNull).forEach(areas::add);
+        this.plan = new FilterPlan(config, areas);
+    }
+
+    /**
+     * Find the outputs affected by the changes in the input file, filter and write them,
+     * then save the state for the next run.
+     * @param outputFiles the zip file of each output by name.
+     * @param jobs the number of outputs filtered at the same time.
+     */
+    public void run(File inputFile, Function<String, File> outputFiles, int parallelism, int jobs) throws IOException, InterruptedException {
+        State previous = State.read(stateFile);
+        State next = new State();
+        Set<String> affected;
+        try (Instrumentation.Phase phase = Instrumentation.phase("diff")) {
+            affected = affectedOutputs(inputFile, outputFiles, previous, next);
+            phase.set("affected", affected.size());
+        }
+        LOG.info("{} of {} output(s) affected by the changes: {}", affected.size(), outputs.size(), affected);
+
+        Map<String, OutputState> written = new LinkedHashMap<>();
+        if(!affected.isEmpty()) {
+            GtfsModel gtfs = Instrumentation.time("load", () -> GtfsDb.loadModel(inputFile, loadPlan(affected)));
+            gtfs.setParallelism(parallelism);
+            BatchFilter batch = new BatchFilter(gtfs, jobs);
+            for (String name : affected) {
+                Region area = outputs.get(name);
+                long[] footprint;
+                try (Instrumentation.Phase phase = Instrumentation.phase("footprint " + name)) {
+                    footprint = config.isReachable() ? new long[0] : footprint(gtfs, area);
+                    phase.set("keys", footprint.length);
+                }
+                written.put(name, new OutputState(fingerprint(area), footprint));
+                batch.add(name, g -> Instrumentation.time("filter " + name, g, () -> plan.apply(g, area)));
+            }
+            batch.run((g, name) -> {
+                File file = outputFiles.apply(name);
+                Instrumentation.time("save " + name, () -> GtfsZipWriter.update(g, file, Runtime.getRuntime().availableProcessors()));
+                written.get(name).setFile(file);
+            });
+        }
+        for (String name : outputs.keySet()) {
+            next.outputs.put(name, affected.contains(name) ? written.get(name) : previous.outputs.get(name));
+        }
+        Instrumentation.time("saveState", () -> next.write(stateFile));
+    }
+
+    /**
+     * Compare the input tables with the state of the previous run, and add the state of the
+     * tables to the next state. Only the tables with another CRC or size are read.
+     */
+    private Set<String> affectedOutputs(File inputFile, Function<String, File> outputFiles, State previous, State next) throws IOException {
+        // The outputs not affected yet, with the state of the previous run
+        Map<String, OutputState> remaining = new LinkedHashMap<>();
+        for (Map.Entry<String, Region> e : outputs.entrySet()) {
+            OutputState old = previous == null ? null : previous.outputs.get(e.getKey());
+            if(old != null && old.fingerprint == fingerprint(e.getValue()) && old.isFileUnchanged(outputFiles.apply(e.getKey()))) {
+                remaining.put(e.getKey(), old);
+            }
+        }
+        boolean changed = false;
+        try (ZipFile zip = new ZipFile(inputFile)) {
+            for (TableKeys table : TABLES) {
+                ZipEntry entry = zip.getEntry(table.name);
+                TableState old = previous == null ? null : previous.tables.get(table.name);
+                TableState now = null;
+                if(entry != null) {
+                    now = old != null && old.crc == entry.getCrc() && old.size == entry.getSize()
+                            ? old
+                            : scan(inputFile, table, entry.getCrc(), entry.getSize());
+                    next.tables.put(table.name, now);
+                }
+                if(now == old) continue;
+                changed = true;
+                if(!remaining.isEmpty() && !config.isReachable()) {
+                    diff(inputFile, table, old, now, remaining);
+                }
+            }
+        }
+        if(changed && config.isReachable()) {
+            remaining.clear();
+        }
+        Set<String> affected = new LinkedHashSet<>(outputs.keySet());
+        affected.removeAll(remaining.keySet());
+        return affected;
+    }
+
+    /**
+     * Remove the outputs affected by the changes in the table from the remaining outputs.
+     * @param old the table in the previous input, or {@code null} if it did not exist.
+     * @param now the table in the new input, or {@code null} if it does not exist.
+     */
+    private void diff(File inputFile, TableKeys table, TableState old, TableState now, Map<String, OutputState> remaining) throws IOException {
+        if(old != null && now != null && old.header != now.header) {
+            LOG.info("The columns of {} changed, all outputs are affected", table.name);
+            remaining.clear();
+            return;
+        }
+        if(old != null && now != null && table.ordered && reordered(old.rows, now.rows)) {
+            LOG.info("The rows of {} are reordered, all outputs are affected", table.name);
+            remaining.clear();
+            return;
+        }
+        long[] dirty = dirtyKeys(old, now);
+        LOG.info("Changed {}: {} id(s) added, removed or changed", table.name, dirty.length);
+        for (long key : dirty) {
+            touch(key, remaining);
+        }
+        boolean stops = table.name.equals("stops.txt");
+        if(now == null || dirty.length == 0 || remaining.isEmpty() || (table.types.length < 2 && !stops)) return;
+
+        // Read the changed rows to find the other ids they refer to, and the stops passing the filters
+        try (CsvChunks chunks = CsvChunks.open(inputFile, table.name)) {
+            int[] columns = table.columns(chunks);
+            int stopId = chunks.column("stop_id");
+            int lat = chunks.column("stop_lat");
+            int lon = chunks.column("stop_lon");
+            CsvChunks.Line line = new CsvChunks.Line();
+            ByteBuffer b;
+            while ((b = chunks.next()) != null && !remaining.isEmpty()) {
+                while (line.next(b)) {
+                    if(Arrays.binarySearch(dirty, table.key(line, columns)) < 0) continue;
+                    for (int i = 0; i < columns.length; i++) {
+                        if(!line.isEmpty(columns[i])) touch(key(table.types[i], line.hash(columns[i])), remaining);
+                    }
+                    if(stops) {
+                        remaining.keySet().removeIf(name -> passesStopFilters(line, stopId, lat, lon, outputs.get(name)));
+                    }
+                }
+            }
+        }
+    }
+
+    /** Remove the outputs with the key in the footprint, all outputs if the key is global. */
+    private static void touch(long key, Map<String, OutputState> remaining) {
+        if(key == GLOBAL) {
+            remaining.clear();
+            return;
+        }
+        remaining.values().removeIf(o -> Arrays.binarySearch(o.footprint, key) >= 0);
+    }
+
+    /**
+     * @return true if the stop may pass the stop id and area filters, the same as
+     * {@link PushdownSource} a stop with no or invalid coordinates passes.
+     */
+    private boolean passesStopFilters(CsvChunks.Line line, int stopId, int lat, int lon, Region area) {
+        IdMatcher stopIds = config.stops();
+        if(!stopIds.isEmpty() && !stopIds.matches(line.string(stopId))) return false;
+        if(area == null || line.isEmpty(lat) || line.isEmpty(lon)) return true;
+        try {
+            double stopLat = line.decimal(lat);
+            double stopLon = line.decimal(lon);
+            return area.bounds().inside(stopLat, stopLon) && area.inside(stopLat, stopLon);
+        }
+        catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Only the areas of the affected outputs are pushed down, the footprint needs the
+     * trips the other filters remove. Like in the {@link FilterPlan} no stops are skipped
+     * if the stops reachable from the areas are kept, or the first stop of the trips is used.
+     */
+    private FilterPlan loadPlan(Set<String> affected) throws IOException {
+        List<Region> areas = new ArrayList<>();
+        for (String name : affected) {
+            Region area = outputs.get(name);
+            if(area == null || config.isReachable() || config.departingFrom() >= 0) {
+                areas = Collections.emptyList();
+                break;
+            }
+            areas.add(area);
+        }
+        return new FilterPlan(FilterConfig.of(new Properties(), "area pushdown", new File(".")), areas);
+    }
+
+    /**
+     * The keys of the stops in the area with an id matching, the trips with two or more
+     * stop times at those stops, and the routes, services and shapes of the trips. The model
+     * must not be filtered.
+     */
+    private long[] footprint(GtfsModel gtfs, Region area) {
+        IdMatcher stopIds = config.stops();
+        StopTimeStore stopTimes = gtfs.stopTimeStore();
+        boolean[] inFootprint = new boolean[stopTimes.numberOfStops()];
+        Keys keys = new Keys();
+        for (Stop stop : area == null ? gtfs.getAllStops() : gtfs.stopsInside(area)) {
+            if(!stopIds.isEmpty() && !stopIds.matches(stop.getId().getId())) continue;
+            keys.add(key(STOP, stop.getId()));
+            int i = stopTimes.indexOf(stop);
+            if(i >= 0) inFootprint[i] = true;
+        }
+        StopTimeStore.RowIndex byTrip = stopTimes.indexByTrip(gtfs.parallel());
+        for (int t = 0; t < stopTimes.numberOfTrips(); t++) {
+            int n = 0;
+            for (int i = 0; i < byTrip.size(t) && n < 2; i++) {
+                if(inFootprint[stopTimes.stopIndex(byTrip.row(t, i))]) ++n;
+            }
+            Trip trip = stopTimes.trip(t);
+            if(n < 2 || trip == null) continue;
+            keys.add(key(TRIP, trip.getId()));
+            if(trip.getRoute() != null) keys.add(key(ROUTE, trip.getRoute().getId()));
+            keys.add(key(SERVICE, trip.getServiceId()));
+            keys.add(key(SHAPE, trip.getShapeId()));
+        }
+        return keys.sorted();
+    }
+
+    private long fingerprint(Region area) {
+        byte[] b = plan.fingerprint(area).getBytes(StandardCharsets.UTF_8);
+        return CsvChunks.Line.hash(b, 0, b.length);
+    }
+
+    /** The key of an id of the type, the id as read from the input. */
+    private static long key(char type, long idHash) {
+        long h = (idHash + type) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        return h == GLOBAL ? 1 : h;
+    }
+
+    private static long key(char type, AgencyAndId id) {
+        if(id == null) return GLOBAL;
+        byte[] b = id.getId().getBytes(StandardCharsets.UTF_8);
+        return key(type, CsvChunks.Line.hash(b, 0, b.length));
+    }
+
+    /** Read the table, and hash the rows of each key in the input order. */
+    private static TableState scan(File inputFile, TableKeys table, long crc, long size) throws IOException {
+        try (
+                Instrumentation.Phase phase = Instrumentation.phase("scan " + table.name);
+                CsvChunks chunks = CsvChunks.open(inputFile, table.name)
+        ) {
+            int[] columns = table.columns(chunks);
+            byte[] header = String.join(",", chunks.header()).getBytes(StandardCharsets.UTF_8);
+            LongMap groups = new LongMap();
+            Keys rows = new Keys();
+            CsvChunks.Line line = new CsvChunks.Line();
+            ByteBuffer b;
+            int n = 0;
+            while ((b = chunks.next()) != null) {
+                while (line.next(b)) {
+                    long hash = line.hash();
+                    int slot = groups.slot(table.key(line, columns));
+                    groups.values[slot] = groups.values[slot] * 0x100000001b3L + hash;
+                    if(table.ordered) rows.add(hash);
+                    ++n;
+                }
+            }
+            phase.set("rows", n);
+            phase.set("keys", groups.size);
+            long[] keys = groups.keys();
+            long[] hashes = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                hashes[i] = groups.values[groups.slot(keys[i])];
+            }
+            return new TableState(
+                    table.name, crc, size, CsvChunks.Line.hash(header, 0, header.length),
+                    keys, hashes, table.ordered ? rows.toArray() : null
+            );
+        }
+    }
+
+    /** The keys added, removed or with other rows, sorted. */
+    private static long[] dirtyKeys(TableState old, TableState now) {
+        long[] k0 = old == null ? new long[0] : old.keys;
+        long[] h0 = old == null ? new long[0] : old.hashes;
+        long[] k1 = now == null ? new long[0] : now.keys;
+        long[] h1 = now == null ? new long[0] : now.hashes;
+        Keys dirty = new Keys();
+        int i = 0, j = 0;
+        while (i < k0.length || j < k1.length) {
+            if(j == k1.length || (i < k0.length && k0[i] < k1[j])) dirty.add(k0[i++]);
+            else if(i == k0.length || k1[j] < k0[i]) dirty.add(k1[j++]);
+            else {
+                if(h0[i] != h1[j]) dirty.add(k0[i]);
+                ++i;
+                ++j;
+            }
+        }
+        return dirty.toArray();
+    }
+
+    /** @return true if the rows in both versions are not in the same order. */
+    private static boolean reordered(long[] old, long[] now) {
+        long[] sortedOld = old.clone();
+        long[] sortedNow = now.clone();
+        Arrays.sort(sortedOld);
+        Arrays.sort(sortedNow);
+        int i = 0, j = 0;
+        while (true) {
+            while (i < old.length && Arrays.binarySearch(sortedNow, old[i]) < 0) ++i;
+            while (j < now.length && Arrays.binarySearch(sortedOld, now[j]) < 0) ++j;
+            if(i == old.length || j == now.length) return i != old.length || j != now.length;
+            if(old[i++] != now[j++]) return true;
+        }
+    }
+
+    /** A table and the columns of the ids the rows refer to. */
+    private static class TableKeys {
+        final String name;
+        final boolean ordered;
+        final char[] types;
+        final String[] columns;
+
+        /** @param refs the type and column of each id the rows refer to. */
+        TableKeys(String name, boolean ordered, Object ... refs) {
+            this.name = name;
+            this.ordered = ordered;
+            this.types = new char[refs.length / 2];
+            this.columns = new String[refs.length / 2];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = (Character) refs[2 * i];
+                columns[i] = (String) refs[2 * i + 1];
+            }
+        }
+
+        int[] columns(CsvChunks chunks) {
+            return Arrays.stream(columns).mapToInt(chunks::column).toArray();
+        }
+
+        /** The key of the first id the row refers to, or {@link #GLOBAL} if none. */
+        long key(CsvChunks.Line line, int[] columns) {
+            for (int i = 0; i < columns.length; i++) {
+                if(!line.isEmpty(columns[i])) return IncrementalFilter.key(types[i], line.hash(columns[i]));
+            }
+            return GLOBAL;
+        }
+    }
+
+    private static class TableState {
+        final String name;
+        final long crc;
+        final long size;
+        final long header;
+        /** The keys sorted, and the hash of the rows of each key. */
+        final long[] keys;
+        final long[] hashes;
+        /** The hash of each row in the input order, {@code null} if the order does not matter. */
+        final long[] rows;
+
+        TableState(String name, long crc, long size, long header, long[] keys, long[] hashes, long[] rows) {
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+            this.header = header;
+            this.keys = keys;
+            this.hashes = hashes;
+            this.rows = rows;
+        }
+    }
+
+    private static class OutputState {
+        final long fingerprint;
+        /** The keys of all entities the output may keep, sorted. */
+        final long[] footprint;
+        long fileSize = -1;
+        long lastModified = -1;
+
+        OutputState(long fingerprint, long[] footprint) {
+            this.fingerprint = fingerprint;
+            this.footprint = footprint;
+        }
+
+        void setFile(File file) {
+            this.fileSize = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        /** @return false if the output file is deleted or changed since it was written. */
+        boolean isFileUnchanged(File file) {
+            return file.isFile() && file.length() == fileSize && file.lastModified() == lastModified;
+        }
+    }
+
+    private static class State {
+        final Map<String, TableState> tables = new LinkedHashMap<>();
+        final Map<String, OutputState> outputs = new LinkedHashMap<>();
+
+        /** @return the state, or {@code null} if the file does not exist or is from another version. */
+        static State read(File file) throws IOException {
+            if(!file.exists()) {
+                LOG.info("No state of a previous run, all outputs are affected");
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                if(in.readLong() != MAGIC || in.readInt() != VERSION) {
+                    LOG.info("The state {} is not from this version, all outputs are affected", file);
+                    return null;
+                }
+                State state = new State();
+                for (int n = in.readInt(); n > 0; n--) {
+                    TableState t = new TableState(
+                            in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+                            readLongs(in), readLongs(in), readLongs(in)
+                    );
+                    state.tables.put(t.name, t);
+                }
+                for (int n = in.readInt(); n > 0; n--) {
+                    String name = in.readUTF();
+                    OutputState o = new OutputState(in.readLong(), readLongs(in));
+                    o.fileSize = in.readLong();
+                    o.lastModified = in.readLong();
+                    state.outputs.put(name, o);
+                }
+                return state;
+            }
+            catch (EOFException e) {
+                LOG.warn("The state {} is truncated, all outputs are affected", file);
+                return null;
+            }
+        }
+
+        /** Write the state to a new file, and move it in place. */
+        void write(File file) throws IOException {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+                out.writeLong(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(tables.size());
+                for (TableState t : tables.values()) {
+                    out.writeUTF(t.name);
+                    out.writeLong(t.crc);
+                    out.writeLong(t.size);
+                    out.writeLong(t.header);
+                    writeLongs(out, t.keys);
+                    writeLongs(out, t.hashes);
+                    writeLongs(out, t.rows);
+                }
+                out.writeInt(outputs.size());
+                for (Map.Entry<String, OutputState> e : outputs.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().fingerprint);
+                    writeLongs(out, e.getValue().footprint);
+                    out.writeLong(e.getValue().fileSize);
+                    out.writeLong(e.getValue().lastModified);
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+            out.writeInt(values == null ? -1 : values.length);
+            if(values == null) return;
+            for (long v : values) {
+                out.writeLong(v);
+            }
+        }
+
+        private static long[] readLongs(DataInputStream in) throws IOException {
+            int n = in.readInt();
+            if(n < 0) return null;
+            long[] values = new long[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = in.readLong();
+            }
+            return values;
+        }
+    }
+
+    /** A growing list of keys. */
+    private static class Keys {
+        private long[] values = new long[64];
+        private int size = 0;
+
+        void add(long value) {
+            if(size == values.length) values = Arrays.copyOf(values, 2 * size);
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        /** The keys sorted, without duplicates and the global key. */
+        long[] sorted() {
+            long[] sorted = toArray();
+            Arrays.sort(sorted);
+            int n = 0;
+            for (long v : sorted) {
+                if(v != GLOBAL && (n == 0 || sorted[n - 1] != v)) sorted[n++] = v;
+            }
+            return Arrays.copyOf(sorted, n);
+        }
+    }
+
+    /** Map a key to a slot with a value, open addressing with linear probing. */
+    private static class LongMap {
+        private long[] keys = new long[1024];
+        private boolean[] used = new boolean[1024];
+        long[] values = new long[1024];
+        int size = 0;
+
+        /** @return the slot of the key, the key is added with the value 0 if not in the map. */
+        int slot(long key) {
+            int mask = keys.length - 1;
+            int i = (int) (key ^ key >>> 32) * 0x9E3779B9 & mask;
+            while (used[i]) {
+                if(keys[i] == key) return i;
+                i = (i + 1) & mask;
+            }
+            if(2 * (size + 1) > keys.length) {
+                grow();
+                return slot(key);
+            }
+            used[i] = true;
+            keys[i] = key;
+            ++size;
+            return i;
+        }
+
+        /** All keys, sorted. */
+        long[] keys() {
+            long[] result = new long[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if(used[i]) result[n++] = keys[i];
+            }
+            Arrays.sort(result);
+            return result;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[2 * oldKeys.length];
+            values = new long[2 * oldKeys.length];
+            used = new boolean[2 * oldKeys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if(oldUsed[i]) values[slot(oldKeys[i])] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Record the wall time, CPU time, allocated bytes, heap used and removed entities of
+ * each phase of a run, and write the phases to a JSON report.
+ * <p>
+ * The instrumentation is off by default, then {@link #phase(String)} returns a phase
+ * doing nothing. When on, each phase is also logged and emitted as a JFR event, if the
+ * JVM supports JFR. Run the work of a phase with {@link #time(String, Work)}, or close the
+ * phase returned by {@link #phase(String)} when the phase needs to add values to the report. The phases may be nested, the name of a nested phase is prefixed
+ * with the name of the enclosing phase on the same thread.
+ * <p>
+ * The CPU time is for the whole process, and includes other threads running at the
+ * same time. The allocated bytes are for the thread running the phase only.
+ */
+public class Instrumentation {
+    private static final Logger LOG = LoggerFactory.getLogger(Instrumentation.class);
+    private static final Phase NONE = new Phase();
+
+    private static volatile boolean enabled = false;
+    private static JfrPhaseEvent jfr = null;
+    private static final Instant started = Instant.now();
+    private static final List<Record> records = Collections.synchronizedList(new ArrayList<>());
+    private static final ThreadLocal<Deque<String>> names = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private Instrumentation() { }
+
+    public static void enable() {
+        jfr = JfrPhaseEvent.create();
+        if(jfr == null) {
+            LOG.info("JFR is not supported, no JFR events are emitted");
+        }
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start a phase, close it to record it.
+     */
+    public static Phase phase(String name) {
+        return enabled ? new Phase(name, Collections.emptyList()) : NONE;
+    }
+
+    /**
+     * Start a phase, and record the number of entities removed from the model.
+     */
+    public static Phase phase(String name, GtfsModel gtfs) {
+        return enabled ? new Phase(name, gtfs.changeTracked()) : NONE;
+    }
+
+    static Phase phase(String name, List<? extends ChangeTracked> sets) {
+        return enabled ? new Phase(name, sets) : NONE;
+    }
+
+    /**
+     * Run the work in a phase.
+     * @return the result of the work.
+     */
+    public static <T, E extends Exception> T time(String name, Work<T, E> work) throws E {
+        return run(phase(name), work);
+    }
+
+    /**
+     * Run the task in a phase.
+     */
+    public static <E extends Exception> void time(String name, Task<E> task) throws E {
+        run(phase(name), task);
+    }
+
+    /**
+     * Run the task in a phase, and record the number of entities removed from the model.
+     */
+    public static <E extends Exception> void time(String name, GtfsModel gtfs, Task<E> task) throws E {
+        run(phase(name, gtfs), task);
+    }
+
+    static <T, E extends Exception> T time(String name, List<? extends ChangeTracked> sets, Work<T, E> work) throws E {
+        return run(phase(name, sets), work);
+    }
+
+    static <E extends Exception> void time(String name, List<? extends ChangeTracked> sets, Task<E> task) throws E {
+        run(phase(name, sets), task);
+    }
+
+    /**
+     * Write all phases recorded to a JSON file.
+     */
+    public static void writeReport(File file) throws IOException {
+        List<Record> phases;
+        synchronized (records) {
+            phases = new ArrayList<>(records);
+        }
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("{\n");
+            out.write("  \"started\": " + string(started.toString()) + ",\n");
+            out.write("  \"availableProcessors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+            out.write("  \"maxHeapBytes\": " + Runtime.getRuntime().maxMemory() + ",\n");
+            out.write("  \"phases\": [");
+            for (int i = 0; i < phases.size(); i++) {
+                out.write(i == 0 ? "\n" : ",\n");
+                phases.get(i).write(out);
+            }
+            out.write("\n  ]\n}\n");
+        }
+        LOG.info("Run report written to {}", file);
+    }
+
+    private static <T, E extends Exception> T run(Phase phase, Work<T, E> work) throws E {
+        try {
+            return work.run();
+        }
+        finally {
+            phase.close();
+        }
+    }
+
+    private static <E extends Exception> void run(Phase phase, Task<E> task) throws E {
+        try {
+            task.run();
+        }
+        finally {
+            phase.close();
+        }
+    }
+
+    private static long cpuTime() {
+        if(os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long allocatedBytes() {
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static String string(String value) {
+        StringBuilder buf = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if(c == '"' || c == '\\') buf.append('\\').append(c);
+            else if(c < ' ') buf.append(String.format("\\u%04x", (int) c));
+            else buf.append(c);
+        }
+        return buf.append('"').toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    /** The work done in a phase, with a result. */
+    @FunctionalInterface
+    public interface Work<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /** The work done in a phase. */
+    @FunctionalInterface
+    public interface Task<E extends Exception> {
+        void run() throws E;
+    }
+
+    /**
+     * A phase started, which is recorded when closed.
+     */
+    public static class Phase implements AutoCloseable {
+        private final String name;
+        private final List<? extends ChangeTracked> sets;
+        private final int[] sizesBefore;
+        private final long startMillis;
+        private final long startNanos;
+        private final long startCpu;
+        private final long startAllocated;
+        private final Object event;
+        private final Map<String, Long> values = new LinkedHashMap<>();
+
+        private Phase() {
+            this.name = null;
+            this.sets = null;
+            this.sizesBefore = null;
+            this.startMillis = 0;
+            this.startNanos = 0;
+            this.startCpu = 0;
+            this.startAllocated = 0;
+            this.event = null;
+        }
+
+        private Phase(String name, List<? extends ChangeTracked> sets) {
+            Deque<String> stack = names.get();
+            this.name = stack.isEmpty() ? name : stack.peek() + "/" + name;
+            stack.push(this.name);
+            this.sets = sets;
+            this.sizesBefore = sets.stream().mapToInt(ChangeTracked::size).toArray();
+            this.event = jfr != null ? jfr.start() : null;
+            this.startMillis = System.currentTimeMillis();
+            this.startAllocated = allocatedBytes();
+            this.startCpu = cpuTime();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Add a value to the phase in the report, like the number of entities visited.
+         */
+        public void set(String key, long value) {
+            if(name != null) values.put(key, value);
+        }
+
+        @Override
+        public void close() {
+            if(name == null) return;
+            long wall = System.nanoTime() - startNanos;
+            long cpu = startCpu < 0 ? -1 : cpuTime() - startCpu;
+            long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+            names.get().pop();
+
+            Record r = new Record(
+                    name, Thread.currentThread().getName(), startMillis, wall, cpu, allocated,
+                    memory.getHeapMemoryUsage().getUsed(), values
+            );
+            for (int i = 0; i < sets.size(); i++) {
+                r.counts.put(sets.get(i).name(), new int[] { sizesBefore[i], sets.get(i).size() });
+            }
+            records.add(r);
+            if(event != null) {
+                jfr.end(event, name, cpu, allocated, r.heapUsed, r.removed());
+            }
+            LOG.info(
+                    "PHASE {} - wall {} ms, cpu {} ms, allocated {} MB, heap used {} MB",
+                    name, millis(wall), millis(cpu), allocated >> 20, r.heapUsed >> 20
+            );
+        }
+    }
+
+    private static class Record {
+        final String name;
+        final String thread;
+        final long startMillis;
+        final long wallNanos;
+        final long cpuNanos;
+        final long allocatedBytes;
+        final long heapUsed;
+        final Map<String, Long> values;
+        final Map<String, int[]> counts = new LinkedHashMap<>();
+
+        Record(
+                String name, String thread, long startMillis, long wallNanos, long cpuNanos,
+                long allocatedBytes, long heapUsed, Map<String, Long> values
+        ) {
+            this.name = name;
+            this.thread = thread;
+            this.startMillis = startMillis;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.heapUsed = heapUsed;
+            this.values = values;
+        }
+
+        /** The entities removed, like {@code "trips=12, stopTimes=240"}. */
+        String removed() {
+            StringBuilder buf = new StringBuilder();
+            counts.forEach((set, c) -> {
+                if(c[0] == c[1]) return;
+                if(buf.length() > 0) buf.append(", ");
+                buf.append(set).append('=').append(c[0] - c[1]);
+            });
+            return buf.toString();
+        }
+
+        void write(Writer out) throws IOException {
+            out.write("    {\"phase\": " + string(name));
+            out.write(", \"thread\": " + string(thread));
+            out.write(", \"startMillis\": " + startMillis);
+            out.write(", \"wallNanos\": " + wallNanos);
+            out.write(", \"cpuNanos\": " + cpuNanos);
+            out.write(", \"allocatedBytes\": " + allocatedBytes);
+            out.write(", \"heapUsedBytes\": " + heapUsed);
+            for (Map.Entry<String, Long> it : values.entrySet()) {
+                out.write(", " + string(it.getKey()) + ": " + it.getValue());
+            }
+            if(!counts.isEmpty()) {
+                out.write(",\n      \"entities\": {");
+                boolean first = true;
+                for (Map.Entry<String, int[]> it : counts.entrySet()) {
+                    int[] c = it.getValue();
+                    out.write(first ? "" : ", ");
+                    out.write(string(it.getKey()) + ": {\"before\": " + c[0] + ", \"after\": " + c[1]
+                            + ", \"removed\": " + (c[0] - c[1]) + "}");
+                    first = false;
+                }
+                out.write("}");
+            }
+            out.write("}");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package no.tiger.gtfs.filter.impl;
+
+/**
+ * A pool of canonical values, equal values are replaced with the first value added.
+ * <p>
+ * The values are kept in an open addressing table with linear probing, with the hash of
+ * each value next to it, so a lookup compares the values only if the hashes are equal.
+ * Unlike {@link String#intern()} the pool is released with the last reference to it.
+ */
+class InternPool<T> {
+    private Object[] values;
+    private int[] hashes;
+    private int size = 0;
+
+    InternPool() {
+        this(1024);
+    }
+
+    /** @param capacity the initial capacity, rounded up to a power of 2. */
+    InternPool(int capacity) {
+        int n = Integer.highestOneBit(Math.max(16, 2 * capacity - 1));
+        this.values = new Object[n];
+        this.hashes = new int[n];
+    }
+
+    /**
+     * @return the value in the pool equal to the value, or the value itself added to the
+     * pool, {@code null} for {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    T intern(T value) {
+        if(value == null) return null;
+        int hash = mix(value.hashCode());
+        int mask = values.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Object v = values[i];
+            if(v == null) {
+                values[i] = value;
+                hashes[i] = hash;
+                if(2 * ++size > values.length) rehash();
+                return value;
+            }
+            if(hashes[i] == hash && v.equals(value)) return (T) v;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        values = new Object[2 * oldValues.length];
+        hashes = new int[values.length];
+        int mask = values.length - 1;
+        for (int k = 0; k < oldValues.length; k++) {
+            if(oldValues[k] == null) continue;
+            int i = oldHashes[k] & mask;
+            while (values[i] != null) i = (i + 1) & mask;
+            values[i] = oldValues[k];
+            hashes[i] = oldHashes[k];
+        }
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,117 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JFR event for a {@link Instrumentation.Phase}, recorded when a flight recording is
+ * running.
+ * <p>
+ * The event type is created with the {@code jdk.jfr.EventFactory} by reflection, so the
+ * tool compiles for Java 8 and runs on JVMs without JFR.
+ */
+class JfrPhaseEvent {
+    private static final String NAME = "no.tiger.gtfs.filter.Phase";
+    private static final int PHASE = 0;
+    private static final int CPU_TIME = 1;
+    private static final int ALLOCATED = 2;
+    private static final int HEAP_USED = 3;
+    private static final int REMOVED = 4;
+
+    private final Object factory;
+    private final Method newEvent;
+    private final Method begin;
+    private final Method end;
+    private final Method shouldCommit;
+    private final Method commit;
+    private final Method set;
+
+    private JfrPhaseEvent(Object factory, Class<?> eventClass) throws ReflectiveOperationException {
+        this.factory = factory;
+        this.newEvent = factory.getClass().getMethod("newEvent");
+        this.begin = eventClass.getMethod("begin");
+        this.end = eventClass.getMethod("end");
+        this.shouldCommit = eventClass.getMethod("shouldCommit");
+        this.commit = eventClass.getMethod("commit");
+        this.set = eventClass.getMethod("set", int.class, Object.class);
+    }
+
+    /**
+     * @return the event type, or {@code null} if the JVM does not support JFR.
+     */
+    static JfrPhaseEvent create() {
+        try {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> value = valueClass.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> type = Arrays.asList(
+                    annotation("Name", NAME),
+                    annotation("Label", "GTFS Filter Phase"),
+                    annotation("Category", new String[] { "GTFS Filter" })
+            );
+            List<Object> fields = new ArrayList<>();
+            fields.add(value.newInstance(String.class, "phase", Collections.singletonList(annotation("Label", "Phase"))));
+            fields.add(value.newInstance(long.class, "cpuTime", Arrays.asList(
+                    annotation("Label", "Process CPU Time"), annotation("Timespan", "NANOSECONDS")
+            )));
+            fields.add(value.newInstance(long.class, "allocated", Arrays.asList(
+                    annotation("Label", "Allocated"), annotation("DataAmount", "BYTES")
+            )));
+            fields.add(value.newInstance(long.class, "heapUsed", Arrays.asList(
+                    annotation("Label", "Heap Used"), annotation("DataAmount", "BYTES")
+            )));
+            fields.add(value.newInstance(String.class, "removed", Collections.singletonList(annotation("Label", "Removed Entities"))));
+
+            Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, type, fields);
+            return new JfrPhaseEvent(factory, eventClass);
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    Object start() {
+        Object event = invoke(newEvent, factory);
+        invoke(begin, event);
+        return event;
+    }
+
+    void end(Object event, String phase, long cpuTime, long allocated, long heapUsed, String removed) {
+        invoke(end, event);
+        if(!(Boolean) invoke(shouldCommit, event)) return;
+        invoke(set, event, PHASE, phase);
+        invoke(set, event, CPU_TIME, cpuTime);
+        invoke(set, event, ALLOCATED, allocated);
+        invoke(set, event, HEAP_USED, heapUsed);
+        invoke(set, event, REMOVED, removed);
+        invoke(commit, event);
+    }
+
+    /** An {@code jdk.jfr.AnnotationElement} for an annotation in the {@code jdk.jfr} package. */
+    private static Object annotation(String name, Object value) throws ReflectiveOperationException {
+        Class<?> type = Class.forName("jdk.jfr." + name);
+        return Class.forName("jdk.jfr.AnnotationElement")
+                .getConstructor(Class.class, Object.class)
+                .newInstance(type.asSubclass(Annotation.class), value);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (InvocationTargetException e) {
+            throw new IllegalStateException("JFR event failed: " + NAME, e.getCause());
+        }
+    }
+}
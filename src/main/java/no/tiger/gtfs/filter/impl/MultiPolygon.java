@@ -0,0 +1,62 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The union of several regions, like a municipality with islands or a set of areas.
+ * A point is inside if it is inside one of the parts, the bounds of each part are
+ * checked first.
+ */
+public class MultiPolygon implements Region {
+    private final String name;
+    private final List<? extends Region> parts;
+    private final Box bounds;
+
+    public MultiPolygon(String name, List<? extends Region> parts) {
+        if(parts.isEmpty()) {
+            throw new IllegalArgumentException("A multipolygon needs at least one part: " + name);
+        }
+        this.name = name;
+        this.parts = parts;
+        this.bounds = new Box(
+                name,
+                parts.stream().mapToDouble(p -> p.bounds().minLat()).min().getAsDouble(),
+                parts.stream().mapToDouble(p -> p.bounds().minLon()).min().getAsDouble(),
+                parts.stream().mapToDouble(p -> p.bounds().maxLat()).max().getAsDouble(),
+                parts.stream().mapToDouble(p -> p.bounds().maxLon()).max().getAsDouble()
+        );
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Box bounds() {
+        return bounds;
+    }
+
+    @Override
+    public boolean inside(double lat, double lon) {
+        if(!bounds.inside(lat, lon)) return false;
+        for (Region part : parts) {
+            if(part.bounds().inside(lat, lon) && part.inside(lat, lon)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String definition() {
+        if(parts.stream().allMatch(p -> p instanceof Polygon)) {
+            return parts.stream().map(p -> ((Polygon) p).wkt()).collect(Collectors.joining(", ", "MULTIPOLYGON (", ")"));
+        }
+        return parts.stream().map(Region::definition).collect(Collectors.joining(" | "));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s with %d parts, bounds %s", name, parts.size(), bounds);
+    }
+}
@@ -0,0 +1,109 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluate filters on several cores.
+ * <p>
+ * Removals are done in two phases: first the filter is evaluated for all elements in
+ * parallel, and the matches are marked in a bitmap. Each task owns a range of whole
+ * 64 bit words in the bitmap, so no synchronization is needed. Then the marked elements
+ * are removed in a cheap sequential sweep. The same code runs in the calling thread
+ * when the parallelism is 1, so the result is the same in both modes.
+ * <p>
+ * There is one instance, and one {@link ForkJoinPool}, for each parallelism, shared by
+ * all models and views. The pool threads are daemon threads and are never shut down.
+ */
+class Parallel {
+    static final Parallel SEQUENTIAL = new Parallel(1);
+    private static final Map<Integer, Parallel> SHARED = new ConcurrentHashMap<>();
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+
+    private Parallel(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be 1 or more: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @return the shared instance for the given number of threads.
+     */
+    static Parallel of(int parallelism) {
+        return parallelism == 1 ? SEQUENTIAL : SHARED.computeIfAbsent(parallelism, Parallel::new);
+    }
+
+    int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Mark phase: evaluate the filter for all indexes in {@code [0, n)}.
+     * @return the indexes matching the filter.
+     */
+    BitSet mark(int n, IntPredicate filter) {
+        long[] words = new long[(n + 63) >>> 6];
+        IntStream range = IntStream.range(0, words.length);
+        run(() -> (pool == null ? range : range.parallel()).forEach(w -> {
+            long bits = 0L;
+            int end = Math.min(n, (w + 1) << 6);
+            for (int i = w << 6; i < end; i++) {
+                if(filter.test(i)) bits |= 1L << i;
+            }
+            words[w] = bits;
+        }));
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Remove all elements matching the filter, the filter is evaluated in parallel.
+     */
+    <T> void removeIf(Collection<T> elements, Predicate<? super T> filter) {
+        @SuppressWarnings("unchecked")
+        T[] array = (T[]) elements.toArray();
+        BitSet marked = mark(array.length, i -> filter.test(array[i]));
+        for (int i = marked.nextSetBit(0); i >= 0; i = marked.nextSetBit(i + 1)) {
+            elements.remove(array[i]);
+        }
+    }
+
+    <S,T> Set<S> setOf(Collection<T> entries, Function<T, S> map) {
+        if(pool == null) return Functions.setOf(entries, map);
+        return pool.submit(() -> entries.parallelStream().map(map).collect(Collectors.toSet())).join();
+    }
+
+    /**
+     * Call the action for all indexes in {@code [0, n)}, in parallel. The action must
+     * be thread safe.
+     */
+    void forEach(int n, IntConsumer action) {
+        IntStream range = IntStream.range(0, n);
+        run(() -> (pool == null ? range : range.parallel()).forEach(action));
+    }
+
+    /**
+     * Parallel streams started from a task in the pool run in the pool, not in the common pool.
+     */
+    private void run(Runnable task) {
+        if(pool == null) {
+            task.run();
+        }
+        else {
+            pool.submit(task).join();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.impl.GtfsDaoImpl;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Pathway;
+import org.onebusaway.gtfs.model.ShapePoint;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.serialization.GtfsReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Read a feed with the stop_times.txt and shapes.txt files parsed in parallel.
+ * <p>
+ * All other tables are read with the One Bus Away {@link GtfsReader}. The stop_times.txt
+ * file is split in chunks of whole lines, each chunk is parsed into its own
+ * {@link StopTimeStore} and the stores are appended in file order. No {@link StopTime}s
+ * are created. The values are parsed the same way as the One Bus Away reader does. The
+ * shapes.txt file is read the same way into a {@link ShapeStore}.
+ * <p>
+ * With a {@link FilterPlan} the rows removed by the plan are skipped, the StopTimes are
+ * skipped if the trip or the stop is skipped, and the ShapePoints are skipped if no trip
+ * read has the shape.
+ */
+class ParallelGtfsReader {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelGtfsReader.class);
+    private static final String STOP_TIMES = "stop_times.txt";
+    private static final String SHAPES = "shapes.txt";
+
+    private final File input;
+    private final int threads;
+    private final FilterPlan plan;
+    private PushdownSource pushdown;
+
+    private ParallelGtfsReader(File input, int threads, FilterPlan plan) {
+        this.input = input;
+        this.threads = threads;
+        this.plan = plan;
+    }
+
+    /**
+     * @param plan the filters to apply while reading, or {@code null} to read all rows.
+     */
+    static GtfsModel read(File input, int threads, FilterPlan plan) throws IOException {
+        return new ParallelGtfsReader(input, threads, plan).run();
+    }
+
+    private GtfsModel run() throws IOException {
+        GtfsReader reader = new GtfsReader();
+        reader.getEntityClasses().remove(StopTime.class);
+        reader.getEntityClasses().remove(ShapePoint.class);
+        reader.setInputLocation(input);
+        if(plan != null) {
+            pushdown = plan.pushdown(reader.getInputSource());
+            reader.setInputSource(pushdown);
+        }
+        // The dao keeps the pathways by id in a hash map, keep them in file order instead,
+        // so the order does not depend on the rows skipped by the plan
+        List<Pathway> pathways = new ArrayList<>();
+        GtfsDaoImpl dao = new GtfsDaoImpl() {
+            @Override public Collection<Pathway> getAllPathways() {
+                return pathways;
+            }
+        };
+        reader.setEntityStore(dao);
+        EntityInterner interner = new EntityInterner();
+        reader.addEntityHandler(interner);
+        reader.addEntityHandler(e -> {
+            if(e instanceof Pathway) pathways.add((Pathway) e);
+        });
+        reader.run();
+        reader.close();
+        interner.report();
+
+        GtfsModel gtfs = new GtfsModel(dao);
+        Map<String, Trip> trips = new HashMap<>();
+        dao.getAllTrips().forEach(t -> trips.put(t.getId().getId(), t));
+        Map<String, Stop> stops = new HashMap<>();
+        dao.getAllStops().forEach(s -> stops.put(s.getId().getId(), s));
+
+        readStopTimes(
+                gtfs.stopTimeStore(),
+                new CsvChunks.IdIndex<>(trips),
+                new CsvChunks.IdIndex<>(stops)
+        );
+        Map<String, AgencyAndId> shapeIds = new HashMap<>();
+        dao.getAllTrips().forEach(t -> {
+            if(t.getShapeId() != null) shapeIds.put(t.getShapeId().getId(), t.getShapeId());
+        });
+        readShapes(gtfs.shapeStore(), new CsvChunks.IdIndex<>(shapeIds), reader.getDefaultAgencyId());
+        gtfs.resetChangeTracking();
+        return gtfs;
+    }
+
+    private void readStopTimes(
+            StopTimeStore store, CsvChunks.IdIndex<Trip> trips, CsvChunks.IdIndex<Stop> stops
+    ) throws IOException {
+        try (CsvChunks chunks = CsvChunks.open(input, STOP_TIMES)) {
+            if(chunks == null) return;
+            LOG.info("reading entities: " + StopTime.class.getName() + " using " + threads + " threads");
+            Columns columns = new Columns(chunks);
+            readChunks(chunks, lines -> () -> parse(lines, columns, trips, stops, pushdown), store::append);
+        }
+    }
+
+    /**
+     * @param defaultAgencyId the agency of the shapes not used by a trip, kept if there is no plan.
+     */
+    private void readShapes(
+            ShapeStore store, CsvChunks.IdIndex<AgencyAndId> shapeIds, String defaultAgencyId
+    ) throws IOException {
+        try (CsvChunks chunks = CsvChunks.open(input, SHAPES)) {
+            if(chunks == null) return;
+            LOG.info("reading entities: " + ShapePoint.class.getName() + " using " + threads + " threads");
+            ShapeColumns columns = new ShapeColumns(chunks);
+            String agencyId = plan == null ? defaultAgencyId : null;
+            readChunks(chunks, lines -> () -> parseShapes(lines, columns, shapeIds, agencyId), store::append);
+        }
+    }
+
+    /**
+     * Parse the chunks on the threads, and pass the results to the consumer in file order.
+     */
+    private <T> void readChunks(CsvChunks chunks, ChunkParser<T> parser, ChunkConsumer<T> consumer) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<T>> pending = new ArrayDeque<>();
+            ByteBuffer chunk;
+            while ((chunk = chunks.next()) != null) {
+                pending.add(executor.submit(parser.task(chunk)));
+                if(pending.size() >= 2 * threads) {
+                    consumer.accept(get(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                consumer.accept(get(pending.poll()));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static StopTimeStore parse(
+            ByteBuffer lines, Columns c, CsvChunks.IdIndex<Trip> trips, CsvChunks.IdIndex<Stop> stops,
+            PushdownSource pushdown
+    ) {
+        StopTimeStore store = new StopTimeStore(STOP_TIMES);
+        CsvChunks.Line line = new CsvChunks.Line();
+        int row = 0;
+        while (line.next(lines)) {
+            try {
+                Trip trip = line.lookup(required(line, c.tripId), trips);
+                Stop stop = line.lookup(required(line, c.stopId), stops);
+                if(pushdown != null && (
+                        (trip == null && pushdown.isExcludedTrip(line.string(c.tripId)))
+                        || (stop == null && pushdown.isExcludedStop(line.string(c.stopId)))
+                )) {
+                    continue;
+                }
+                if(trip == null) {
+                    throw new IllegalStateException("Trip not found: '" + line.string(c.tripId) + "'");
+                }
+                if(stop == null) {
+                    throw new IllegalStateException("Stop not found: '" + line.string(c.stopId) + "'");
+                }
+                store.add(
+                        ++row,
+                        trip,
+                        stop,
+                        line.isEmpty(c.arrivalTime) ? StopTime.MISSING_VALUE : line.time(c.arrivalTime),
+                        line.isEmpty(c.departureTime) ? StopTime.MISSING_VALUE : line.time(c.departureTime),
+                        line.integer(required(line, c.stopSequence)),
+                        line.isEmpty(c.timepoint) ? StopTime.MISSING_VALUE : line.integer(c.timepoint),
+                        line.isEmpty(c.pickupType) ? 0 : line.integer(c.pickupType),
+                        line.isEmpty(c.dropOffType) ? 0 : line.integer(c.dropOffType),
+                        line.string(c.stopHeadsign),
+                        line.string(c.routeShortName),
+                        line.isEmpty(c.shapeDistTraveled) ? StopTime.MISSING_VALUE : line.decimal(c.shapeDistTraveled)
+                );
+            }
+            catch (RuntimeException e) {
+                throw new IllegalStateException("Failed to read " + STOP_TIMES + " line: " + line.text(), e);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @param agencyId the agency of the shapes not in the index, or {@code null} to skip them.
+     */
+    private static ShapeStore parseShapes(
+            ByteBuffer lines, ShapeColumns c, CsvChunks.IdIndex<AgencyAndId> shapeIds, String agencyId
+    ) {
+        ShapeStore store = new ShapeStore(SHAPES);
+        Map<String, AgencyAndId> unused = new HashMap<>();
+        CsvChunks.Line line = new CsvChunks.Line();
+        while (line.next(lines)) {
+            try {
+                AgencyAndId shapeId = line.lookup(required(line, c.shapeId), shapeIds);
+                if(shapeId == null) {
+                    if(agencyId == null) continue;
+                    shapeId = unused.computeIfAbsent(line.string(c.shapeId), id -> new AgencyAndId(agencyId, id));
+                }
+                store.add(
+                        shapeId,
+                        line.integer(required(line, c.sequence)),
+                        line.decimal(required(line, c.lat)),
+                        line.decimal(required(line, c.lon)),
+                        line.isEmpty(c.distTraveled) ? ShapePoint.MISSING_VALUE : line.decimal(c.distTraveled)
+                );
+            }
+            catch (RuntimeException e) {
+                throw new IllegalStateException("Failed to read " + SHAPES + " line: " + line.text(), e);
+            }
+        }
+        return store;
+    }
+
+    private static int required(CsvChunks.Line line, int column) {
+        if(line.isEmpty(column)) {
+            throw new IllegalStateException("Missing required field");
+        }
+        return column;
+    }
+
+    private static <T> T get(Future<T> result) throws IOException {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private interface ChunkParser<T> {
+        Callable<T> task(ByteBuffer lines);
+    }
+
+    private interface ChunkConsumer<T> {
+        void accept(T result) throws IOException;
+    }
+
+    /**
+     * The column index of each field, -1 if the column does not exist.
+     */
+    private static class Columns {
+        final int tripId;
+        final int stopId;
+        final int arrivalTime;
+        final int departureTime;
+        final int stopSequence;
+        final int timepoint;
+        final int pickupType;
+        final int dropOffType;
+        final int stopHeadsign;
+        final int routeShortName;
+        final int shapeDistTraveled;
+
+        Columns(CsvChunks chunks) {
+            this.tripId = chunks.column("trip_id");
+            this.stopId = chunks.column("stop_id");
+            this.arrivalTime = chunks.column("arrival_time");
+            this.departureTime = chunks.column("departure_time");
+            this.stopSequence = chunks.column("stop_sequence");
+            this.timepoint = chunks.column("timepoint");
+            this.pickupType = chunks.column("pickup_type");
+            this.dropOffType = chunks.column("drop_off_type");
+            this.stopHeadsign = chunks.column("stop_headsign");
+            this.routeShortName = chunks.column("route_short_name");
+            this.shapeDistTraveled = chunks.column("shape_dist_traveled");
+        }
+    }
+
+    /**
+     * The column index of each shapes.txt field, -1 if the column does not exist.
+     */
+    private static class ShapeColumns {
+        final int shapeId;
+        final int sequence;
+        final int lat;
+        final int lon;
+        final int distTraveled;
+
+        ShapeColumns(CsvChunks chunks) {
+            this.shapeId = chunks.column("shape_id");
+            this.sequence = chunks.column("shape_pt_sequence");
+            this.lat = chunks.column("shape_pt_lat");
+            this.lon = chunks.column("shape_pt_lon");
+            this.distTraveled = chunks.column("shape_dist_traveled");
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Write a zip file, compressing each entry in blocks on several threads.
+ * <p>
+ * Each block is compressed to a raw deflate stream ending with a sync flush, except the
+ * last block which is finished, so the blocks can be concatenated into one valid deflate
+ * stream. The last 32 KB of the previous block is used as dictionary, so the compression
+ * ratio is close to the one of a single stream. At most a fixed number of blocks are
+ * waiting to be written, so the memory used does not depend on the size of the entries.
+ * <p>
+ * The sizes and CRC are written in a data descriptor after each entry, and Zip64 records
+ * are added when the file is too large for the plain zip format. The size of an entry is
+ * not known when the local header is written, so an entry must be smaller than 4 GB.
+ */
+class ParallelZipOutput implements Closeable {
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR_AND_UTF8 = 0x0808;
+    private static final int METHOD_DEFLATED = 8;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final int dosTime;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    private long offset = 0;
+    private EntryOutputStream current = null;
+
+    /**
+     * @param threads the number of threads used to compress, with 1 all blocks are
+     *                compressed in the calling thread.
+     */
+    ParallelZipOutput(File zipFile, int threads) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(zipFile), 1 << 16), threads);
+    }
+
+    /**
+     * Write the zip to a stream, the stream is closed with this.
+     */
+    ParallelZipOutput(OutputStream out, int threads) {
+        this.out = out;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        this.maxPendingBlocks = 2 * threads;
+        this.dosTime = dosTime(LocalDateTime.now());
+    }
+
+    /**
+     * Start a new entry, the previous entry is closed. Close the returned stream to
+     * complete the entry.
+     */
+    OutputStream nextEntry(String name) throws IOException {
+        closeEntry();
+        current = new EntryOutputStream(new Entry(name, offset));
+        writeLocalHeader(current.entry);
+        return current;
+    }
+
+    /**
+     * Add an entry with the data already compressed in another zip file, the previous
+     * entry is closed. The entry must be compressed with deflate.
+     */
+    void copyEntry(ZipDirectory from, ZipDirectory.Entry source) throws IOException {
+        if(source.method != METHOD_DEFLATED) {
+            throw new IllegalArgumentException("Only deflated entries can be copied: " + source.name);
+        }
+        closeEntry();
+        Entry e = new Entry(source.name, offset);
+        writeLocalHeader(e);
+        long start = offset;
+        from.copy(source, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ParallelZipOutput.this.write(b, off, len);
+            }
+        });
+        e.crc = source.crc;
+        e.size = source.size;
+        e.compressedSize = offset - start;
+        writeDataDescriptor(e);
+        entries.add(e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // The central directory is not written if the last entry fails, the file is not a valid zip
+            try {
+                closeEntry();
+                writeCentralDirectory();
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            if(executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void closeEntry() throws IOException {
+        if(current != null) {
+            current.close();
+        }
+    }
+
+    private void writeLocalHeader(Entry e) throws IOException {
+        header.clear();
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) VERSION);
+        header.putShort((short) FLAG_DATA_DESCRIPTOR_AND_UTF8);
+        header.putShort((short) METHOD_DEFLATED);
+        header.putInt(dosTime);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putShort((short) e.name.length);
+        header.putShort((short) 0);
+        writeHeader();
+        write(e.name, 0, e.name.length);
+    }
+
+    private void writeDataDescriptor(Entry e) throws IOException {
+        header.clear();
+        header.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        header.putInt((int) e.crc);
+        header.putInt((int) e.compressedSize);
+        header.putInt((int) e.size);
+        writeHeader();
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = offset;
+        for (Entry e : entries) {
+            boolean zip64 = e.offset >= ZIP64_LIMIT;
+            int extraSize = zip64 ? 4 + 8 : 0;
+            header.clear();
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+            header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+            header.putShort((short) FLAG_DATA_DESCRIPTOR_AND_UTF8);
+            header.putShort((short) METHOD_DEFLATED);
+            header.putInt(dosTime);
+            header.putInt((int) e.crc);
+            header.putInt((int) e.compressedSize);
+            header.putInt((int) e.size);
+            header.putShort((short) e.name.length);
+            header.putShort((short) extraSize);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt((int) Math.min(e.offset, ZIP64_LIMIT));
+            writeHeader();
+            write(e.name, 0, e.name.length);
+            if(zip64) {
+                header.clear();
+                header.putShort((short) 1);
+                header.putShort((short) (extraSize - 4));
+                header.putLong(e.offset);
+                writeHeader();
+            }
+        }
+        long size = offset - start;
+        boolean zip64 = entries.size() >= ZIP64_ENTRIES_LIMIT || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT;
+        if(zip64) {
+            long zip64End = offset;
+            header.clear();
+            header.putInt(ZIP64_END_SIGNATURE);
+            header.putLong(44);
+            header.putShort((short) VERSION_ZIP64);
+            header.putShort((short) VERSION_ZIP64);
+            header.putInt(0);
+            header.putInt(0);
+            header.putLong(entries.size());
+            header.putLong(entries.size());
+            header.putLong(size);
+            header.putLong(start);
+            header.putInt(ZIP64_LOCATOR_SIGNATURE);
+            header.putInt(0);
+            header.putLong(zip64End);
+            header.putInt(1);
+            writeHeader();
+        }
+        header.clear();
+        header.putInt(END_SIGNATURE);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+        header.putShort((short) Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+        header.putInt((int) Math.min(size, ZIP64_LIMIT));
+        header.putInt((int) Math.min(start, ZIP64_LIMIT));
+        header.putShort((short) 0);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        write(header.array(), 0, header.position());
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        offset += len;
+    }
+
+    /**
+     * Compress one block to a raw deflate stream, which is finished if this is the last block.
+     */
+    private static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if(dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 4 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if(last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    result.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return result.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static int dosTime(LocalDateTime t) {
+        return (t.getYear() - 1980) << 25
+                | t.getMonthValue() << 21
+                | t.getDayOfMonth() << 16
+                | t.getHour() << 11
+                | t.getMinute() << 5
+                | t.getSecond() >> 1;
+    }
+
+    private static class Entry {
+        private final byte[] name;
+        private final long offset;
+        private long crc;
+        private long size;
+        private long compressedSize;
+
+        Entry(String name, long offset) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.offset = offset;
+        }
+
+        void assertSize() throws IOException {
+            if(size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT) {
+                throw new IOException("Zip entry too large, 4 GB or more: " + new String(name, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Collect the data in blocks, and write the compressed blocks in order.
+     */
+    private class EntryOutputStream extends OutputStream {
+        private final Entry entry;
+        private final CRC32 crc = new CRC32();
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int length = 0;
+        private byte[] dictionary = null;
+        private boolean closed = false;
+
+        EntryOutputStream(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(closed) throw new IOException("Zip entry closed");
+            if(length == block.length) {
+                submitBlock(false);
+            }
+            block[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed) throw new IOException("Zip entry closed");
+            while (len > 0) {
+                if(length == block.length) {
+                    submitBlock(false);
+                }
+                int n = Math.min(len, block.length - length);
+                System.arraycopy(b, off, block, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            submitBlock(true);
+            while (!pending.isEmpty()) {
+                writeBlock(pending.poll());
+            }
+            entry.crc = crc.getValue();
+            writeDataDescriptor(entry);
+            entries.add(entry);
+            current = null;
+        }
+
+        private void submitBlock(boolean last) throws IOException {
+            byte[] data = block;
+            int n = length;
+            byte[] dict = dictionary;
+            crc.update(data, 0, n);
+            entry.size += n;
+            entry.assertSize();
+
+            if(executor == null) {
+                pending.add(CompletableFuture.completedFuture(deflate(data, n, dict, last)));
+            }
+            else {
+                pending.add(executor.submit(() -> deflate(data, n, dict, last)));
+            }
+            if(!last) {
+                dictionary = Arrays.copyOfRange(data, n - DICTIONARY_SIZE, n);
+                block = new byte[BLOCK_SIZE];
+                length = 0;
+            }
+            while (pending.size() > maxPendingBlocks) {
+                writeBlock(pending.poll());
+            }
+        }
+
+        private void writeBlock(Future<byte[]> block) throws IOException {
+            try {
+                byte[] compressed = block.get();
+                ParallelZipOutput.this.write(compressed, 0, compressed.length);
+                entry.compressedSize += compressed.length;
+                entry.assertSize();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing " + new String(entry.name, StandardCharsets.UTF_8));
+            }
+            catch (ExecutionException e) {
+                throw new IOException("Failed to compress " + new String(entry.name, StandardCharsets.UTF_8), e.getCause());
+            }
+        }
+    }
+}
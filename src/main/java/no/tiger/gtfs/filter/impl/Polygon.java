@@ -0,0 +1,138 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A polygon with holes, like a municipality border. The first ring is the outer border,
+ * the rest are holes. Each ring is a list of vertices {@code lat0, lon0, lat1, lon1, ...},
+ * the ring is closed, the last vertex do not need to repeat the first.
+ * <p>
+ * The point in polygon test counts the edges crossed by a ray from the point (even-odd
+ * rule). The edges are grouped in horizontal bands, so only the edges in the band of the
+ * point are tested, not all edges of a polygon with hundreds of vertices.
+ */
+public class Polygon implements Region {
+    private static final int EDGES_PER_BAND = 8;
+
+    private final String name;
+    private final List<double[]> rings;
+    private final Box bounds;
+
+    /** Edges: {@code lat1, lon1, lat2, lon2} at {@code 4 * edge}. */
+    private final double[] edges;
+    private final double bandHeight;
+    /** The edges in band {@code b} are {@code bandEdges[bandStart[b]]} until {@code bandEdges[bandStart[b+1]]}. */
+    private final int[] bandStart;
+    private final int[] bandEdges;
+
+    public Polygon(String name, List<double[]> rings) {
+        if(rings.isEmpty() || rings.get(0).length < 6) {
+            throw new IllegalArgumentException("A polygon needs at least 3 vertices: " + name);
+        }
+        this.name = name;
+        this.rings = rings;
+
+        int n = rings.stream().mapToInt(r -> r.length / 2).sum();
+        this.edges = new double[4 * n];
+        double minLat = Double.MAX_VALUE, minLon = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        int e = 0;
+        for (double[] ring : rings) {
+            if(ring.length % 2 != 0) {
+                throw new IllegalArgumentException("Expected lat/lon pairs in polygon: " + name);
+            }
+            for (int i = 0; i < ring.length; i += 2) {
+                int j = (i + 2) % ring.length;
+                edges[e++] = ring[i];
+                edges[e++] = ring[i + 1];
+                edges[e++] = ring[j];
+                edges[e++] = ring[j + 1];
+                minLat = Math.min(minLat, ring[i]);
+                maxLat = Math.max(maxLat, ring[i]);
+                minLon = Math.min(minLon, ring[i + 1]);
+                maxLon = Math.max(maxLon, ring[i + 1]);
+            }
+        }
+        // The box excludes the max values, the polygon may include them
+        this.bounds = new Box(name, minLat, minLon, Math.nextUp(maxLat), Math.nextUp(maxLon));
+
+        int bands = Math.max(1, n / EDGES_PER_BAND);
+        this.bandHeight = Math.max((maxLat - minLat) / bands, Double.MIN_NORMAL);
+        int[] counts = new int[bands + 1];
+        for (int i = 0; i < n; i++) {
+            for (int b = band(edgeMinLat(i), bands); b <= band(edgeMaxLat(i), bands); b++) counts[b + 1]++;
+        }
+        this.bandStart = new int[bands + 1];
+        for (int b = 0; b < bands; b++) {
+            bandStart[b + 1] = bandStart[b] + counts[b + 1];
+        }
+        this.bandEdges = new int[bandStart[bands]];
+        int[] next = Arrays.copyOf(bandStart, bands);
+        for (int i = 0; i < n; i++) {
+            for (int b = band(edgeMinLat(i), bands); b <= band(edgeMaxLat(i), bands); b++) bandEdges[next[b]++] = i;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Box bounds() {
+        return bounds;
+    }
+
+    @Override
+    public boolean inside(double lat, double lon) {
+        if(!bounds.inside(lat, lon)) return false;
+        int b = band(lat, bandStart.length - 1);
+        boolean inside = false;
+        for (int k = bandStart[b]; k < bandStart[b + 1]; k++) {
+            int i = 4 * bandEdges[k];
+            double lat1 = edges[i], lon1 = edges[i + 1], lat2 = edges[i + 2], lon2 = edges[i + 3];
+            if((lat1 > lat) != (lat2 > lat) && lon < (lon2 - lon1) * (lat - lat1) / (lat2 - lat1) + lon1) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /** The polygon as WKT, with the coordinates as {@code lon lat}. */
+    @Override
+    public String definition() {
+        return "POLYGON " + wkt();
+    }
+
+    String wkt() {
+        return rings.stream().map(Polygon::ring).collect(Collectors.joining(", ", "(", ")"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s polygon with %d edges, bounds %s", name, edges.length / 4, bounds);
+    }
+
+    private int band(double lat, int bands) {
+        int b = (int) ((lat - bounds.minLat()) / bandHeight);
+        return Math.max(0, Math.min(bands - 1, b));
+    }
+
+    private double edgeMinLat(int edge) {
+        return Math.min(edges[4 * edge], edges[4 * edge + 2]);
+    }
+
+    private double edgeMaxLat(int edge) {
+        return Math.max(edges[4 * edge], edges[4 * edge + 2]);
+    }
+
+    private static String ring(double[] ring) {
+        StringBuilder buf = new StringBuilder("(");
+        for (int i = 0; i < ring.length; i += 2) {
+            buf.append(i == 0 ? "" : ", ").append(ring[i + 1]).append(' ').append(ring[i]);
+        }
+        return buf.append(')').toString();
+    }
+}
@@ -0,0 +1,88 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The filters of a {@link FilterPlan} pushed down into the snapshot load. The same
+ * routes, stops and trips are skipped as when the feed is parsed with a
+ * {@link PushdownSource}, the entities referring to them are skipped by the snapshot.
+ */
+class PushdownFilter {
+    private final FilterConfig config;
+    private final boolean skipStops;
+    private final List<Region> areas;
+
+    /**
+     * @param skipStops {@code false} to keep all stops, and the rows referring to them.
+     * @param areas the areas to keep stops in, all stops outside them are skipped.
+     */
+    PushdownFilter(FilterConfig config, boolean skipStops, List<Region> areas) {
+        this.config = config;
+        this.skipStops = skipStops;
+        this.areas = areas;
+    }
+
+    boolean keepRoute(Route route) {
+        IdMatcher agencies = config.agencies();
+        // Leave routes with no agency to the cleanup, like the reader
+        if(!agencies.isEmpty() && route.getAgency() != null && !agencies.matches(route.getAgency().getName())) {
+            return false;
+        }
+        return config.routes().isEmpty() || config.routes().matches(route.getShortName());
+    }
+
+    boolean keepStop(Stop stop) {
+        if(skipStops && !config.stops().isEmpty() && !config.stops().matches(stop.getId().getId())) return false;
+        if(areas.isEmpty()) return true;
+        for (Region area : areas) {
+            if(area.bounds().inside(stop.getLat(), stop.getLon()) && area.inside(stop.getLat(), stop.getLon())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The trips to keep, the routes skipped are given by {@link #keepRoute(Route)}.
+     */
+    Predicate<Trip> trips(Collection<ServiceCalendar> calendars, Collection<ServiceCalendarDate> calendarDates) {
+        IdMatcher trips = config.trips();
+        Set<AgencyAndId> active = config.serviceDaysFrom() == null
+                ? null
+                : activeServices(calendars, calendarDates, config.serviceDaysFrom(), config.serviceDaysTo());
+        return t -> (trips.isEmpty() || trips.matches(t.getId().getId()))
+                && keepRoute(t.getRoute())
+                && (active == null || active.contains(t.getServiceId()));
+    }
+
+    /**
+     * The services with a calendar overlapping the period, or a date added in the period,
+     * the same services as the {@link PushdownSource} keeps.
+     */
+    private static Set<AgencyAndId> activeServices(
+            Collection<ServiceCalendar> calendars, Collection<ServiceCalendarDate> calendarDates,
+            ServiceDate from, ServiceDate to
+    ) {
+        Set<AgencyAndId> active = new HashSet<>();
+        for (ServiceCalendar c : calendars) {
+            if(c.getEndDate().compareTo(from) >= 0 && c.getStartDate().compareTo(to) <= 0) active.add(c.getServiceId());
+        }
+        for (ServiceCalendarDate d : calendarDates) {
+            if(d.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD
+                    && d.getDate().compareTo(from) >= 0 && d.getDate().compareTo(to) <= 0) {
+                active.add(d.getServiceId());
+            }
+        }
+        return active;
+    }
+}
@@ -0,0 +1,325 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.csv_entities.CsvInputSource;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Input source for the One Bus Away reader skipping the rows a {@link FilterPlan} removes,
+ * so the entities are never created.
+ * <p>
+ * Routes, stops and trips are skipped by the filters in the plan, and the ids of the
+ * skipped rows are kept. Rows referring to a skipped route, stop or trip are then skipped
+ * in the files read later. The reader reads routes and stops before trips, and trips
+ * before the files referring to them.
+ */
+class PushdownSource implements CsvInputSource {
+    private static final Logger LOG = LoggerFactory.getLogger(PushdownSource.class);
+
+    private final CsvInputSource source;
+    private final FilterConfig config;
+    private final boolean skipStops;
+    private final List<Region> areas;
+
+    private final Set<String> excludedRoutes = new HashSet<>();
+    private final Set<String> excludedStops = new HashSet<>();
+    private final Set<String> excludedTrips = new HashSet<>();
+    private Map<String, String> agencyNames;
+    private Set<String> activeServices;
+
+    /**
+     * @param skipStops {@code false} to keep all stops, and the rows referring to them.
+     * @param areas the areas to keep stops in, all stops outside them are skipped.
+     */
+    PushdownSource(CsvInputSource source, FilterConfig config, boolean skipStops, List<Region> areas) {
+        this.source = source;
+        this.config = config;
+        this.skipStops = skipStops;
+        this.areas = areas;
+    }
+
+    boolean isExcludedTrip(String id) {
+        return excludedTrips.contains(id);
+    }
+
+    boolean isExcludedStop(String id) {
+        return excludedStops.contains(id);
+    }
+
+    @Override
+    public boolean hasResource(String name) throws IOException {
+        return source.hasResource(name);
+    }
+
+    @Override
+    public InputStream getResource(String name) throws IOException {
+        switch (name) {
+            case "routes.txt": return filter(name, this::routeFilter);
+            case "stops.txt": return filter(name, this::stopFilter);
+            case "trips.txt": return filter(name, this::tripFilter);
+            case "transfers.txt": return filter(name, this::transferFilter);
+            case "frequencies.txt": return filter(name, h -> refFilter(h, "trip_id", excludedTrips));
+            case "fare_rules.txt": return filter(name, h -> refFilter(h, "route_id", excludedRoutes));
+            case "pathways.txt": return filter(name, this::pathwayFilter);
+            default: return source.getResource(name);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private Predicate<CsvChunks.Line> routeFilter(List<String> header) throws IOException {
+        int id = header.indexOf("route_id");
+        int agencyId = header.indexOf("agency_id");
+        int shortName = header.indexOf("route_short_name");
+        IdMatcher agencies = config.agencies();
+        IdMatcher routes = config.routes();
+        if(!agencies.isEmpty()) {
+            readAgencyNames();
+        }
+        return row -> {
+            if(!agencies.isEmpty()) {
+                String agencyName = agencyName(row.string(agencyId));
+                // Leave unknown agencies to the reader
+                if(agencyName != null && !agencies.matches(agencyName)) return exclude(excludedRoutes, row, id);
+            }
+            if(!routes.isEmpty() && !routes.matches(row.string(shortName))) {
+                return exclude(excludedRoutes, row, id);
+            }
+            return true;
+        };
+    }
+
+    private Predicate<CsvChunks.Line> stopFilter(List<String> header) {
+        int id = header.indexOf("stop_id");
+        int lat = header.indexOf("stop_lat");
+        int lon = header.indexOf("stop_lon");
+        IdMatcher stops = skipStops ? config.stops() : IdMatcher.all();
+        return row -> {
+            if(!stops.isEmpty() && !stops.matches(row.string(id))) return exclude(excludedStops, row, id);
+            if(areas.isEmpty() || row.isEmpty(lat) || row.isEmpty(lon)) return true;
+            try {
+                double stopLat = row.decimal(lat);
+                double stopLon = row.decimal(lon);
+                for (Region area : areas) {
+                    if(area.bounds().inside(stopLat, stopLon) && area.inside(stopLat, stopLon)) return true;
+                }
+            }
+            catch (NumberFormatException e) {
+                // Leave the error to the reader
+                return true;
+            }
+            return exclude(excludedStops, row, id);
+        };
+    }
+
+    private Predicate<CsvChunks.Line> tripFilter(List<String> header) throws IOException {
+        int id = header.indexOf("trip_id");
+        int routeId = header.indexOf("route_id");
+        int serviceId = header.indexOf("service_id");
+        if(config.serviceDaysFrom() != null) {
+            activeServices = readActiveServices(config.serviceDaysFrom(), config.serviceDaysTo());
+        }
+        IdMatcher trips = config.trips();
+        return row -> {
+            if(!trips.isEmpty() && !trips.matches(row.string(id))) return exclude(excludedTrips, row, id);
+            if(excludedRoutes.contains(row.string(routeId))) return exclude(excludedTrips, row, id);
+            if(activeServices != null && !activeServices.contains(row.string(serviceId))) {
+                return exclude(excludedTrips, row, id);
+            }
+            return true;
+        };
+    }
+
+    private Predicate<CsvChunks.Line> transferFilter(List<String> header) {
+        Predicate<CsvChunks.Line> stops = refFilter(header, "from_stop_id", excludedStops)
+                .and(refFilter(header, "to_stop_id", excludedStops));
+        Predicate<CsvChunks.Line> routes = refFilter(header, "from_route_id", excludedRoutes)
+                .and(refFilter(header, "to_route_id", excludedRoutes));
+        Predicate<CsvChunks.Line> trips = refFilter(header, "from_trip_id", excludedTrips)
+                .and(refFilter(header, "to_trip_id", excludedTrips));
+        return stops.and(routes).and(trips);
+    }
+
+    private Predicate<CsvChunks.Line> pathwayFilter(List<String> header) {
+        return refFilter(header, "from_stop_id", excludedStops).and(refFilter(header, "to_stop_id", excludedStops));
+    }
+
+    private static Predicate<CsvChunks.Line> refFilter(List<String> header, String column, Set<String> excluded) {
+        int i = header.indexOf(column);
+        if(i < 0) return row -> true;
+        return row -> row.isEmpty(i) || !excluded.contains(row.string(i));
+    }
+
+    private static boolean exclude(Set<String> excluded, CsvChunks.Line row, int id) {
+        String value = row.string(id);
+        if(value != null) excluded.add(value);
+        return false;
+    }
+
+    /**
+     * The agency name of a route, the same as the reader: with no agency id the feed must
+     * have one agency, and an agency with no id has the name as id.
+     * @return {@code null} if unknown.
+     */
+    private String agencyName(String agencyId) {
+        if(agencyId == null) {
+            return agencyNames.size() == 1 ? agencyNames.values().iterator().next() : null;
+        }
+        return agencyNames.get(agencyId);
+    }
+
+    private void readAgencyNames() throws IOException {
+        agencyNames = new HashMap<>();
+        readTable("agency.txt", header -> {
+            int id = header.indexOf("agency_id");
+            int name = header.indexOf("agency_name");
+            return row -> {
+                String agencyName = row.string(name);
+                String agencyId = row.string(id);
+                agencyNames.put(agencyId == null ? agencyName : agencyId, agencyName);
+                return true;
+            };
+        });
+    }
+
+    /**
+     * The services with a calendar overlapping the period, or a date added in the period.
+     * The services with days in the period, kept by {@link GtfsModel#retainServiceDays},
+     * are a subset of these.
+     */
+    private Set<String> readActiveServices(ServiceDate periodFrom, ServiceDate periodTo) throws IOException {
+        int from = Integer.parseInt(periodFrom.getAsString());
+        int to = Integer.parseInt(periodTo.getAsString());
+        Set<String> activeServices = new HashSet<>();
+        readTable("calendar.txt", header -> {
+            int id = header.indexOf("service_id");
+            int start = header.indexOf("start_date");
+            int end = header.indexOf("end_date");
+            return row -> {
+                if(row.integer(end) >= from && row.integer(start) <= to) activeServices.add(row.string(id));
+                return true;
+            };
+        });
+        readTable("calendar_dates.txt", header -> {
+            int id = header.indexOf("service_id");
+            int date = header.indexOf("date");
+            int type = header.indexOf("exception_type");
+            return row -> {
+                int d = row.integer(date);
+                if(d >= from && d <= to && row.integer(type) == 1) activeServices.add(row.string(id));
+                return true;
+            };
+        });
+        LOG.info("Services active from {} to {}: {}", periodFrom, periodTo, activeServices.size());
+        return activeServices;
+    }
+
+    private void readTable(String name, RowFilterFactory rows) throws IOException {
+        if(!source.hasResource(name)) return;
+        try (InputStream in = new FilteredInputStream(source.getResource(name), rows)) {
+            byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) >= 0) {
+                // The rows are read by the filter
+            }
+        }
+    }
+
+    private InputStream filter(String name, RowFilterFactory rows) throws IOException {
+        LOG.info("Skip rows removed by the filter plan in {}", name);
+        return new FilteredInputStream(source.getResource(name), rows);
+    }
+
+    private interface RowFilterFactory {
+        Predicate<CsvChunks.Line> create(List<String> header) throws IOException;
+    }
+
+    /**
+     * Pass the header and the rows accepted by the filter through, line by line.
+     */
+    private static class FilteredInputStream extends InputStream {
+        private final InputStream in;
+        private final RowFilterFactory factory;
+        private final CsvChunks.Line row = new CsvChunks.Line();
+        private Predicate<CsvChunks.Line> filter;
+        private byte[] line = new byte[1024];
+        private int length = 0;
+        private int position = 0;
+
+        FilteredInputStream(InputStream in, RowFilterFactory factory) {
+            this.in = new BufferedInputStream(in, 1 << 16);
+            this.factory = factory;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(position == length && !nextLine()) return -1;
+            return line[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(position == length && !nextLine()) return -1;
+            int n = Math.min(len, length - position);
+            System.arraycopy(line, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean nextLine() throws IOException {
+            while (readLine()) {
+                if(filter == null) {
+                    filter = factory.create(header());
+                    return true;
+                }
+                // Empty lines are passed on, the reader skips them
+                if(!row.next(ByteBuffer.wrap(line, 0, length)) || filter.test(row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private List<String> header() {
+            int bom = length >= 3 && line[0] == (byte) 0xEF && line[1] == (byte) 0xBB && line[2] == (byte) 0xBF ? 3 : 0;
+            return row.next(ByteBuffer.wrap(line, bom, length - bom)) ? row.strings() : Arrays.asList();
+        }
+
+        /** Read the next line, including the line break. */
+        private boolean readLine() throws IOException {
+            length = 0;
+            position = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if(length == line.length) {
+                    line = Arrays.copyOf(line, 2 * length);
+                }
+                line[length++] = (byte) b;
+                if(b == '\n') break;
+            }
+            return length > 0;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.Stop;
+
+/**
+ * An area to keep stops in: a {@link Box}, a {@link Polygon}, a {@link MultiPolygon} or a
+ * {@link Corridor}. Stops are looked up in a {@link StopIndex} by the bounding box first,
+ * then {@link #inside(double, double)} is called for the stops in the box only.
+ */
+public interface Region {
+
+    String getName();
+
+    /** The smallest box containing the region. */
+    Box bounds();
+
+    boolean inside(double lat, double lon);
+
+    default boolean inside(Stop stop) {
+        return inside(stop.getLat(), stop.getLon());
+    }
+
+    /** The region with full precision, to identify it. */
+    String definition();
+}
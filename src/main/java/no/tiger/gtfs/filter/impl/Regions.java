@@ -0,0 +1,164 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parse a {@link Region} from text, used in the filter config and the areas file:
+ * <pre>
+ * 59.90 10.70 59.94 10.79                               - box: minLat minLon maxLat maxLon
+ * POLYGON ((10.70 59.90, 10.79 59.90, 10.75 59.94))     - polygon with holes, WKT
+ * MULTIPOLYGON (((10.70 59.90, ...)), ((10.80 59.95, ...)))
+ * CORRIDOR 200 (10.70 59.90, 10.75 59.92, 10.79 59.94)  - within 200 m of the line
+ * CORRIDOR 200 ((10.70 59.90, ...), (10.80 59.95, ...)) - within 200 m of the lines
+ * &#64;oslo.wkt                                              - any of the above, read from a file
+ * </pre>
+ * Like WKT, the coordinates are {@code lon lat} in the polygons and corridors.
+ */
+public class Regions {
+    private Regions() { }
+
+    /**
+     * @param dir the directory of the files referred to with {@code @<file>}.
+     */
+    public static Region parse(String name, String value, File dir) throws IOException {
+        return parse(name, value, dir, false);
+    }
+
+    /**
+     * @param confined true to only read files in the dir, see {@link FilterConfig#file(String, File, boolean)}.
+     */
+    static Region parse(String name, String value, File dir, boolean confined) throws IOException {
+        String text = value.trim();
+        if(text.startsWith("@")) {
+            File file = FilterConfig.file(text.substring(1), dir, confined);
+            text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        }
+        try {
+            return parse(name, text);
+        }
+        catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid region " + name + ": " + abbreviate(text) + " - " + e.getMessage(), e);
+        }
+    }
+
+    private static Region parse(String name, String text) {
+        String upper = text.toUpperCase(Locale.ROOT);
+        if(upper.startsWith("MULTIPOLYGON")) {
+            List<Polygon> parts = new ArrayList<>();
+            for (Object polygon : new Parser(text, "MULTIPOLYGON".length()).list()) {
+                parts.add(polygon(name, polygon));
+            }
+            return new MultiPolygon(name, parts);
+        }
+        if(upper.startsWith("POLYGON")) {
+            return polygon(name, new Parser(text, "POLYGON".length()).list());
+        }
+        if(upper.startsWith("CORRIDOR")) {
+            String[] v = text.substring("CORRIDOR".length()).trim().split("\\s+", 2);
+            if(v.length != 2) throw new IllegalArgumentException("Expected 'CORRIDOR <meters> (<line>)'");
+            List<Object> line = new Parser(v[1], 0).list();
+            List<double[]> lines = new ArrayList<>();
+            if(!line.isEmpty() && line.get(0) instanceof double[]) {
+                lines.add(coordinates(line));
+            }
+            else {
+                for (Object it : line) lines.add(coordinates(it));
+            }
+            return new Corridor(name, lines, Double.parseDouble(v[0]));
+        }
+        String[] v = text.split("\\s+");
+        if(v.length != 4) {
+            throw new IllegalArgumentException("Expected 'minLat minLon maxLat maxLon', a POLYGON, a MULTIPOLYGON or a CORRIDOR");
+        }
+        return new Box(name, Double.parseDouble(v[0]), Double.parseDouble(v[1]), Double.parseDouble(v[2]), Double.parseDouble(v[3]));
+    }
+
+    private static Polygon polygon(String name, Object rings) {
+        List<double[]> result = new ArrayList<>();
+        for (Object ring : list(rings)) {
+            result.add(coordinates(ring));
+        }
+        return new Polygon(name, result);
+    }
+
+    /** A list of {@code lon lat} points to {@code lat, lon, lat, lon, ...}. */
+    private static double[] coordinates(Object points) {
+        List<Object> list = list(points);
+        double[] result = new double[2 * list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            if(!(list.get(i) instanceof double[])) throw new IllegalArgumentException("Expected a list of points");
+            double[] p = (double[]) list.get(i);
+            result[2 * i] = p[1];
+            result[2 * i + 1] = p[0];
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(Object value) {
+        if(!(value instanceof List)) throw new IllegalArgumentException("Expected a list in parentheses");
+        return (List<Object>) value;
+    }
+
+    private static String abbreviate(String text) {
+        return text.length() <= 60 ? text : text.substring(0, 60) + "...";
+    }
+
+    /**
+     * Parse nested lists in parentheses, a list element is a list or a point {@code x y}.
+     */
+    private static class Parser {
+        private final String text;
+        private int pos;
+
+        Parser(String text, int pos) {
+            this.text = text;
+            this.pos = pos;
+        }
+
+        List<Object> list() {
+            expect('(');
+            List<Object> result = new ArrayList<>();
+            do {
+                skipSpace();
+                result.add(peek() == '(' ? list() : point());
+                skipSpace();
+            } while (accept(','));
+            expect(')');
+            return result;
+        }
+
+        private double[] point() {
+            int start = pos;
+            while (pos < text.length() && ",()".indexOf(text.charAt(pos)) < 0) pos++;
+            String[] v = text.substring(start, pos).trim().split("\\s+");
+            if(v.length < 2) throw new IllegalArgumentException("Expected 'x y' at position " + start);
+            return new double[] { Double.parseDouble(v[0]), Double.parseDouble(v[1]) };
+        }
+
+        private void expect(char c) {
+            skipSpace();
+            if(!accept(c)) throw new IllegalArgumentException("Expected '" + c + "' at position " + pos);
+        }
+
+        private boolean accept(char c) {
+            if(peek() != c) return false;
+            pos++;
+            return true;
+        }
+
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+    }
+}
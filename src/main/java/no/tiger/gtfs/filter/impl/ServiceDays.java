@@ -0,0 +1,111 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The days each service is active, as a bitmap over the days from the first day of the
+ * feed. A calendar is expanded to the days of the week between the start and end date,
+ * then the dates added are set and the dates removed are cleared.
+ * <p>
+ * Services with the same days share the bitmap, most feeds only have a few distinct day
+ * patterns. Testing a service against a date window is then a bitwise
+ * {@link BitSet#intersects(BitSet)}.
+ */
+class ServiceDays {
+    private static final BitSet NONE = new BitSet();
+
+    private final long firstEpochDay;
+    private final Map<AgencyAndId, BitSet> days = new HashMap<>();
+    private final int distinctPatterns;
+
+    ServiceDays(Collection<ServiceCalendar> calendars, Collection<ServiceCalendarDate> calendarDates) {
+        long first = Long.MAX_VALUE;
+        for (ServiceCalendar c : calendars) first = Math.min(first, epochDay(c.getStartDate()));
+        for (ServiceCalendarDate d : calendarDates) first = Math.min(first, epochDay(d.getDate()));
+        this.firstEpochDay = first == Long.MAX_VALUE ? 0 : first;
+
+        Map<AgencyAndId, BitSet> build = new HashMap<>();
+        for (ServiceCalendar c : calendars) {
+            BitSet set = build.computeIfAbsent(c.getServiceId(), id -> new BitSet());
+            int end = day(c.getEndDate());
+            for (int d = day(c.getStartDate()); d <= end; d++) {
+                if(isActiveWeekday(c, d)) set.set(d);
+            }
+        }
+        for (ServiceCalendarDate d : calendarDates) {
+            BitSet set = build.computeIfAbsent(d.getServiceId(), id -> new BitSet());
+            if(d.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD) set.set(day(d.getDate()));
+            else set.clear(day(d.getDate()));
+        }
+        Map<BitSet, BitSet> shared = new HashMap<>();
+        build.forEach((id, set) -> days.put(id, shared.computeIfAbsent(set, s -> s)));
+        this.distinctPatterns = shared.size();
+    }
+
+    /** The day index of the date, may be negative for dates before the first day of the feed. */
+    int day(ServiceDate date) {
+        return (int) (epochDay(date) - firstEpochDay);
+    }
+
+    /** The days the service is active, the bitmap is shared and must not be changed. */
+    BitSet days(AgencyAndId serviceId) {
+        return days.getOrDefault(serviceId, NONE);
+    }
+
+    /** The days from and to the given dates, both included. */
+    BitSet window(ServiceDate from, ServiceDate to) {
+        BitSet window = new BitSet();
+        window.set(Math.max(0, day(from)), Math.max(0, day(to) + 1));
+        return window;
+    }
+
+    /** The services active on at least one of the days. */
+    Set<AgencyAndId> activeServices(BitSet window) {
+        Set<AgencyAndId> active = new HashSet<>();
+        days.forEach((id, set) -> {
+            if(set.intersects(window)) active.add(id);
+        });
+        return active;
+    }
+
+    int numberOfServices() {
+        return days.size();
+    }
+
+    int distinctPatterns() {
+        return distinctPatterns;
+    }
+
+    /** @return true if the calendar is active on the day of the week of the day index. */
+    boolean isActiveWeekday(ServiceCalendar c, int day) {
+        switch (LocalDate.ofEpochDay(firstEpochDay + day).getDayOfWeek()) {
+            case MONDAY: return c.getMonday() == 1;
+            case TUESDAY: return c.getTuesday() == 1;
+            case WEDNESDAY: return c.getWednesday() == 1;
+            case THURSDAY: return c.getThursday() == 1;
+            case FRIDAY: return c.getFriday() == 1;
+            case SATURDAY: return c.getSaturday() == 1;
+            default: return c.getSunday() == 1;
+        }
+    }
+
+    ServiceDate date(int day) {
+        LocalDate date = LocalDate.ofEpochDay(firstEpochDay + day);
+        return new ServiceDate(date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+    }
+
+    private static long epochDay(ServiceDate date) {
+        return LocalDate.of(date.getYear(), date.getMonth(), date.getDay()).toEpochDay();
+    }
+}
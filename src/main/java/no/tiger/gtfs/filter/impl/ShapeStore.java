@@ -0,0 +1,430 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ShapePoint;
+
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Column store for ShapePoints, usually the largest table after the StopTimes.
+ * <p>
+ * Each column is kept in a primitive array indexed by row, the shape id is stored as
+ * an index into a dictionary of shape ids, and removed rows are marked in a
+ * {@link BitSet}. The distance column is not allocated before a row has a distance.
+ * Iterating over the collection creates a new {@link ShapePoint} for each row, the
+ * objects are not kept.
+ * <p>
+ * Shapes are cut to the shapes used by the trips kept in the cleanup, and may then be
+ * clipped to an area and simplified. Both only remove points, the distances of the
+ * points kept are not changed, so the distances of the StopTimes still match.
+ * <p>
+ * A {@link #view()} shares the columns and the dictionary, only the removed rows are
+ * kept per view. Rows can not be added after the first view is created.
+ */
+class ShapeStore extends AbstractCollection<ShapePoint> implements ChangeTracked {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double EARTH_RADIUS = 6_371_000;
+
+    private final String name;
+    private final List<AgencyAndId> shapeIds;
+    private final Map<AgencyAndId, Integer> shapeIndex;
+    private final BitSet removed;
+
+    private int[] shapes = new int[INITIAL_CAPACITY];
+    private int[] sequences = new int[INITIAL_CAPACITY];
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private double[] lons = new double[INITIAL_CAPACITY];
+    private double[] distances = null;
+
+    private int rows = 0;
+    private int removedCount = 0;
+    private int lastChangeSize = 0;
+    private boolean shared = false;
+
+    ShapeStore(String name) {
+        this.name = name;
+        this.shapeIds = new ArrayList<>();
+        this.shapeIndex = new HashMap<>();
+        this.removed = new BitSet();
+    }
+
+    private ShapeStore(ShapeStore base) {
+        this.name = base.name;
+        this.shapeIds = base.shapeIds;
+        this.shapeIndex = base.shapeIndex;
+        this.removed = (BitSet) base.removed.clone();
+        this.shapes = base.shapes;
+        this.sequences = base.sequences;
+        this.lats = base.lats;
+        this.lons = base.lons;
+        this.distances = base.distances;
+        this.rows = base.rows;
+        this.removedCount = base.removedCount;
+        this.lastChangeSize = base.lastChangeSize;
+        this.shared = true;
+    }
+
+    /**
+     * Create a new store with the same rows, sharing the columns with this store.
+     */
+    ShapeStore view() {
+        shared = true;
+        return new ShapeStore(this);
+    }
+
+    @Override
+    public boolean add(ShapePoint p) {
+        add(p.getShapeId(), p.getSequence(), p.getLat(), p.getLon(), p.getDistTraveled());
+        return true;
+    }
+
+    /**
+     * Add a row without creating a {@link ShapePoint}, a missing distance is
+     * {@link ShapePoint#MISSING_VALUE}.
+     */
+    void add(AgencyAndId shapeId, int sequence, double lat, double lon, double distance) {
+        if(shared) {
+            throw new IllegalStateException("Can not add rows after a view is created: " + shapeId);
+        }
+        ensureCapacity(rows + 1);
+        int row = rows++;
+        shapes[row] = indexOf(shapeId);
+        sequences[row] = sequence;
+        lats[row] = lat;
+        lons[row] = lon;
+        if(distances != null || distance != ShapePoint.MISSING_VALUE) {
+            if(distances == null) {
+                distances = new double[shapes.length];
+                Arrays.fill(distances, ShapePoint.MISSING_VALUE);
+            }
+            distances[row] = distance;
+        }
+    }
+
+    /**
+     * Append all rows in the other store. Used to merge ShapePoints read in parallel, in order.
+     */
+    void append(ShapeStore other) {
+        if(shared) {
+            throw new IllegalStateException("Can not add rows after a view is created");
+        }
+        int n = other.rows;
+        ensureCapacity(rows + n);
+        int[] shapeMap = new int[other.shapeIds.size()];
+        for (int i = 0; i < shapeMap.length; i++) {
+            shapeMap[i] = indexOf(other.shapeIds.get(i));
+        }
+        for (int i = 0; i < n; i++) {
+            shapes[rows + i] = shapeMap[other.shapes[i]];
+        }
+        System.arraycopy(other.sequences, 0, sequences, rows, n);
+        System.arraycopy(other.lats, 0, lats, rows, n);
+        System.arraycopy(other.lons, 0, lons, rows, n);
+        if(distances != null || other.distances != null) {
+            if(distances == null) {
+                distances = new double[shapes.length];
+                Arrays.fill(distances, 0, rows, ShapePoint.MISSING_VALUE);
+            }
+            if(other.distances == null) {
+                Arrays.fill(distances, rows, rows + n, ShapePoint.MISSING_VALUE);
+            }
+            else {
+                System.arraycopy(other.distances, 0, distances, rows, n);
+            }
+        }
+        for (int i = other.removed.nextSetBit(0); i >= 0 && i < n; i = other.removed.nextSetBit(i + 1)) {
+            removed.set(rows + i);
+            ++removedCount;
+        }
+        rows += n;
+    }
+
+    /** Number of rows, including the removed ones. */
+    int rows() {
+        return rows;
+    }
+
+    /** Upper bound for shape indexes. */
+    int numberOfShapes() {
+        return shapeIds.size();
+    }
+
+    /** Remove all rows of the shapes not in the set. */
+    void retainShapes(Set<AgencyAndId> shapeIdsKept, Parallel parallel) {
+        BitSet unused = parallel.mark(numberOfShapes(), s -> !shapeIdsKept.contains(shapeIds.get(s)));
+        removeAll(parallel.mark(rows, row -> !removed.get(row) && unused.get(shapes[row])));
+    }
+
+    /**
+     * Remove the points of each shape outside the region, except the last point before and
+     * the first point after each part inside, so the shape still crosses the border. A shape
+     * with less than 2 points left is not clipped.
+     */
+    void clip(Region region, Parallel parallel) {
+        Box bounds = region.bounds();
+        byte[] drop = new byte[rows];
+        forEachShape(parallel, (points, n) -> {
+            boolean[] inside = new boolean[n];
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                int row = points[i];
+                inside[i] = bounds.inside(lats[row], lons[row]) && region.inside(lats[row], lons[row]);
+            }
+            for (int i = 0; i < n; i++) {
+                boolean keep = inside[i] || (i > 0 && inside[i - 1]) || (i + 1 < n && inside[i + 1]);
+                if(keep) ++kept;
+                else drop[points[i]] = 1;
+            }
+            if(kept < 2) {
+                for (int i = 0; i < n; i++) drop[points[i]] = 0;
+            }
+        });
+        removeAll(parallel.mark(rows, row -> drop[row] != 0));
+    }
+
+    /**
+     * Simplify each shape with the Douglas-Peucker algorithm: the points closer than the
+     * tolerance to the line between the points kept around them are removed. The first
+     * and last point are always kept. The distances are measured on a plane projected
+     * at the latitude of the first point, which is precise enough for a shape.
+     */
+    void simplify(double toleranceMeters, Parallel parallel) {
+        byte[] drop = new byte[rows];
+        forEachShape(parallel, (points, n) -> {
+            if(n < 3) return;
+            double lat0 = lats[points[0]];
+            double scaleY = Math.toRadians(EARTH_RADIUS);
+            double scaleX = scaleY * Math.cos(Math.toRadians(lat0));
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = (lons[points[i]] - lons[points[0]]) * scaleX;
+                y[i] = (lats[points[i]] - lat0) * scaleY;
+            }
+            boolean[] keep = new boolean[n];
+            keep[0] = true;
+            keep[n - 1] = true;
+            // The ranges left to simplify, as first << 32 | last, instead of recursion
+            long[] stack = new long[64];
+            int size = 0;
+            stack[size++] = (long) (n - 1);
+            while (size > 0) {
+                long range = stack[--size];
+                int first = (int) (range >>> 32);
+                int last = (int) range;
+                int farthest = -1;
+                double max = toleranceMeters * toleranceMeters;
+                for (int i = first + 1; i < last; i++) {
+                    double d = squaredDistanceToSegment(x[i], y[i], x[first], y[first], x[last], y[last]);
+                    if(d > max) {
+                        max = d;
+                        farthest = i;
+                    }
+                }
+                if(farthest < 0) continue;
+                keep[farthest] = true;
+                if(size + 2 > stack.length) stack = Arrays.copyOf(stack, 2 * stack.length);
+                stack[size++] = (long) first << 32 | farthest;
+                stack[size++] = (long) farthest << 32 | last;
+            }
+            for (int i = 0; i < n; i++) {
+                if(!keep[i]) drop[points[i]] = 1;
+            }
+        });
+        removeAll(parallel.mark(rows, row -> drop[row] != 0));
+    }
+
+    /** Create a new ShapePoint with the values of the given row. */
+    ShapePoint get(int row) {
+        ShapePoint p = new ShapePoint();
+        p.setId(row + 1);
+        p.setShapeId(shapeIds.get(shapes[row]));
+        p.setSequence(sequences[row]);
+        p.setLat(lats[row]);
+        p.setLon(lons[row]);
+        if(distances != null) {
+            p.setDistTraveled(distances[row]);
+        }
+        return p;
+    }
+
+    /** Write all columns and the dictionary. */
+    void writeSnapshot(GtfsSnapshot.Output out) throws IOException {
+        out.writeInt(rows);
+        out.writeInt(shapeIds.size());
+        for (AgencyAndId id : shapeIds) {
+            out.writeId(id);
+        }
+        out.writeInts(shapes, rows);
+        out.writeInts(sequences, rows);
+        out.writeDoubles(lats, rows);
+        out.writeDoubles(lons, rows);
+        out.writeBoolean(distances != null);
+        if(distances != null) {
+            out.writeDoubles(distances, rows);
+        }
+        out.writeLongs(removed.toLongArray());
+    }
+
+    /** Read the content written by {@link #writeSnapshot(GtfsSnapshot.Output)} into this empty store. */
+    void readSnapshot(GtfsSnapshot.Input in) {
+        int n = in.readInt();
+        ensureCapacity(n);
+        for (int i = in.readInt(); i > 0; i--) {
+            indexOf(in.readId());
+        }
+        in.readInts(shapes, n);
+        in.readInts(sequences, n);
+        in.readDoubles(lats, n);
+        in.readDoubles(lons, n);
+        if(in.readBoolean()) {
+            distances = new double[shapes.length];
+            in.readDoubles(distances, n);
+        }
+        rows = n;
+        removed.or(BitSet.valueOf(in.readLongs()));
+        removedCount = removed.cardinality();
+    }
+
+    @Override
+    public Iterator<ShapePoint> iterator() {
+        return new Iterator<ShapePoint>() {
+            private int current = -1;
+            private int next = removed.nextClearBit(0);
+
+            @Override public boolean hasNext() {
+                return next < rows;
+            }
+
+            @Override public ShapePoint next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                current = next;
+                next = removed.nextClearBit(next + 1);
+                return get(current);
+            }
+
+            @Override public void remove() {
+                if(current < 0 || removed.get(current)) {
+                    throw new IllegalStateException();
+                }
+                removed.set(current);
+                ++removedCount;
+            }
+        };
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public int size() {
+        return rows - removedCount;
+    }
+
+    @Override
+    public boolean logChanged() {
+        int size = size();
+        if(lastChangeSize == size) return false;
+        ChangeTracked.logChange(name, lastChangeSize, size);
+        lastChangeSize = size;
+        return true;
+    }
+
+    @Override
+    public void resetChangeTracking() {
+        lastChangeSize = size();
+    }
+
+    private int indexOf(AgencyAndId shapeId) {
+        Integer i = shapeIndex.get(shapeId);
+        if(i == null) {
+            i = shapeIds.size();
+            shapeIds.add(shapeId);
+            shapeIndex.put(shapeId, i);
+        }
+        return i;
+    }
+
+    private void removeAll(BitSet marked) {
+        removed.or(marked);
+        removedCount = removed.cardinality();
+    }
+
+    /**
+     * Call the action with the rows of each shape not removed, sorted by sequence. The
+     * rows of a shape are grouped the same way as the StopTimes of a trip, see
+     * {@link StopTimeStore.RowIndex}.
+     */
+    private void forEachShape(Parallel parallel, ShapeAction action) {
+        int numberOfShapes = numberOfShapes();
+        int[] start = new int[numberOfShapes + 1];
+        for (int row = removed.nextClearBit(0); row < rows; row = removed.nextClearBit(row + 1)) {
+            start[shapes[row] + 1]++;
+        }
+        for (int s = 0; s < numberOfShapes; s++) {
+            start[s + 1] += start[s];
+        }
+        int[] byShape = new int[start[numberOfShapes]];
+        int[] next = Arrays.copyOf(start, numberOfShapes);
+        for (int row = removed.nextClearBit(0); row < rows; row = removed.nextClearBit(row + 1)) {
+            byShape[next[shapes[row]]++] = row;
+        }
+        parallel.forEach(numberOfShapes, s -> {
+            int n = start[s + 1] - start[s];
+            if(n == 0) return;
+            int[] points = Arrays.copyOfRange(byShape, start[s], start[s + 1]);
+            sortBySequence(points);
+            action.accept(points, n);
+        });
+    }
+
+    /** Sort the rows by sequence, the rows of a shape are usually already sorted. */
+    private void sortBySequence(int[] points) {
+        for (int i = 1; i < points.length; i++) {
+            int row = points[i];
+            int j = i - 1;
+            while (j >= 0 && sequences[points[j]] > sequences[row]) {
+                points[j + 1] = points[j];
+                --j;
+            }
+            points[j + 1] = row;
+        }
+    }
+
+    private static double squaredDistanceToSegment(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double length2 = dx * dx + dy * dy;
+        double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / length2));
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity <= shapes.length) return;
+        int n = Math.max(capacity, shapes.length + (shapes.length >> 1));
+        shapes = Arrays.copyOf(shapes, n);
+        sequences = Arrays.copyOf(sequences, n);
+        lats = Arrays.copyOf(lats, n);
+        lons = Arrays.copyOf(lons, n);
+        if(distances != null) distances = Arrays.copyOf(distances, n);
+    }
+
+    private interface ShapeAction {
+        /** @param points the rows of the shape sorted by sequence. */
+        void accept(int[] points, int n);
+    }
+}
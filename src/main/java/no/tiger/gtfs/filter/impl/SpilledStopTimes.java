@@ -0,0 +1,201 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The stop_times.txt rows spilled to temporary files sorted by trip id and stop sequence,
+ * for feeds where the stop times do not fit in memory.
+ * <p>
+ * The rows are read into a buffer until the memory budget is used, then the buffer is
+ * sorted and written to a run file. The runs are merged while they are read, the rows of
+ * a trip then come together and in stop sequence order, so a pass over the stop times can
+ * be joined with the sorted trip ids in memory. If there are more than
+ * {@value #MAX_MERGED_RUNS} runs they are first merged into fewer, longer runs, so the
+ * memory used by a pass does not depend on the size of the feed.
+ */
+class SpilledStopTimes implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SpilledStopTimes.class);
+    private static final int MAX_MERGED_RUNS = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** The estimated memory used by a buffered row, not counting the characters. */
+    private static final int ROW_OVERHEAD = 160;
+
+    private static final Comparator<Row> ORDER = Comparator
+            .comparing((Row r) -> r.tripId)
+            .thenComparingInt(r -> r.stopSequence);
+
+    private final String header;
+    private final long memoryBudget;
+    private final List<Row> buffer = new ArrayList<>();
+    private long bufferSize = 0;
+    private List<File> runs = new ArrayList<>();
+    private long rows = 0;
+
+    /**
+     * @param memoryBudget the memory in bytes used to sort the rows.
+     */
+    SpilledStopTimes(String header, long memoryBudget) {
+        this.header = header;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** Add a row, the buffer is written to a new run when full. */
+    void add(String tripId, int stopSequence, String stopId, String line) throws IOException {
+        buffer.add(new Row(tripId, stopSequence, stopId, line));
+        bufferSize += ROW_OVERHEAD + 2L * (tripId.length() + stopId.length() + line.length());
+        ++rows;
+        if(bufferSize >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /** Write the last rows, call when all rows are added. */
+    void complete() throws IOException {
+        if(!buffer.isEmpty()) spill();
+        while (runs.size() > MAX_MERGED_RUNS) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MAX_MERGED_RUNS) {
+                List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGED_RUNS));
+                File run = newRun();
+                try (DataOutputStream out = output(run)) {
+                    merge(group, row -> row.write(out));
+                }
+                group.forEach(File::delete);
+                merged.add(run);
+            }
+            LOG.info("Merged {} runs into {}", runs.size(), merged.size());
+            runs = merged;
+        }
+        LOG.info("Spilled {} stop times in {} runs", rows, runs.size());
+    }
+
+    String header() {
+        return header;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    /** Visit all rows, sorted by trip id and stop sequence. */
+    void forEach(RowVisitor visitor) throws IOException {
+        merge(runs, visitor);
+    }
+
+    @Override
+    public void close() {
+        runs.forEach(File::delete);
+        runs.clear();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(ORDER);
+        File run = newRun();
+        try (DataOutputStream out = output(run)) {
+            for (Row row : buffer) {
+                row.write(out);
+            }
+        }
+        runs.add(run);
+        buffer.clear();
+        bufferSize = 0;
+    }
+
+    private static void merge(List<File> runs, RowVisitor visitor) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> ORDER.compare(a.row, b.row));
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if(reader.next()) queue.add(reader);
+                else reader.close();
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                visitor.visit(reader.row);
+                if(reader.next()) queue.add(reader);
+                else reader.close();
+            }
+        }
+        finally {
+            for (RunReader reader : queue) reader.close();
+        }
+    }
+
+    private static File newRun() throws IOException {
+        File run = File.createTempFile("stop_times-", ".run");
+        run.deleteOnExit();
+        return run;
+    }
+
+    private static DataOutputStream output(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+    }
+
+    /** A stop_times.txt row with the columns used to sort and join it. */
+    static class Row {
+        final String tripId;
+        final int stopSequence;
+        final String stopId;
+        final String line;
+
+        Row(String tripId, int stopSequence, String stopId, String line) {
+            this.tripId = tripId;
+            this.stopSequence = stopSequence;
+            this.stopId = stopId;
+            this.line = line;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(tripId);
+            out.writeInt(stopSequence);
+            out.writeUTF(stopId);
+            out.writeUTF(line);
+        }
+    }
+
+    interface RowVisitor {
+        void visit(Row row) throws IOException;
+    }
+
+    private static class RunReader implements Closeable {
+        private final DataInputStream in;
+        private Row row;
+
+        RunReader(File run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            String tripId;
+            try {
+                tripId = in.readUTF();
+            }
+            catch (EOFException e) {
+                return false;
+            }
+            row = new Row(tripId, in.readInt(), in.readUTF(), in.readUTF());
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
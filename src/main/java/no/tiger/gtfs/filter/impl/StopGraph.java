@@ -0,0 +1,257 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Transfer;
+import org.onebusaway.gtfs.model.Trip;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * The stops connected by trips and transfers, to find the stops reachable from a set of
+ * seed stops. There is an edge between the stops of two consecutive StopTimes of a trip,
+ * and between the stops of a transfer. The edges are followed in both directions, so
+ * the lines into the seed stops are kept as well as the lines out of them.
+ * <p>
+ * The distinct edges are collected in an open addressing table, with the shortest travel
+ * time over all trips, and then stored in compressed sparse rows: the neighbours of node
+ * {@code n} are {@code edgeTo[edgeStart[n]]} until {@code edgeTo[edgeStart[n+1]]}. A node
+ * is the index of the stop in {@link CountSet#all()}. A StopTime without times counts as
+ * reached at the time of the previous timed StopTime.
+ */
+class StopGraph {
+    private static final long EMPTY = -1L;
+
+    private final int numberOfNodes;
+    private final int[] edgeStart;
+    private final int[] edgeTo;
+    private final int[] edgeTime;
+
+    /** The distinct edges while building, the key is {@code minNode << 32 | maxNode}. */
+    private long[] keys = new long[1024];
+    private int[] times = new int[1024];
+    private int numberOfEdges = 0;
+
+    /**
+     * @param node the node of the stop, or -1 if the stop is not in the graph.
+     * @param include the trips to add edges for.
+     */
+    StopGraph(
+            int numberOfNodes,
+            ToIntFunction<Stop> node,
+            StopTimeStore stopTimes,
+            StopTimeStore.RowIndex byTrip,
+            Predicate<Trip> include,
+            Collection<Transfer> transfers
+    ) {
+        this.numberOfNodes = numberOfNodes;
+        Arrays.fill(keys, EMPTY);
+
+        int[] nodeOfStop = new int[stopTimes.numberOfStops()];
+        for (int s = 0; s < nodeOfStop.length; s++) {
+            Stop stop = stopTimes.stop(s);
+            nodeOfStop[s] = stop == null ? -1 : node.applyAsInt(stop);
+        }
+        int[] rows = new int[16];
+        for (int t = 0; t < stopTimes.numberOfTrips(); t++) {
+            int n = byTrip.size(t);
+            Trip trip = stopTimes.trip(t);
+            if(n < 2 || trip == null || !include.test(trip)) continue;
+            if(n > rows.length) rows = new int[2 * n];
+            for (int i = 0; i < n; i++) {
+                rows[i] = byTrip.row(t, i);
+            }
+            stopTimes.sortByStopSequence(rows, n);
+            int prevNode = -1;
+            int prevTime = StopTime.MISSING_VALUE;
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                int to = nodeOfStop[stopTimes.stopIndex(row)];
+                if(to < 0) continue;
+                int arrival = stopTimes.arrivalTime(row);
+                int departure = stopTimes.departureTime(row);
+                if(arrival == StopTime.MISSING_VALUE) arrival = departure;
+                if(prevNode >= 0) {
+                    boolean timed = arrival != StopTime.MISSING_VALUE && prevTime != StopTime.MISSING_VALUE;
+                    addEdge(prevNode, to, timed ? Math.max(0, arrival - prevTime) : 0);
+                }
+                prevNode = to;
+                if(departure != StopTime.MISSING_VALUE) prevTime = departure;
+                else if(arrival != StopTime.MISSING_VALUE) prevTime = arrival;
+            }
+        }
+        for (Transfer tx : transfers) {
+            if(tx.getFromStop() == null || tx.getToStop() == null) continue;
+            int from = node.applyAsInt(tx.getFromStop());
+            int to = node.applyAsInt(tx.getToStop());
+            if(from >= 0 && to >= 0) {
+                addEdge(from, to, tx.isMinTransferTimeSet() ? Math.max(0, tx.getMinTransferTime()) : 0);
+            }
+        }
+
+        // Both directions of each edge, counted then filled per node
+        this.edgeStart = new int[numberOfNodes + 1];
+        for (long key : keys) {
+            if(key == EMPTY) continue;
+            edgeStart[(int) (key >>> 32) + 1]++;
+            edgeStart[(int) key + 1]++;
+        }
+        for (int i = 0; i < numberOfNodes; i++) {
+            edgeStart[i + 1] += edgeStart[i];
+        }
+        this.edgeTo = new int[edgeStart[numberOfNodes]];
+        this.edgeTime = new int[edgeTo.length];
+        int[] next = Arrays.copyOf(edgeStart, numberOfNodes);
+        for (int k = 0; k < keys.length; k++) {
+            if(keys[k] == EMPTY) continue;
+            int a = (int) (keys[k] >>> 32);
+            int b = (int) keys[k];
+            edgeTo[next[a]] = b;
+            edgeTime[next[a]++] = times[k];
+            edgeTo[next[b]] = a;
+            edgeTime[next[b]++] = times[k];
+        }
+        this.keys = null;
+        this.times = null;
+    }
+
+    int numberOfNodes() {
+        return numberOfNodes;
+    }
+
+    /** The number of distinct stop pairs connected. */
+    int numberOfEdges() {
+        return edgeTo.length / 2;
+    }
+
+    /**
+     * Breadth first search from the seeds.
+     * @return the nodes at most {@code maxHops} edges from a seed, the seeds included.
+     */
+    BitSet withinHops(BitSet seeds, int maxHops) {
+        BitSet reached = (BitSet) seeds.clone();
+        // Each node is queued once, the nodes of each hop follow the nodes of the previous hop
+        int[] queue = new int[numberOfNodes];
+        int end = 0;
+        for (int n = seeds.nextSetBit(0); n >= 0; n = seeds.nextSetBit(n + 1)) {
+            queue[end++] = n;
+        }
+        int start = 0;
+        for (int hop = 0; hop < maxHops && start < end; hop++) {
+            int hopEnd = end;
+            for (int i = start; i < hopEnd; i++) {
+                int n = queue[i];
+                for (int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+                    int to = edgeTo[e];
+                    if(!reached.get(to)) {
+                        reached.set(to);
+                        queue[end++] = to;
+                    }
+                }
+            }
+            start = hopEnd;
+        }
+        return reached;
+    }
+
+    /**
+     * Shortest path search from the seeds, the queue is a binary heap of
+     * {@code time << 32 | node}, with outdated entries skipped when taken.
+     * @return the nodes reached in at most {@code maxSeconds} from a seed, the seeds included.
+     */
+    BitSet withinTime(BitSet seeds, int maxSeconds) {
+        int[] time = new int[numberOfNodes];
+        Arrays.fill(time, Integer.MAX_VALUE);
+        BitSet reached = new BitSet(numberOfNodes);
+        long[] heap = new long[Math.max(16, seeds.cardinality())];
+        int size = 0;
+        for (int n = seeds.nextSetBit(0); n >= 0; n = seeds.nextSetBit(n + 1)) {
+            time[n] = 0;
+            heap[size++] = n;
+        }
+        while (size > 0) {
+            long top = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size);
+            int n = (int) top;
+            int t = (int) (top >>> 32);
+            if(t > time[n] || reached.get(n)) continue;
+            reached.set(n);
+            for (int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+                int to = edgeTo[e];
+                long arrival = (long) t + edgeTime[e];
+                if(arrival > maxSeconds || arrival >= time[to]) continue;
+                time[to] = (int) arrival;
+                if(size == heap.length) heap = Arrays.copyOf(heap, 2 * size);
+                heap[size] = arrival << 32 | to;
+                siftUp(heap, size++);
+            }
+        }
+        return reached;
+    }
+
+    private void addEdge(int a, int b, int time) {
+        if(a == b) return;
+        long key = (long) Math.min(a, b) << 32 | Math.max(a, b);
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                times[i] = Math.min(times[i], time);
+                return;
+            }
+            if(keys[i] == EMPTY) {
+                keys[i] = key;
+                times[i] = time;
+                if(2 * ++numberOfEdges > keys.length) rehash();
+                return;
+            }
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldTimes = times;
+        keys = new long[2 * oldKeys.length];
+        times = new int[keys.length];
+        Arrays.fill(keys, EMPTY);
+        int mask = keys.length - 1;
+        for (int k = 0; k < oldKeys.length; k++) {
+            if(oldKeys[k] == EMPTY) continue;
+            int i = mix(oldKeys[k]) & mask;
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = oldKeys[k];
+            times[i] = oldTimes[k];
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        long v = heap[i];
+        while (i > 0 && heap[(i - 1) / 2] > v) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = v;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        if(size == 0) return;
+        long v = heap[0];
+        int i = 0;
+        for (int c = 1; c < size; c = 2 * i + 1) {
+            if(c + 1 < size && heap[c + 1] < heap[c]) c++;
+            if(heap[c] >= v) break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = v;
+    }
+}
@@ -0,0 +1,114 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.Stop;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A grid over the coordinates of all stops loaded, to find the stops inside a
+ * {@link Region} without testing all stops. The cells overlapping the bounds of the
+ * region are visited, and the exact test is only run for the stops inside the bounds.
+ * <p>
+ * The grid has about {@value #STOPS_PER_CELL} stops per cell, and the stops are kept in
+ * cell order in primitive arrays. The result is a bitmap over the positions of the stops
+ * in the list the index is built from, see {@link CountSet#all()}. The index is built
+ * once per feed and shared by all views, it is read only and thread safe.
+ */
+class StopIndex {
+    private static final int STOPS_PER_CELL = 4;
+
+    private final int size;
+    /** The position in the input list of each stop, in cell order. */
+    private final int[] positions;
+    private final double[] lats;
+    private final double[] lons;
+    private final double minLat;
+    private final double minLon;
+    private final double cellHeight;
+    private final double cellWidth;
+    private final int rows;
+    private final int columns;
+    /** The stops in cell {@code c} are at {@code cellStart[c]} until {@code cellStart[c+1]}. */
+    private final int[] cellStart;
+
+    StopIndex(List<Stop> all) {
+        int n = all.size();
+        Stop[] input = all.toArray(new Stop[0]);
+        this.size = n;
+        double minLat = Double.MAX_VALUE, minLon = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (Stop s : input) {
+            minLat = Math.min(minLat, s.getLat());
+            maxLat = Math.max(maxLat, s.getLat());
+            minLon = Math.min(minLon, s.getLon());
+            maxLon = Math.max(maxLon, s.getLon());
+        }
+        if(n == 0) {
+            minLat = minLon = maxLat = maxLon = 0;
+        }
+        // Square cells in degrees, sized to give the target number of stops per cell
+        double height = Math.max(maxLat - minLat, Double.MIN_NORMAL);
+        double width = Math.max(maxLon - minLon, Double.MIN_NORMAL);
+        double cells = Math.max(1.0, (double) n / STOPS_PER_CELL);
+        double side = Math.sqrt(height * width / cells);
+        this.rows = (int) Math.max(1, Math.min(cells, Math.ceil(height / side)));
+        this.columns = (int) Math.max(1, Math.min(cells, Math.ceil(width / side)));
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.cellHeight = height / rows;
+        this.cellWidth = width / columns;
+
+        int[] cellOf = new int[n];
+        this.cellStart = new int[rows * columns + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = row(input[i].getLat()) * columns + column(input[i].getLon());
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < rows * columns; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] next = new int[rows * columns];
+        System.arraycopy(cellStart, 0, next, 0, next.length);
+        this.positions = new int[n];
+        this.lats = new double[n];
+        this.lons = new double[n];
+        for (int i = 0; i < n; i++) {
+            int k = next[cellOf[i]]++;
+            positions[k] = i;
+            lats[k] = input[i].getLat();
+            lons[k] = input[i].getLon();
+        }
+    }
+
+    /**
+     * @return the positions of the stops inside the region.
+     */
+    BitSet inside(Region region) {
+        BitSet result = new BitSet(size);
+        if(size == 0) return result;
+        Box bounds = region.bounds();
+        boolean isBox = region == bounds;
+        int r0 = row(bounds.minLat()), r1 = row(bounds.maxLat());
+        int c0 = column(bounds.minLon()), c1 = column(bounds.maxLon());
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * columns + c;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    if(bounds.inside(lats[i], lons[i]) && (isBox || region.inside(lats[i], lons[i]))) {
+                        result.set(positions[i]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / cellHeight)));
+    }
+
+    private int column(double lon) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor((lon - minLon) / cellWidth)));
+    }
+}
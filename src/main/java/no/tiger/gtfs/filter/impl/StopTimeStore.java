@@ -0,0 +1,662 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+
+/**
+ * Column store for StopTimes, the by far largest table in a feed.
+ * <p>
+ * Each column is kept in a primitive array indexed by row. Trips, Stops and strings
+ * are stored as an index into a dictionary, and removed rows are marked in a
+ * {@link BitSet}. Columns that are rarely used (id, headsign, route short name and
+ * shape distance) are not allocated before a row has a value for them.
+ * <p>
+ * Iterating over the collection creates a new {@link StopTime} for each row, the
+ * objects are not kept.
+ * <p>
+ * A {@link #view()} shares the columns and dictionaries, only the removed rows are
+ * kept per view. Rows can not be added after the first view is created.
+ * <p>
+ * A store created with {@link #keyColumns(String)} keeps only the Trip and Stop of each
+ * row, the StopTimes created from it have no times, stop sequence or other values.
+ */
+class StopTimeStore extends AbstractCollection<StopTime> implements ChangeTracked {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte MISSING_TIMEPOINT = -1;
+
+    private final String name;
+    private final Dictionary<Trip> tripDictionary;
+    private final Dictionary<Stop> stopDictionary;
+    private final Dictionary<String> stringDictionary;
+    private final BitSet removed;
+    private final boolean keyColumns;
+
+    private int[] trips = new int[INITIAL_CAPACITY];
+    private int[] stops = new int[INITIAL_CAPACITY];
+    private int[] arrivalTimes = new int[INITIAL_CAPACITY];
+    private int[] departureTimes = new int[INITIAL_CAPACITY];
+    private int[] stopSequences = new int[INITIAL_CAPACITY];
+    private byte[] timepoints = new byte[INITIAL_CAPACITY];
+    private byte[] pickupTypes = new byte[INITIAL_CAPACITY];
+    private byte[] dropOffTypes = new byte[INITIAL_CAPACITY];
+    private int[] ids = null;
+    private int[] stopHeadsigns = null;
+    private int[] routeShortNames = null;
+    private double[] shapeDistTraveled = null;
+
+    private int rows = 0;
+    private int removedCount = 0;
+    private int lastChangeSize = 0;
+    private boolean shared = false;
+
+    StopTimeStore(String name) {
+        this(name, false);
+    }
+
+    private StopTimeStore(String name, boolean keyColumns) {
+        this.name = name;
+        this.tripDictionary = new Dictionary<>();
+        this.stopDictionary = new Dictionary<>();
+        this.stringDictionary = new Dictionary<>();
+        this.removed = new BitSet();
+        this.keyColumns = keyColumns;
+        if(keyColumns) {
+            arrivalTimes = null;
+            departureTimes = null;
+            stopSequences = null;
+            timepoints = null;
+            pickupTypes = null;
+            dropOffTypes = null;
+        }
+    }
+
+    /**
+     * Create a store keeping only the Trip and Stop of each row, add rows with
+     * {@link #add(int, Trip, Stop)}.
+     */
+    static StopTimeStore keyColumns(String name) {
+        return new StopTimeStore(name, true);
+    }
+
+    private StopTimeStore(StopTimeStore base) {
+        this.name = base.name;
+        this.tripDictionary = base.tripDictionary;
+        this.stopDictionary = base.stopDictionary;
+        this.stringDictionary = base.stringDictionary;
+        this.removed = (BitSet) base.removed.clone();
+        this.keyColumns = base.keyColumns;
+        this.trips = base.trips;
+        this.stops = base.stops;
+        this.arrivalTimes = base.arrivalTimes;
+        this.departureTimes = base.departureTimes;
+        this.stopSequences = base.stopSequences;
+        this.timepoints = base.timepoints;
+        this.pickupTypes = base.pickupTypes;
+        this.dropOffTypes = base.dropOffTypes;
+        this.ids = base.ids;
+        this.stopHeadsigns = base.stopHeadsigns;
+        this.routeShortNames = base.routeShortNames;
+        this.shapeDistTraveled = base.shapeDistTraveled;
+        this.rows = base.rows;
+        this.removedCount = base.removedCount;
+        this.lastChangeSize = base.lastChangeSize;
+        this.shared = true;
+    }
+
+    /**
+     * Create a new store with the same rows, sharing the columns with this store.
+     */
+    StopTimeStore view() {
+        shared = true;
+        return new StopTimeStore(this);
+    }
+
+    @Override
+    public boolean add(StopTime st) {
+        add(
+                st.getId(), st.getTrip(), st.getStop(), st.getArrivalTime(), st.getDepartureTime(),
+                st.getStopSequence(), st.getTimepoint(), st.getPickupType(), st.getDropOffType(),
+                st.getStopHeadsign(), st.getRouteShortName(), st.getShapeDistTraveled()
+        );
+        return true;
+    }
+
+    /**
+     * Add a row without creating a {@link StopTime}. Missing times, timepoint and shape
+     * distance are {@link StopTime#MISSING_VALUE}.
+     */
+    void add(
+            int id, Trip trip, Stop stop, int arrivalTime, int departureTime, int stopSequence,
+            int timepoint, int pickupType, int dropOffType, String stopHeadsign, String routeShortName,
+            double shapeDist
+    ) {
+        if(keyColumns) {
+            throw new IllegalStateException("Only the Trip and Stop are kept: " + trip + " " + stop);
+        }
+        int row = addRow(id, trip, stop);
+        arrivalTimes[row] = arrivalTime;
+        departureTimes[row] = departureTime;
+        stopSequences[row] = stopSequence;
+        timepoints[row] = timepoint != StopTime.MISSING_VALUE ? (byte) timepoint : MISSING_TIMEPOINT;
+        pickupTypes[row] = (byte) pickupType;
+        dropOffTypes[row] = (byte) dropOffType;
+
+        if(stopHeadsigns != null || stopHeadsign != null) {
+            stopHeadsigns = allocate(stopHeadsigns, i -> 0);
+            stopHeadsigns[row] = stringDictionary.indexOf(stopHeadsign);
+        }
+        if(routeShortNames != null || routeShortName != null) {
+            routeShortNames = allocate(routeShortNames, i -> 0);
+            routeShortNames[row] = stringDictionary.indexOf(routeShortName);
+        }
+        if(shapeDistTraveled != null || shapeDist != StopTime.MISSING_VALUE) {
+            if(shapeDistTraveled == null) {
+                shapeDistTraveled = new double[trips.length];
+                Arrays.fill(shapeDistTraveled, StopTime.MISSING_VALUE);
+            }
+            shapeDistTraveled[row] = shapeDist;
+        }
+    }
+
+    /**
+     * Add a row with only the Trip and Stop, to a store keeping only the key columns.
+     */
+    void add(int id, Trip trip, Stop stop) {
+        if(!keyColumns) {
+            throw new IllegalStateException("All columns are kept: " + trip + " " + stop);
+        }
+        addRow(id, trip, stop);
+    }
+
+    private int addRow(int id, Trip trip, Stop stop) {
+        if(shared) {
+            throw new IllegalStateException("Can not add rows after a view is created: " + trip + " " + stop);
+        }
+        ensureCapacity(rows + 1);
+        int row = rows++;
+        trips[row] = tripDictionary.indexOf(trip);
+        stops[row] = stopDictionary.indexOf(stop);
+        if(ids != null || id != row + 1) {
+            ids = allocate(ids, i -> i + 1);
+            ids[row] = id;
+        }
+        return row;
+    }
+
+    /**
+     * Append all rows in the other store, the rows get new ids. Used to merge StopTimes
+     * read in parallel, in order.
+     */
+    void append(StopTimeStore other) {
+        if(shared) {
+            throw new IllegalStateException("Can not add rows after a view is created");
+        }
+        if(keyColumns || other.keyColumns) {
+            throw new IllegalStateException("Can not append a store keeping only the key columns");
+        }
+        int n = other.rows;
+        ensureCapacity(rows + n);
+        int[] tripMap = other.tripDictionary.mapTo(tripDictionary);
+        int[] stopMap = other.stopDictionary.mapTo(stopDictionary);
+        for (int i = 0; i < n; i++) {
+            trips[rows + i] = tripMap[other.trips[i]];
+            stops[rows + i] = stopMap[other.stops[i]];
+        }
+        System.arraycopy(other.arrivalTimes, 0, arrivalTimes, rows, n);
+        System.arraycopy(other.departureTimes, 0, departureTimes, rows, n);
+        System.arraycopy(other.stopSequences, 0, stopSequences, rows, n);
+        System.arraycopy(other.timepoints, 0, timepoints, rows, n);
+        System.arraycopy(other.pickupTypes, 0, pickupTypes, rows, n);
+        System.arraycopy(other.dropOffTypes, 0, dropOffTypes, rows, n);
+
+        if(ids != null) {
+            for (int i = rows; i < rows + n; i++) {
+                ids[i] = i + 1;
+            }
+        }
+        if(stopHeadsigns != null || other.stopHeadsigns != null) {
+            stopHeadsigns = allocate(stopHeadsigns, i -> 0);
+            appendStrings(other, other.stopHeadsigns, stopHeadsigns, n);
+        }
+        if(routeShortNames != null || other.routeShortNames != null) {
+            routeShortNames = allocate(routeShortNames, i -> 0);
+            appendStrings(other, other.routeShortNames, routeShortNames, n);
+        }
+        if(shapeDistTraveled != null || other.shapeDistTraveled != null) {
+            if(shapeDistTraveled == null) {
+                shapeDistTraveled = new double[trips.length];
+                Arrays.fill(shapeDistTraveled, 0, rows, StopTime.MISSING_VALUE);
+            }
+            if(other.shapeDistTraveled == null) {
+                Arrays.fill(shapeDistTraveled, rows, rows + n, StopTime.MISSING_VALUE);
+            }
+            else {
+                System.arraycopy(other.shapeDistTraveled, 0, shapeDistTraveled, rows, n);
+            }
+        }
+        for (int i = other.removed.nextSetBit(0); i >= 0 && i < n; i = other.removed.nextSetBit(i + 1)) {
+            removed.set(rows + i);
+            ++removedCount;
+        }
+        rows += n;
+    }
+
+    private void appendStrings(StopTimeStore other, int[] from, int[] to, int n) {
+        if(from == null) {
+            Arrays.fill(to, rows, rows + n, 0);
+            return;
+        }
+        int[] stringMap = other.stringDictionary.mapTo(stringDictionary);
+        for (int i = 0; i < n; i++) {
+            to[rows + i] = stringMap[from[i]];
+        }
+    }
+
+    /** Number of rows, including the removed ones. Use this as upper bound when looping over rows. */
+    int rows() {
+        return rows;
+    }
+
+    boolean isRemoved(int row) {
+        return removed.get(row);
+    }
+
+    /**
+     * Mark the row as removed.
+     * @return {@code true} if the row was not removed before.
+     */
+    boolean remove(int row) {
+        if(removed.get(row)) return false;
+        removed.set(row);
+        ++removedCount;
+        return true;
+    }
+
+    /** Remove all rows with a Trip matching the filter, the filter is called once for each Trip. */
+    void removeIfTrip(Predicate<Trip> filter, Parallel parallel) {
+        BitSet match = parallel.mark(numberOfTrips(), i -> i > 0 && filter.test(trip(i)));
+        removeAll(parallel.mark(rows, row -> !removed.get(row) && match.get(trips[row])));
+    }
+
+    /** Remove all marked rows. */
+    void removeAll(BitSet rows) {
+        removed.or(rows);
+        removedCount = removed.cardinality();
+    }
+
+    int tripIndex(int row) {
+        return trips[row];
+    }
+
+    int stopIndex(int row) {
+        return stops[row];
+    }
+
+    int arrivalTime(int row) {
+        return arrivalTimes[row];
+    }
+
+    int departureTime(int row) {
+        return departureTimes[row];
+    }
+
+    int stopSequence(int row) {
+        return stopSequences[row];
+    }
+
+    /** Sort the first {@code n} rows by stop sequence, the rows of a trip are usually already sorted. */
+    void sortByStopSequence(int[] rows, int n) {
+        for (int i = 1; i < n; i++) {
+            int row = rows[i];
+            int j = i - 1;
+            while (j >= 0 && stopSequences[rows[j]] > stopSequences[row]) {
+                rows[j + 1] = rows[j];
+                --j;
+            }
+            rows[j + 1] = row;
+        }
+    }
+
+    /**
+     * The departure time at the first stop of the trip, the arrival time if the departure
+     * time is missing, or {@link StopTime#MISSING_VALUE} if the trip has no StopTimes.
+     */
+    int firstDeparture(RowIndex byTrip, int tripIndex) {
+        int first = -1;
+        for (int i = 0; i < byTrip.size(tripIndex); i++) {
+            int row = byTrip.row(tripIndex, i);
+            if(first < 0 || stopSequences[row] < stopSequences[first]) first = row;
+        }
+        if(first < 0) return StopTime.MISSING_VALUE;
+        return departureTimes[first] != StopTime.MISSING_VALUE ? departureTimes[first] : arrivalTimes[first];
+    }
+
+    Trip trip(int tripIndex) {
+        return tripDictionary.get(tripIndex);
+    }
+
+    Stop stop(int stopIndex) {
+        return stopDictionary.get(stopIndex);
+    }
+
+    /** @return the Trip index, or -1 if no StopTime refer to the Trip. */
+    int indexOf(Trip trip) {
+        return tripDictionary.find(trip);
+    }
+
+    /** @return the Stop index, or -1 if no StopTime refer to the Stop. */
+    int indexOf(Stop stop) {
+        return stopDictionary.find(stop);
+    }
+
+    /** Upper bound for Trip indexes. */
+    int numberOfTrips() {
+        return tripDictionary.size();
+    }
+
+    /** Upper bound for Stop indexes. */
+    int numberOfStops() {
+        return stopDictionary.size();
+    }
+
+    /** Index of all rows not removed by Trip. */
+    RowIndex indexByTrip(Parallel parallel) {
+        return new RowIndex(trips, numberOfTrips(), parallel);
+    }
+
+    /** Index of all rows not removed by Stop. */
+    RowIndex indexByStop(Parallel parallel) {
+        return new RowIndex(stops, numberOfStops(), parallel);
+    }
+
+    /** Create a new StopTime with the values of the given row. */
+    StopTime get(int row) {
+        StopTime st = new StopTime();
+        st.setId(ids == null ? row + 1 : ids[row]);
+        st.setTrip(trip(trips[row]));
+        st.setStop(stop(stops[row]));
+        if(keyColumns) return st;
+        st.setArrivalTime(arrivalTimes[row]);
+        st.setDepartureTime(departureTimes[row]);
+        st.setStopSequence(stopSequences[row]);
+        if(timepoints[row] != MISSING_TIMEPOINT) {
+            st.setTimepoint(timepoints[row]);
+        }
+        st.setPickupType(pickupTypes[row]);
+        st.setDropOffType(dropOffTypes[row]);
+        if(stopHeadsigns != null) {
+            st.setStopHeadsign(stringDictionary.get(stopHeadsigns[row]));
+        }
+        if(routeShortNames != null) {
+            st.setRouteShortName(stringDictionary.get(routeShortNames[row]));
+        }
+        if(shapeDistTraveled != null) {
+            st.setShapeDistTraveled(shapeDistTraveled[row]);
+        }
+        return st;
+    }
+
+    /** Write all columns and dictionaries, the Trips and Stops must already be in the snapshot. */
+    void writeSnapshot(GtfsSnapshot.Output out) throws IOException {
+        if(keyColumns) {
+            throw new IllegalStateException("Can not snapshot a store keeping only the key columns");
+        }
+        out.writeInt(rows);
+        out.writeInt(tripDictionary.size());
+        for (int i = 1; i < tripDictionary.size(); i++) {
+            out.writeRef(tripDictionary.get(i));
+        }
+        out.writeInt(stopDictionary.size());
+        for (int i = 1; i < stopDictionary.size(); i++) {
+            out.writeRef(stopDictionary.get(i));
+        }
+        out.writeInt(stringDictionary.size());
+        for (int i = 1; i < stringDictionary.size(); i++) {
+            out.writeString(stringDictionary.get(i));
+        }
+        out.writeInts(trips, rows);
+        out.writeInts(stops, rows);
+        out.writeInts(arrivalTimes, rows);
+        out.writeInts(departureTimes, rows);
+        out.writeInts(stopSequences, rows);
+        out.writeBytes(timepoints, rows);
+        out.writeBytes(pickupTypes, rows);
+        out.writeBytes(dropOffTypes, rows);
+        writeOptional(out, ids);
+        writeOptional(out, stopHeadsigns);
+        writeOptional(out, routeShortNames);
+        out.writeBoolean(shapeDistTraveled != null);
+        if(shapeDistTraveled != null) {
+            out.writeDoubles(shapeDistTraveled, rows);
+        }
+        out.writeLongs(removed.toLongArray());
+    }
+
+    /** Read the content written by {@link #writeSnapshot(GtfsSnapshot.Output)} into this empty store. */
+    void readSnapshot(GtfsSnapshot.Input in, List<Trip> tripTable, List<Stop> stopTable) {
+        int n = in.readInt();
+        ensureCapacity(n);
+        for (int i = in.readInt() - 1; i > 0; i--) {
+            tripDictionary.indexOf(in.readRef(tripTable));
+        }
+        for (int i = in.readInt() - 1; i > 0; i--) {
+            stopDictionary.indexOf(in.readRef(stopTable));
+        }
+        for (int i = in.readInt() - 1; i > 0; i--) {
+            stringDictionary.indexOf(in.readString());
+        }
+        in.readInts(trips, n);
+        in.readInts(stops, n);
+        in.readInts(arrivalTimes, n);
+        in.readInts(departureTimes, n);
+        in.readInts(stopSequences, n);
+        in.readBytes(timepoints, n);
+        in.readBytes(pickupTypes, n);
+        in.readBytes(dropOffTypes, n);
+        ids = readOptional(in, n);
+        stopHeadsigns = readOptional(in, n);
+        routeShortNames = readOptional(in, n);
+        if(in.readBoolean()) {
+            shapeDistTraveled = new double[trips.length];
+            in.readDoubles(shapeDistTraveled, n);
+        }
+        rows = n;
+        removed.or(BitSet.valueOf(in.readLongs()));
+        removedCount = removed.cardinality();
+    }
+
+    private void writeOptional(GtfsSnapshot.Output out, int[] column) throws IOException {
+        out.writeBoolean(column != null);
+        if(column != null) {
+            out.writeInts(column, rows);
+        }
+    }
+
+    private int[] readOptional(GtfsSnapshot.Input in, int n) {
+        if(!in.readBoolean()) return null;
+        int[] column = new int[trips.length];
+        in.readInts(column, n);
+        return column;
+    }
+
+    @Override
+    public Iterator<StopTime> iterator() {
+        return new Iterator<StopTime>() {
+            private int current = -1;
+            private int next = removed.nextClearBit(0);
+
+            @Override public boolean hasNext() {
+                return next < rows;
+            }
+
+            @Override public StopTime next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                current = next;
+                next = removed.nextClearBit(next + 1);
+                return get(current);
+            }
+
+            @Override public void remove() {
+                if(current < 0 || !StopTimeStore.this.remove(current)) {
+                    throw new IllegalStateException();
+                }
+            }
+        };
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public int size() {
+        return rows - removedCount;
+    }
+
+    @Override
+    public boolean logChanged() {
+        int size = size();
+        if(lastChangeSize == size) return false;
+        ChangeTracked.logChange(name, lastChangeSize, size);
+        lastChangeSize = size;
+        return true;
+    }
+
+    @Override
+    public void resetChangeTracking() {
+        lastChangeSize = size();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity <= trips.length) return;
+        int n = Math.max(capacity, trips.length + (trips.length >> 1));
+        trips = Arrays.copyOf(trips, n);
+        stops = Arrays.copyOf(stops, n);
+        if(!keyColumns) {
+            arrivalTimes = Arrays.copyOf(arrivalTimes, n);
+            departureTimes = Arrays.copyOf(departureTimes, n);
+            stopSequences = Arrays.copyOf(stopSequences, n);
+            timepoints = Arrays.copyOf(timepoints, n);
+            pickupTypes = Arrays.copyOf(pickupTypes, n);
+            dropOffTypes = Arrays.copyOf(dropOffTypes, n);
+        }
+        if(ids != null) ids = Arrays.copyOf(ids, n);
+        if(stopHeadsigns != null) stopHeadsigns = Arrays.copyOf(stopHeadsigns, n);
+        if(routeShortNames != null) routeShortNames = Arrays.copyOf(routeShortNames, n);
+        if(shapeDistTraveled != null) shapeDistTraveled = Arrays.copyOf(shapeDistTraveled, n);
+    }
+
+    /** Allocate an optional column, and fill in the values for the existing rows. */
+    private int[] allocate(int[] column, IntUnaryOperator initialValue) {
+        if(column != null) return column;
+        int[] c = new int[trips.length];
+        for (int i = 0; i < rows; i++) {
+            c[i] = initialValue.applyAsInt(i);
+        }
+        return c;
+    }
+
+    /**
+     * Rows grouped by the value of a column: the rows with value {@code v} is
+     * {@code rows[start[v]]} until {@code rows[start[v+1]]}, in row order.
+     */
+    class RowIndex {
+        private final int[] start;
+        private final int[] rows;
+
+        private RowIndex(int[] column, int numberOfValues, Parallel parallel) {
+            int n = StopTimeStore.this.rows;
+            AtomicIntegerArray counts = new AtomicIntegerArray(numberOfValues + 1);
+            parallel.forEach(n, row -> {
+                if(!isRemoved(row)) counts.incrementAndGet(column[row] + 1);
+            });
+            start = new int[numberOfValues + 1];
+            for (int v = 0; v < numberOfValues; v++) {
+                start[v + 1] = start[v] + counts.get(v + 1);
+            }
+            rows = new int[start[numberOfValues]];
+            AtomicIntegerArray next = new AtomicIntegerArray(Arrays.copyOf(start, numberOfValues));
+            parallel.forEach(n, row -> {
+                if(!isRemoved(row)) rows[next.getAndIncrement(column[row])] = row;
+            });
+            if(parallel.parallelism() > 1) {
+                parallel.forEach(numberOfValues, v -> Arrays.sort(rows, start[v], start[v + 1]));
+            }
+        }
+
+        int size(int value) {
+            return start[value + 1] - start[value];
+        }
+
+        int row(int value, int i) {
+            return rows[start[value] + i];
+        }
+    }
+
+    /**
+     * Map values to a dense index, the first value is {@code null} at index 0.
+     */
+    private static class Dictionary<T> {
+        private final List<T> values = new ArrayList<>();
+        private final Map<T, Integer> index = new HashMap<>();
+        private T last = null;
+        private int lastIndex = 0;
+
+        Dictionary() {
+            values.add(null);
+        }
+
+        int indexOf(T value) {
+            if(value == null) return 0;
+            // Rows are often added grouped by Trip
+            if(value == last) return lastIndex;
+            Integer i = index.get(value);
+            if(i == null) {
+                i = values.size();
+                values.add(value);
+                index.put(value, i);
+            }
+            last = value;
+            lastIndex = i;
+            return i;
+        }
+
+        /** @return the index in the target dictionary for each value in this dictionary. */
+        int[] mapTo(Dictionary<T> target) {
+            int[] map = new int[values.size()];
+            for (int i = 1; i < map.length; i++) {
+                map[i] = target.indexOf(values.get(i));
+            }
+            return map;
+        }
+
+        int find(T value) {
+            return value == null ? 0 : index.getOrDefault(value, -1);
+        }
+
+        T get(int i) {
+            return values.get(i);
+        }
+
+        int size() {
+            return values.size();
+        }
+
+    }
+}
@@ -0,0 +1,403 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.csv_entities.CSVLibrary;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.IdentityBean;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Transfer;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.ZipFile;
+
+/**
+ * Two pass filtering of a GTFS zip file, without loading all entities into memory.
+ * <p>
+ * Pass one reads only the key columns (ids, references, agency name, route short name,
+ * stop location) into a {@link GtfsModel}, so the normal {@code retain*} and
+ * {@link GtfsModel#cleanupAll()} methods can be used. Only the Trip and Stop index of
+ * each stop time is kept, no {@link StopTime}s are created. Pass two copies each table from
+ * the input zip straight to the output zip, keeping only the rows still in the model.
+ * <p>
+ * Only the tables the {@link GtfsModel} supports are written; all other columns are
+ * copied as-is, except the calendar start and end dates, which are taken from the model.
+ * The shapes, frequencies and pathways are not read in pass one, they are copied if the
+ * trip or the stops they refer to are kept, like in the cleanup. The shapes can not be
+ * clipped or simplified.
+ * <p>
+ * With a memory budget the stop times are not kept in the model, but spilled to disk
+ * sorted by trip, see {@link SpilledStopTimes}. The cleanup is then joined with the
+ * stop times on disk, and the stop times are written from the sorted runs, ordered by
+ * trip id and stop sequence.
+ */
+public class StreamingGtfs {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingGtfs.class);
+
+    private static final String AGENCY = "agency.txt";
+    private static final String ROUTES = "routes.txt";
+    private static final String TRIPS = "trips.txt";
+    private static final String STOPS = "stops.txt";
+    private static final String STOP_TIMES = "stop_times.txt";
+    private static final String CALENDAR = "calendar.txt";
+    private static final String CALENDAR_DATES = "calendar_dates.txt";
+    private static final String TRANSFERS = "transfers.txt";
+    private static final String FEED_INFO = "feed_info.txt";
+    private static final String SHAPES = "shapes.txt";
+    private static final String FREQUENCIES = "frequencies.txt";
+    private static final String PATHWAYS = "pathways.txt";
+
+    private final GtfsModel gtfs = GtfsModel.withStopTimeKeys();
+    private final Map<String, Agency> agencies = new HashMap<>();
+    private final Map<String, Route> routes = new HashMap<>();
+    private final Map<String, Trip> trips = new HashMap<>();
+    private final Map<String, Stop> stops = new HashMap<>();
+    private final EntityInterner interner = new EntityInterner();
+    private String defaultAgencyId;
+
+    private StreamingGtfs() { }
+
+    /**
+     * Pass one: read the key columns of the GTFS zip file into a new model.
+     */
+    public static GtfsModel readKeyColumns(File inputFile) throws IOException {
+        return readKeyColumns(inputFile, 0);
+    }
+
+    /**
+     * Pass one, with the stop times spilled to disk.
+     * @param memoryBudget the memory in bytes used to sort the stop times, or 0 to keep
+     *                     the key columns of the stop times in the model.
+     */
+    public static GtfsModel readKeyColumns(File inputFile, long memoryBudget) throws IOException {
+        LOG.info("Read key columns from " + inputFile);
+        try (ZipFile zip = new ZipFile(inputFile)) {
+            StreamingGtfs reader = new StreamingGtfs();
+            reader.readAgencies(zip);
+            reader.readRoutes(zip);
+            reader.readTrips(zip);
+            reader.readStops(zip);
+            if(memoryBudget > 0) reader.spillStopTimes(zip, memoryBudget);
+            else reader.readStopTimes(zip);
+            reader.readCalendars(zip);
+            reader.readCalendarDates(zip);
+            reader.readTransfers(zip);
+            reader.interner.report();
+            reader.gtfs.resetChangeTracking();
+            return reader.gtfs;
+        }
+    }
+
+    /**
+     * Pass two: copy all rows of the input zip file retained in the model to the target zip file.
+     */
+    public static void writeRetainedRows(GtfsModel gtfs, File inputFile, File targetZipFile) throws IOException {
+        LOG.info("Copy retained rows " + inputFile + " => " + targetZipFile);
+        Parallel parallel = gtfs.parallel();
+        Set<String> agencyIds = parallel.setOf(gtfs.getAllAgencies(), Agency::getId);
+        Set<String> routeIds = parallel.setOf(gtfs.getAllRoutes(), r -> r.getId().getId());
+        Set<String> tripIds = parallel.setOf(gtfs.getAllTrips(), t -> t.getId().getId());
+        Set<String> stopIds = parallel.setOf(gtfs.getAllStops(), s -> s.getId().getId());
+        Set<String> shapeIds = parallel.setOf(gtfs.getAllTrips(), t -> t.getShapeId() == null ? "" : t.getShapeId().getId());
+        BitSet calendarDates = rows(gtfs.getAllCalendarDates());
+        BitSet transfers = rows(gtfs.getAllEntitiesForType(Transfer.class));
+        Map<Integer, ServiceCalendar> calendars = new HashMap<>();
+        gtfs.getAllCalendars().forEach(c -> calendars.put(c.getId(), c));
+
+        try (
+                ZipFile zip = new ZipFile(inputFile);
+                ParallelZipOutput out = new ParallelZipOutput(
+                        targetZipFile, Runtime.getRuntime().availableProcessors()
+                )
+        ) {
+            copy(zip, AGENCY, out, t -> agencyIds.contains(agencyId(t)));
+            copy(zip, ROUTES, out, t -> routeIds.contains(t.get("route_id")));
+            copy(zip, TRIPS, out, t -> tripIds.contains(t.get("trip_id")));
+            copy(zip, STOPS, out, t -> stopIds.contains(t.get("stop_id")));
+            if(gtfs.spilledStopTimes() != null) {
+                copySpilledStopTimes(gtfs.spilledStopTimes(), out, tripIds, stopIds);
+            }
+            else {
+                copy(zip, STOP_TIMES, out, t -> tripIds.contains(t.get("trip_id")) && stopIds.contains(t.get("stop_id")));
+            }
+            copyCalendars(zip, out, calendars);
+            copy(zip, CALENDAR_DATES, out, t -> calendarDates.get(t.row()));
+            copy(zip, TRANSFERS, out, t -> transfers.get(t.row()));
+            copy(zip, SHAPES, out, t -> shapeIds.contains(t.get("shape_id")));
+            copy(zip, FREQUENCIES, out, t -> tripIds.contains(t.get("trip_id")));
+            copy(zip, PATHWAYS, out, t -> stopIds.contains(t.get("from_stop_id")) && stopIds.contains(t.get("to_stop_id")));
+            copy(zip, FEED_INFO, out, t -> true);
+        }
+    }
+
+
+    /* pass one */
+
+    private void readAgencies(ZipFile zip) throws IOException {
+        read(zip, AGENCY, t -> {
+            Agency a = new Agency();
+            a.setId(agencyId(t));
+            a.setName(t.get("agency_name"));
+            if(defaultAgencyId == null) {
+                defaultAgencyId = a.getId();
+            }
+            agencies.put(a.getId(), a);
+            add(a);
+        });
+    }
+
+    private void readRoutes(ZipFile zip) throws IOException {
+        read(zip, ROUTES, t -> {
+            String agencyId = t.get("agency_id");
+            Route r = new Route();
+            r.setAgency(ref(agencies, agencyId.isEmpty() ? defaultAgencyId : agencyId, t));
+            r.setId(new AgencyAndId(r.getAgency().getId(), t.get("route_id")));
+            r.setShortName(t.get("route_short_name"));
+            routes.put(r.getId().getId(), r);
+            add(r);
+        });
+    }
+
+    private void readTrips(ZipFile zip) throws IOException {
+        read(zip, TRIPS, t -> {
+            Trip trip = new Trip();
+            trip.setId(id(t.get("trip_id")));
+            trip.setRoute(ref(routes, t.get("route_id"), t));
+            trip.setServiceId(id(t.get("service_id")));
+            String shapeId = t.get("shape_id");
+            trip.setShapeId(shapeId.isEmpty() ? null : id(shapeId));
+            trips.put(trip.getId().getId(), trip);
+            add(trip);
+        });
+    }
+
+    private void readStops(ZipFile zip) throws IOException {
+        read(zip, STOPS, t -> {
+            Stop s = new Stop();
+            s.setId(id(t.get("stop_id")));
+            s.setLat(Double.parseDouble(t.get("stop_lat")));
+            s.setLon(Double.parseDouble(t.get("stop_lon")));
+            s.setLocationType(parseInt(t.get("location_type"), 0));
+            s.setParentStation(t.get("parent_station"));
+            stops.put(s.getId().getId(), s);
+            add(s);
+        });
+    }
+
+    private void readStopTimes(ZipFile zip) throws IOException {
+        StopTimeStore store = gtfs.stopTimeStore();
+        read(zip, STOP_TIMES, t -> store.add(t.row() + 1, ref(trips, t.get("trip_id"), t), ref(stops, t.get("stop_id"), t)));
+    }
+
+    private void spillStopTimes(ZipFile zip, long memoryBudget) throws IOException {
+        try (
+                Instrumentation.Phase phase = Instrumentation.phase("spillStopTimes");
+                CsvTable table = CsvTable.open(zip, STOP_TIMES)
+        ) {
+            if(table == null) return;
+            SpilledStopTimes spilled = new SpilledStopTimes(table.header(), memoryBudget);
+            while (table.next()) {
+                String tripId = table.get("trip_id");
+                String stopId = table.get("stop_id");
+                // Check the references like when the stop times are read into the model
+                ref(trips, tripId, table);
+                ref(stops, stopId, table);
+                spilled.add(tripId, parseInt(table.get("stop_sequence"), 0), stopId, table.line());
+            }
+            spilled.complete();
+            phase.set("rows", spilled.rows());
+            gtfs.spillStopTimes(spilled);
+        }
+    }
+
+    private void readCalendars(ZipFile zip) throws IOException {
+        read(zip, CALENDAR, t -> {
+            ServiceCalendar c = new ServiceCalendar();
+            c.setId(t.row());
+            c.setServiceId(id(t.get("service_id")));
+            c.setStartDate(parseDate(t.get("start_date"), t));
+            c.setEndDate(parseDate(t.get("end_date"), t));
+            c.setMonday(parseInt(t.get("monday"), 0));
+            c.setTuesday(parseInt(t.get("tuesday"), 0));
+            c.setWednesday(parseInt(t.get("wednesday"), 0));
+            c.setThursday(parseInt(t.get("thursday"), 0));
+            c.setFriday(parseInt(t.get("friday"), 0));
+            c.setSaturday(parseInt(t.get("saturday"), 0));
+            c.setSunday(parseInt(t.get("sunday"), 0));
+            add(c);
+        });
+    }
+
+    private void readCalendarDates(ZipFile zip) throws IOException {
+        read(zip, CALENDAR_DATES, t -> {
+            ServiceCalendarDate c = new ServiceCalendarDate();
+            c.setId(t.row());
+            c.setServiceId(id(t.get("service_id")));
+            c.setDate(parseDate(t.get("date"), t));
+            c.setExceptionType(parseInt(t.get("exception_type"), 0));
+            add(c);
+        });
+    }
+
+    private void readTransfers(ZipFile zip) throws IOException {
+        read(zip, TRANSFERS, t -> {
+            Transfer tx = new Transfer();
+            tx.setId(t.row());
+            tx.setFromStop(optRef(stops, t.get("from_stop_id"), t));
+            tx.setToStop(optRef(stops, t.get("to_stop_id"), t));
+            tx.setFromRoute(optRef(routes, t.get("from_route_id"), t));
+            tx.setToRoute(optRef(routes, t.get("to_route_id"), t));
+            tx.setFromTrip(optRef(trips, t.get("from_trip_id"), t));
+            tx.setToTrip(optRef(trips, t.get("to_trip_id"), t));
+            add(tx);
+        });
+    }
+
+    private void add(Object entity) {
+        interner.handleEntity(entity);
+        gtfs.add(entity);
+    }
+
+    private AgencyAndId id(String id) {
+        return new AgencyAndId(defaultAgencyId, id);
+    }
+
+    private static void read(ZipFile zip, String name, RowHandler handler) throws IOException {
+        try (CsvTable table = CsvTable.open(zip, name)) {
+            if(table == null) return;
+            while (table.next()) {
+                handler.handle(table);
+            }
+            LOG.info("  - {} rows read from {}", table.row() + 1, name);
+        }
+    }
+
+    private static <T> T ref(Map<String, T> entities, String id, CsvTable t) {
+        T e = entities.get(id);
+        if(e == null) {
+            throw new IllegalStateException(
+                    "Reference not found: '" + id + "' in " + t.name() + " row " + (t.row() + 1)
+            );
+        }
+        return e;
+    }
+
+    private static <T> T optRef(Map<String, T> entities, String id, CsvTable t) {
+        return id.isEmpty() ? null : ref(entities, id, t);
+    }
+
+    private static String agencyId(CsvTable t) {
+        String id = t.get("agency_id");
+        return id.isEmpty() ? t.get("agency_name") : id;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static ServiceDate parseDate(String value, CsvTable t) {
+        try {
+            return ServiceDate.parseString(value);
+        }
+        catch (ParseException e) {
+            throw new IllegalStateException("Illegal date '" + value + "' in " + t.name() + " row " + (t.row() + 1));
+        }
+    }
+
+
+    /* pass two */
+
+    private static void copy(ZipFile zip, String name, ParallelZipOutput out, Predicate<CsvTable> retain) throws IOException {
+        copyRows(zip, name, out, t -> retain.test(t) ? t.line() : null);
+    }
+
+    private static void copyCalendars(ZipFile zip, ParallelZipOutput out, Map<Integer, ServiceCalendar> calendars) throws IOException {
+        copyRows(zip, CALENDAR, out, t -> {
+            ServiceCalendar c = calendars.get(t.row());
+            if(c == null) return null;
+
+            String startDate = c.getStartDate().getAsString();
+            String endDate = c.getEndDate().getAsString();
+            if(startDate.equals(t.get("start_date")) && endDate.equals(t.get("end_date"))) return t.line();
+
+            List<String> values = new ArrayList<>(t.values());
+            values.set(t.column("start_date"), startDate);
+            values.set(t.column("end_date"), endDate);
+            return CSVLibrary.getIterableAsCSV(values);
+        });
+    }
+
+    private static void copySpilledStopTimes(
+            SpilledStopTimes stopTimes, ParallelZipOutput out, Set<String> tripIds, Set<String> stopIds
+    ) throws IOException {
+        int[] count = { 0 };
+        Writer w = new BufferedWriter(new OutputStreamWriter(out.nextEntry(STOP_TIMES), StandardCharsets.UTF_8));
+        w.write(stopTimes.header());
+        w.write('\n');
+        stopTimes.forEach(row -> {
+            if(tripIds.contains(row.tripId) && stopIds.contains(row.stopId)) {
+                w.write(row.line);
+                w.write('\n');
+                ++count[0];
+            }
+        });
+        w.close();
+        LOG.info("  - {} of {} rows written to {}", count[0], stopTimes.rows(), STOP_TIMES);
+    }
+
+    private static void copyRows(ZipFile zip, String name, ParallelZipOutput out, RowMapper mapper) throws IOException {
+        try (CsvTable table = CsvTable.open(zip, name)) {
+            if(table == null) return;
+            int count = 0;
+            Writer w = new BufferedWriter(new OutputStreamWriter(out.nextEntry(name), StandardCharsets.UTF_8));
+            w.write(table.header());
+            w.write('\n');
+            while (table.next()) {
+                String line = mapper.map(table);
+                if(line != null) {
+                    w.write(line);
+                    w.write('\n');
+                    ++count;
+                }
+            }
+            w.close();
+            LOG.info("  - {} of {} rows written to {}", count, table.row() + 1, name);
+        }
+    }
+
+    private static BitSet rows(Collection<? extends IdentityBean<Integer>> entities) {
+        BitSet rows = new BitSet();
+        entities.forEach(e -> rows.set(e.getId()));
+        return rows;
+    }
+
+    private interface RowHandler {
+        void handle(CsvTable table);
+    }
+
+    private interface RowMapper {
+        /** @return the line to write or {@code null} to skip the row. */
+        String map(CsvTable table);
+    }
+}
@@ -0,0 +1,209 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Trips grouped by pattern: the route and the ordered sequence of stops. Trips in the same
+ * pattern usually only differ in the departure time.
+ * <p>
+ * The index is built in one pass over the trips in the {@link StopTimeStore}. The stops of
+ * a trip are hashed as Stop indexes, and the patterns are kept in an open addressing table
+ * of hashes, with the stop sequence of each pattern in one int array to resolve collisions.
+ * Trips are indexed by the Trip index in the store.
+ */
+class TripPatterns {
+    private final int numberOfTrips;
+    /** The pattern of each trip, -1 if the trip is not included. */
+    private final int[] patternOfTrip;
+    /** The departure time at the first stop of each trip. */
+    private final int[] departures;
+    private int numberOfPatterns = 0;
+
+    /** The stops of pattern {@code p} are {@code stops[stopsStart[p]]} until {@code stops[stopsStart[p+1]]}. */
+    private int[] stops = new int[1024];
+    private int[] stopsStart = new int[64];
+    private int[] routeOfPattern = new int[64];
+    private int[] hashTable = new int[128];
+
+    /**
+     * @param include the trips to index, the other trips are not in any pattern.
+     */
+    TripPatterns(StopTimeStore stopTimes, StopTimeStore.RowIndex byTrip, Predicate<Trip> include) {
+        this.numberOfTrips = stopTimes.numberOfTrips();
+        this.patternOfTrip = new int[numberOfTrips];
+        this.departures = new int[numberOfTrips];
+        Arrays.fill(patternOfTrip, -1);
+        Arrays.fill(hashTable, -1);
+        Map<Route, Integer> routes = new HashMap<>();
+        int[] rows = new int[16];
+        int[] sequence = new int[16];
+
+        for (int t = 0; t < numberOfTrips; t++) {
+            int n = byTrip.size(t);
+            Trip trip = stopTimes.trip(t);
+            if(n == 0 || trip == null || !include.test(trip)) continue;
+            if(n > rows.length) {
+                rows = new int[2 * n];
+                sequence = new int[2 * n];
+            }
+            for (int i = 0; i < n; i++) {
+                rows[i] = byTrip.row(t, i);
+            }
+            stopTimes.sortByStopSequence(rows, n);
+            int hash = routes.computeIfAbsent(trip.getRoute(), r -> routes.size());
+            int route = hash;
+            for (int i = 0; i < n; i++) {
+                sequence[i] = stopTimes.stopIndex(rows[i]);
+                hash = 31 * hash + sequence[i];
+            }
+            patternOfTrip[t] = pattern(hash, route, sequence, n);
+            int departure = stopTimes.departureTime(rows[0]);
+            departures[t] = departure != StopTime.MISSING_VALUE ? departure : stopTimes.arrivalTime(rows[0]);
+        }
+    }
+
+    int numberOfPatterns() {
+        return numberOfPatterns;
+    }
+
+    /** @return the pattern of the trip, or -1 if the trip is not included. */
+    int pattern(int tripIndex) {
+        return patternOfTrip[tripIndex];
+    }
+
+    /**
+     * Keep {@code k} trips in each pattern, spread evenly by departure time, with the first
+     * and last departure included.
+     * @return the Trip indexes kept.
+     */
+    BitSet sample(int k) {
+        BitSet kept = new BitSet(numberOfTrips);
+        forEachPattern(trips -> {
+            int n = trips.length;
+            if(n <= k) {
+                for (long it : trips) kept.set((int) it);
+            }
+            else if(k == 1) {
+                kept.set((int) trips[n / 2]);
+            }
+            else {
+                for (int i = 0; i < k; i++) {
+                    kept.set((int) trips[(int) ((long) i * (n - 1) / (k - 1))]);
+                }
+            }
+        });
+        return kept;
+    }
+
+    /**
+     * Keep the first trip in each pattern, then the next trip departing at least the
+     * headway after the last trip kept.
+     * @return the Trip indexes kept.
+     */
+    BitSet sampleByHeadway(int headwaySeconds) {
+        BitSet kept = new BitSet(numberOfTrips);
+        forEachPattern(trips -> {
+            long last = Long.MIN_VALUE;
+            for (long it : trips) {
+                int departure = (int) (it >> 32);
+                if(last == Long.MIN_VALUE || departure >= last + headwaySeconds) {
+                    kept.set((int) it);
+                    last = departure;
+                }
+            }
+        });
+        return kept;
+    }
+
+    /**
+     * Call the action with the trips of each pattern sorted by departure, each trip as
+     * {@code departure << 32 | tripIndex}.
+     */
+    private void forEachPattern(Consumer<long[]> action) {
+        int[] start = new int[numberOfPatterns + 1];
+        for (int t = 0; t < numberOfTrips; t++) {
+            if(patternOfTrip[t] >= 0) start[patternOfTrip[t] + 1]++;
+        }
+        for (int p = 0; p < numberOfPatterns; p++) {
+            start[p + 1] += start[p];
+        }
+        long[] trips = new long[start[numberOfPatterns]];
+        int[] next = Arrays.copyOf(start, numberOfPatterns);
+        for (int t = 0; t < numberOfTrips; t++) {
+            if(patternOfTrip[t] >= 0) trips[next[patternOfTrip[t]]++] = ((long) departures[t] << 32) | t;
+        }
+        for (int p = 0; p < numberOfPatterns; p++) {
+            long[] group = Arrays.copyOfRange(trips, start[p], start[p + 1]);
+            Arrays.sort(group);
+            action.accept(group);
+        }
+    }
+
+    /** Find or add the pattern. */
+    private int pattern(int hash, int route, int[] sequence, int n) {
+        int mask = hashTable.length - 1;
+        for (int i = mix(hash) & mask; ; i = (i + 1) & mask) {
+            int p = hashTable[i];
+            if(p < 0) {
+                p = add(route, sequence, n);
+                hashTable[i] = p;
+                if(2 * numberOfPatterns > hashTable.length) rehash();
+                return p;
+            }
+            if(routeOfPattern[p] == route && equals(p, sequence, n)) return p;
+        }
+    }
+
+    private int add(int route, int[] sequence, int n) {
+        int p = numberOfPatterns++;
+        if(p + 2 > stopsStart.length) {
+            stopsStart = Arrays.copyOf(stopsStart, 2 * stopsStart.length);
+            routeOfPattern = Arrays.copyOf(routeOfPattern, 2 * routeOfPattern.length);
+        }
+        int end = stopsStart[p] + n;
+        if(end > stops.length) {
+            stops = Arrays.copyOf(stops, Math.max(2 * stops.length, end));
+        }
+        System.arraycopy(sequence, 0, stops, stopsStart[p], n);
+        stopsStart[p + 1] = end;
+        routeOfPattern[p] = route;
+        return p;
+    }
+
+    private boolean equals(int p, int[] sequence, int n) {
+        int start = stopsStart[p];
+        if(stopsStart[p + 1] - start != n) return false;
+        for (int i = 0; i < n; i++) {
+            if(stops[start + i] != sequence[i]) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        hashTable = new int[2 * hashTable.length];
+        Arrays.fill(hashTable, -1);
+        int mask = hashTable.length - 1;
+        for (int p = 0; p < numberOfPatterns; p++) {
+            int hash = routeOfPattern[p];
+            for (int k = stopsStart[p]; k < stopsStart[p + 1]; k++) {
+                hash = 31 * hash + stops[k];
+            }
+            int i = mix(hash) & mask;
+            while (hashTable[i] >= 0) i = (i + 1) & mask;
+            hashTable[i] = p;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16) * 0x45d9f3b;
+    }
+}
@@ -0,0 +1,150 @@
+package no.tiger.gtfs.filter.impl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The central directory of a zip file, used to copy the compressed data of an entry to
+ * another zip file without inflating it, see {@link ParallelZipOutput#copyEntry}.
+ * <p>
+ * Only the plain zip format is read: the entries of a Zip64 file, and the entries with
+ * Zip64 sizes or offset, are left out and must be written again.
+ */
+class ZipDirectory implements Closeable {
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private ZipDirectory(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            readEntries();
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static ZipDirectory read(File zipFile) throws IOException {
+        return new ZipDirectory(zipFile);
+    }
+
+    /** @return the entry, or {@code null} if the entry does not exist or can not be copied. */
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /** Write the compressed data of the entry to the stream. */
+    void copy(Entry entry, OutputStream out) throws IOException {
+        ByteBuffer local = read(entry.offset, LOCAL_HEADER_SIZE);
+        if(local.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header of zip entry: " + entry.name);
+        }
+        long position = entry.offset + LOCAL_HEADER_SIZE + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF);
+        byte[] buffer = new byte[1 << 16];
+        long left = entry.compressedSize;
+        while (left > 0) {
+            ByteBuffer b = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, left));
+            int n = channel.read(b, position);
+            if(n < 0) throw new EOFException("Zip entry truncated: " + entry.name);
+            out.write(buffer, 0, n);
+            position += n;
+            left -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readEntries() throws IOException {
+        long size = channel.size();
+        if(size < END_SIZE) return;
+        // The end record is followed by a comment of at most 64 KB
+        int tail = (int) Math.min(size, END_SIZE + 0xFFFF);
+        ByteBuffer b = read(size - tail, tail);
+        int end = -1;
+        for (int i = tail - END_SIZE; i >= 0; i--) {
+            if(b.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if(end < 0) throw new IOException("Not a zip file, the end of the central directory is missing");
+        int count = b.getShort(end + 10) & 0xFFFF;
+        long directorySize = b.getInt(end + 12) & ZIP64_LIMIT;
+        long directoryOffset = b.getInt(end + 16) & ZIP64_LIMIT;
+        if(count == 0xFFFF || directorySize == ZIP64_LIMIT || directoryOffset == ZIP64_LIMIT) return;
+
+        ByteBuffer d = read(directoryOffset, (int) directorySize);
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            if(d.getInt(p) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory header at entry " + i);
+            }
+            int method = d.getShort(p + 10) & 0xFFFF;
+            long crc = d.getInt(p + 16) & ZIP64_LIMIT;
+            long compressedSize = d.getInt(p + 20) & ZIP64_LIMIT;
+            long uncompressedSize = d.getInt(p + 24) & ZIP64_LIMIT;
+            int nameLength = d.getShort(p + 28) & 0xFFFF;
+            int extraLength = d.getShort(p + 30) & 0xFFFF;
+            int commentLength = d.getShort(p + 32) & 0xFFFF;
+            long offset = d.getInt(p + 42) & ZIP64_LIMIT;
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = d.get(p + 46 + j);
+            }
+            p += 46 + nameLength + extraLength + commentLength;
+            if(compressedSize == ZIP64_LIMIT || uncompressedSize == ZIP64_LIMIT || offset == ZIP64_LIMIT) continue;
+            Entry e = new Entry(new String(name, StandardCharsets.UTF_8), method, crc, uncompressedSize, compressedSize, offset);
+            entries.put(e.name, e);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if(channel.read(b, position + b.position()) < 0) throw new EOFException("Zip file truncated");
+        }
+        b.flip();
+        return b;
+    }
+
+    static class Entry {
+        final String name;
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        private final long offset;
+
+        private Entry(String name, int method, long crc, long size, long compressedSize, long offset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+        }
+    }
+}
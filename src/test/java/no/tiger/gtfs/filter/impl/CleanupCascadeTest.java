@@ -0,0 +1,85 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.Transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The entities left by {@link GtfsModel#cleanupAll()}, in sequence and in parallel, are
+ * compared with the entities left by the fixed-point loop the {@link CleanupCascade}
+ * replaced. The expected files were written by that loop, one line for each entity left.
+ */
+public class CleanupCascadeTest {
+
+    @Test
+    public void cleanupOnly() throws Exception {
+        assertCleanup("all", m -> { });
+    }
+
+    @Test
+    public void cleanupStopsInBox() throws Exception {
+        assertCleanup("box", m -> m.retainStops(new Box("box", 59.90, 10.70, 59.96, 10.85)));
+    }
+
+    @Test
+    public void cleanupAgenciesAndRoutes() throws Exception {
+        assertCleanup("routes", m -> {
+            m.retainAgencies("Alpha", "Beta");
+            m.retainRoutes("1", "3", "4");
+        });
+    }
+
+    private static void assertCleanup(String scenario, Consumer<GtfsModel> filter) throws Exception {
+        List<String> expected = Files.readAllLines(resource("cleanup/expected-" + scenario + ".txt").toPath(), StandardCharsets.UTF_8);
+        for (int parallelism : new int[] { 1, 4 }) {
+            GtfsModel model = new GtfsModel(GtfsDb.loadGtfs(resource("cleanup/feed")));
+            model.setParallelism(parallelism);
+            filter.accept(model);
+            model.cleanupAll();
+            assertEquals(scenario + ", parallelism " + parallelism, String.join("\n", expected), String.join("\n", dump(model)));
+        }
+    }
+
+    /** The ids of the entities left, sorted for each type. */
+    static List<String> dump(GtfsModel m) {
+        List<String> lines = new ArrayList<>();
+        add(lines, "agency", m.getAllAgencies(), a -> a.getId());
+        add(lines, "route", m.getAllRoutes(), r -> r.getId().toString());
+        add(lines, "trip", m.getAllTrips(), t -> t.getId().toString());
+        add(lines, "stop", m.getAllStops(), s -> s.getId().toString());
+        add(lines, "stopTime", m.getAllStopTimes(), st -> st.getTrip().getId() + "/" + st.getStopSequence() + "/" + st.getStop().getId());
+        add(lines, "calendar", m.getAllCalendars(), c -> c.getServiceId().toString());
+        add(lines, "calendarDate", m.getAllCalendarDates(), d -> d.getServiceId() + "/" + d.getDate().getAsString());
+        add(lines, "transfer", m.getAllEntitiesForType(Transfer.class), CleanupCascadeTest::transfer);
+        return lines;
+    }
+
+    private static <T> void add(List<String> lines, String type, Collection<T> entities, Function<T, String> id) {
+        lines.addAll(entities.stream().map(e -> type + " " + id.apply(e)).sorted().collect(Collectors.toList()));
+    }
+
+    private static String transfer(Transfer t) {
+        return t.getFromStop().getId() + "/" + t.getToStop().getId()
+                + "/" + (t.getFromRoute() == null ? "" : t.getFromRoute().getId())
+                + "/" + (t.getToRoute() == null ? "" : t.getToRoute().getId())
+                + "/" + (t.getFromTrip() == null ? "" : t.getFromTrip().getId())
+                + "/" + (t.getToTrip() == null ? "" : t.getToTrip().getId());
+    }
+
+    static File resource(String name) throws URISyntaxException, IOException {
+        return new File(CleanupCascadeTest.class.getClassLoader().getResource(name).toURI());
+    }
+}
@@ -0,0 +1,54 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CsvTableTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void quotedValueWithLineBreaks() throws Exception {
+        File file = zip("stops.txt",
+                "stop_id,stop_name,stop_desc\n"
+                + "A,\"Main\nstreet\",\"5\"\" \"\"x\n\n\"\n"
+                + "B,Say \"hi,\"\"\"\"\n"
+                + "\n"
+                + "C,\"\",\"\"\"\n\"\"\"\n"
+        );
+        try (ZipFile zip = new ZipFile(file); CsvTable table = CsvTable.open(zip, "stops.txt")) {
+            assertTrue(table.next());
+            assertEquals(Arrays.asList("A", "Main\nstreet", "5\" \"x\n\n"), table.values());
+            assertEquals("A,\"Main\nstreet\",\"5\"\" \"\"x\n\n\"", table.line());
+            assertTrue(table.next());
+            assertEquals(Arrays.asList("B", "Say \"hi", "\""), table.values());
+            assertTrue(table.next());
+            assertEquals(Arrays.asList("C", "", "\"\n\""), table.values());
+            assertEquals(2, table.row());
+            assertFalse(table.next());
+        }
+    }
+
+    private File zip(String name, String content) throws Exception {
+        File file = tmp.newFile("gtfs.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return file;
+    }
+}
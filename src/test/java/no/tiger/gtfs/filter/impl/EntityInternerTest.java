@@ -0,0 +1,78 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onebusaway.gtfs.impl.GtfsDaoImpl;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ShapePoint;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.serialization.GtfsReader;
+import org.onebusaway.gtfs.services.GtfsDao;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The feed loaded with the {@link EntityInterner} is written the same as the feed loaded
+ * without it, and the equal ids of the trips and shape points are one instance.
+ */
+public class EntityInternerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sameFeedInterned() throws Exception {
+        for (String feed : new String[] { "writer/feed", "lines/feed" }) {
+            File dir = CleanupCascadeTest.resource(feed);
+            File expected = tmp.newFolder();
+            File actual = tmp.newFolder();
+            GtfsDb.save(loadWithoutInterner(dir), expected, 1);
+            GtfsDb.save(GtfsDb.loadGtfs(dir), actual, 1);
+            String[] files = expected.list();
+            Arrays.sort(files);
+            String[] written = actual.list();
+            Arrays.sort(written);
+            assertArrayEquals(feed, files, written);
+            for (String name : files) {
+                assertArrayEquals(feed + " " + name, read(new File(expected, name)), read(new File(actual, name)));
+            }
+        }
+    }
+
+    @Test
+    public void equalIdsShareOneInstance() throws Exception {
+        GtfsDao dao = GtfsDb.loadGtfs(CleanupCascadeTest.resource("lines/feed"));
+        assertEquals(3, distinctInstances(dao.getAllTrips().stream().map(Trip::getServiceId).collect(Collectors.toList()), Function.identity()));
+        assertEquals(4, distinctInstances(dao.getAllTrips().stream().map(Trip::getShapeId).collect(Collectors.toList()), Function.identity()));
+        assertEquals(4, distinctInstances(dao.getAllShapePoints(), ShapePoint::getShapeId));
+    }
+
+    private static <T> int distinctInstances(Iterable<T> entities, Function<T, AgencyAndId> id) {
+        Set<AgencyAndId> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        entities.forEach(e -> instances.add(id.apply(e)));
+        return instances.size();
+    }
+
+    private static GtfsDao loadWithoutInterner(File dir) throws Exception {
+        GtfsReader reader = new GtfsReader();
+        reader.setInputLocation(dir);
+        GtfsDaoImpl dao = new GtfsDaoImpl();
+        reader.setEntityStore(dao);
+        reader.run();
+        return dao;
+    }
+
+    private static byte[] read(File file) throws Exception {
+        return Files.readAllBytes(file.toPath());
+    }
+}
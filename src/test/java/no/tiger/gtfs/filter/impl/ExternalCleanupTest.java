@@ -0,0 +1,116 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The feed written with the stop times spilled to disk and joined by the
+ * {@link ExternalCleanup} is the same as the feed written with the key columns in memory,
+ * and has the entities left by the plan applied to the whole feed in memory.
+ */
+public class ExternalCleanupTest {
+    /** A few stop times per run, so the runs are merged. */
+    private static final long MEMORY_BUDGET = 600;
+
+    private static final List<String> FILTERS = Arrays.asList(
+            "",
+            "agencies = Alpha",
+            "routes = 1, 3, 10, 20",
+            "stops = Q1*, Q2*, S*, L*, M*",
+            "trips = T1, T3, T5, T10a*, T20*",
+            "area.a = 59.90 10.70 59.96 10.85",
+            "agencies = Alpha\narea.a = 59.90 10.70 59.94 10.79\nserviceDays = 2016-03-21 2016-03-27"
+    );
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sameFeedOnCleanupFeed() throws Exception {
+        assertSameFeed("cleanup/feed");
+    }
+
+    @Test
+    public void sameFeedOnLinesFeed() throws Exception {
+        assertSameFeed("lines/feed");
+    }
+
+    private void assertSameFeed(String feedName) throws Exception {
+        File dir = CleanupCascadeTest.resource(feedName);
+        File zip = zip(dir);
+        for (String filter : FILTERS) {
+            FilterConfig config = FilterPlanTest.config(filter);
+            FilterPlan plan = new FilterPlan(config, config.areas());
+            Region area = config.areas().isEmpty() ? null : config.areas().get(0);
+
+            GtfsModel all = new GtfsModel(GtfsDb.loadGtfs(dir));
+            plan.apply(all, area);
+
+            File inMemory = tmp.newFile("memory.zip");
+            GtfsModel keys = StreamingGtfs.readKeyColumns(zip);
+            plan.apply(keys, area);
+            StreamingGtfs.writeRetainedRows(keys, zip, inMemory);
+
+            File external = tmp.newFile("external.zip");
+            GtfsModel spilled = StreamingGtfs.readKeyColumns(zip, MEMORY_BUDGET);
+            plan.apply(spilled, area);
+            StreamingGtfs.writeRetainedRows(spilled, zip, external);
+
+            String message = feedName + ": " + filter;
+            assertEquals(message, CleanupCascadeTest.dump(all), CleanupCascadeTest.dump(new GtfsModel(GtfsDb.loadGtfs(inMemory))));
+            Map<String, byte[]> expected = entries(inMemory);
+            Map<String, byte[]> actual = entries(external);
+            assertEquals(message, expected.keySet(), actual.keySet());
+            for (String name : expected.keySet()) {
+                assertArrayEquals(message + ", " + name, expected.get(name), actual.get(name));
+            }
+            Files.delete(inMemory.toPath());
+            Files.delete(external.toPath());
+        }
+    }
+
+    private File zip(File dir) throws Exception {
+        File zip = tmp.newFile("gtfs.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            File[] files = dir.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                out.putNextEntry(new ZipEntry(file.getName()));
+                out.write(Files.readAllBytes(file.toPath()));
+                out.closeEntry();
+            }
+        }
+        return zip;
+    }
+
+    private static Map<String, byte[]> entries(File file) throws Exception {
+        Map<String, byte[]> entries = new TreeMap<>();
+        try (ZipFile zip = new ZipFile(file)) {
+            for (ZipEntry e : Collections.list(zip.entries())) {
+                byte[] content = new byte[(int) e.getSize()];
+                try (DataInputStream in = new DataInputStream(zip.getInputStream(e))) {
+                    in.readFully(content);
+                }
+                entries.put(e.getName(), content);
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,62 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilterConfigTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void requestReadsFilesInTheDir() throws Exception {
+        File dir = tmp.newFolder("data");
+        Files.write(new File(dir, "stops.txt").toPath(), Collections.singletonList("S1"), StandardCharsets.UTF_8);
+        Files.write(new File(dir, "ring2.wkt").toPath(), Collections.singletonList("59.90 10.70 59.94 10.79"), StandardCharsets.UTF_8);
+        FilterConfig config = FilterConfig.request(properties("stops", "@stops.txt", "area.ring2", "@ring2.wkt"), dir);
+        assertTrue(config.stops().matches("S1"));
+        assertFalse(config.stops().matches("S2"));
+        assertEquals(1, config.areas().size());
+    }
+
+    @Test
+    public void requestRejectsFilesOutsideTheDir() throws Exception {
+        File dir = tmp.newFolder("data");
+        File outside = tmp.newFile("stops.txt");
+        Files.write(outside.toPath(), Collections.singletonList("S1"), StandardCharsets.UTF_8);
+        assertRejected(properties("stops", "@" + outside.getAbsolutePath()), dir);
+        assertRejected(properties("stops", "@../stops.txt"), dir);
+        assertRejected(properties("area.a", "@../stops.txt"), dir);
+        // The config files may refer to any file
+        assertTrue(FilterConfig.of(properties("stops", "@../stops.txt"), "config", dir).stops().matches("S1"));
+    }
+
+    private static void assertRejected(Properties p, File dir) throws Exception {
+        try {
+            FilterConfig.request(p, dir);
+            fail("Expected the file to be rejected: " + p);
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Only files in the data dir"));
+        }
+    }
+
+    private static Properties properties(String... keyValues) {
+        Properties p = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            p.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,92 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The entities left by a {@link FilterPlan} are the same with the filters pushed down into
+ * the parse and into the snapshot load, as when the plan is applied to the whole feed.
+ */
+public class FilterPlanTest {
+    private static final List<String> FILTERS = Arrays.asList(
+            "agencies = Alpha",
+            "routes = 1, 3, 10, 20",
+            "stops = Q1*, Q2*, S*, L*, M*",
+            "trips = T1, T3, T5, T10a*, T20*",
+            "area.a = 59.90 10.70 59.96 10.85",
+            "serviceDays = 2016-03-18 2016-03-19",
+            "agencies = Alpha\narea.a = 59.90 10.70 59.94 10.79\nserviceDays = 2016-03-21 2016-03-27",
+            "departingBetween = 06:00 08:30\narea.a = 59.90 10.70 59.96 10.85",
+            "reachableHops = 1\narea.a = 59.905 10.71 59.915 10.73",
+            "tripsPerPattern = 2\nroutes = 1, 10"
+    );
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void samePushedDownOnCleanupFeed() throws Exception {
+        assertSamePushedDown("cleanup/feed");
+    }
+
+    @Test
+    public void samePushedDownOnLinesFeed() throws Exception {
+        assertSamePushedDown("lines/feed");
+    }
+
+    @Test
+    public void skipsRemovedRows() throws Exception {
+        File feed = CleanupCascadeTest.resource("lines/feed");
+        FilterConfig config = config("agencies = Alpha\narea.a = 59.90 10.70 59.94 10.79");
+        FilterPlan plan = new FilterPlan(config, config.areas());
+        GtfsModel parsed = GtfsDb.loadModel(feed, plan);
+        GtfsModel loaded = loadSnapshot(GtfsDb.loadModel(feed), plan);
+        for (GtfsModel m : Arrays.asList(parsed, loaded)) {
+            assertEquals(2, m.getAllRoutes().size());
+            assertEquals(5, m.getAllStops().size());
+            assertTrue(m.getAllStopTimes().stream().allMatch(st -> m.getAllStops().contains(st.getStop())));
+        }
+    }
+
+    private void assertSamePushedDown(String feedName) throws Exception {
+        File feed = CleanupCascadeTest.resource(feedName);
+        for (String filter : FILTERS) {
+            FilterConfig config = config(filter);
+            FilterPlan plan = new FilterPlan(config, config.areas());
+            Region area = config.areas().isEmpty() ? null : config.areas().get(0);
+            GtfsModel all = GtfsDb.loadModel(feed);
+            GtfsModel parsed = GtfsDb.loadModel(feed, plan);
+            GtfsModel loaded = loadSnapshot(all, plan);
+            plan.apply(all, area);
+            plan.apply(parsed, area);
+            plan.apply(loaded, area);
+            String expected = String.join("\n", CleanupCascadeTest.dump(all));
+            assertEquals(feedName + ", parse: " + filter, expected, String.join("\n", CleanupCascadeTest.dump(parsed)));
+            assertEquals(feedName + ", snapshot: " + filter, expected, String.join("\n", CleanupCascadeTest.dump(loaded)));
+        }
+    }
+
+    /** Save the whole model in a snapshot, and load it with the filters pushed down. */
+    private GtfsModel loadSnapshot(GtfsModel gtfs, FilterPlan plan) throws Exception {
+        File file = tmp.newFile();
+        byte[] key = GtfsSnapshot.key(tmp.newFile());
+        GtfsSnapshot.save(gtfs, file, key);
+        return GtfsSnapshot.load(file, key, plan.pushdownFilter());
+    }
+
+    static FilterConfig config(String filter) throws Exception {
+        Properties p = new Properties();
+        p.load(new StringReader(filter));
+        return FilterConfig.of(p, "test", new File("."));
+    }
+}
@@ -0,0 +1,52 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onebusaway.gtfs.serialization.GtfsWriter;
+import org.onebusaway.gtfs.services.GtfsDao;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The files written by {@link GtfsDb#save(GtfsDao, File)} are compared byte for byte with
+ * the files written by the One Bus Away {@link GtfsWriter}, on a feed with quoted values,
+ * optional columns and the deprecated bikes allowed columns.
+ */
+public class GtfsTableWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sameOutputAsGtfsWriter() throws Exception {
+        GtfsDao dao = GtfsDb.loadGtfs(new File(getClass().getClassLoader().getResource("writer/feed").toURI()));
+
+        File expected = tmp.newFolder("expected");
+        GtfsWriter writer = new GtfsWriter();
+        writer.setOutputLocation(expected);
+        writer.run(dao);
+        writer.close();
+
+        File actual = tmp.newFolder("actual");
+        GtfsDb.save(dao, actual, 2);
+
+        String[] files = expected.list();
+        Arrays.sort(files);
+        String[] written = actual.list();
+        Arrays.sort(written);
+        assertArrayEquals(files, written);
+        for (String name : files) {
+            assertEquals(name, read(new File(expected, name)), read(new File(actual, name)));
+        }
+    }
+
+    private static String read(File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,58 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IdMatcherTest {
+
+    @Test
+    public void patterns() {
+        IdMatcher m = IdMatcher.of("1234", "RUT:Line:*", "/NSB:.*:R1[0-9]/", "!RUT:Line:9*");
+        assertTrue(m.matches("1234"));
+        assertTrue(m.matches("RUT:Line:1"));
+        assertTrue(m.matches("NSB:Line:R11"));
+        assertFalse(m.matches("12345"));
+        assertFalse(m.matches("RUT:Line:91"));
+        assertFalse(m.matches("NSB:Line:R1"));
+        assertFalse(m.matches(null));
+    }
+
+    @Test
+    public void onlyExcludes() {
+        IdMatcher m = IdMatcher.of("!A*");
+        assertTrue(m.matches("B"));
+        assertFalse(m.matches("AB"));
+        assertFalse(m.isEmpty());
+    }
+
+    @Test
+    public void noPatternsMatchAll() {
+        IdMatcher m = IdMatcher.of(Collections.emptyList());
+        assertTrue(m.isEmpty());
+        assertTrue(m.matches("A"));
+        assertEquals("all", m.toString());
+    }
+
+    @Test
+    public void noExactIdsMatchNothing() {
+        IdMatcher m = IdMatcher.exact();
+        assertFalse(m.isEmpty());
+        assertFalse(m.matches("A"));
+        assertEquals("none", m.toString());
+        assertTrue(IdMatcher.exact("A*").matches("A*"));
+        assertFalse(IdMatcher.exact("A*").matches("AB"));
+    }
+
+    @Test
+    public void retainNoAgencies() throws Exception {
+        GtfsModel gtfs = new GtfsModel(GtfsDb.loadGtfs(CleanupCascadeTest.resource("cleanup/feed")));
+        gtfs.retainAgencies();
+        assertTrue(gtfs.getAllAgencies().isEmpty());
+        assertTrue(gtfs.getAllTrips().isEmpty());
+    }
+}
@@ -0,0 +1,149 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The outputs written by the {@link IncrementalFilter} have the entities left by the plan
+ * applied to the whole feed, and only the outputs with a changed id in the footprint are
+ * written again.
+ */
+public class IncrementalFilterTest {
+    private static final String FILTER = "routes = 10, 30";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sameOutputsAsThePlan() throws Exception {
+        File dir = tmp.newFolder();
+        zip(dir, null);
+        run(dir);
+        for (Map.Entry<String, Region> e : outputs().entrySet()) {
+            assertEquals(e.getKey(), expected(dir, e.getValue()), CleanupCascadeTest.dump(new GtfsModel(GtfsDb.loadGtfs(output(dir, e.getKey())))));
+        }
+    }
+
+    @Test
+    public void unchangedInputWritesNoOutputs() throws Exception {
+        File dir = tmp.newFolder();
+        zip(dir, null);
+        run(dir);
+        Map<String, FileTime> modified = modified(dir);
+        Map<String, byte[]> content = content(dir);
+
+        zip(dir, null);
+        run(dir);
+        assertEquals(modified, modified(dir));
+        for (String name : outputs().keySet()) {
+            assertArrayEquals(name, content.get(name), content(dir).get(name));
+        }
+    }
+
+    @Test
+    public void changedTripWritesOnlyTheOutputsOfTheTrip() throws Exception {
+        File dir = tmp.newFolder();
+        zip(dir, null);
+        run(dir);
+        Map<String, FileTime> modified = modified(dir);
+
+        // T30a2 only stops in the south area
+        zip(dir, s -> s.replace("T30a2,06:20:00,06:21:00,N2,2", "T30a2,06:22:00,06:22:00,N2,2"));
+        run(dir);
+        Map<String, FileTime> now = modified(dir);
+        assertEquals(modified.get("ring"), now.get("ring"));
+        assertNotEquals(modified.get("south"), now.get("south"));
+        for (Map.Entry<String, Region> e : outputs().entrySet()) {
+            GtfsModel written = new GtfsModel(GtfsDb.loadGtfs(output(dir, e.getKey())));
+            assertEquals(e.getKey(), expected(dir, e.getValue()), CleanupCascadeTest.dump(written));
+        }
+        assertTrue(new GtfsModel(GtfsDb.loadGtfs(output(dir, "south"))).getAllStopTimes().stream().anyMatch(
+                st -> st.getTrip().getId().getId().equals("T30a2") && st.getArrivalTime() == 6 * 3600 + 22 * 60
+        ));
+    }
+
+    private static void run(File dir) throws Exception {
+        new IncrementalFilter(FilterPlanTest.config(FILTER), outputs(), new File(dir, "gtfs.incremental"))
+                .run(new File(dir, "gtfs.zip"), name -> output(dir, name), 1, 2);
+    }
+
+    /** The entities left by the plan applied to the feed last zipped into the dir. */
+    private static List<String> expected(File dir, Region area) throws Exception {
+        FilterConfig config = FilterPlanTest.config(FILTER);
+        GtfsModel gtfs = new GtfsModel(GtfsDb.loadGtfs(new File(dir, "feed")));
+        new FilterPlan(config, new ArrayList<>(outputs().values())).apply(gtfs, area);
+        return CleanupCascadeTest.dump(gtfs);
+    }
+
+    private static Map<String, Region> outputs() throws Exception {
+        Map<String, Region> outputs = new LinkedHashMap<>();
+        outputs.put("ring", Regions.parse("ring", "59.895 10.69 59.925 10.75", new File(".")));
+        outputs.put("south", Regions.parse("south", "59.79 10.49 59.82 10.53", new File(".")));
+        return outputs;
+    }
+
+    private static File output(File dir, String name) {
+        return new File(dir, "gtfs-" + name + ".zip");
+    }
+
+    private static Map<String, FileTime> modified(File dir) throws Exception {
+        Map<String, FileTime> modified = new LinkedHashMap<>();
+        for (String name : outputs().keySet()) {
+            modified.put(name, Files.getLastModifiedTime(output(dir, name).toPath()));
+        }
+        return modified;
+    }
+
+    private static Map<String, byte[]> content(File dir) throws Exception {
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        for (String name : outputs().keySet()) {
+            content.put(name, Files.readAllBytes(output(dir, name).toPath()));
+        }
+        return content;
+    }
+
+    /**
+     * Zip the lines feed into {@code gtfs.zip} in the dir, and the files into {@code feed}.
+     * @param stopTimes changes the content of stop_times.txt, or {@code null} to copy it.
+     */
+    private static void zip(File dir, Function<String, String> stopTimes) throws Exception {
+        File from = CleanupCascadeTest.resource("lines/feed");
+        File feed = new File(dir, "feed");
+        feed.mkdirs();
+        File zip = new File(dir, "gtfs.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            File[] files = from.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                byte[] content = Files.readAllBytes(file.toPath());
+                if(stopTimes != null && file.getName().equals("stop_times.txt")) {
+                    content = stopTimes.apply(new String(content, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+                }
+                Files.write(new File(feed, file.getName()).toPath(), content);
+                out.putNextEntry(new ZipEntry(file.getName()));
+                out.write(content);
+                out.closeEntry();
+            }
+        }
+    }
+}
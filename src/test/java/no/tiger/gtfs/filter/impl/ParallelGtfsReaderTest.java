@@ -0,0 +1,57 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelGtfsReaderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void readFeed() throws Exception {
+        GtfsModel gtfs = ParallelGtfsReader.read(feed(""), 2, null);
+        assertEquals(13, gtfs.getAllStopTimes().size());
+    }
+
+    @Test
+    public void stopTimeWithUnknownTrip() throws Exception {
+        assertNotFound(feed("TX,14:00:00,14:00:00,Q1a,1\n"), "Trip not found: 'TX'");
+    }
+
+    @Test
+    public void stopTimeWithUnknownStop() throws Exception {
+        assertNotFound(feed("T1,14:00:00,14:00:00,QX,4\n"), "Stop not found: 'QX'");
+    }
+
+    private static void assertNotFound(File feed, String message) throws Exception {
+        try {
+            ParallelGtfsReader.read(feed, 2, null);
+            fail("The reference can not be resolved");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to read stop_times.txt line: "));
+            assertEquals(message, e.getCause().getMessage());
+        }
+    }
+
+    /** The cleanup feed in a directory, with the lines added to the stop times. */
+    private File feed(String stopTimes) throws Exception {
+        File dir = tmp.newFolder("gtfs");
+        File from = new File(getClass().getClassLoader().getResource("cleanup/feed").toURI());
+        for (File file : from.listFiles()) {
+            Files.copy(file.toPath(), new File(dir, file.getName()).toPath());
+        }
+        Files.write(new File(dir, "stop_times.txt").toPath(), stopTimes.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        return dir;
+    }
+}
@@ -0,0 +1,30 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ParallelTest {
+
+    @Test
+    public void onePoolForEachParallelism() {
+        assertSame(Parallel.SEQUENTIAL, Parallel.of(1));
+        assertSame(Parallel.of(3), Parallel.of(3));
+        assertEquals(3, Parallel.of(3).parallelism());
+    }
+
+    @Test
+    public void sameMarksInParallel() {
+        BitSet expected = Parallel.SEQUENTIAL.mark(1000, i -> i % 7 == 0);
+        assertEquals(expected, Parallel.of(4).mark(1000, i -> i % 7 == 0));
+        assertEquals(143, expected.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parallelismMustBePositive() {
+        Parallel.of(0);
+    }
+}
@@ -0,0 +1,94 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelZipOutputTest {
+
+    @Test
+    public void writeEntries() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 200_000; i++) {
+            large.append("T").append(i).append(",08:00:00,08:00:00,S").append(i % 97).append(',').append(i).append('\n');
+        }
+        try (ParallelZipOutput zip = new ParallelZipOutput(bytes, 4)) {
+            try (OutputStream out = zip.nextEntry("agency.txt")) {
+                out.write("agency_id\nA\n".getBytes(StandardCharsets.UTF_8));
+            }
+            OutputStream out = zip.nextEntry("stop_times.txt");
+            out.write(large.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertEquals("agency.txt", in.getNextEntry().getName());
+            assertEquals("agency_id\nA\n", read(in));
+            ZipEntry entry = in.getNextEntry();
+            assertEquals("stop_times.txt", entry.getName());
+            assertEquals(large.toString(), read(in));
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void streamClosedWhenLastEntryFails() throws Exception {
+        FailingStream failing = new FailingStream(100);
+        ParallelZipOutput zip = new ParallelZipOutput(failing, 1);
+        zip.nextEntry("stops.txt").write(new byte[10_000]);
+        try {
+            zip.close();
+            fail("The entry can not be written");
+        }
+        catch (IOException expected) {
+            assertTrue(failing.closed);
+        }
+    }
+
+    private static String read(ZipInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** Fail when more than the given number of bytes are written. */
+    private static class FailingStream extends OutputStream {
+        private final int limit;
+        private int size = 0;
+        private boolean closed = false;
+
+        FailingStream(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            size += len;
+            if(size > limit) throw new IOException("Disk full");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The point in polygon test of the regions parsed from the config, the coordinates are
+ * {@code lon lat} in the text and {@code lat, lon} in the tests.
+ */
+public class RegionsTest {
+    private static final String SQUARE_WITH_HOLE = "POLYGON ((10 59, 11 59, 11 60, 10 60), (10.4 59.4, 10.6 59.4, 10.6 59.6, 10.4 59.6))";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void box() throws Exception {
+        Region box = Regions.parse("box", "59.90 10.70 59.94 10.79", new File("."));
+        assertTrue(box instanceof Box);
+        assertTrue(box.inside(59.92, 10.75));
+        assertTrue(box.inside(59.90, 10.70));
+        assertFalse(box.inside(59.94, 10.75));
+        assertFalse(box.inside(59.92, 10.80));
+    }
+
+    @Test
+    public void polygonWithHole() throws Exception {
+        Region polygon = Regions.parse("p", SQUARE_WITH_HOLE, new File("."));
+        assertTrue(polygon.inside(59.2, 10.2));
+        assertTrue(polygon.inside(59.5, 10.8));
+        assertFalse(polygon.inside(59.5, 10.5));
+        assertFalse(polygon.inside(59.5, 11.2));
+        assertFalse(polygon.inside(58.9, 10.5));
+        assertEquals(59.0, polygon.bounds().minLat(), 0);
+        assertEquals(10.0, polygon.bounds().minLon(), 0);
+    }
+
+    @Test
+    public void concavePolygon() throws Exception {
+        // A U shape, open to the north, with more edges than one band
+        Region u = Regions.parse("u", "POLYGON ((10 59, 13 59, 13 62, 12 62, 12 60, 11 60, 11 62, 10 62, 10 61.5, 10 61, 10 60.5, 10 60, 10 59.5))", new File("."));
+        assertTrue(u.inside(61, 10.5));
+        assertTrue(u.inside(61, 12.5));
+        assertTrue(u.inside(59.5, 11.5));
+        assertFalse(u.inside(61, 11.5));
+        assertFalse(u.inside(61, 13.5));
+    }
+
+    @Test
+    public void multiPolygon() throws Exception {
+        Region islands = Regions.parse("islands", "MULTIPOLYGON (((10 59, 11 59, 10.5 60)), ((12 59, 13 59, 13 60, 12 60)))", new File("."));
+        assertTrue(islands instanceof MultiPolygon);
+        assertTrue(islands.inside(59.2, 10.5));
+        assertTrue(islands.inside(59.5, 12.5));
+        assertFalse(islands.inside(59.5, 11.5));
+        assertFalse(islands.inside(59.9, 10.1));
+        assertEquals(13.0, islands.bounds().maxLon(), 1e-9);
+    }
+
+    @Test
+    public void corridor() throws Exception {
+        Region line = Regions.parse("line", "CORRIDOR 500 (10.70 59.90, 10.80 59.90)", new File("."));
+        assertTrue(line.inside(59.90, 10.75));
+        // 0.004 degrees latitude is about 445 m
+        assertTrue(line.inside(59.904, 10.75));
+        assertFalse(line.inside(59.906, 10.75));
+        assertFalse(line.inside(59.90, 10.81));
+    }
+
+    @Test
+    public void fromFile() throws Exception {
+        File dir = tmp.newFolder();
+        Files.write(new File(dir, "p.wkt").toPath(), Collections.singletonList(SQUARE_WITH_HOLE), StandardCharsets.UTF_8);
+        Region polygon = Regions.parse("p", "@p.wkt", dir);
+        assertEquals(Regions.parse("p", SQUARE_WITH_HOLE, dir).definition(), polygon.definition());
+    }
+
+    @Test
+    public void definitionIsParsedToTheSameRegion() throws Exception {
+        for (String text : Arrays.asList(SQUARE_WITH_HOLE, "MULTIPOLYGON (((10 59, 11 59, 10.5 60)))", "CORRIDOR 200 ((10 59, 11 60), (12 59, 12 60))")) {
+            Region region = Regions.parse("r", text, new File("."));
+            assertEquals(region.definition(), Regions.parse("r", region.definition(), new File(".")).definition());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPolygon() throws Exception {
+        Regions.parse("p", "POLYGON ((10 59, 11 59))", new File("."));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBox() throws Exception {
+        Regions.parse("b", "59.90 10.70 59.94", new File("."));
+    }
+}
@@ -0,0 +1,125 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The days of each service left by {@link GtfsModel#retainServiceDays(ServiceDate, ServiceDate)}
+ * are the days in the window the service had before, and the trips departing between two
+ * times are the trips with the first stop time in between, looked up on the entities.
+ */
+public class ServiceDaysTest {
+    private static final LocalDate FIRST = LocalDate.of(2015, 12, 1);
+    private static final LocalDate LAST = LocalDate.of(2017, 2, 1);
+
+    @Test
+    public void sameDaysInWindow() throws Exception {
+        for (String feed : new String[] { "cleanup/feed", "lines/feed" }) {
+            assertSameDays(feed, "2016-03-17", "2016-03-20");
+            assertSameDays(feed, "2016-03-25", "2016-03-28");
+            assertSameDays(feed, "2016-06-28", "2016-07-03");
+            assertSameDays(feed, "2017-01-01", "2017-01-31");
+        }
+    }
+
+    @Test
+    public void sameTripsDepartingBetween() throws Exception {
+        for (String feed : new String[] { "cleanup/feed", "lines/feed" }) {
+            assertSameDepartures(feed, 6 * 3600, 6 * 3600 + 1800);
+            assertSameDepartures(feed, 9 * 3600, 12 * 3600);
+            assertSameDepartures(feed, 23 * 3600, 25 * 3600);
+        }
+    }
+
+    private static void assertSameDays(String feed, String from, String to) throws Exception {
+        GtfsModel gtfs = new GtfsModel(GtfsDb.loadGtfs(CleanupCascadeTest.resource(feed)));
+        LocalDate first = LocalDate.parse(from);
+        LocalDate last = LocalDate.parse(to);
+        Set<String> expected = activeDays(gtfs).stream()
+                .filter(d -> !LocalDate.parse(d.substring(d.indexOf(' ') + 1)).isBefore(first))
+                .filter(d -> !LocalDate.parse(d.substring(d.indexOf(' ') + 1)).isAfter(last))
+                .collect(Collectors.toCollection(TreeSet::new));
+        Set<String> services = expected.stream().map(d -> d.substring(0, d.indexOf(' '))).collect(Collectors.toSet());
+        List<String> trips = gtfs.getAllTrips().stream()
+                .filter(t -> services.contains(t.getServiceId().toString()))
+                .map(t -> t.getId().toString()).sorted().collect(Collectors.toList());
+
+        gtfs.retainServiceDays(date(first), date(last));
+        String window = feed + " " + from + " to " + to;
+        assertEquals(window, expected, activeDays(gtfs));
+        assertEquals(window, trips, gtfs.getAllTrips().stream().map(t -> t.getId().toString()).sorted().collect(Collectors.toList()));
+        assertTrue(window, gtfs.getAllCalendars().stream().allMatch(
+                c -> !c.getStartDate().getAsDate().before(date(first).getAsDate()) && !c.getEndDate().getAsDate().after(date(last).getAsDate())
+        ));
+    }
+
+    private static void assertSameDepartures(String feed, int from, int to) throws Exception {
+        GtfsModel gtfs = new GtfsModel(GtfsDb.loadGtfs(CleanupCascadeTest.resource(feed)));
+        List<String> expected = gtfs.getAllTrips().stream().filter(t -> {
+            StopTime first = gtfs.getAllStopTimes().stream()
+                    .filter(st -> st.getTrip() == t)
+                    .min(Comparator.comparingInt(StopTime::getStopSequence)).orElse(null);
+            if(first == null || !first.isDepartureTimeSet() && !first.isArrivalTimeSet()) return false;
+            int time = first.isDepartureTimeSet() ? first.getDepartureTime() : first.getArrivalTime();
+            return from <= time && time <= to;
+        }).map(t -> t.getId().toString()).sorted().collect(Collectors.toList());
+
+        gtfs.retainTripsDepartingBetween(from, to);
+        assertEquals(feed + " " + from + " to " + to, expected,
+                gtfs.getAllTrips().stream().map(t -> t.getId().toString()).sorted().collect(Collectors.toList()));
+    }
+
+    /** The days each service is active, as {@code "<service> <date>"}, from the calendars and calendar dates. */
+    private static Set<String> activeDays(GtfsModel gtfs) {
+        Set<String> days = new TreeSet<>();
+        Set<String> services = new TreeSet<>();
+        gtfs.getAllCalendars().forEach(c -> services.add(c.getServiceId().toString()));
+        gtfs.getAllCalendarDates().forEach(d -> services.add(d.getServiceId().toString()));
+        for (LocalDate day = FIRST; !day.isAfter(LAST); day = day.plusDays(1)) {
+            for (String service : services) {
+                if(isActive(gtfs, service, day)) days.add(service + " " + day);
+            }
+        }
+        return days;
+    }
+
+    private static boolean isActive(GtfsModel gtfs, String service, LocalDate day) {
+        ServiceDate date = date(day);
+        for (ServiceCalendarDate d : gtfs.getAllCalendarDates()) {
+            if(d.getServiceId().toString().equals(service) && d.getDate().equals(date)) {
+                return d.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD;
+            }
+        }
+        for (ServiceCalendar c : gtfs.getAllCalendars()) {
+            if(c.getServiceId().toString().equals(service)
+                    && c.getStartDate().compareTo(date) <= 0 && date.compareTo(c.getEndDate()) <= 0
+                    && isWeekday(c, day.getDayOfWeek())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWeekday(ServiceCalendar c, DayOfWeek day) {
+        int[] days = { c.getMonday(), c.getTuesday(), c.getWednesday(), c.getThursday(), c.getFriday(), c.getSaturday(), c.getSunday() };
+        return days[day.getValue() - 1] == 1;
+    }
+
+    private static ServiceDate date(LocalDate day) {
+        return new ServiceDate(day.getYear(), day.getMonthValue(), day.getDayOfMonth());
+    }
+}
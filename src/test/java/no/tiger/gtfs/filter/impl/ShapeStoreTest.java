@@ -0,0 +1,159 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.ShapePoint;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The shape points left by clipping and simplifying the {@link ShapeStore} are the points
+ * left by clipping and simplifying the shape points of the feed, one shape at a time. The
+ * shapes, frequencies and pathways follow the trips and stops kept by the cleanup.
+ */
+public class ShapeStoreTest {
+    private static final double EARTH_RADIUS = 6_371_000;
+
+    @Test
+    public void sameClippedPoints() throws Exception {
+        for (String area : new String[] { "59.905 10.71 59.925 10.75", "POLYGON ((10.69 59.89, 10.77 59.89, 10.77 59.94))", "61 13 62 14" }) {
+            Region region = Regions.parse("a", area, new File("."));
+            for (int parallelism : new int[] { 1, 4 }) {
+                GtfsModel gtfs = load(parallelism);
+                Set<String> expected = new TreeSet<>();
+                shapes(gtfs.getAllShapePoints()).values().forEach(points -> expected.addAll(clip(points, region)));
+                gtfs.clipShapes(region);
+                assertEquals(area + ", parallelism " + parallelism, expected, ids(gtfs.getAllShapePoints()));
+            }
+        }
+    }
+
+    @Test
+    public void sameSimplifiedPoints() throws Exception {
+        for (double tolerance : new double[] { 0, 10, 50, 100_000 }) {
+            for (int parallelism : new int[] { 1, 4 }) {
+                GtfsModel gtfs = load(parallelism);
+                Set<String> expected = new TreeSet<>();
+                shapes(gtfs.getAllShapePoints()).values().forEach(points -> expected.addAll(simplify(points, tolerance)));
+                gtfs.simplifyShapes(tolerance);
+                assertEquals(tolerance + " m, parallelism " + parallelism, expected, ids(gtfs.getAllShapePoints()));
+            }
+        }
+    }
+
+    @Test
+    public void cleanupFollowsTripsAndStops() throws Exception {
+        GtfsModel gtfs = load(1);
+        gtfs.retainRoutes("20");
+        gtfs.cleanupAll();
+        assertEquals("[A1_SH20]", shapes(gtfs.getAllShapePoints()).keySet().toString());
+        assertEquals("[A1_T20a1]", frequencies(gtfs));
+        assertEquals("[A1_P1]", pathways(gtfs));
+
+        gtfs = load(1);
+        gtfs.retainRoutes("10", "30");
+        gtfs.cleanupAll();
+        assertEquals("[A1_SH10, A1_SH10R, A1_SH30]", shapes(gtfs.getAllShapePoints()).keySet().toString());
+        assertEquals("[A2_T30a1]", frequencies(gtfs));
+        assertEquals("[A1_P2]", pathways(gtfs));
+    }
+
+    /** The points inside the region, and the points next to them, or all points if less than 2 are left. */
+    private static List<String> clip(List<ShapePoint> points, Region region) {
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < points.size(); i++) {
+            if(inside(points, i - 1, region) || inside(points, i, region) || inside(points, i + 1, region)) {
+                kept.add(id(points.get(i)));
+            }
+        }
+        return kept.size() < 2 ? points.stream().map(ShapeStoreTest::id).collect(Collectors.toList()) : kept;
+    }
+
+    private static boolean inside(List<ShapePoint> points, int i, Region region) {
+        return i >= 0 && i < points.size() && region.inside(points.get(i).getLat(), points.get(i).getLon());
+    }
+
+    /** Douglas-Peucker, by recursion. */
+    private static List<String> simplify(List<ShapePoint> points, double tolerance) {
+        boolean[] keep = new boolean[points.size()];
+        keep[0] = true;
+        keep[points.size() - 1] = true;
+        simplify(points, 0, points.size() - 1, tolerance, keep);
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < points.size(); i++) {
+            if(keep[i]) kept.add(id(points.get(i)));
+        }
+        return kept;
+    }
+
+    private static void simplify(List<ShapePoint> points, int first, int last, double tolerance, boolean[] keep) {
+        int farthest = -1;
+        double max = tolerance;
+        for (int i = first + 1; i < last; i++) {
+            double d = distance(points, i, first, last);
+            if(d > max) {
+                max = d;
+                farthest = i;
+            }
+        }
+        if(farthest < 0) return;
+        keep[farthest] = true;
+        simplify(points, first, farthest, tolerance, keep);
+        simplify(points, farthest, last, tolerance, keep);
+    }
+
+    /** The distance in meters from the point to the segment, on a plane at the first point of the shape. */
+    private static double distance(List<ShapePoint> points, int p, int a, int b) {
+        double[] xy = xy(points, p), axy = xy(points, a), bxy = xy(points, b);
+        double dx = bxy[0] - axy[0], dy = bxy[1] - axy[1];
+        double length2 = dx * dx + dy * dy;
+        double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((xy[0] - axy[0]) * dx + (xy[1] - axy[1]) * dy) / length2));
+        return Math.hypot(xy[0] - axy[0] - t * dx, xy[1] - axy[1] - t * dy);
+    }
+
+    private static double[] xy(List<ShapePoint> points, int i) {
+        ShapePoint origin = points.get(0);
+        double scaleY = Math.toRadians(EARTH_RADIUS);
+        double scaleX = scaleY * Math.cos(Math.toRadians(origin.getLat()));
+        return new double[] { (points.get(i).getLon() - origin.getLon()) * scaleX, (points.get(i).getLat() - origin.getLat()) * scaleY };
+    }
+
+    /** The points of each shape, sorted by sequence. */
+    private static Map<String, List<ShapePoint>> shapes(Collection<ShapePoint> points) {
+        Map<String, List<ShapePoint>> shapes = points.stream().collect(Collectors.groupingBy(p -> p.getShapeId().toString(), TreeMap::new, Collectors.toList()));
+        shapes.values().forEach(it -> it.sort(Comparator.comparingInt(ShapePoint::getSequence)));
+        return shapes;
+    }
+
+    private static String frequencies(GtfsModel gtfs) {
+        return gtfs.getAllFrequencies().stream().map(f -> f.getTrip().getId().toString()).sorted().collect(Collectors.toList()).toString();
+    }
+
+    private static String pathways(GtfsModel gtfs) {
+        return gtfs.getAllPathways().stream().map(p -> p.getId().toString()).sorted().collect(Collectors.toList()).toString();
+    }
+
+    private static Set<String> ids(Collection<ShapePoint> points) {
+        return points.stream().map(ShapeStoreTest::id).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private static String id(ShapePoint p) {
+        return p.getShapeId() + "/" + p.getSequence();
+    }
+
+    private static GtfsModel load(int parallelism) throws Exception {
+        GtfsModel gtfs = new GtfsModel(GtfsDb.loadGtfs(CleanupCascadeTest.resource("lines/feed")));
+        gtfs.setParallelism(parallelism);
+        return gtfs;
+    }
+}
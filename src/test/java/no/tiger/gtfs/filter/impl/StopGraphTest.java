@@ -0,0 +1,137 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Transfer;
+import org.onebusaway.gtfs.model.Trip;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The stops kept by {@link GtfsModel#retainReachable(Region, int)} and
+ * {@link GtfsModel#retainReachableWithin(Region, int)} are the stops found by a search over
+ * the consecutive stop times of the trips and the transfers, built from the entities.
+ */
+public class StopGraphTest {
+    private static final String[][] AREAS = {
+            { "cleanup/feed", "59.905 10.745 59.915 10.755" },
+            { "lines/feed", "59.905 10.71 59.915 10.73" },
+            { "lines/feed", "59.79 10.49 59.805 10.51" },
+    };
+
+    @Test
+    public void sameStopsWithinHops() throws Exception {
+        for (String[] area : AREAS) {
+            for (int hops : new int[] { 0, 1, 2, 3 }) {
+                GtfsModel gtfs = load(area[0]);
+                Region region = Regions.parse("a", area[1], new File("."));
+                Set<String> expected = withinHops(edges(gtfs), seeds(gtfs, region), hops);
+                gtfs.retainReachable(region, hops);
+                assertEquals(area[0] + " " + area[1] + ", " + hops + " hops", expected, stopIds(gtfs.getAllStops()));
+            }
+        }
+    }
+
+    @Test
+    public void sameStopsWithinTime() throws Exception {
+        for (String[] area : AREAS) {
+            for (int seconds : new int[] { 0, 300, 600, 1200 }) {
+                GtfsModel gtfs = load(area[0]);
+                Region region = Regions.parse("a", area[1], new File("."));
+                Set<String> expected = withinTime(edges(gtfs), seeds(gtfs, region), seconds);
+                gtfs.retainReachableWithin(region, seconds);
+                assertEquals(area[0] + " " + area[1] + ", " + seconds + " s", expected, stopIds(gtfs.getAllStops()));
+            }
+        }
+    }
+
+    /** The shortest time between the stops connected, in both directions. */
+    private static Map<String, Map<String, Integer>> edges(GtfsModel gtfs) {
+        Map<String, Map<String, Integer>> edges = new HashMap<>();
+        Map<Trip, List<StopTime>> byTrip = gtfs.getAllStopTimes().stream().collect(Collectors.groupingBy(StopTime::getTrip));
+        for (List<StopTime> stopTimes : byTrip.values()) {
+            stopTimes.sort(Comparator.comparingInt(StopTime::getStopSequence));
+            Integer prevTime = null;
+            for (int i = 0; i < stopTimes.size(); i++) {
+                StopTime st = stopTimes.get(i);
+                Integer arrival = st.isArrivalTimeSet() ? (Integer) st.getArrivalTime() : st.isDepartureTimeSet() ? (Integer) st.getDepartureTime() : null;
+                if(i > 0) {
+                    int time = arrival != null && prevTime != null ? Math.max(0, arrival - prevTime) : 0;
+                    addEdge(edges, stopTimes.get(i - 1).getStop(), st.getStop(), time);
+                }
+                if(st.isDepartureTimeSet()) prevTime = st.getDepartureTime();
+                else if(arrival != null) prevTime = arrival;
+            }
+        }
+        for (Transfer t : gtfs.getAllEntitiesForType(Transfer.class)) {
+            addEdge(edges, t.getFromStop(), t.getToStop(), t.isMinTransferTimeSet() ? Math.max(0, t.getMinTransferTime()) : 0);
+        }
+        return edges;
+    }
+
+    private static void addEdge(Map<String, Map<String, Integer>> edges, Stop from, Stop to, int time) {
+        String a = from.getId().toString(), b = to.getId().toString();
+        edges.computeIfAbsent(a, it -> new HashMap<>()).merge(b, time, Math::min);
+        edges.computeIfAbsent(b, it -> new HashMap<>()).merge(a, time, Math::min);
+    }
+
+    private static Set<String> withinHops(Map<String, Map<String, Integer>> edges, Set<String> seeds, int maxHops) {
+        Map<String, Integer> hops = new HashMap<>();
+        Deque<String> queue = new ArrayDeque<>(seeds);
+        seeds.forEach(s -> hops.put(s, 0));
+        while (!queue.isEmpty()) {
+            String stop = queue.poll();
+            if(hops.get(stop) == maxHops) continue;
+            for (String next : edges.getOrDefault(stop, new HashMap<>()).keySet()) {
+                if(hops.putIfAbsent(next, hops.get(stop) + 1) == null) queue.add(next);
+            }
+        }
+        return new TreeSet<>(hops.keySet());
+    }
+
+    private static Set<String> withinTime(Map<String, Map<String, Integer>> edges, Set<String> seeds, int maxSeconds) {
+        Map<String, Integer> times = new HashMap<>();
+        PriorityQueue<Map.Entry<String, Integer>> queue = new PriorityQueue<>(Map.Entry.comparingByValue());
+        seeds.forEach(s -> queue.add(new HashMap.SimpleEntry<>(s, 0)));
+        while (!queue.isEmpty()) {
+            Map.Entry<String, Integer> e = queue.poll();
+            if(times.containsKey(e.getKey())) continue;
+            times.put(e.getKey(), e.getValue());
+            edges.getOrDefault(e.getKey(), new HashMap<>()).forEach((next, time) -> {
+                if(e.getValue() + time <= maxSeconds && !times.containsKey(next)) {
+                    queue.add(new HashMap.SimpleEntry<>(next, e.getValue() + time));
+                }
+            });
+        }
+        return new TreeSet<>(times.keySet());
+    }
+
+    private static Set<String> seeds(GtfsModel gtfs, Region region) {
+        return gtfs.getAllStops().stream()
+                .filter(s -> region.inside(s.getLat(), s.getLon()))
+                .map(s -> s.getId().toString())
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private static Set<String> stopIds(Collection<Stop> stops) {
+        return stops.stream().map(s -> s.getId().toString()).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private static GtfsModel load(String feed) throws Exception {
+        return new GtfsModel(GtfsDb.loadGtfs(CleanupCascadeTest.resource(feed)));
+    }
+}
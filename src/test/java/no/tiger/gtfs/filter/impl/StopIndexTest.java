@@ -0,0 +1,64 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The stops found in the grid are the stops found by testing all stops.
+ */
+public class StopIndexTest {
+
+    @Test
+    public void sameStopsAsTestingAll() throws Exception {
+        Random random = new Random(42);
+        List<Stop> stops = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            stops.add(stop(i, 59.0 + random.nextDouble(), 10.0 + 2 * random.nextDouble()));
+        }
+        // Stops on the borders of the regions and the grid
+        stops.add(stop(2000, 59.4, 10.4));
+        stops.add(stop(2001, 59.0, 10.0));
+        StopIndex index = new StopIndex(stops);
+        File dir = new File(".");
+        List<Region> regions = new ArrayList<>();
+        regions.add(Regions.parse("box", "59.4 10.4 59.6 10.9", dir));
+        regions.add(Regions.parse("p", "POLYGON ((10 59, 11 59, 11 60, 10 60), (10.4 59.4, 10.6 59.4, 10.6 59.6, 10.4 59.6))", dir));
+        regions.add(Regions.parse("m", "MULTIPOLYGON (((10 59, 11 59, 10.5 60)), ((11.5 59.5, 12.5 59.5, 12 61)))", dir));
+        regions.add(Regions.parse("c", "CORRIDOR 2000 (10.1 59.1, 11.5 59.8, 11.9 59.2)", dir));
+        regions.add(Regions.parse("outside", "61 13 62 14", dir));
+        for (Region region : regions) {
+            BitSet expected = new BitSet();
+            for (int i = 0; i < stops.size(); i++) {
+                if(region.bounds().inside(stops.get(i).getLat(), stops.get(i).getLon()) && region.inside(stops.get(i))) {
+                    expected.set(i);
+                }
+            }
+            assertEquals(region.getName(), expected, index.inside(region));
+            assertTrue(region.getName(), region.getName().equals("outside") || expected.cardinality() > 10);
+        }
+    }
+
+    @Test
+    public void noStops() {
+        assertTrue(new StopIndex(Collections.emptyList()).inside(new Box("b", 59, 10, 60, 11)).isEmpty());
+    }
+
+    private static Stop stop(int id, double lat, double lon) {
+        Stop s = new Stop();
+        s.setId(new AgencyAndId("A", "S" + id));
+        s.setLat(lat);
+        s.setLon(lon);
+        return s;
+    }
+}
@@ -0,0 +1,112 @@
+package no.tiger.gtfs.filter.impl;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The trips sampled from each {@link TripPatterns} pattern are the trips sampled from the
+ * patterns found by grouping the trips by route and stop ids, sorted by departure.
+ */
+public class TripPatternsTest {
+
+    @Test
+    public void sameTripsPerPattern() throws Exception {
+        for (String feed : new String[] { "cleanup/feed", "lines/feed" }) {
+            for (int k : new int[] { 1, 2, 3, 10 }) {
+                GtfsModel gtfs = load(feed);
+                List<String> expected = sample(patterns(gtfs), k);
+                gtfs.retainTripsPerPattern(k);
+                assertEquals(feed + ", " + k + " per pattern", expected, tripIds(gtfs));
+            }
+        }
+    }
+
+    @Test
+    public void sameTripsWithHeadway() throws Exception {
+        for (String feed : new String[] { "cleanup/feed", "lines/feed" }) {
+            for (int headway : new int[] { 0, 600, 1800, 7200 }) {
+                GtfsModel gtfs = load(feed);
+                List<String> expected = sampleByHeadway(patterns(gtfs), headway);
+                gtfs.retainTripsWithHeadway(headway);
+                assertEquals(feed + ", headway " + headway, expected, tripIds(gtfs));
+            }
+        }
+    }
+
+    @Test
+    public void samePatternsInParallel() throws Exception {
+        GtfsModel sequential = load("lines/feed");
+        GtfsModel parallel = load("lines/feed");
+        parallel.setParallelism(4);
+        sequential.retainTripsPerPattern(2);
+        parallel.retainTripsPerPattern(2);
+        assertEquals(tripIds(sequential), tripIds(parallel));
+    }
+
+    /** The stop times of each pattern, by route and stop ids, sorted by the departure of the trip. */
+    private static Map<String, List<List<StopTime>>> patterns(GtfsModel gtfs) {
+        Map<Trip, List<StopTime>> byTrip = gtfs.getAllStopTimes().stream().collect(Collectors.groupingBy(StopTime::getTrip));
+        Map<String, List<List<StopTime>>> patterns = new TreeMap<>();
+        for (List<StopTime> stopTimes : byTrip.values()) {
+            stopTimes.sort(Comparator.comparingInt(StopTime::getStopSequence));
+            String key = stopTimes.get(0).getTrip().getRoute().getId() + " "
+                    + stopTimes.stream().map(st -> st.getStop().getId().toString()).collect(Collectors.joining(" "));
+            patterns.computeIfAbsent(key, it -> new ArrayList<>()).add(stopTimes);
+        }
+        patterns.values().forEach(trips -> trips.sort(Comparator.comparingInt(TripPatternsTest::departure)));
+        return patterns;
+    }
+
+    private static List<String> sample(Map<String, List<List<StopTime>>> patterns, int k) {
+        TreeSet<String> kept = new TreeSet<>();
+        for (List<List<StopTime>> trips : patterns.values()) {
+            int n = trips.size();
+            if(n <= k) trips.forEach(t -> kept.add(id(t)));
+            else if(k == 1) kept.add(id(trips.get(n / 2)));
+            else for (int i = 0; i < k; i++) kept.add(id(trips.get(i * (n - 1) / (k - 1))));
+        }
+        return new ArrayList<>(kept);
+    }
+
+    private static List<String> sampleByHeadway(Map<String, List<List<StopTime>>> patterns, int headway) {
+        TreeSet<String> kept = new TreeSet<>();
+        for (List<List<StopTime>> trips : patterns.values()) {
+            Integer last = null;
+            for (List<StopTime> trip : trips) {
+                if(last == null || departure(trip) >= last + headway) {
+                    kept.add(id(trip));
+                    last = departure(trip);
+                }
+            }
+        }
+        return new ArrayList<>(kept);
+    }
+
+    private static int departure(List<StopTime> trip) {
+        StopTime first = trip.get(0);
+        return first.isDepartureTimeSet() ? first.getDepartureTime() : first.getArrivalTime();
+    }
+
+    private static String id(List<StopTime> trip) {
+        return trip.get(0).getTrip().getId().toString();
+    }
+
+    private static List<String> tripIds(GtfsModel gtfs) {
+        return gtfs.getAllTrips().stream().map(t -> t.getId().toString()).sorted().collect(Collectors.toList());
+    }
+
+    private static GtfsModel load(String feed) throws Exception {
+        return new GtfsModel(GtfsDb.loadGtfs(CleanupCascadeTest.resource(feed)));
+    }
+}